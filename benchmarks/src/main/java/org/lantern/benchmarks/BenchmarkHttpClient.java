@@ -0,0 +1,237 @@
+package org.lantern.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minimal blocking HTTP/1.1 client that talks to the local proxy the way
+ * a browser does: absolute URIs, persistent connections and optional
+ * pipelining. Bodies are read and discarded so the client itself
+ * allocates as little as possible.
+ */
+public class BenchmarkHttpClient {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final String host;
+
+    private final int port;
+
+    private final byte[] buf = new byte[64 * 1024];
+
+    private final StringBuilder line = new StringBuilder();
+
+    private Socket sock;
+
+    private InputStream is;
+
+    private OutputStream os;
+
+    public BenchmarkHttpClient(final String host, final int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (sock != null && !sock.isClosed()) {
+            return;
+        }
+        sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        is = new BufferedInputStream(sock.getInputStream(), buf.length);
+        os = sock.getOutputStream();
+    }
+
+    /**
+     * Fetches the specified URI over the persistent connection, opening a
+     * new one if the proxy closed the last.
+     *
+     * @return The number of body bytes read.
+     */
+    public long get(final String uri) throws IOException {
+        ensureOpen();
+        os.write(request(uri));
+        os.flush();
+        return readResponse();
+    }
+
+    /**
+     * Writes all of the requests before reading any of the responses.
+     *
+     * @return The total number of body bytes read.
+     */
+    public long pipeline(final String... uris) throws IOException {
+        ensureOpen();
+        for (final String uri : uris) {
+            os.write(request(uri));
+        }
+        os.flush();
+        long total = 0;
+        for (int i = 0; i < uris.length; i++) {
+            total += readResponse();
+        }
+        return total;
+    }
+
+    /**
+     * Opens a CONNECT tunnel and waits for it to be established. Anything
+     * written afterwards goes straight to the other end.
+     */
+    public void connect(final String hostAndPort) throws IOException {
+        close();
+        ensureOpen();
+        os.write(("CONNECT " + hostAndPort + " HTTP/1.1\r\nHost: " +
+            hostAndPort + "\r\n\r\n").getBytes("US-ASCII"));
+        os.flush();
+        final int status = readStatus();
+        skipHeaders();
+        if (status != 200) {
+            throw new IOException("CONNECT failed with " + status);
+        }
+    }
+
+    /**
+     * Writes the data to an open tunnel and reads back the same number
+     * of bytes.
+     */
+    public void echo(final byte[] data) throws IOException {
+        os.write(data);
+        os.flush();
+        readFully(data.length);
+    }
+
+    public void close() {
+        IOUtils.closeQuietly(sock);
+        sock = null;
+    }
+
+    private byte[] request(final String uri) throws IOException {
+        final String hostHeader = hostOf(uri);
+        return ("GET " + uri + " HTTP/1.1\r\n" +
+            "Host: " + hostHeader + "\r\n" +
+            "User-Agent: lantern-benchmarks\r\n" +
+            "Accept: */*\r\n" +
+            "Connection: keep-alive\r\n\r\n").getBytes("US-ASCII");
+    }
+
+    private static String hostOf(final String uri) {
+        final int start = uri.indexOf("://") + 3;
+        final int end = uri.indexOf('/', start);
+        return end < 0 ? uri.substring(start) : uri.substring(start, end);
+    }
+
+    private long readResponse() throws IOException {
+        final int status = readStatus();
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = false;
+        String header;
+        while ((header = readLine()).length() > 0) {
+            final int colon = header.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            final String name = header.substring(0, colon).trim();
+            final String value = header.substring(colon + 1).trim();
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                contentLength = Long.parseLong(value);
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                chunked = "chunked".equalsIgnoreCase(value);
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                close = "close".equalsIgnoreCase(value);
+            }
+        }
+        if (status < 200 || status >= 300) {
+            throw new IOException("Unexpected status " + status);
+        }
+        final long read;
+        if (chunked) {
+            read = readChunked();
+        } else if (contentLength >= 0) {
+            readFully(contentLength);
+            read = contentLength;
+        } else {
+            read = readToEnd();
+            close = true;
+        }
+        if (close) {
+            close();
+        }
+        return read;
+    }
+
+    private int readStatus() throws IOException {
+        final String status = readLine();
+        final int space = status.indexOf(' ');
+        if (space < 0) {
+            throw new IOException("Bad status line: " + status);
+        }
+        return Integer.parseInt(status.substring(space + 1, space + 4));
+    }
+
+    private void skipHeaders() throws IOException {
+        while (readLine().length() > 0) {
+            // skip
+        }
+    }
+
+    private long readChunked() throws IOException {
+        long total = 0;
+        while (true) {
+            final String size = readLine();
+            final int semi = size.indexOf(';');
+            final long n = Long.parseLong(
+                (semi < 0 ? size : size.substring(0, semi)).trim(), 16);
+            if (n == 0) {
+                // trailers
+                skipHeaders();
+                return total;
+            }
+            readFully(n);
+            readFully(CRLF.length);
+            total += n;
+        }
+    }
+
+    private void readFully(final long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            final int n = is.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n < 0) {
+                throw new IOException("Connection closed with " + remaining +
+                    " bytes left to read");
+            }
+            remaining -= n;
+        }
+    }
+
+    private long readToEnd() throws IOException {
+        long total = 0;
+        int n;
+        while ((n = is.read(buf)) >= 0) {
+            total += n;
+        }
+        return total;
+    }
+
+    private String readLine() throws IOException {
+        line.setLength(0);
+        int c;
+        while ((c = is.read()) >= 0) {
+            if (c == '\n') {
+                final int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        throw new IOException("Connection closed reading line");
+    }
+}
@@ -0,0 +1,90 @@
+package org.lantern.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.lantern.benchmarks.ProxyFixture.Route;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HTTP CONNECT tunnels relayed over TLS to a central proxy, which is how
+ * browsers reach HTTPS sites through Lantern.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConnectTunnelBenchmark {
+
+    private static final String TARGET = ProxyFixture.HOST + ":443";
+
+    private ProxyFixture fixture;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        fixture = new ProxyFixture(Route.CENTRAL);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        fixture.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Tunnel {
+
+        @Param({"1024", "65536"})
+        public int messageSize;
+
+        BenchmarkHttpClient client;
+
+        byte[] message;
+
+        @Setup(Level.Trial)
+        public void open(final ConnectTunnelBenchmark benchmark)
+            throws IOException {
+            message = new byte[messageSize];
+            client = benchmark.fixture.newClient();
+            client.connect(TARGET);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            client.close();
+        }
+    }
+
+    /**
+     * A new tunnel per operation, including the TLS handshake with the
+     * central proxy and a single exchange, like a short HTTPS fetch.
+     */
+    @Benchmark
+    @Threads(4)
+    public void tunnelSetup(final Tunnel t) throws IOException {
+        t.client.connect(TARGET);
+        t.client.echo(t.message);
+    }
+
+    /**
+     * Round trips over an established tunnel.
+     */
+    @Benchmark
+    public void tunnelEcho(final Tunnel t) throws IOException {
+        t.client.echo(t.message);
+    }
+}
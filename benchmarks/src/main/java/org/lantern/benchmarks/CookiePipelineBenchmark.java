@@ -0,0 +1,118 @@
+package org.lantern.benchmarks;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.Cookie;
+import org.jboss.netty.handler.codec.http.CookieDecoder;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.lantern.cookie.CookieFilter;
+import org.lantern.cookie.InMemoryCookieTracker;
+import org.lantern.cookie.SetCookieObserverHandler;
+import org.lantern.cookie.UpstreamCookieFilterHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-request cost of the cookie handlers, found by pushing the same
+ * request/response pairs through a pipeline with and without them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookiePipelineBenchmark {
+
+    // a typical browser Cookie header, the last two were never set
+    // by the site in the clear.
+    private static final String COOKIE_HEADER =
+        "_ga=GA1.2.1234567890.1350000000; _gat=1; PREF=ID=1a2b3c4d:FF=0; " +
+        "SID=DQAAAKQAAADl5; HSID=AYQEVnDKrdst; lang=en; " +
+        "secret=abcdef; tracker=\"xyz\"";
+
+    private DecoderEmbedder<Object> on;
+
+    private DecoderEmbedder<Object> off;
+
+    private int requests;
+
+    @Setup
+    public void setUp() {
+        final InMemoryCookieTracker tracker = new InMemoryCookieTracker();
+        // seed the tracker with the cookies the site set in the clear
+        for (final String c : new String[] {
+            "_ga=GA1.2.1234567890.1350000000; Domain=example.com",
+            "_gat=1", "PREF=ID=1a2b3c4d:FF=0", "SID=DQAAAKQAAADl5",
+            "HSID=AYQEVnDKrdst", "lang=en"}) {
+            for (final Cookie cookie : new CookieDecoder().decode(c)) {
+                tracker.setCookie(cookie, request());
+            }
+        }
+        on = new DecoderEmbedder<Object>(
+            new SetCookieObserverHandler(tracker),
+            new UpstreamCookieFilterHandler(new CookieFilter.Factory() {
+                @Override
+                public CookieFilter createCookieFilter(
+                    final HttpRequest context) {
+                    try {
+                        return tracker.asOutboundCookieFilter(context, true);
+                    } catch (final URISyntaxException e) {
+                        return null;
+                    }
+                }
+            }));
+        off = new DecoderEmbedder<Object>(new SimpleChannelHandler());
+    }
+
+    @Benchmark
+    public Object cookieHandlers() {
+        return exchange(on);
+    }
+
+    @Benchmark
+    public Object noCookieHandlers() {
+        return exchange(off);
+    }
+
+    private Object exchange(final DecoderEmbedder<Object> embedder) {
+        embedder.offer(request());
+        final HttpResponse res =
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        // roughly one response in four sets a cookie.
+        if (requests++ % 4 == 0) {
+            res.addHeader(HttpHeaders.Names.SET_COOKIE, "lang=en; Path=/");
+        }
+        Channels.write(embedder.getPipeline().getChannel(), res);
+        final Object req = embedder.poll();
+        embedder.poll();
+        return req;
+    }
+
+    private static HttpRequest request() {
+        final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+            HttpMethod.GET, "http://www.example.com/");
+        req.setHeader(HttpHeaders.Names.HOST, "www.example.com");
+        req.setHeader(HttpHeaders.Names.COOKIE, COOKIE_HEADER);
+        return req;
+    }
+}
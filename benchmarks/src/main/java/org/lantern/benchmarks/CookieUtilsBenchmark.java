@@ -0,0 +1,103 @@
+package org.lantern.benchmarks;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.handler.codec.http.Cookie;
+import org.lantern.cookie.CookieFilter;
+import org.lantern.cookie.CookieHeaderScanner;
+import org.lantern.cookie.CookieUtils;
+import org.lantern.cookie.StoredCookie;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cookie matching and header filtering done for each request that
+ * carries cookies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieUtilsBenchmark {
+
+    private static final String COOKIE_HEADER =
+        "_ga=GA1.2.1234567890.1350000000; _gat=1; PREF=ID=1a2b3c4d:FF=0; " +
+        "SID=DQAAAKQAAADl5; HSID=AYQEVnDKrdst; lang=en; " +
+        "secret=abcdef; tracker=\"xyz\"";
+
+    private StoredCookie cookie;
+
+    private URI requestUri;
+
+    private CookieFilter dropSome;
+
+    private CookieFilter keepAll;
+
+    @Setup
+    public void setUp() throws URISyntaxException {
+        requestUri = new URI("http://www.example.com/account/settings");
+        cookie = new StoredCookie("SID", "DQAAAKQAAADl5");
+        cookie.setDomain("example.com");
+        cookie.setPath("/account");
+        dropSome = new CookieFilter() {
+            @Override
+            public boolean accepts(final Cookie c) {
+                return !c.getName().startsWith("secret") &&
+                    !c.getName().startsWith("tracker");
+            }
+        };
+        keepAll = new CookieFilter() {
+            @Override
+            public boolean accepts(final Cookie c) {
+                return true;
+            }
+        };
+    }
+
+    @Benchmark
+    public boolean canBeSent() {
+        return CookieUtils.canBeSent(cookie, requestUri);
+    }
+
+    @Benchmark
+    public boolean domainMatches() {
+        return CookieUtils.domainMatches("example.com", "www.example.com");
+    }
+
+    @Benchmark
+    public String canonicalizeHost() {
+        return CookieUtils.canonicalizeHost("WWW.Example.COM");
+    }
+
+    @Benchmark
+    public String canonicalizeIdnHost() {
+        return CookieUtils.canonicalizeHost("www.bücher.de");
+    }
+
+    @Benchmark
+    public URI makeSafeURI() throws URISyntaxException {
+        return CookieUtils.makeSafeURI("http://www.example.com/a/b?c=d");
+    }
+
+    @Benchmark
+    public String filterHeaderUnchanged() {
+        return CookieHeaderScanner.filter(COOKIE_HEADER, keepAll);
+    }
+
+    @Benchmark
+    public String filterHeaderRewritten() {
+        return CookieHeaderScanner.filter(COOKIE_HEADER, dropSome);
+    }
+}
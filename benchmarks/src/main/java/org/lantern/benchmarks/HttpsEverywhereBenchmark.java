@@ -0,0 +1,51 @@
+package org.lantern.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.lantern.httpseverywhere.HttpsEverywhere;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HTTPS Everywhere rewriting, checked for every proxied request. The
+ * rules are loaded from the https directory, so this must be run from
+ * the root of the lantern checkout.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpsEverywhereBenchmark {
+
+    private HttpsEverywhere httpsEverywhere;
+
+    @Setup
+    public void setUp() {
+        httpsEverywhere = new HttpsEverywhere();
+    }
+
+    @Benchmark
+    public String rewritten() {
+        return httpsEverywhere.toHttps("http://www.avaaz.org/en/petition");
+    }
+
+    @Benchmark
+    public String noRules() {
+        return httpsEverywhere.toHttps("http://www.example.com/index.html");
+    }
+
+    @Benchmark
+    public String alreadyHttps() {
+        return httpsEverywhere.toHttps("https://secure.avaaz.org/en/");
+    }
+}
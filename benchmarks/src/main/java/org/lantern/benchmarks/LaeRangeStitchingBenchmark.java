@@ -0,0 +1,68 @@
+package org.lantern.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.lantern.benchmarks.ProxyFixture.Route;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Downloads through LAE, which only returns 2MB at a time, so the proxy
+ * has to follow each 206 with another range request and stitch the
+ * parts into a single response for the browser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LaeRangeStitchingBenchmark {
+
+    /**
+     * Object sizes covering one, two and eight range requests.
+     */
+    @Param({"1000000", "4000000", "16000000"})
+    public long size;
+
+    private ProxyFixture fixture;
+
+    private BenchmarkHttpClient client;
+
+    private String uri;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        fixture = new ProxyFixture(Route.LAE);
+        client = fixture.newClient();
+        uri = ProxyFixture.uri(MockUpstream.LARGE, size);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        client.close();
+        fixture.stop();
+    }
+
+    @Benchmark
+    public long stitchedDownload() throws IOException {
+        final long read = client.get(uri);
+        if (read != size) {
+            throw new IllegalStateException("Expected " + size +
+                " bytes but read " + read);
+        }
+        return read;
+    }
+}
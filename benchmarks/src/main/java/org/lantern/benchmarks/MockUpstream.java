@@ -0,0 +1,304 @@
+package org.lantern.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLEngine;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.littleshoot.proxy.KeyStoreManager;
+import org.littleshoot.proxy.SslContextFactory;
+
+/**
+ * In-process stand-in for the servers the local proxy talks to: central
+ * proxies, LAE and peers. It serves synthetic content from a shared
+ * buffer so the benchmarks measure the proxy rather than the upstream.
+ *
+ * <ul>
+ * <li><code>.../small/&lt;n&gt;</code> returns n bytes in one write.</li>
+ * <li><code>.../large/&lt;n&gt;</code> streams n bytes in 64KB chunks.</li>
+ * <li>Range requests get a 206 with a Content-Range, as LAE does.</li>
+ * <li>CONNECT gets a 200 and everything after it is echoed back.</li>
+ * </ul>
+ *
+ * The path is matched anywhere in the URI, so absolute proxy URIs and
+ * LAE style <code>/http/host/...</code> URIs work the same way.
+ */
+public class MockUpstream {
+
+    public static final String SMALL = "/small/";
+
+    public static final String LARGE = "/large/";
+
+    private static final int CHUNK = 64 * 1024;
+
+    private static final byte[] PAYLOAD = new byte[1024 * 1024];
+
+    static {
+        for (int i = 0; i < PAYLOAD.length; i++) {
+            PAYLOAD[i] = (byte) ('a' + (i % 26));
+        }
+    }
+
+    private final NioServerSocketChannelFactory channelFactory;
+
+    private final ChannelGroup channelGroup =
+        new DefaultChannelGroup("Mock-Upstream");
+
+    private final int port;
+
+    /**
+     * Creates and binds a new upstream on localhost.
+     *
+     * @param port The port to listen on.
+     * @param ksm If non-null, connections are wrapped in TLS using this
+     * key store.
+     */
+    public MockUpstream(final int port, final KeyStoreManager ksm) {
+        this.port = port;
+        this.channelFactory = new NioServerSocketChannelFactory(
+            Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        final ServerBootstrap bootstrap = new ServerBootstrap(channelFactory);
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                if (ksm != null) {
+                    final SSLEngine engine =
+                        new SslContextFactory(ksm).getServerContext().createSSLEngine();
+                    engine.setUseClientMode(false);
+                    pipeline.addLast("ssl", new SslHandler(engine));
+                }
+                pipeline.addLast("decoder",
+                    new HttpRequestDecoder(8192, 8192*2, 8192*2));
+                pipeline.addLast("encoder", new HttpResponseEncoder());
+                pipeline.addLast("chunker", new ChunkedWriteHandler());
+                pipeline.addLast("handler", new UpstreamHandler());
+                return pipeline;
+            }
+        });
+        channelGroup.add(bootstrap.bind(new InetSocketAddress("127.0.0.1", port)));
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void stop() {
+        channelGroup.close().awaitUninterruptibly(10*1000);
+        channelFactory.releaseExternalResources();
+    }
+
+    private class UpstreamHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void channelOpen(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) {
+            channelGroup.add(e.getChannel());
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent me) {
+            final HttpRequest request = (HttpRequest) me.getMessage();
+            final Channel ch = me.getChannel();
+            if (request.getMethod() == HttpMethod.CONNECT) {
+                openTunnel(ch);
+                return;
+            }
+            final String uri = request.getUri();
+            final boolean large = uri.contains(LARGE);
+            final long length = parseLength(uri);
+            if (length < 0) {
+                final HttpResponse response = new DefaultHttpResponse(
+                    request.getProtocolVersion(), HttpResponseStatus.NOT_FOUND);
+                response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "0");
+                finish(request, ch.write(response));
+                return;
+            }
+
+            long start = 0;
+            long end = length - 1;
+            final String range = request.getHeader(HttpHeaders.Names.RANGE);
+            final HttpResponse response;
+            if (range != null && range.startsWith("bytes=")) {
+                final String spec = range.substring("bytes=".length());
+                final int dash = spec.indexOf('-');
+                start = Long.parseLong(spec.substring(0, dash).trim());
+                if (dash < spec.length() - 1) {
+                    end = Math.min(end,
+                        Long.parseLong(spec.substring(dash + 1).trim()));
+                }
+                response = new DefaultHttpResponse(request.getProtocolVersion(),
+                    HttpResponseStatus.PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.Names.CONTENT_RANGE,
+                    "bytes " + start + "-" + end + "/" + length);
+            } else {
+                response = new DefaultHttpResponse(request.getProtocolVersion(),
+                    HttpResponseStatus.OK);
+            }
+            final long count = end - start + 1;
+            response.setHeader(HttpHeaders.Names.CONTENT_TYPE,
+                "application/octet-stream");
+            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, count);
+
+            if (!large && count <= PAYLOAD.length) {
+                response.setContent(slice(start, (int) count));
+                finish(request, ch.write(response));
+            } else {
+                ch.write(response);
+                finish(request, ch.write(new PayloadInput(start, count)));
+            }
+        }
+
+        private void openTunnel(final Channel ch) {
+            final ChannelPipeline pipeline = ch.getPipeline();
+            final HttpResponse response = new DefaultHttpResponse(
+                HttpVersion.HTTP_1_1,
+                new HttpResponseStatus(200, "Connection established"));
+            // The response is encoded as it's written, so we can drop the
+            // HTTP codec straight after and treat the rest as raw bytes.
+            ch.write(response);
+            pipeline.remove("encoder");
+            pipeline.remove("chunker");
+            pipeline.remove("decoder");
+            pipeline.replace("handler", "echo", new EchoHandler());
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent e) {
+            e.getChannel().close();
+        }
+    }
+
+    private static final class EchoHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent me) {
+            me.getChannel().write(me.getMessage());
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent e) {
+            e.getChannel().close();
+        }
+    }
+
+    private static void finish(final HttpRequest request,
+        final ChannelFuture future) {
+        if (!HttpHeaders.isKeepAlive(request)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static long parseLength(final String uri) {
+        int index = uri.lastIndexOf(SMALL);
+        int prefix = SMALL.length();
+        if (index < 0) {
+            index = uri.lastIndexOf(LARGE);
+            prefix = LARGE.length();
+        }
+        if (index < 0) {
+            return -1;
+        }
+        int end = index + prefix;
+        while (end < uri.length() && Character.isDigit(uri.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(uri.substring(index + prefix, end));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns count bytes of the payload as they'd appear at the given
+     * offset of an infinitely repeating payload.
+     */
+    private static ChannelBuffer slice(final long offset, final int count) {
+        final int from = (int) (offset % PAYLOAD.length);
+        if (from + count <= PAYLOAD.length) {
+            return ChannelBuffers.wrappedBuffer(PAYLOAD, from, count);
+        }
+        final ChannelBuffer buf = ChannelBuffers.buffer(count);
+        int remaining = count;
+        int pos = from;
+        while (remaining > 0) {
+            final int n = Math.min(remaining, PAYLOAD.length - pos);
+            buf.writeBytes(PAYLOAD, pos, n);
+            remaining -= n;
+            pos = 0;
+        }
+        return buf;
+    }
+
+    /**
+     * Streams a section of the payload, letting {@link ChunkedWriteHandler}
+     * pace the writes to the socket.
+     */
+    private static final class PayloadInput implements ChunkedInput {
+
+        private long offset;
+        private long remaining;
+
+        private PayloadInput(final long offset, final long count) {
+            this.offset = offset;
+            this.remaining = count;
+        }
+
+        @Override
+        public boolean hasNextChunk() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Object nextChunk() {
+            final int n = (int) Math.min(CHUNK, remaining);
+            final ChannelBuffer buf = slice(offset, n);
+            offset += n;
+            remaining -= n;
+            return buf;
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return remaining <= 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.lantern.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.lantern.benchmarks.ProxyFixture.Route;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end requests from a browser-like client through the local proxy
+ * to each kind of upstream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProxyBenchmark {
+
+    private static final String SMALL_URI =
+        ProxyFixture.uri(MockUpstream.SMALL, 2048);
+
+    private static final String LARGE_URI =
+        ProxyFixture.uri(MockUpstream.LARGE, 8 * 1024 * 1024);
+
+    private static final String[] PIPELINED = new String[16];
+
+    static {
+        for (int i = 0; i < PIPELINED.length; i++) {
+            PIPELINED[i] = ProxyFixture.uri(MockUpstream.SMALL, 512 + i * 256);
+        }
+    }
+
+    @Param({"CENTRAL", "LAE", "PEER"})
+    public Route route;
+
+    private ProxyFixture fixture;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        fixture = new ProxyFixture(route);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        fixture.stop();
+    }
+
+    /**
+     * One persistent browser connection per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        BenchmarkHttpClient client;
+
+        @Setup(Level.Trial)
+        public void open(final ProxyBenchmark benchmark) {
+            client = benchmark.fixture.newClient();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            client.close();
+        }
+    }
+
+    /**
+     * Many concurrent connections each fetching small objects, as a
+     * browser does loading a typical page.
+     */
+    @Benchmark
+    @Threads(8)
+    public long smallGetStorm(final Client c) throws IOException {
+        return c.client.get(SMALL_URI);
+    }
+
+    /**
+     * A single large download streamed through the proxy. On the LAE
+     * route this is stitched together from 2MB range requests.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @BenchmarkMode(Mode.AverageTime)
+    public long largeDownload(final Client c) throws IOException {
+        return c.client.get(LARGE_URI);
+    }
+
+    /**
+     * A batch of requests written back to back on one keep-alive
+     * connection before any response is read.
+     */
+    @Benchmark
+    public long pipelinedKeepAlive(final Client c) throws IOException {
+        return c.client.pipeline(PIPELINED);
+    }
+}
@@ -0,0 +1,230 @@
+package org.lantern.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLContext;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.lantern.HttpRequestProcessor;
+import org.lantern.LanternClientSslContextFactory;
+import org.lantern.LanternHttpProxyServer;
+import org.lantern.LanternHub;
+import org.lantern.LanternKeyStoreManager;
+import org.lantern.LanternUtils;
+import org.lantern.PeerChannelHttpRequestProcessor;
+import org.lantern.PeerProxyManager;
+import org.lantern.ProxyProvider;
+import org.lantern.ProxyStatusListener;
+import org.lantern.Settings;
+
+import com.google.common.io.Files;
+
+/**
+ * Runs a real {@link LanternHttpProxyServer} on loopback with every
+ * upstream it might use replaced by a {@link MockUpstream}. Requests are
+ * routed to exactly one kind of upstream so each path can be measured on
+ * its own.
+ */
+public class ProxyFixture {
+
+    /**
+     * The upstream requests are sent through.
+     */
+    public enum Route {
+        /** Central proxies over TLS. */
+        CENTRAL,
+        /** LAE over TLS, with 206 range stitching. */
+        LAE,
+        /** A trusted peer over an already established socket. */
+        PEER
+    }
+
+    /**
+     * Host used in request URIs. It's never resolved since the proxy
+     * always connects to the mock upstreams, and it has no HTTPS
+     * Everywhere rules so requests aren't redirected.
+     */
+    public static final String HOST = "bench.lantern.invalid";
+
+    private final MockUpstream tlsUpstream;
+
+    private final MockUpstream plainUpstream;
+
+    private final LanternHttpProxyServer server;
+
+    private final int localPort;
+
+    private final SSLContext oldDefaultContext;
+
+    private final ChannelGroup channelGroup;
+
+    public ProxyFixture(final Route route) throws Exception {
+        final LanternKeyStoreManager keyStore =
+            new LanternKeyStoreManager(Files.createTempDir());
+        LanternHub.setKeyStoreManager(keyStore);
+        // Certify ourselves to ourselves so the proxy trusts the mocks.
+        keyStore.addBase64Cert(LanternUtils.getMacAddress(),
+            keyStore.getBase64Cert());
+        // LAE connections use the default context.
+        oldDefaultContext = SSLContext.getDefault();
+        SSLContext.setDefault(
+            new LanternClientSslContextFactory().getClientContext());
+
+        tlsUpstream = new MockUpstream(LanternUtils.randomPort(), keyStore);
+        plainUpstream = new MockUpstream(LanternUtils.randomPort(), null);
+
+        final Settings settings = LanternHub.settings();
+        settings.setUseCloudProxies(true);
+        settings.setUseCentralProxies(route == Route.CENTRAL);
+        settings.setUseLaeProxies(route == Route.LAE);
+        settings.setUseTrustedPeers(route == Route.PEER);
+        settings.setUseAnonymousPeers(false);
+
+        final Timer timer = new HashedWheelTimer();
+        final ServerSocketChannelFactory serverChannelFactory =
+            new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool());
+        final ClientSocketChannelFactory clientChannelFactory =
+            new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool());
+        channelGroup = new DefaultChannelGroup("Local-HTTP-Proxy-Server");
+
+        LanternHub.setNettyTimer(timer);
+        LanternHub.setServerChannelFactory(serverChannelFactory);
+        LanternHub.setClientChannelFactory(clientChannelFactory);
+        LanternHub.setChannelGroup(channelGroup);
+        LanternHub.setProxyProvider(new MockProxyProvider());
+        LanternHub.setProxyStatusListener(new ProxyStatusListener() {
+            @Override
+            public void onCouldNotConnect(final InetSocketAddress proxyAddress) {}
+            @Override
+            public void onCouldNotConnectToPeer(final URI peerUri) {}
+            @Override
+            public void onError(final URI peerUri) {}
+            @Override
+            public void onCouldNotConnectToLae(final InetSocketAddress proxyAddress) {}
+        });
+
+        localPort = LanternUtils.randomPort();
+        server = new LanternHttpProxyServer(localPort, null, null,
+            serverChannelFactory, clientChannelFactory, timer, channelGroup);
+        server.start();
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public BenchmarkHttpClient newClient() {
+        return new BenchmarkHttpClient("127.0.0.1", localPort);
+    }
+
+    /**
+     * Returns the absolute URI for an object of the specified size.
+     */
+    public static String uri(final String kind, final long size) {
+        return "http://" + HOST + kind + size;
+    }
+
+    public void stop() {
+        server.stop();
+        tlsUpstream.stop();
+        plainUpstream.stop();
+        SSLContext.setDefault(oldDefaultContext);
+    }
+
+    private class MockProxyProvider implements ProxyProvider {
+
+        private final PeerProxyManager peers = new MockPeerProxyManager();
+
+        @Override
+        public InetSocketAddress getLaeProxy() {
+            return new InetSocketAddress("127.0.0.1", tlsUpstream.getPort());
+        }
+
+        @Override
+        public InetSocketAddress getProxy() {
+            return new InetSocketAddress("127.0.0.1", tlsUpstream.getPort());
+        }
+
+        @Override
+        public PeerProxyManager getTrustedPeerProxyManager() {
+            return peers;
+        }
+
+        @Override
+        public PeerProxyManager getAnonymousPeerProxyManager() {
+            return peers;
+        }
+    }
+
+    /**
+     * Peer manager with a single always-available peer. Like the real
+     * one, each browser connection gets its own socket to the peer.
+     */
+    private class MockPeerProxyManager implements PeerProxyManager {
+
+        private final ConcurrentMap<Channel, HttpRequestProcessor> processors =
+            new ConcurrentHashMap<Channel, HttpRequestProcessor>();
+
+        @Override
+        public HttpRequestProcessor processRequest(
+            final Channel browserToProxyChannel,
+            final ChannelHandlerContext ctx, final MessageEvent me)
+            throws IOException {
+            HttpRequestProcessor rp = processors.get(browserToProxyChannel);
+            if (rp == null) {
+                final Socket sock =
+                    new Socket("127.0.0.1", plainUpstream.getPort());
+                sock.setTcpNoDelay(true);
+                rp = new PeerChannelHttpRequestProcessor(sock, channelGroup);
+                processors.put(browserToProxyChannel, rp);
+                browserToProxyChannel.getCloseFuture().addListener(
+                    new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(final ChannelFuture future) {
+                        processors.remove(future.getChannel());
+                    }
+                });
+            }
+            if (!rp.processRequest(browserToProxyChannel, ctx, me)) {
+                return null;
+            }
+            return rp;
+        }
+
+        @Override
+        public void onPeer(final URI peerUri) {}
+
+        @Override
+        public void closeAll() {
+            for (final HttpRequestProcessor rp : processors.values()) {
+                rp.close();
+            }
+            processors.clear();
+        }
+
+        @Override
+        public void removePeer(final URI uri) {}
+    }
+}
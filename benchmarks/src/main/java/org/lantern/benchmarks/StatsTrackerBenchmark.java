@@ -0,0 +1,66 @@
+package org.lantern.benchmarks;
+
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.lantern.StatsTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The StatsTracker calls made from the proxy's I/O threads for every
+ * read and write, plus the rate getters the dashboard polls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsTrackerBenchmark {
+
+    private StatsTracker stats;
+
+    // the socket overloads only use the socket for logging
+    private final Socket sock = null;
+
+    @Setup
+    public void setUp() {
+        stats = new StatsTracker();
+    }
+
+    @Benchmark
+    public void addUpBytesViaProxies() {
+        stats.addUpBytesViaProxies(1460, sock);
+    }
+
+    @Benchmark
+    public void addDownBytesViaProxies() {
+        stats.addDownBytesViaProxies(1460, sock);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addBytesContended() {
+        stats.addDownBytesViaProxies(1460, sock);
+    }
+
+    @Benchmark
+    public void incrementProxiedRequests() {
+        stats.incrementProxiedRequests();
+    }
+
+    @Benchmark
+    public long getDownBytesPerSecond() {
+        return stats.getDownBytesPerSecond();
+    }
+}
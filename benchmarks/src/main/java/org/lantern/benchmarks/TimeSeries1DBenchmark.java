@@ -0,0 +1,74 @@
+package org.lantern.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.lantern.TimeSeries1D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TimeSeries1D is updated for every chunk of bytes the proxy relays and
+ * read whenever the dashboard polls for rates.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeSeries1DBenchmark {
+
+    private static final long SECOND = 1000;
+
+    private TimeSeries1D rate;
+
+    private TimeSeries1D history;
+
+    @Setup
+    public void setUp() {
+        // the same shape as the StatsTracker rate series
+        rate = new TimeSeries1D(SECOND, SECOND * 2);
+        // a longer series with many populated buckets
+        history = new TimeSeries1D(SECOND);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 3600; i++) {
+            history.addData(now - i * SECOND, i);
+        }
+    }
+
+    @Benchmark
+    public void addData() {
+        rate.addData(1460);
+    }
+
+    @Benchmark
+    public double windowAverage() {
+        final long now = System.currentTimeMillis();
+        return history.windowAverage(now - 60 * SECOND, now);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void contendedWriters() {
+        rate.addData(1460);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public double contendedReader() {
+        final long now = System.currentTimeMillis();
+        return rate.windowAverage(now - 2 * SECOND, now);
+    }
+}
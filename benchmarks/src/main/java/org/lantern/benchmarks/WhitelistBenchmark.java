@@ -0,0 +1,67 @@
+package org.lantern.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.lantern.Whitelist;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whitelist lookups, which happen for every request the browser sends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhitelistBenchmark {
+
+    private Whitelist whitelist;
+
+    private HttpRequest withReferer;
+
+    @Setup
+    public void setUp() {
+        whitelist = new Whitelist();
+        for (int i = 0; i < 500; i++) {
+            whitelist.addEntry("site" + i + ".example.org");
+        }
+        withReferer = new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+            HttpMethod.GET, "http://static.cdn.example.net/app.js");
+        withReferer.setHeader("Referer", "http://www.facebook.com/home.php");
+    }
+
+    @Benchmark
+    public boolean hit() {
+        return whitelist.isWhitelisted("http://www.facebook.com/home.php");
+    }
+
+    @Benchmark
+    public boolean subdomainHit() {
+        return whitelist.isWhitelisted(
+            "https://a.b.site250.example.org:443/some/path?q=1");
+    }
+
+    @Benchmark
+    public boolean miss() {
+        return whitelist.isWhitelisted("http://www.notlisted.com/index.html");
+    }
+
+    @Benchmark
+    public boolean request() {
+        return whitelist.isWhitelisted(withReferer);
+    }
+}
@@ -1038,9 +1038,58 @@ $(document).ready(function(){
   var nfailed_fetchpeers = 0;
   var nfailed_fetchwhitelist = 0;
 
+  // the server sends a full snapshot when we subscribe and JSON patches
+  // against the previous version after that
+  var _syncstates = {};
+  function _unescapetoken(token){
+    return token.replace(/~1/g, '/').replace(/~0/g, '~');
+  }
+  function _applypatch(state, patch){
+    var tokens = patch.path.split('/').slice(1);
+    if(!tokens.length){
+      return patch.value;
+    }
+    var parent = state;
+    for(var i=0; i<tokens.length-1; i++){
+      parent = parent[_unescapetoken(tokens[i])];
+    }
+    var key = _unescapetoken(tokens[tokens.length-1]);
+    if(patch.op === 'remove'){
+      delete parent[key];
+    }else{
+      parent[key] = patch.value;
+    }
+    return state;
+  }
+  function _applysync(msg){
+    var data = msg.data, channel = msg.channel;
+    if(data.state !== undefined){
+      _syncstates[channel] = {version: data.version, state: data.state};
+      return data.state;
+    }
+    var current = _syncstates[channel];
+    if(!current || current.version !== data.base){
+      console.log('missed an update on ', channel, '; requesting resync');
+      delete _syncstates[channel];
+      cometd.publish('/service/sync', {resync: channel});
+      return null;
+    }
+    var state = current.state;
+    for(var i=0; i<data.patches.length; i++){
+      state = _applypatch(state, data.patches[i]);
+    }
+    current.state = state;
+    current.version = data.version;
+    return state;
+  }
+
   function syncHandler(msg){
+    var data = _applysync(msg);
+    if(data === null){
+      return;
+    }
     var s = getscope();
-    s.update(msg.data);
+    s.update(data);
 
     // XXX
       if(s.connected() && s.logged_in()){
@@ -1064,8 +1113,12 @@ $(document).ready(function(){
       }
   }
   function syncHandlerRoster(msg){
+    var data = _applysync(msg);
+    if(data === null){
+      return;
+    }
     console.log('syncing new roster');
-    var s = getscope(), data = msg.data;
+    var s = getscope();
     s.peers = data.entries;
     s.filteredpeers = s.peers;
     if(s.filteredpeers.length > s.maxpeers){
@@ -0,0 +1,195 @@
+package org.lantern;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.login.CredentialException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.jivesoftware.smack.XMPPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Two tier cache of avatar images keyed by e-mail address. The memory tier
+ * is bounded by the total size of the cached images, and concurrent misses
+ * for the same address result in a single fetch. Fetched images are also
+ * written to disk so they survive restarts, and at most a handful of
+ * fetches hit the network at once. Entries in both tiers are fetched again
+ * once they're older than the maximum age, and failed fetches aren't
+ * cached at all.
+ */
+public class AvatarCache {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Fetches the raw avatar for a given user from the network.
+     */
+    public interface AvatarFetcher {
+
+        /**
+         * Fetches the avatar.
+         *
+         * @param email The user's e-mail address.
+         * @return The raw image data, or <code>null</code> if the user has
+         * no avatar.
+         */
+        byte[] fetch(String email) throws CredentialException,
+            XMPPException, IOException;
+    }
+
+    /**
+     * A cached avatar.
+     */
+    public static final class Avatar {
+
+        private final byte[] data;
+        private final String etag;
+
+        private Avatar(final byte[] data) {
+            this.data = data;
+            this.etag = data == null ? null :
+                "\"" + DigestUtils.md5Hex(data) + "\"";
+        }
+
+        /**
+         * @return The image data, or <code>null</code> if the user has no
+         * avatar.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return The quoted entity tag for the image, or <code>null</code>
+         * if the user has no avatar.
+         */
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    private final LoadingCache<String, Avatar> cache;
+
+    private final File dir;
+
+    private final long maxAgeMillis;
+
+    private final Semaphore fetchPermits;
+
+    private final AvatarFetcher fetcher;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param dir The directory for the disk tier.
+     * @param maxBytes The maximum number of image bytes to keep in memory.
+     * @param maxAgeMillis How long avatars on disk are considered fresh.
+     * @param maxConcurrentFetches The maximum number of simultaneous fetches.
+     * @param fetcher The class for fetching avatars we don't have.
+     */
+    public AvatarCache(final File dir, final long maxBytes,
+        final long maxAgeMillis, final int maxConcurrentFetches,
+        final AvatarFetcher fetcher) {
+        this.dir = dir;
+        this.maxAgeMillis = maxAgeMillis;
+        this.fetchPermits = new Semaphore(maxConcurrentFetches, true);
+        this.fetcher = fetcher;
+        this.cache = CacheBuilder.newBuilder().
+            maximumWeight(maxBytes).
+            expireAfterWrite(maxAgeMillis, TimeUnit.MILLISECONDS).
+            weigher(new Weigher<String, Avatar>() {
+                @Override
+                public int weigh(final String key, final Avatar avatar) {
+                    // Count missing avatars as something so a flood of
+                    // them is still bounded.
+                    return avatar.data == null ? 64 : avatar.data.length;
+                }
+            }).
+            build(new CacheLoader<String, Avatar>() {
+                @Override
+                public Avatar load(final String email) throws Exception {
+                    return loadAvatar(email);
+                }
+            });
+    }
+
+    /**
+     * Returns the avatar for the specified user, fetching it if necessary.
+     *
+     * @param email The user's e-mail address.
+     * @return The avatar.
+     * @throws CredentialException If we could not log in to fetch it.
+     * @throws IOException If there's any other error fetching it, including
+     * errors getting the user's vcard.
+     */
+    public Avatar get(final String email) throws CredentialException,
+        IOException {
+        try {
+            return cache.get(email.toLowerCase());
+        } catch (final ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (final UncheckedExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    private IOException unwrap(final Throwable cause)
+        throws CredentialException {
+        if (cause instanceof CredentialException) {
+            throw (CredentialException) cause;
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException("Could not load avatar", cause);
+    }
+
+    private Avatar loadAvatar(final String email) throws CredentialException,
+        IOException, InterruptedException {
+        final File file = toFile(email);
+        if (file.isFile() &&
+            System.currentTimeMillis() - file.lastModified() < maxAgeMillis) {
+            try {
+                return new Avatar(FileUtils.readFileToByteArray(file));
+            } catch (final IOException e) {
+                log.warn("Could not read cached avatar at "+file, e);
+            }
+        }
+
+        final byte[] raw;
+        fetchPermits.acquire();
+        try {
+            raw = fetcher.fetch(email);
+        } catch (final XMPPException e) {
+            // Thrown so we try again next time rather than caching it.
+            throw new IOException("Could not get vcard for "+email, e);
+        } finally {
+            fetchPermits.release();
+        }
+        if (raw == null) {
+            return new Avatar(null);
+        }
+        try {
+            FileUtils.writeByteArrayToFile(file, raw);
+        } catch (final IOException e) {
+            log.warn("Could not write avatar to "+file, e);
+        }
+        return new Avatar(raw);
+    }
+
+    private File toFile(final String email) {
+        return new File(dir, DigestUtils.sha1Hex(email));
+    }
+}
@@ -0,0 +1,555 @@
+package org.lantern;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.LifeCycleAwareChannelHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares our upload and download capacity in give mode between the peers
+ * we're proxying for.
+ *
+ * Each direction has a global token bucket refilled at the configured
+ * rate, and every tick its tokens are split between the peers with open
+ * connections in proportion to their weights. A peer that spends more
+ * than it's been given has reads paused on all of its connections in
+ * that direction until a later tick pays off the debt, so nothing is ever
+ * buffered here -- TCP flow control pushes back on the sender instead. A
+ * peer that isn't using its share can only bank a small burst, and the
+ * rest goes to the other peers.
+ */
+public class BandwidthScheduler implements BandwidthSchedulerMXBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The direction of data, from our point of view.
+     */
+    public enum Direction {
+        /** Data we send to peers, read from the sites they're visiting. */
+        UP,
+        /** Data we read from peers. */
+        DOWN
+    }
+
+    static final long TICK_MILLIS = 50;
+
+    /**
+     * The least a peer can bank while it's not using its share.
+     */
+    private static final long MIN_BURST = 16 * 1024;
+
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Peers with open connections, keyed by address. Guarded by this.
+     */
+    private final Map<String, Peer> peers = new HashMap<String, Peer>();
+
+    private final Map<String, Integer> weights =
+        new ConcurrentHashMap<String, Integer>();
+
+    private final long[] limits = new long[Direction.values().length];
+
+    private long lastTick;
+
+    /**
+     * Starts refilling the buckets.
+     */
+    public void start() {
+        LanternHub.timer().scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                tick(System.nanoTime());
+            }
+        }, TICK_MILLIS, TICK_MILLIS);
+    }
+
+    /**
+     * Returns the rate limit for the specified direction.
+     *
+     * @param direction The direction.
+     * @return The limit in bytes per second, or zero or less for none.
+     */
+    protected long limit(final Direction direction) {
+        final Settings settings = LanternHub.settings();
+        final long kilobytes;
+        if (direction == Direction.UP) {
+            kilobytes = settings.getGiveModeUploadLimit();
+        } else {
+            kilobytes = settings.getGiveModeDownloadLimit();
+        }
+        return kilobytes * 1024;
+    }
+
+    /**
+     * Sets how large a share of capacity a peer gets relative to the
+     * others. Peers default to a weight of one.
+     *
+     * @param peer The address of the peer.
+     * @param weight The weight.
+     */
+    public void setWeight(final String peer, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Bad weight: " + weight);
+        }
+        weights.put(peer, weight);
+    }
+
+    /**
+     * Creates a handler that throttles reads on a channel.
+     *
+     * @param direction The direction of data read on the channel.
+     * @param peerChannel The channel to the peer the data is for, or
+     * <code>null</code> if it's the throttled channel itself.
+     * @return The handler. It must be first in the pipeline so it sees
+     * every change other handlers make to whether the channel is readable.
+     * It can be added to and removed from connected channels.
+     */
+    public SimpleChannelHandler newThrottle(final Direction direction,
+        final Channel peerChannel) {
+        return new Throttle(direction, peerChannel);
+    }
+
+    synchronized Flow register(final String peer, final Direction direction,
+        final Pausable pausable) {
+        Peer p = peers.get(peer);
+        if (p == null) {
+            p = new Peer(peer);
+            peers.put(peer, p);
+        }
+        final Flow flow = p.flows[direction.ordinal()];
+        flow.members.add(pausable);
+        return flow;
+    }
+
+    /**
+     * Refills the buckets, shares the tokens out between peers and
+     * resumes any that are no longer in debt.
+     *
+     * @param now The current time from {@link System#nanoTime()}.
+     */
+    synchronized void tick(final long now) {
+        final long elapsed;
+        if (lastTick == 0) {
+            elapsed = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+        } else {
+            elapsed = now - lastTick;
+        }
+        lastTick = now;
+        for (final Direction direction : Direction.values()) {
+            final long limit = Math.max(0, limit(direction));
+            limits[direction.ordinal()] = limit;
+            final List<Flow> active = new ArrayList<Flow>();
+            for (final Peer peer : peers.values()) {
+                final Flow flow = peer.flows[direction.ordinal()];
+                if (!flow.members.isEmpty()) {
+                    active.add(flow);
+                }
+            }
+            if (limit == 0) {
+                for (final Flow flow : active) {
+                    flow.balance.set(0);
+                }
+            } else {
+                share(active, limit * elapsed / RATE_WINDOW_NANOS,
+                    Math.max(MIN_BURST, limit * TICK_MILLIS / 1000));
+            }
+            for (final Flow flow : active) {
+                if (flow.balance.get() >= 0) {
+                    for (final Pausable pausable : flow.members) {
+                        pausable.resume();
+                    }
+                }
+            }
+        }
+        final Iterator<Peer> iter = peers.values().iterator();
+        while (iter.hasNext()) {
+            final Peer peer = iter.next();
+            if (peer.connections() == 0) {
+                iter.remove();
+                continue;
+            }
+            for (final Flow flow : peer.flows) {
+                flow.updateRate(now);
+            }
+        }
+    }
+
+    /**
+     * Shares the tokens between the flows by weight. Flows that fill up
+     * to the burst size drop out and the rest is shared again between
+     * the others.
+     */
+    private void share(final Collection<Flow> active, final long tokens,
+        final long burst) {
+        final List<Flow> hungry = new ArrayList<Flow>();
+        for (final Flow flow : active) {
+            flow.weight = weight(flow.peer);
+            if (flow.balance.get() < burst) {
+                hungry.add(flow);
+            }
+        }
+        long remaining = tokens;
+        while (remaining > 0 && !hungry.isEmpty()) {
+            long totalWeight = 0;
+            for (final Flow flow : hungry) {
+                totalWeight += flow.weight;
+            }
+            long given = 0;
+            final Iterator<Flow> iter = hungry.iterator();
+            while (iter.hasNext()) {
+                final Flow flow = iter.next();
+                final long share =
+                    Math.max(1, remaining * flow.weight / totalWeight);
+                final long room = burst - flow.balance.get();
+                final long give = Math.min(share, room);
+                flow.balance.addAndGet(give);
+                given += give;
+                if (give >= room) {
+                    iter.remove();
+                }
+            }
+            if (given <= 0) {
+                break;
+            }
+            remaining -= given;
+        }
+    }
+
+    private int weight(final String peer) {
+        final Integer weight = weights.get(peer);
+        return weight == null ? 1 : weight.intValue();
+    }
+
+    private boolean limited(final Direction direction) {
+        return limits[direction.ordinal()] > 0;
+    }
+
+    @Override
+    public long getUploadLimit() {
+        return limits[Direction.UP.ordinal()];
+    }
+
+    @Override
+    public long getDownloadLimit() {
+        return limits[Direction.DOWN.ordinal()];
+    }
+
+    @Override
+    public synchronized List<PeerBandwidth> getPeers() {
+        final List<PeerBandwidth> bandwidth =
+            new ArrayList<PeerBandwidth>(peers.size());
+        for (final Peer peer : peers.values()) {
+            final Flow up = peer.flows[Direction.UP.ordinal()];
+            final Flow down = peer.flows[Direction.DOWN.ordinal()];
+            bandwidth.add(new PeerBandwidth(peer.address, weight(peer.address),
+                peer.connections(), up.rate, down.rate, up.total.get(),
+                down.total.get()));
+        }
+        return bandwidth;
+    }
+
+    public void registerMBean() {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final String oName =
+                getClass().getPackage().getName()+":type=Bandwidth";
+            final ObjectName mxBeanName = new ObjectName(oName);
+            if(!mbs.isRegistered(mxBeanName)) {
+                mbs.registerMBean(this, mxBeanName);
+            }
+        } catch (final MalformedObjectNameException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final InstanceAlreadyExistsException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final MBeanRegistrationException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final NotCompliantMBeanException e) {
+            log.error("Could not set up JMX", e);
+        }
+    }
+
+    /**
+     * Something reading data that can be told to stop and start.
+     */
+    interface Pausable {
+        void pause();
+        void resume();
+    }
+
+    private final class Peer {
+
+        private final String address;
+
+        private final Flow[] flows = new Flow[Direction.values().length];
+
+        private Peer(final String address) {
+            this.address = address;
+            for (final Direction direction : Direction.values()) {
+                flows[direction.ordinal()] = new Flow(address, direction);
+            }
+        }
+
+        private int connections() {
+            int connections = 0;
+            for (final Flow flow : flows) {
+                connections += flow.members.size();
+            }
+            return connections;
+        }
+    }
+
+    /**
+     * The data flowing in one direction for a single peer.
+     */
+    final class Flow {
+
+        private final String peer;
+
+        private final Direction direction;
+
+        private final Set<Pausable> members =
+            new CopyOnWriteArraySet<Pausable>();
+
+        private final AtomicLong balance = new AtomicLong();
+
+        private final AtomicLong total = new AtomicLong();
+
+        private int weight = 1;
+
+        private long windowStart;
+
+        private long windowTotal;
+
+        private volatile long rate;
+
+        private Flow(final String peer, final Direction direction) {
+            this.peer = peer;
+            this.direction = direction;
+        }
+
+        /**
+         * Spends tokens on data that's been read.
+         *
+         * @param bytes The number of bytes read.
+         * @return <code>true</code> if the flow is now in debt and reads
+         * should pause.
+         */
+        boolean spend(final long bytes) {
+            total.addAndGet(bytes);
+            return balance.addAndGet(-bytes) < 0 && limited(direction);
+        }
+
+        void remove(final Pausable pausable) {
+            members.remove(pausable);
+        }
+
+        /**
+         * @return The rate over the last full window, in bytes per second.
+         */
+        long getRate() {
+            return rate;
+        }
+
+        long getTotal() {
+            return total.get();
+        }
+
+        private void updateRate(final long now) {
+            if (windowStart == 0) {
+                windowStart = now;
+                windowTotal = total.get();
+                return;
+            }
+            final long elapsed = now - windowStart;
+            if (elapsed >= RATE_WINDOW_NANOS) {
+                final long current = total.get();
+                rate = (current - windowTotal) * RATE_WINDOW_NANOS / elapsed;
+                windowStart = now;
+                windowTotal = current;
+            }
+        }
+    }
+
+    /**
+     * Throttles reads on a single channel. Other handlers may also pause
+     * and resume reads on the channel, so we keep track of whether they
+     * want it readable and only let it read when both of us do.
+     */
+    private final class Throttle extends SimpleChannelHandler
+        implements Pausable, LifeCycleAwareChannelHandler {
+
+        private final Direction direction;
+
+        private final Channel peerChannel;
+
+        private volatile ChannelHandlerContext ctx;
+
+        private volatile Flow flow;
+
+        private boolean wantsReadable = true;
+
+        private boolean paused;
+
+        private Throttle(final Direction direction, final Channel peerChannel) {
+            this.direction = direction;
+            this.peerChannel = peerChannel;
+        }
+
+        @Override
+        public void channelConnected(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+            start(ctx);
+            super.channelConnected(ctx, e);
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+            stop();
+            super.channelClosed(ctx, e);
+        }
+
+        @Override
+        public void afterAdd(final ChannelHandlerContext ctx) {
+            if (ctx.getChannel().isConnected()) {
+                start(ctx);
+            }
+        }
+
+        @Override
+        public synchronized void beforeRemove(final ChannelHandlerContext ctx) {
+            stop();
+            resume();
+        }
+
+        @Override
+        public void beforeAdd(final ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void afterRemove(final ChannelHandlerContext ctx) {
+        }
+
+        private void start(final ChannelHandlerContext ctx) {
+            if (this.flow != null) {
+                return;
+            }
+            this.ctx = ctx;
+            final Channel peer = PeerMuxSessionHandler.peerChannel(
+                peerChannel == null ? ctx.getChannel() : peerChannel);
+            final SocketAddress address = peer.getRemoteAddress();
+            if (address instanceof InetSocketAddress) {
+                this.flow = register(
+                    ((InetSocketAddress) address).getAddress().getHostAddress(),
+                    direction, this);
+            } else {
+                log.warn("No peer address for {}", peer);
+            }
+        }
+
+        private void stop() {
+            final Flow f = this.flow;
+            if (f != null) {
+                f.remove(this);
+                this.flow = null;
+            }
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+            final Flow f = this.flow;
+            final Object msg = e.getMessage();
+            if (f != null && msg instanceof ChannelBuffer) {
+                if (f.spend(((ChannelBuffer) msg).readableBytes())) {
+                    pause();
+                }
+            }
+            super.messageReceived(ctx, e);
+        }
+
+        @Override
+        public void handleDownstream(final ChannelHandlerContext ctx,
+            final ChannelEvent e) throws Exception {
+            if (e instanceof ChannelStateEvent) {
+                final ChannelStateEvent cse = (ChannelStateEvent) e;
+                if (cse.getState() == ChannelState.INTEREST_OPS) {
+                    final int ops = ((Integer) cse.getValue()).intValue();
+                    synchronized (this) {
+                        wantsReadable = (ops & Channel.OP_READ) != 0;
+                        if (paused && wantsReadable) {
+                            Channels.setInterestOps(ctx, e.getFuture(),
+                                ops & ~Channel.OP_READ);
+                            return;
+                        }
+                    }
+                }
+            }
+            super.handleDownstream(ctx, e);
+        }
+
+        @Override
+        public synchronized void pause() {
+            if (paused) {
+                return;
+            }
+            paused = true;
+            if (wantsReadable) {
+                setInterestOps(ctx.getChannel().getInterestOps() &
+                    ~Channel.OP_READ);
+            }
+        }
+
+        @Override
+        public synchronized void resume() {
+            if (!paused) {
+                return;
+            }
+            paused = false;
+            if (wantsReadable) {
+                setInterestOps(ctx.getChannel().getInterestOps() |
+                    Channel.OP_READ);
+            }
+        }
+
+        private void setInterestOps(final int ops) {
+            final Channel channel = ctx.getChannel();
+            if (channel.isOpen()) {
+                Channels.setInterestOps(ctx, Channels.future(channel), ops);
+            }
+        }
+    }
+}
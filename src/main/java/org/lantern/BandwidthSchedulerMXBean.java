@@ -0,0 +1,23 @@
+package org.lantern;
+
+import java.util.List;
+
+/**
+ * JMX view of how give mode bandwidth is being shared between peers.
+ */
+public interface BandwidthSchedulerMXBean {
+
+    /**
+     * @return The upload limit in bytes per second, or zero if there is
+     * none.
+     */
+    long getUploadLimit();
+
+    /**
+     * @return The download limit in bytes per second, or zero if there is
+     * none.
+     */
+    long getDownloadLimit();
+
+    List<PeerBandwidth> getPeers();
+}
@@ -28,7 +28,7 @@ public class BayeuxInitializer extends GenericServlet {
         //bayeux.addExtension(new AcknowledgedMessagesExtension());
         final ServerAnnotationProcessor processor = 
             new ServerAnnotationProcessor(bayeux);
-        processor.process(new SyncService(new CometDSyncStrategy()));
+        processor.process(new SyncService(new CometDSyncStrategy(bayeux)));
     }
 
     @Override
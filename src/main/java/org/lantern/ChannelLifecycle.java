@@ -0,0 +1,377 @@
+package org.lantern;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.WriteCompletionEvent;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the channels we open and accept by what they're for, and
+ * closes channels that have been idle or open for longer than their role
+ * allows. Channels are otherwise only closed at shutdown or when the other
+ * side closes them, so abandoned keep-alive connections and their buffers
+ * pile up over long sessions.
+ *
+ * A single task on the Netty timer sweeps every channel once a second,
+ * which also keeps the idle gauges current. Tracking activity is just a
+ * volatile write per message.
+ */
+public class ChannelLifecycle implements ChannelLifecycleMXBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * What a channel is for, with how long it can go without reading or
+     * writing anything and how long it can be open at all. Zero means no
+     * limit.
+     */
+    public enum Role {
+        /** Connections from the browser to our local proxy. */
+        BROWSER(5 * 60, 0),
+        /** Connections to our central proxies. */
+        CENTRAL(5 * 60, 0),
+        /**
+         * Connections to App Engine proxies, which can't serve requests
+         * longer than a minute anyway.
+         */
+        LAE(2 * 60, 30 * 60),
+        /** Connections to peers proxying for us. */
+        PEER(5 * 60, 0),
+        /**
+         * Connections from peers we're proxying for, each stream on a
+         * multiplexed session from one, and the connections we make to
+         * sites on their behalf. A multiplexed session itself is only
+         * closed when it's idle, see {@link #removeMaxAge(Channel)}.
+         */
+        GIVE_MODE(5 * 60, 4 * 60 * 60);
+
+        private final long idleMillis;
+
+        private final long maxMillis;
+
+        private Role(final long idleSeconds, final long maxSeconds) {
+            this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+            this.maxMillis = TimeUnit.SECONDS.toMillis(maxSeconds);
+        }
+    }
+
+    /**
+     * Channels that haven't read or written anything for this long count
+     * as idle in the gauges, though we don't close them until their role's
+     * idle timeout.
+     */
+    static final long IDLE_GAUGE_MILLIS = 10 * 1000;
+
+    private static final long SWEEP_MILLIS = 1000;
+
+    private static final long ONE_SECOND = 1000;
+
+    private static final long ONE_MINUTE = 60 * ONE_SECOND;
+
+    private final ConcurrentHashMap<Integer, Tracked> channels =
+        new ConcurrentHashMap<Integer, Tracked>();
+
+    private final Counters[] counters = new Counters[Role.values().length];
+
+    private final ChannelFutureListener closeListener =
+        new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                final Tracked tracked =
+                    channels.remove(future.getChannel().getId());
+                if (tracked != null) {
+                    counters[tracked.role.ordinal()].closed.addData(1L);
+                }
+            }
+        };
+
+    private volatile Timeout sweep;
+
+    public ChannelLifecycle() {
+        for (final Role role : Role.values()) {
+            counters[role.ordinal()] = new Counters(role);
+        }
+    }
+
+    /**
+     * Starts closing channels that have been idle or open for too long.
+     *
+     * @param timer The timer to check channels on.
+     */
+    public void start(final Timer timer) {
+        this.sweep = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(final Timeout timeout) {
+                if (timeout.isCancelled()) {
+                    return;
+                }
+                try {
+                    sweep();
+                } catch (final RuntimeException e) {
+                    log.error("Error checking channels", e);
+                }
+                sweep = timer.newTimeout(this, SWEEP_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            }
+        }, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        final Timeout timeout = this.sweep;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Sets the timeouts for a role, overriding the defaults.
+     *
+     * @param role The role.
+     * @param idleMillis How long channels can go without reading or writing
+     * anything, or zero for no limit.
+     * @param maxMillis How long channels can be open at all, or zero for no
+     * limit.
+     */
+    public void setTimeouts(final Role role, final long idleMillis,
+        final long maxMillis) {
+        final Counters count = counters[role.ordinal()];
+        count.idleMillis = idleMillis;
+        count.maxMillis = maxMillis;
+    }
+
+    /**
+     * Creates a handler to add to the pipeline of new channels, which
+     * starts tracking each channel when it's opened.
+     *
+     * @param role What the channels are for.
+     * @return The handler.
+     */
+    public ChannelHandler newHandler(final Role role) {
+        return new LifecycleHandler(role);
+    }
+
+    /**
+     * Lifts the limit on how long a channel can be open, for channels such
+     * as multiplexed peer sessions that carry many other channels with
+     * limits of their own. The idle timeout still applies.
+     *
+     * @param channel The channel.
+     */
+    public void removeMaxAge(final Channel channel) {
+        final Tracked tracked = channels.get(channel.getId());
+        if (tracked != null) {
+            tracked.maxAge = false;
+        }
+    }
+
+    private Tracked register(final Channel channel, final Role role) {
+        final Tracked tracked = new Tracked(channel, role);
+        final Tracked existing =
+            channels.putIfAbsent(channel.getId(), tracked);
+        if (existing != null) {
+            return existing;
+        }
+        counters[role.ordinal()].opened.addData(1L);
+        channel.getCloseFuture().addListener(closeListener);
+        return tracked;
+    }
+
+    /**
+     * Closes channels that are past their timeouts and updates the idle
+     * gauges.
+     */
+    void sweep() {
+        final long now = System.currentTimeMillis();
+        final int[] idle = new int[counters.length];
+        for (final Tracked tracked : channels.values()) {
+            final Counters count = counters[tracked.role.ordinal()];
+            final long idleFor = now - tracked.lastActive;
+            final long maxIdle = count.idleMillis;
+            final long maxOpen = count.maxMillis;
+            if ((maxIdle > 0 && idleFor >= maxIdle) ||
+                (maxOpen > 0 && tracked.maxAge &&
+                    now - tracked.opened >= maxOpen)) {
+                if (channels.remove(tracked.channel.getId()) == null) {
+                    // It closed on its own.
+                    continue;
+                }
+                log.debug("Closing {} channel {} idle for {}ms",
+                    new Object[] {tracked.role, tracked.channel, idleFor});
+                count.closed.addData(1L);
+                count.reaped.incrementAndGet();
+                tracked.channel.close();
+            } else if (idleFor >= IDLE_GAUGE_MILLIS) {
+                idle[tracked.role.ordinal()]++;
+            }
+        }
+        for (final Counters count : counters) {
+            count.idle = idle[count.role.ordinal()];
+        }
+    }
+
+    /**
+     * Returns the gauges for a role.
+     *
+     * @param role The role.
+     * @return The gauges.
+     */
+    public ChannelRoleStats stats(final Role role) {
+        final Counters count = counters[role.ordinal()];
+        int open = 0;
+        for (final Tracked tracked : channels.values()) {
+            if (tracked.role == role) {
+                open++;
+            }
+        }
+        final long now = System.currentTimeMillis();
+        return new ChannelRoleStats(role.name(), open,
+            Math.min(open, count.idle),
+            (long) count.opened.windowTotal(now - ONE_MINUTE, now),
+            (long) count.closed.windowTotal(now - ONE_MINUTE, now),
+            count.opened.lifetimeTotal(), count.closed.lifetimeTotal(),
+            count.reaped.get());
+    }
+
+    @Override
+    public List<ChannelRoleStats> getRoles() {
+        final List<ChannelRoleStats> roles = new ArrayList<ChannelRoleStats>();
+        for (final Role role : Role.values()) {
+            roles.add(stats(role));
+        }
+        return roles;
+    }
+
+    public void registerMBean() {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final String oName =
+                getClass().getPackage().getName()+":type=Channels";
+            final ObjectName mxBeanName = new ObjectName(oName);
+            if(!mbs.isRegistered(mxBeanName)) {
+                mbs.registerMBean(this, mxBeanName);
+            }
+        } catch (final MalformedObjectNameException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final InstanceAlreadyExistsException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final MBeanRegistrationException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final NotCompliantMBeanException e) {
+            log.error("Could not set up JMX", e);
+        }
+    }
+
+    private static final class Tracked {
+
+        private final Channel channel;
+
+        private final Role role;
+
+        private final long opened = System.currentTimeMillis();
+
+        private volatile long lastActive = opened;
+
+        private volatile boolean maxAge = true;
+
+        private Tracked(final Channel channel, final Role role) {
+            this.channel = channel;
+            this.role = role;
+        }
+    }
+
+    private static final class Counters {
+
+        private final Role role;
+
+        private volatile long idleMillis;
+
+        private volatile long maxMillis;
+
+        private volatile int idle;
+
+        private final TimeSeries1D opened =
+            new TimeSeries1D(ONE_SECOND, ONE_MINUTE + ONE_SECOND);
+
+        private final TimeSeries1D closed =
+            new TimeSeries1D(ONE_SECOND, ONE_MINUTE + ONE_SECOND);
+
+        private final AtomicLong reaped = new AtomicLong();
+
+        private Counters(final Role role) {
+            this.role = role;
+            this.idleMillis = role.idleMillis;
+            this.maxMillis = role.maxMillis;
+        }
+    }
+
+    /**
+     * Notes when each channel reads or writes anything.
+     */
+    private final class LifecycleHandler extends SimpleChannelHandler {
+
+        private final Role role;
+
+        private LifecycleHandler(final Role role) {
+            this.role = role;
+        }
+
+        @Override
+        public void channelOpen(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+            ctx.setAttachment(register(e.getChannel(), role));
+            super.channelOpen(ctx, e);
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+            touch(ctx);
+            super.messageReceived(ctx, e);
+        }
+
+        @Override
+        public void writeComplete(final ChannelHandlerContext ctx,
+            final WriteCompletionEvent e) throws Exception {
+            touch(ctx);
+            super.writeComplete(ctx, e);
+        }
+
+        @Override
+        public void writeRequested(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+            touch(ctx);
+            super.writeRequested(ctx, e);
+        }
+
+        private void touch(final ChannelHandlerContext ctx) {
+            final Tracked tracked = (Tracked) ctx.getAttachment();
+            if (tracked != null) {
+                tracked.lastActive = System.currentTimeMillis();
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.lantern;
+
+import java.util.List;
+
+/**
+ * JMX view of the channels we have open for each role.
+ */
+public interface ChannelLifecycleMXBean {
+
+    List<ChannelRoleStats> getRoles();
+}
@@ -0,0 +1,87 @@
+package org.lantern;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time gauges for the channels we have open for a single role.
+ */
+public class ChannelRoleStats {
+
+    private final String role;
+    private final int open;
+    private final int idle;
+    private final long openedPerMinute;
+    private final long closedPerMinute;
+    private final long opened;
+    private final long closed;
+    private final long reaped;
+
+    @ConstructorProperties({"role", "open", "idle", "openedPerMinute",
+        "closedPerMinute", "opened", "closed", "reaped"})
+    public ChannelRoleStats(final String role, final int open, final int idle,
+        final long openedPerMinute, final long closedPerMinute,
+        final long opened, final long closed, final long reaped) {
+        this.role = role;
+        this.open = open;
+        this.idle = idle;
+        this.openedPerMinute = openedPerMinute;
+        this.closedPerMinute = closedPerMinute;
+        this.opened = opened;
+        this.closed = closed;
+        this.reaped = reaped;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public int getOpen() {
+        return open;
+    }
+
+    /**
+     * @return The number of open channels that haven't read or written
+     * anything recently.
+     */
+    public int getIdle() {
+        return idle;
+    }
+
+    /**
+     * @return The number of channels opened over the last minute.
+     */
+    public long getOpenedPerMinute() {
+        return openedPerMinute;
+    }
+
+    /**
+     * @return The number of channels closed over the last minute.
+     */
+    public long getClosedPerMinute() {
+        return closedPerMinute;
+    }
+
+    public long getOpened() {
+        return opened;
+    }
+
+    public long getClosed() {
+        return closed;
+    }
+
+    /**
+     * @return The number of channels we've closed for being idle or open
+     * for too long.
+     */
+    public long getReaped() {
+        return reaped;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelRoleStats [role=" + role + ", open=" + open +
+            ", idle=" + idle + ", openedPerMinute=" + openedPerMinute +
+            ", closedPerMinute=" + closedPerMinute + ", reaped=" + reaped +
+            "]";
+    }
+}
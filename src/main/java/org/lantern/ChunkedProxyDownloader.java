@@ -1,6 +1,7 @@
 package org.lantern;
 
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.commons.lang.StringUtils;
 import org.jboss.netty.channel.Channel;
@@ -8,7 +9,7 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
-import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.HttpChunk;
@@ -16,6 +17,8 @@ import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.lantern.LatencyStats.Stage;
+import org.lantern.LatencyStats.Upstream;
 import org.littleshoot.proxy.ProxyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,7 +27,7 @@ import org.slf4j.LoggerFactory;
  * Handles connections from the local proxy to external proxies, relaying
  * data back to the original channel to the browser.
  */
-public class ChunkedProxyDownloader extends SimpleChannelUpstreamHandler {
+public class ChunkedProxyDownloader extends SimpleChannelHandler {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     
@@ -36,6 +39,14 @@ public class ChunkedProxyDownloader extends SimpleChannelUpstreamHandler {
 
     private final ChannelGroup channelGroup;
 
+    private final Upstream upstream;
+
+    /**
+     * When each request still waiting for a response was written, in
+     * the same order as httpRequests.
+     */
+    private final Queue<Long> requestTimes = new ConcurrentLinkedQueue<Long>();
+
     /**
      * Creates a new chunked downloader.
      * 
@@ -47,10 +58,38 @@ public class ChunkedProxyDownloader extends SimpleChannelUpstreamHandler {
     public ChunkedProxyDownloader(final HttpRequest request, 
         final Channel browserToProxyChannel,
         final Queue<HttpRequest> httpRequests, final ChannelGroup channelGroup){
+        this(request, browserToProxyChannel, httpRequests, channelGroup,
+            Upstream.CENTRAL);
+    }
+
+    /**
+     * Creates a new chunked downloader.
+     * 
+     * @param request The HTTP request starting this download.
+     * @param browserToProxyChannel The connection to the browser/client.
+     * @param httpRequests All HTTP requests on this connection to the 
+     * client/browser.
+     * @param upstream The type of upstream we're downloading from, for
+     * recording time to first byte.
+     */
+    public ChunkedProxyDownloader(final HttpRequest request, 
+        final Channel browserToProxyChannel,
+        final Queue<HttpRequest> httpRequests, final ChannelGroup channelGroup,
+        final Upstream upstream){
         this.originalRequest = request;
         this.browserToProxyChannel = browserToProxyChannel;
         this.httpRequests = httpRequests;
         this.channelGroup = channelGroup;
+        this.upstream = upstream;
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+        final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof HttpRequest) {
+            requestTimes.add(System.nanoTime());
+        }
+        super.writeRequested(ctx, e);
     }
     
     @Override
@@ -82,6 +121,11 @@ public class ChunkedProxyDownloader extends SimpleChannelUpstreamHandler {
             // needed so we have all the appropriate request values for
             // making additional requests to handle 206 partial responses.
             final HttpRequest request = httpRequests.remove();
+            final Long written = requestTimes.poll();
+            if (written != null) {
+                LanternHub.latencyStats().record(Stage.FIRST_BYTE, upstream,
+                    written);
+            }
             //final ChannelBuffer msg = (ChannelBuffer) e.getMessage();
             //if (msg instanceof HttpResponse) {
             final HttpResponse response = (HttpResponse) msg;
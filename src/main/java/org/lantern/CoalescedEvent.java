@@ -0,0 +1,12 @@
+package org.lantern;
+
+/**
+ * Marks events that describe the latest state of something, so only the
+ * newest one matters. When {@link EventDispatcher} has one waiting for a
+ * subscriber and another of the same type comes in, the subscriber only
+ * gets the new one, and an event equal to the last one of its type the
+ * subscriber was sent isn't delivered to it at all.
+ */
+public interface CoalescedEvent {
+
+}
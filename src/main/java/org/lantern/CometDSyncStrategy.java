@@ -1,48 +1,118 @@
 package org.lantern;
 
-import org.cometd.bayeux.client.ClientSessionChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerChannel;
 import org.cometd.bayeux.server.ServerSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Strategy for syncing/pushing with the browser using cometd.
+ *
+ * Rather than publishing the full settings or roster on every sync, we keep
+ * the last tree delivered to each subscribed session and only send the
+ * paths that changed as JSON patch operations. Every message carries a
+ * version number and the version it applies to, so a client that misses a
+ * message can detect the gap and ask for a full resync over
+ * /service/sync.
  */
 public class CometDSyncStrategy implements SyncStrategy {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
-    
-    private volatile long lastUpdateTime = System.currentTimeMillis();
-    
+
+    private static final String STATE_ATTRIBUTE = "org.lantern.sync.";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final BayeuxServer bayeux;
+
+    /**
+     * The state we've delivered to a single session on a single channel.
+     */
+    private static final class SessionState {
+        private JsonNode tree;
+        private long version;
+    }
+
+    public CometDSyncStrategy(final BayeuxServer bayeux) {
+        this.bayeux = bayeux;
+        // Serialize with the same view the cometd JSON context uses.
+        this.mapper.setSerializationConfig(
+            this.mapper.getSerializationConfig().withView(
+                Settings.UIStateSettings.class));
+    }
+
     @Override
-    public void sync(final boolean force, final String channelName, 
+    public void sync(final boolean force, final String channelName,
         final ServerSession session) {
         if (session == null) {
             log.debug("No session...not syncing");
             return;
         }
-        final long elapsed = System.currentTimeMillis() - lastUpdateTime;
-        if (!force && elapsed < 100) {
-            log.debug("Not pushing more than 10 times a second...{} ms elapsed", 
-                elapsed);
+        final ServerChannel channel = this.bayeux.getChannel(channelName);
+        if (channel == null || channel.getSubscribers().isEmpty()) {
+            log.debug("No subscribers on {}", channelName);
             return;
         }
-        final ClientSessionChannel channel = 
-            session.getLocalSession().getChannel(channelName);
-        
-        if (channel != null) {
-            final Object syncer;
-            if (channelName.equals(LanternConstants.ROSTER_SYNC_CHANNEL)) {
-                log.debug("Syncing roster...");
-                syncer = LanternHub.xmppHandler().getRoster();
-            } else if (channelName.equals(LanternConstants.SETTINGS_SYNC_CHANNEL)) {
-                syncer = LanternHub.settings();
-            } else {
-                throw new Error("Bad channel name?");
+        final Object syncer;
+        if (channelName.equals(LanternConstants.ROSTER_SYNC_CHANNEL)) {
+            log.debug("Syncing roster...");
+            syncer = LanternHub.xmppHandler().getRoster();
+        } else if (channelName.equals(LanternConstants.SETTINGS_SYNC_CHANNEL)) {
+            syncer = LanternHub.settings();
+        } else {
+            throw new Error("Bad channel name?");
+        }
+        final JsonNode tree = this.mapper.valueToTree(syncer);
+        for (final ServerSession remote : channel.getSubscribers()) {
+            if (remote.isLocalSession()) {
+                continue;
+            }
+            deliver(session, remote, channelName, tree);
+        }
+        log.debug("Sync performed");
+    }
+
+    private void deliver(final ServerSession session,
+        final ServerSession remote, final String channelName,
+        final JsonNode tree) {
+        final String key = STATE_ATTRIBUTE + channelName;
+        final SessionState state = (SessionState) remote.getAttribute(key);
+        final Map<String, Object> data = new HashMap<String, Object>();
+        if (state == null) {
+            final SessionState fresh = new SessionState();
+            fresh.tree = tree;
+            fresh.version = 1;
+            remote.setAttribute(key, fresh);
+            data.put("version", fresh.version);
+            data.put("state", tree);
+            log.debug("Sending full state on {} to {}", channelName,
+                remote.getId());
+        } else {
+            final List<Map<String, Object>> patches =
+                JsonDiff.diff(state.tree, tree);
+            if (patches.isEmpty()) {
+                return;
             }
-            lastUpdateTime = System.currentTimeMillis();
-            channel.publish(syncer);
-            log.debug("Sync performed");
-        };
+            data.put("base", state.version);
+            state.tree = tree;
+            state.version++;
+            data.put("version", state.version);
+            data.put("patches", patches);
+            log.debug("Sending {} patches on {} to {}",
+                new Object[] {patches.size(), channelName, remote.getId()});
+        }
+        remote.deliver(session, channelName, data, null);
+    }
+
+    @Override
+    public void resync(final String channelName, final ServerSession remote) {
+        remote.removeAttribute(STATE_ATTRIBUTE + channelName);
     }
 }
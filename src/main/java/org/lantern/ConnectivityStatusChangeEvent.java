@@ -1,6 +1,6 @@
 package org.lantern;
 
-public class ConnectivityStatusChangeEvent {
+public class ConnectivityStatusChangeEvent implements CoalescedEvent {
 
     private final ConnectivityStatus connectivityStatus;
 
@@ -13,4 +13,22 @@ public class ConnectivityStatusChangeEvent {
     public ConnectivityStatus getConnectivityStatus() {
         return connectivityStatus;
     }
+
+    @Override
+    public int hashCode() {
+        return connectivityStatus == null ? 0 : connectivityStatus.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ConnectivityStatusChangeEvent)) {
+            return false;
+        }
+        final ConnectivityStatusChangeEvent other = 
+            (ConnectivityStatusChangeEvent) obj;
+        return connectivityStatus == other.connectivityStatus;
+    }
 }
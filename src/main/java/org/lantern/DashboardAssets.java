@@ -0,0 +1,254 @@
+package org.lantern;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.io.Buffer;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Serves the dashboard's static files from memory. The resource base is
+ * read once at startup, and text files are gzipped up front, so opening
+ * the dashboard doesn't touch the disk or compress anything. We only keep
+ * the gzipped copy of those, and inflate it for the rare client that
+ * doesn't take gzip. Each file gets an ETag from a hash of its contents,
+ * so browsers that already have a file just get a 304.
+ *
+ * Anything we didn't index, such as files added since startup, files past
+ * our memory limit, ranges or directories, is left to the DefaultServlet.
+ */
+public class DashboardAssets {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Larger files aren't worth keeping in memory.
+     */
+    static final long MAX_ASSET_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * The most we keep in memory for all files together.
+     */
+    static final long MAX_TOTAL_BYTES = 8 * 1024 * 1024;
+
+    private final long maxTotalBytes;
+
+    private final Map<String, Asset> assets;
+
+    private final String cacheControl;
+
+    private long rawBytes;
+
+    private long gzippedBytes;
+
+    /**
+     * Indexes the files under a directory.
+     *
+     * @param resourceBase The directory.
+     * @param cacheControl The Cache-Control header to send with files.
+     */
+    public DashboardAssets(final File resourceBase, final String cacheControl) {
+        this(resourceBase, cacheControl, MAX_TOTAL_BYTES);
+    }
+
+    DashboardAssets(final File resourceBase, final String cacheControl,
+        final long maxTotalBytes) {
+        this.cacheControl = cacheControl;
+        this.maxTotalBytes = maxTotalBytes;
+        final long start = System.currentTimeMillis();
+        final Map<String, Asset> indexed = new HashMap<String, Asset>();
+        index(resourceBase, "/", indexed, new MimeTypes());
+        this.assets = ImmutableMap.copyOf(indexed);
+        log.info("Indexed {} dashboard files in {}ms, {} bytes kept as " +
+            "{}", new Object[] {assets.size(),
+            System.currentTimeMillis() - start, rawBytes, gzippedBytes});
+    }
+
+    private void index(final File dir, final String path,
+        final Map<String, Asset> indexed, final MimeTypes mimeTypes) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // So the same files make the cut each time.
+        Arrays.sort(files);
+        for (final File file : files) {
+            final String name = path + file.getName();
+            if (file.isDirectory()) {
+                index(file, name + "/", indexed, mimeTypes);
+            } else if (file.length() <= MAX_ASSET_BYTES) {
+                try {
+                    final Asset asset = newAsset(file, mimeTypes);
+                    if (gzippedBytes + asset.body.length > maxTotalBytes) {
+                        continue;
+                    }
+                    rawBytes += asset.length;
+                    gzippedBytes += asset.body.length;
+                    indexed.put(name, asset);
+                } catch (final IOException e) {
+                    log.error("Could not read dashboard file: " + file, e);
+                }
+            }
+        }
+    }
+
+    private Asset newAsset(final File file, final MimeTypes mimeTypes)
+        throws IOException {
+        final byte[] raw = FileUtils.readFileToByteArray(file);
+        final Buffer mime = mimeTypes.getMimeByExtension(file.getName());
+        final String contentType = mime == null ? null : mime.toString();
+        final String hash = DigestUtils.md5Hex(raw);
+        byte[] gzipped = null;
+        if (isCompressible(contentType)) {
+            final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(raw.length / 3);
+            final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(raw);
+            gzip.close();
+            // Only bother if it saves a worthwhile amount.
+            if (bytes.size() < raw.length * 9 / 10) {
+                gzipped = bytes.toByteArray();
+            }
+        }
+        return new Asset(contentType, gzipped == null ? raw : gzipped,
+            gzipped != null, raw.length, "\"" + hash + "\"",
+            "\"" + hash + "-gzip\"");
+    }
+
+    private static boolean isCompressible(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        return contentType.startsWith("text/") ||
+            contentType.contains("javascript") ||
+            contentType.contains("json") || contentType.contains("xml");
+    }
+
+    /**
+     * Serves a request from memory if we can.
+     *
+     * @param req The request.
+     * @param resp The response.
+     * @return <code>true</code> if we served the request, or
+     * <code>false</code> if the caller should.
+     * @throws IOException If we couldn't write the response.
+     */
+    public boolean serve(final HttpServletRequest req,
+        final HttpServletResponse resp) throws IOException {
+        final String path = req.getPathInfo() == null ?
+            req.getServletPath() : req.getPathInfo();
+        final Asset asset = assets.get(path);
+        if (asset == null || req.getHeader(HttpHeaders.Names.RANGE) != null) {
+            return false;
+        }
+        final boolean gzip = asset.gzipped && acceptsGzip(req);
+        final String etag = gzip ? asset.gzipEtag : asset.etag;
+        resp.setHeader(HttpHeaders.Names.ETAG, etag);
+        resp.setHeader(HttpHeaders.Names.CACHE_CONTROL, cacheControl);
+        if (asset.gzipped) {
+            resp.setHeader(HttpHeaders.Names.VARY,
+                HttpHeaders.Names.ACCEPT_ENCODING);
+        }
+        final String ifNoneMatch =
+            req.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        if (asset.contentType != null) {
+            resp.setContentType(asset.contentType);
+        }
+        if (gzip) {
+            resp.setHeader(HttpHeaders.Names.CONTENT_ENCODING,
+                HttpHeaders.Values.GZIP);
+            resp.setContentLength(asset.body.length);
+            resp.getOutputStream().write(asset.body);
+        } else if (asset.gzipped) {
+            resp.setContentLength(asset.length);
+            final InputStream is =
+                new GZIPInputStream(new ByteArrayInputStream(asset.body));
+            IOUtils.copy(is, resp.getOutputStream());
+        } else {
+            resp.setContentLength(asset.length);
+            resp.getOutputStream().write(asset.body);
+        }
+        return true;
+    }
+
+    private static boolean acceptsGzip(final HttpServletRequest req) {
+        final String accept = req.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+        if (accept == null) {
+            return false;
+        }
+        for (final String coding : accept.split(",")) {
+            final String[] parts = coding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase(HttpHeaders.Values.GZIP)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].replace(" ", "");
+                if (param.startsWith("q=") &&
+                    param.substring(2).matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of files we're serving from memory.
+     */
+    public int size() {
+        return assets.size();
+    }
+
+    private static final class Asset {
+
+        private final String contentType;
+
+        /**
+         * The gzipped file if it compresses well, or the file itself.
+         */
+        private final byte[] body;
+
+        private final boolean gzipped;
+
+        private final int length;
+
+        private final String etag;
+
+        private final String gzipEtag;
+
+        private Asset(final String contentType, final byte[] body,
+            final boolean gzipped, final int length, final String etag,
+            final String gzipEtag) {
+            this.contentType = contentType;
+            this.body = body;
+            this.gzipped = gzipped;
+            this.length = length;
+            this.etag = etag;
+            this.gzipEtag = gzipEtag;
+        }
+    }
+}
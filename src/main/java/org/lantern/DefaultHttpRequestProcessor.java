@@ -21,6 +21,7 @@ import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
 import org.jboss.netty.handler.ssl.SslHandler;
+import org.lantern.LatencyStats.Upstream;
 import org.littleshoot.proxy.ProxyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -108,6 +109,10 @@ public class DefaultHttpRequestProcessor implements HttpRequestProcessor {
         ProxyUtils.closeOnFlush(this.cf.getChannel());
     }
 
+    private Upstream upstream() {
+        return this.isLae ? Upstream.LAE : Upstream.CENTRAL;
+    }
+
     private ChannelFuture openOutgoingChannel(
         final Channel browserToProxyChannel, final HttpRequest request) {
         
@@ -144,18 +149,23 @@ public class DefaultHttpRequestProcessor implements HttpRequestProcessor {
             }
         };
 
+        pipeline.addLast("lifecycle", 
+            LanternHub.channelLifecycle().newHandler(this.isLae ? 
+                ChannelLifecycle.Role.LAE : ChannelLifecycle.Role.CENTRAL));
         pipeline.addLast("stats", stats);        
-        pipeline.addLast("ssl", new SslHandler(engine));
+        final SslHandler ssl = new SslHandler(engine);
+        pipeline.addLast("ssl", ssl);
         pipeline.addLast("decoder", new HttpResponseDecoder());
         pipeline.addLast("encoder", new HttpRequestEncoder());
         pipeline.addLast("handler", 
             new ChunkedProxyDownloader(request, browserToProxyChannel, 
-                httpRequests, channelGroup));
+                httpRequests, channelGroup, upstream()));
         //this.proxyHost = proxyAddress.getHostName();
         
         log.info("Connecting to proxy at: {}", proxyAddress);
         
         final ChannelFuture connectFuture = cb.connect(proxyAddress);
+        LanternHub.latencyStats().recordConnect(connectFuture, ssl, upstream());
 
         // This is handy, as set readable to false while the channel is 
         // connecting ensures we won't get any incoming messages until
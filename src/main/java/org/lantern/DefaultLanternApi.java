@@ -5,6 +5,10 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -16,6 +20,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.lantern.privacy.InvalidKeyException;
 import org.lantern.privacy.LocalCipherProvider;
 import org.slf4j.Logger;
@@ -28,6 +33,8 @@ public class DefaultLanternApi implements LanternApi {
     
     private final Logger log = LoggerFactory.getLogger(getClass());
     
+    private LatencyStats.Reader latencyReader;
+    
     /**
      * Enumeration of calls to the Lantern API.
      */
@@ -49,7 +56,12 @@ public class DefaultLanternApi implements LanternApi {
         INVITE,
         SUBSCRIBED,
         UNSUBSCRIBED,
-        STATE
+        STATE,
+        LATENCY,
+        UPDATEWHITELIST,
+        STARTUP,
+        TRAFFIC,
+        TRACES
     }
 
     @Override
@@ -74,27 +86,29 @@ public class DefaultLanternApi implements LanternApi {
             LanternHub.settingsIo().write();
             break;
         case ADDTOWHITELIST:
-            LanternHub.whitelist().addEntry(req.getParameter("site"));
-            Proxifier.refresh();
-            handleWhitelist(resp);
-            LanternHub.settingsIo().write();
+            handleUpdateWhitelist(resp, values(req, "site"), 
+                Collections.<String>emptyList());
             break;
         case REMOVEFROMWHITELIST:
-            LanternHub.whitelist().removeEntry(req.getParameter("site"));
-            Proxifier.refresh();
-            handleWhitelist(resp);
-            LanternHub.settingsIo().write();
+            handleUpdateWhitelist(resp, Collections.<String>emptyList(), 
+                values(req, "site"));
+            break;
+        case UPDATEWHITELIST:
+            handleUpdateWhitelist(resp, values(req, "add"), 
+                values(req, "remove"));
             break;
         case ADDTRUSTEDPEER:
             // TODO: Add data validation.
-            LanternHub.getTrustedContactsManager().addTrustedContact(
-                req.getParameter("email"));
+            // Importing a roster passes many emails at once, which the
+            // contacts manager writes in one go.
+            LanternHub.getTrustedContactsManager().addTrustedContacts(
+                values(req, "email"));
             handleRoster(resp);
             break;
         case REMOVETRUSTEDPEER:
             // TODO: Add data validation.
-            LanternHub.getTrustedContactsManager().removeTrustedContact(
-                req.getParameter("email"));
+            LanternHub.getTrustedContactsManager().removeTrustedContacts(
+                values(req, "email"));
             handleRoster(resp);
             break;
         case ROSTER:
@@ -127,9 +141,96 @@ public class DefaultLanternApi implements LanternApi {
         case STATE:
             handleState(req, resp);
             break;
+        case LATENCY:
+            handleLatency(resp);
+            break;
+        case STARTUP:
+            // How long each part of startup took.
+            returnJson(resp, LanternHub.startupGraph());
+            break;
+        case TRAFFIC:
+            handleTraffic(req, resp);
+            break;
+        case TRACES:
+            handleTraces(req, resp);
+            break;
         }
     }
     
+    /**
+     * Returns the request latency histograms. The window in each is
+     * everything since the last call.
+     */
+    private void handleLatency(final HttpServletResponse resp) {
+        final LatencyStats.Reader reader;
+        synchronized (this) {
+            if (latencyReader == null) {
+                latencyReader = LanternHub.latencyStats().newReader();
+            }
+            reader = latencyReader;
+        }
+        returnJson(resp, reader.read());
+    }
+    
+    /**
+     * Returns the bytes sent and received over a range of time, for the 
+     * given series or all of them. The range defaults to the last hour,
+     * and "step" asks for points of at least that many milliseconds.
+     */
+    private void handleTraffic(final HttpServletRequest req,
+        final HttpServletResponse resp) {
+        final TrafficHistory history = 
+            LanternHub.statsTracker().getTrafficHistory();
+        final long now = System.currentTimeMillis();
+        final long to = NumberUtils.toLong(req.getParameter("to"), now);
+        final long from = NumberUtils.toLong(req.getParameter("from"), 
+            to - 60 * 60 * 1000);
+        final long step = NumberUtils.toLong(req.getParameter("step"), 0);
+        if (from > to) {
+            sendClientError(resp, "from must not be after to");
+            return;
+        }
+        Collection<String> names = values(req, "series");
+        if (names.isEmpty()) {
+            names = history.getSeries();
+        }
+        final Collection<TrafficHistory.Range> ranges = 
+            new ArrayList<TrafficHistory.Range>();
+        for (final String name : names) {
+            final TrafficHistory.Range range = 
+                history.query(name, from, to, step);
+            if (range != null) {
+                ranges.add(range);
+            }
+        }
+        returnJson(resp, ranges);
+    }
+    
+    /**
+     * Returns the sampled request traces. Hosts in "trace" are fully 
+     * traced from now on and hosts in "untrace" no longer are, and 
+     * "sample" sets how many requests there are for each one sampled.
+     */
+    private void handleTraces(final HttpServletRequest req,
+        final HttpServletResponse resp) {
+        final RequestTracer tracer = LanternHub.requestTracer();
+        final String sample = req.getParameter("sample");
+        if (StringUtils.isNotBlank(sample)) {
+            if (!NumberUtils.isDigits(sample)) {
+                sendClientError(resp, "sample must be a number");
+                return;
+            }
+            tracer.setSampleRate(NumberUtils.toInt(sample));
+        }
+        for (final String host : values(req, "trace")) {
+            tracer.traceHost(host);
+        }
+        for (final String host : values(req, "untrace")) {
+            tracer.untraceHost(host);
+        }
+        returnJson(resp, tracer);
+    }
+    
     private void handleState(final HttpServletRequest req,
         final HttpServletResponse resp) {
         log.debug("Got state request");
@@ -411,6 +512,29 @@ public class DefaultLanternApi implements LanternApi {
     }
 
 
+    private static Collection<String> values(final HttpServletRequest req,
+        final String name) {
+        final String[] values = req.getParameterValues(name);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Applies any number of whitelist changes with a single pac file 
+     * update and settings write, so importing a list of sites doesn't 
+     * reconfigure the system proxy for each one.
+     */
+    private void handleUpdateWhitelist(final HttpServletResponse resp,
+        final Collection<String> additions, final Collection<String> removals) {
+        if (LanternHub.whitelist().updateEntries(additions, removals)) {
+            Proxifier.refresh();
+            LanternHub.settingsIo().write();
+        }
+        handleWhitelist(resp);
+    }
+
     private void handleRoster(final HttpServletResponse resp) {
         log.info("Processing roster call.");
         if (!LanternHub.xmppHandler().isLoggedIn()) {
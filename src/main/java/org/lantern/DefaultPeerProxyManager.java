@@ -4,11 +4,15 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.URI;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
@@ -19,9 +23,12 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.group.ChannelGroup;
+import org.lantern.LatencyStats.Stage;
+import org.lantern.LatencyStats.Upstream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
@@ -58,9 +65,30 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
     /**
      * Online peers we've exchanged certs with.
      */
-    private final Collection<URI> certPeers = new HashSet<URI>();
+    private final Collection<URI> certPeers = 
+        Collections.newSetFromMap(new ConcurrentHashMap<URI, Boolean>());
 
     private final ChannelGroup channelGroup;
+
+    /**
+     * A connection to each peer that we open streams on, so we only pay 
+     * for signalling and connection setup once per peer.
+     */
+    private final Map<URI, PeerMuxSession> sessions = 
+        new ConcurrentHashMap<URI, PeerMuxSession>();
+
+    /**
+     * Peers that don't support streams, and that we open a connection to
+     * for each socket instead.
+     */
+    private final Set<URI> unmultiplexedPeers = 
+        Collections.synchronizedSet(new HashSet<URI>());
+
+    /**
+     * What we lock on while we connect to each peer.
+     */
+    private final ConcurrentMap<URI, Object> connectLocks = 
+        new ConcurrentHashMap<URI, Object>();
     
     public DefaultPeerProxyManager(final boolean anon, 
         final ChannelGroup channelGroup) {
@@ -76,8 +104,11 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
             this.timedSockets.size(), this);
         
         final ConnectionTimeSocket cts;
+        final long start = System.nanoTime();
         try {
             cts = selectSocket();
+            LanternHub.latencyStats().record(Stage.PEER_SOCKET, Upstream.PEER,
+                start);
         } catch (final IOException e) {
             // This means there's no socket available.
             return null;
@@ -92,6 +123,31 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
             return null;
         }
         
+        replenish(cts.peerUri);
+        return cts.requestProcessor;
+    }
+
+    /**
+     * Takes the fastest connected socket, starting new connections to 
+     * replace it.
+     * 
+     * Only for the peer simulation, which uses sockets without a browser.
+     * Proxied requests go through processRequest.
+     * 
+     * @return The socket.
+     * @throws IOException If there's no connected socket.
+     */
+    @VisibleForTesting
+    Socket takeSocket() throws IOException {
+        final ConnectionTimeSocket cts = selectSocket();
+        if (cts == null) {
+            throw new IOException("No peer sockets available");
+        }
+        replenish(cts.peerUri);
+        return cts.sock;
+    }
+
+    private void replenish(final URI peerUri) {
         // When we use sockets we replace them.
         final int socketsToFetch;
         if (this.timedSockets.size() > 20) {
@@ -103,8 +159,7 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
         } else {
             socketsToFetch = 3;
         }
-        onPeer(cts.peerUri, socketsToFetch);
-        return cts.requestProcessor;
+        onPeer(peerUri, socketsToFetch);
     }
 
     private ConnectionTimeSocket selectSocket() throws IOException {
@@ -192,14 +247,13 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
                         final ConnectionTimeSocket ts = 
                             new ConnectionTimeSocket(peerUri);
 
-                        final Socket sock = LanternUtils.openOutgoingPeerSocket(
-                            peerUri, LanternHub.xmppHandler().getP2PClient(), 
-                            peerFailureCount);
+                        final Socket sock = 
+                            newPeerSocket(peerUri, peerFailureCount);
                         log.info("Got socket and adding it for peer: {}", peerUri);
                         ts.onSocket(sock);
                         timedSockets.add(ts);
                         if (!gotConnected) {
-                            LanternHub.eventBus().post(
+                            LanternHub.asyncEventBus().post(
                                     new ConnectivityStatusChangeEvent(
                                         ConnectivityStatus.CONNECTED));
                         }
@@ -212,6 +266,64 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
         });
     }
 
+    /**
+     * Opens a stream to a peer, connecting to the peer first if we need to.
+     * Falls back to a connection of its own if the peer doesn't support
+     * streams. {@link PeerTransports} decides whether each connection is
+     * over UDT or TCP.
+     */
+    Socket newPeerSocket(final URI peerUri,
+        final Map<URI, AtomicInteger> peerFailureCount) throws IOException {
+        if (this.unmultiplexedPeers.contains(peerUri)) {
+            return newTransportSocket(peerUri, peerFailureCount);
+        }
+        final PeerMuxSession existing = this.sessions.get(peerUri);
+        if (existing != null && !existing.isClosed()) {
+            return existing.openStream();
+        }
+        
+        // Connecting can take a while, so only callers for the same peer
+        // wait on each other here.
+        PeerMuxSession session = null;
+        synchronized (connectLock(peerUri)) {
+            session = this.sessions.get(peerUri);
+            if ((session == null || session.isClosed()) &&
+                !this.unmultiplexedPeers.contains(peerUri)) {
+                final Socket sock = 
+                    newTransportSocket(peerUri, peerFailureCount);
+                try {
+                    session = PeerMuxSession.connect(sock);
+                    this.sessions.put(peerUri, session);
+                } catch (final IOException e) {
+                    log.info("Peer {} doesn't support streams", peerUri, e);
+                    this.unmultiplexedPeers.add(peerUri);
+                    session = null;
+                }
+            }
+        }
+        if (session == null || session.isClosed()) {
+            return newTransportSocket(peerUri, peerFailureCount);
+        }
+        return session.openStream();
+    }
+
+    private Object connectLock(final URI peerUri) {
+        final Object lock = new Object();
+        final Object existing = this.connectLocks.putIfAbsent(peerUri, lock);
+        return existing == null ? lock : existing;
+    }
+
+    /**
+     * Opens a connection to a peer. Only the peer simulation overrides
+     * this, to connect to peers in the same process.
+     */
+    @VisibleForTesting
+    protected Socket newTransportSocket(final URI peerUri,
+        final Map<URI, AtomicInteger> peerFailureCount) throws IOException {
+        return LanternHub.peerTransports().newSocket(peerUri, 
+            peerFailureCount);
+    }
+
     /**
      * Class holding a socket and an HTTP request processor that also tracks
      * connection times.
@@ -251,6 +363,11 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
     @Override
     public void removePeer(final URI uri) {
         this.certPeers.remove(uri);
+        this.unmultiplexedPeers.remove(uri);
+        final PeerMuxSession session = this.sessions.remove(uri);
+        if (session != null) {
+            session.close();
+        }
     }
     
     @Override
@@ -258,6 +375,10 @@ public class DefaultPeerProxyManager implements PeerProxyManager {
         for (final ConnectionTimeSocket sock : this.timedSockets) {
             sock.requestProcessor.close();
         }
+        for (final PeerMuxSession session : this.sessions.values()) {
+            session.close();
+        }
+        this.sessions.clear();
     }
     
     @Override
@@ -1,18 +1,33 @@
 package org.lantern;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -21,35 +36,80 @@ import org.littleshoot.commom.xmpp.XmppUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Default class for keeping track of which contacts are trusted.
+ *
+ * Changes are appended to an encrypted journal rather than rewriting the
+ * whole list each time, so trusting a whole roster at once is a single
+ * write. Each batch of changes is encrypted on its own and written as a
+ * length-prefixed frame of "+email" and "-email" lines. Once the journal
+ * holds a lot more records than there are trusted contacts, it's compacted
+ * in the background by writing a fresh journal with a single frame.
  */
 public class DefaultTrustedContactsManager implements TrustedContactsManager {
 
-    private final static Logger log = 
+    private final static Logger log =
         LoggerFactory.getLogger(DefaultTrustedContactsManager.class);
-    
-    private static final File CONTACTS_FILE =
+
+    private static final File JOURNAL_FILE =
+        new File(LanternConstants.CONFIG_DIR, "trusted.journal");
+
+    /**
+     * The file we used to rewrite in full on every change.
+     */
+    private static final File LEGACY_CONTACTS_FILE =
         new File(LanternConstants.CONFIG_DIR, "trusted.txt");
-    
-    static {
-        if (!CONTACTS_FILE.isFile()) {
-            try {
-                if (!CONTACTS_FILE.createNewFile()) {
-                    log.error("Could not create trust file!!");
-                } else {
-                    CONTACTS_FILE.setWritable(true);
-                }
-            } catch (final IOException e) {
-                log.error("Could not create trust file!!", e);
-            }
-        }
-    }
-    
-    private final Set<String> trustedContacts;
-    
+
+    /**
+     * We don't bother compacting journals with fewer records than this.
+     */
+    static final int MIN_COMPACT_RECORDS = 256;
+
+    private static final String ADD = "+";
+
+    private static final String REMOVE = "-";
+
+    private final Set<String> trustedContacts =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final File journal;
+
+    private final File legacyFile;
+
+    /**
+     * Guards the journal file and keeps the order of records in the journal
+     * the same as the order of changes to the set. Readers don't need it.
+     */
+    private final Object journalLock = new Object();
+
+    /**
+     * The number of records in the journal, guarded by the journal lock.
+     */
+    private int records;
+
+    /**
+     * Whether we read every contact on disk, guarded by the journal lock.
+     * If we didn't, we never rewrite the journal from what's in memory.
+     */
+    private boolean complete = true;
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
+            "Trusted-Contacts-Compactor-%d").build());
+
     public DefaultTrustedContactsManager() {
-        this.trustedContacts = loadTrustedContacts();
+        this(JOURNAL_FILE, LEGACY_CONTACTS_FILE);
+    }
+
+    public DefaultTrustedContactsManager(final File journal,
+        final File legacyFile) {
+        this.journal = journal;
+        this.legacyFile = legacyFile;
+        loadTrustedContacts();
         log.info("Loaded contacts: {}", this.trustedContacts);
     }
 
@@ -57,32 +117,143 @@ public class DefaultTrustedContactsManager implements TrustedContactsManager {
     public boolean isTrusted(final String email) {
         return trustedContacts.contains(email);
     }
-    
+
     @Override
     public boolean isTrusted(final Packet msg) {
         return isJidTrusted(msg.getFrom());
     }
 
-    private Set<String> loadTrustedContacts() {
-        if (!CONTACTS_FILE.isFile()) {
-            log.warn("No file to read!!");
-            return Collections.emptySet();
+    private void loadTrustedContacts() {
+        synchronized (journalLock) {
+            boolean migrate = false;
+            if (legacyFile.isFile()) {
+                // The journal only exists alongside the old file if we
+                // couldn't read the old file before, and anything in the
+                // journal is newer, so we read the old file first.
+                if (readLegacyFile()) {
+                    migrate = true;
+                } else {
+                    complete = false;
+                }
+            }
+            if (journal.isFile()) {
+                final long end = readJournal();
+                if (end < 0) {
+                    complete = false;
+                } else if (end < journal.length()) {
+                    // Anything we append after a partly written frame
+                    // would be lost next time we read the journal.
+                    truncateJournal(end);
+                }
+            } else if (!legacyFile.isFile()) {
+                log.info("No contacts to read");
+            }
+            if (!complete) {
+                log.warn("Could not read all trusted contacts -- leaving " +
+                    "contacts files as they are");
+                return;
+            }
+            if (migrate && compact() && !legacyFile.delete()) {
+                log.warn("Could not delete old contacts file");
+            }
+        }
+    }
+
+    /**
+     * Reads every frame in the journal.
+     *
+     * @return The length of the journal up to the end of the last whole
+     * frame, which is less than the journal's length if its last frame
+     * was only partly written, or -1 if we couldn't read or decrypt it.
+     */
+    private long readJournal() {
+        final long length = journal.length();
+        log.info("Reading contacts...journal size is: {}", length);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(journal)));
+            long read = 0;
+            while (read < length) {
+                if (length - read < 4) {
+                    log.warn("Partial frame length in contacts journal");
+                    return read;
+                }
+                final int frameLength = in.readInt();
+                if (frameLength < 0 || frameLength > length - read - 4) {
+                    log.warn("Partial frame in contacts journal");
+                    return read;
+                }
+                final byte[] frame = new byte[frameLength];
+                in.readFully(frame);
+                applyFrame(frame);
+                read += 4 + frameLength;
+            }
+            return read;
+        } catch (final IOException e) {
+            log.error("Reading error?", e);
+        } catch (final GeneralSecurityException e) {
+            log.error("Failed to decrypt: {}", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return -1;
+    }
+
+    private void truncateJournal(final long end) {
+        log.warn("Removing partly written frame from contacts journal");
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(journal, "rw");
+            raf.setLength(end);
+        } catch (final IOException e) {
+            log.error("Could not truncate contacts journal?", e);
+            complete = false;
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    private void applyFrame(final byte[] frame) throws IOException,
+        GeneralSecurityException {
+        final BufferedReader br = new BufferedReader(new InputStreamReader(
+            decrypt(new ByteArrayInputStream(frame)), "UTF-8"));
+        try {
+            String line = br.readLine();
+            while (line != null) {
+                if (line.startsWith(ADD)) {
+                    trustedContacts.add(line.substring(1));
+                    records++;
+                } else if (line.startsWith(REMOVE)) {
+                    trustedContacts.remove(line.substring(1));
+                    records++;
+                } else if (StringUtils.isNotBlank(line)) {
+                    log.warn("Ignoring journal line: {}", line);
+                }
+                line = br.readLine();
+            }
+        } finally {
+            IOUtils.closeQuietly(br);
         }
-        log.info("Reading contacts...file size is: {}", CONTACTS_FILE.length());
-        final Set<String> trusted = new HashSet<String>();
+    }
+
+    /**
+     * @return <code>true</code> if we read the whole file.
+     */
+    private boolean readLegacyFile() {
+        log.info("Reading contacts...file size is: {}", legacyFile.length());
         BufferedReader br = null;
         try {
-            final InputStream in = LanternUtils.localDecryptInputStream(CONTACTS_FILE);
+            final InputStream in = decrypt(new FileInputStream(legacyFile));
             br = new BufferedReader(new InputStreamReader(in));
             String line = br.readLine();
             while (line != null) {
-                log.info("Reading line: {}", line);
                 if (StringUtils.isNotBlank(line)) {
-                    trusted.add(line.trim());
+                    trustedContacts.add(line.trim());
                 }
                 line = br.readLine();
             }
-            return trusted;
+            return true;
         } catch (final IOException e) {
             log.error("Reading error?", e);
         } catch (final GeneralSecurityException e) {
@@ -90,7 +261,7 @@ public class DefaultTrustedContactsManager implements TrustedContactsManager {
         } finally {
             IOUtils.closeQuietly(br);
         }
-        return Collections.emptySet();
+        return false;
     }
 
     @Override
@@ -99,60 +270,178 @@ public class DefaultTrustedContactsManager implements TrustedContactsManager {
         return isTrusted(email);
     }
 
-    
+
     @Override
     public void addTrustedContact(final String email) {
         log.info("Adding trusted contact: {}", email);
         addTrustedContacts(Arrays.asList(email));
     }
-    
+
     @Override
     public void removeTrustedContact(final String email) {
         log.info("Removing trusted contact: {}", email);
         removeTrustedContacts(Arrays.asList(email));
     }
-    
+
     @Override
     public void addTrustedContacts(final Collection<String> trusted) {
-        trustedContacts.addAll(trusted);
-        writeContacts();
+        synchronized (journalLock) {
+            final List<String> added = new ArrayList<String>();
+            for (final String email : trusted) {
+                if (trustedContacts.add(email)) {
+                    added.add(email);
+                }
+            }
+            append(ADD, added);
+        }
     }
 
     @Override
     public void removeTrustedContacts(final Collection<String> trusted) {
-        trustedContacts.removeAll(trusted);
-        writeContacts();
+        synchronized (journalLock) {
+            final List<String> removed = new ArrayList<String>();
+            for (final String email : trusted) {
+                if (trustedContacts.remove(email)) {
+                    removed.add(email);
+                }
+            }
+            append(REMOVE, removed);
+        }
     }
 
     @Override
     public void clearTrustedContacts() {
-        trustedContacts.clear();
-        CONTACTS_FILE.delete();
-    }
-    
-
-    private void writeContacts() {
-        synchronized (CONTACTS_FILE) {
-            // We just write the whole thing again from scratch.
-            CONTACTS_FILE.delete();
-            OutputStreamWriter fw = null;
-            try {
-                OutputStream out =
-                    LanternUtils.localEncryptOutputStream(CONTACTS_FILE);
-                fw = new OutputStreamWriter(out);
-                for (final String email : trustedContacts) {
-                    final String newLine = email+"\n";
-                    log.info("Adding contact line: {}", newLine);
-                    fw.append(newLine);
+        synchronized (journalLock) {
+            trustedContacts.clear();
+            journal.delete();
+            legacyFile.delete();
+            records = 0;
+            complete = true;
+        }
+    }
+
+    /**
+     * Returns the number of records in the journal.
+     */
+    int getJournalRecords() {
+        synchronized (journalLock) {
+            return records;
+        }
+    }
+
+    boolean isCompacting() {
+        return compacting.get();
+    }
+
+    private void append(final String op, final Collection<String> emails) {
+        if (emails.isEmpty()) {
+            return;
+        }
+        final byte[] frame;
+        try {
+            frame = encryptFrame(op, emails);
+        } catch (final IOException e) {
+            log.error("Could not encrypt contacts", e);
+            return;
+        } catch (final GeneralSecurityException e) {
+            log.error("Failed to encrypt contacts: {}", e);
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(journal, true)));
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+            records += emails.size();
+        } catch (final IOException e) {
+            log.error("Could not write to contacts journal?", e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        if (complete && records >= MIN_COMPACT_RECORDS &&
+            records > 2 * trustedContacts.size() &&
+            compacting.compareAndSet(false, true)) {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (journalLock) {
+                            compact();
+                        }
+                    } finally {
+                        compacting.set(false);
+                    }
                 }
-            } catch (final IOException e) {
-                log.error("Could not write to contacts file?");
-            } catch (final GeneralSecurityException e) {
-                log.error("Failed to encrypt contacts file: {}", e);
-            } finally {
-                IOUtils.closeQuietly(fw);
+            });
+        }
+    }
+
+    /**
+     * Replaces the journal with one that just adds every trusted contact.
+     * The caller must hold the journal lock.
+     *
+     * @return <code>true</code> if the journal was replaced.
+     */
+    private boolean compact() {
+        final File tmp = new File(journal.getParentFile(),
+            journal.getName() + ".tmp");
+        final List<String> contacts = new ArrayList<String>(trustedContacts);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+            if (!contacts.isEmpty()) {
+                final byte[] frame = encryptFrame(ADD, contacts);
+                out.writeInt(frame.length);
+                out.write(frame);
+            }
+            out.close();
+            // Windows won't rename over an existing file.
+            if (!tmp.renameTo(journal) &&
+                (!journal.delete() || !tmp.renameTo(journal))) {
+                log.error("Could not replace contacts journal");
+                return false;
             }
+            records = contacts.size();
+            log.info("Compacted contacts journal to {} bytes",
+                journal.length());
+            return true;
+        } catch (final IOException e) {
+            log.error("Could not compact contacts journal?", e);
+        } catch (final GeneralSecurityException e) {
+            log.error("Failed to encrypt contacts journal: {}", e);
+        } finally {
+            IOUtils.closeQuietly(out);
+            tmp.delete();
+        }
+        return false;
+    }
+
+    private byte[] encryptFrame(final String op,
+        final Collection<String> emails) throws IOException,
+        GeneralSecurityException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Writer writer =
+            new OutputStreamWriter(encrypt(bytes), "UTF-8");
+        for (final String email : emails) {
+            writer.write(op);
+            writer.write(email);
+            writer.write('\n');
         }
-        log.info("File size after writing: {}", CONTACTS_FILE.length());
+        // Closing finishes the cipher.
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    protected OutputStream encrypt(final OutputStream os) throws IOException,
+        GeneralSecurityException {
+        return LanternUtils.localEncryptOutputStream(os);
+    }
+
+    protected InputStream decrypt(final InputStream is) throws IOException,
+        GeneralSecurityException {
+        return LanternUtils.localDecryptInputStream(is);
     }
 }
@@ -292,7 +292,9 @@ public class DefaultXmppHandler implements XmppHandler {
         this.client.set(P2P.newXmppP2PHttpClient("shoot", natPmpService, 
             upnpService, new InetSocketAddress(LanternHub.settings().getServerPort()), 
             //newTlsSocketFactory(),ç SSLServerSocketFactory.getDefault(),//newTlsServerSocketFactory(),
-            LanternUtils.newTlsSocketFactory(), LanternUtils.newTlsServerSocketFactory(),
+            LanternHub.peerTransports().socketFactory(
+                LanternUtils.newTlsSocketFactory()),
+            LanternUtils.newTlsServerSocketFactory(),
             //SocketFactory.getDefault(), ServerSocketFactory.getDefault(), 
             plainTextProxyRelayAddress, sessionListener, false));
         
@@ -522,7 +524,7 @@ public class DefaultXmppHandler implements XmppHandler {
 
     private void connectivityEvent(final ConnectivityStatus cs) {
         if (LanternHub.settings().isGetMode()) {
-            LanternHub.eventBus().post(
+            LanternHub.asyncEventBus().post(
                 new ConnectivityStatusChangeEvent(cs));
         } else {
             LOG.info("Ignoring connectivity event in give mode..");
@@ -1124,7 +1126,7 @@ public class DefaultXmppHandler implements XmppHandler {
             }
             final ProxyHolder proxy = queue.remove();
             queue.add(proxy);
-            LOG.info("FIFO queue is now: {}", queue);
+            LOG.debug("FIFO queue is now: {}", queue);
             return proxy.isa;
         }
     }
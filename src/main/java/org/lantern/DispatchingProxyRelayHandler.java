@@ -31,6 +31,8 @@ import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.handler.ssl.SslHandler;
+import org.lantern.LatencyStats.Stage;
+import org.lantern.LatencyStats.Upstream;
 import org.littleshoot.proxy.HttpConnectRelayingHandler;
 import org.littleshoot.proxy.ProxyUtils;
 import org.slf4j.Logger;
@@ -65,6 +67,11 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
 
     private boolean readingChunks;
 
+    /**
+     * The trace of the request we're currently dispatching.
+     */
+    private RequestTrace trace;
+
     private final ClientSocketChannelFactory clientChannelFactory;
 
     private final ChannelGroup channelGroup;
@@ -156,7 +163,8 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
         final ChannelHandlerContext ctx, final MessageEvent me) {
         final HttpRequest request = (HttpRequest)me.getMessage();
         final String uri = request.getUri();
-        log.info("URI is: {}", uri);
+        this.trace = LanternHub.requestTracer().start(request);
+        log.debug("URI is: {}", uri);
         
         // We need to set this outside of proxying rules because we first
         // send incoming messages down chunked versus unchunked paths and
@@ -176,8 +184,9 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
             response.setProtocolVersion(HttpVersion.HTTP_1_0);
             response.setHeader(HttpHeaders.Names.LOCATION, https);
             response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, "0");
-            log.info("Sending HTTPS redirect response!!");
+            log.debug("Sending HTTPS redirect response");
             browserToProxyChannel.write(response);
+            LanternHub.requestTracer().finish(trace, "HTTPS");
             ProxyUtils.closeOnFlush(browserToProxyChannel);
             // Note this redirect should result in a new HTTPS request 
             // coming in on this connection or a new connection -- in fact
@@ -196,14 +205,17 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
         final ChannelHandlerContext ctx, final MessageEvent me) {
         final HttpRequest request = (HttpRequest) me.getMessage();
         log.debug("Dispatching request");
+        final long start = System.nanoTime();
         if (request.getMethod() == HttpMethod.CONNECT) {
+            trace.event("peer");
             try {
                 if (LanternHub.settings().isUseAnonymousPeers() && 
                     LanternHub.getProxyProvider().getAnonymousPeerProxyManager().processRequest(
                 //if (LanternHub.settings().isUseTrustedPeers() && 
                 //    LanternHub.getProxyProvider().getTrustedPeerProxyManager().processRequest(
                         browserToProxyChannel, ctx, me) != null) {
-                    log.info("Processed CONNECT on peer...returning");
+                    log.debug("Processed CONNECT on peer...returning");
+                    recordDispatch(Upstream.PEER, start);
                     return null;
                 } else if (useStandardProxies()){
                     // We need to forward the CONNECT request from this proxy to an
@@ -212,6 +224,7 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
                     // our own other than direct the CONNECT request to the correct 
                     // proxy.
                     centralConnect(request);
+                    recordDispatch(Upstream.CENTRAL, start);
                     return null;
                 }
             } catch (final IOException e) {
@@ -221,6 +234,7 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
                 // We should fall back to central.
                 if (useStandardProxies()) {
                     centralConnect(request);
+                    recordDispatch(Upstream.CENTRAL, start);
                 }
                 return null;
             }
@@ -231,10 +245,11 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
                 final PeerProxyManager provider = 
                     LanternHub.getProxyProvider().getTrustedPeerProxyManager();
                 if (provider != null) {
-                    log.info("Sending {} to trusted peers", request.getUri());
+                    trace.event("trusted");
                     final HttpRequestProcessor rp = provider.processRequest(
                             browserToProxyChannel, ctx, me);
                     if (rp != null) {
+                        recordDispatch(Upstream.PEER, start);
                         return rp;
                     }
                 }
@@ -243,22 +258,22 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
             log.info("Caught exception processing request", e);
         }
         try {
-            log.info("Trying to send {} to LAE proxy", request.getUri());
+            trace.event("lae");
             if (useLae() && isLae(request) && 
                 this.laeRequestProcessor.processRequest(browserToProxyChannel, 
                     ctx, me)) {
-                log.info("Sent {} to LAE proxy", request.getUri());
+                recordDispatch(Upstream.LAE, start);
                 return this.laeRequestProcessor;
             } 
         } catch (final IOException e) {
             log.info("Caught exception processing request", e);
         }
         try {
-            log.info("Trying to send {} to standard proxy", request.getUri());
+            trace.event("central");
             if (useStandardProxies() && 
                 this.proxyRequestProcessor.processRequest(
                         browserToProxyChannel, ctx, me)) {
-                log.info("Used standard proxy");
+                recordDispatch(Upstream.CENTRAL, start);
                 return this.proxyRequestProcessor;
             }
         } catch (final IOException e) {
@@ -266,10 +281,16 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
         }
         
         log.warn("No proxy could process the request {}", me.getMessage());
+        recordDispatch(Upstream.NONE, start);
         // Not much we can do if no proxy can handle it.
         return null;
     }
 
+    private void recordDispatch(final Upstream upstream, final long start) {
+        LanternHub.latencyStats().record(Stage.DISPATCH, upstream, start);
+        LanternHub.requestTracer().finish(trace, upstream.name());
+    }
+
     private boolean useStandardProxies() {
         return LanternHub.settings().isUseCentralProxies() && LanternHub.settings().isUseCloudProxies();
     }
@@ -295,7 +316,7 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
     private boolean isLae(final HttpRequest request) {
         final String uri = request.getUri();
         if (uri.contains("youtube.com")) {
-            log.info("NOT USING LAE FOR YOUTUBE");
+            log.debug("Not using LAE for YouTube");
             return false;
         }
         final HttpMethod method = request.getMethod();
@@ -371,8 +392,12 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
             }
         };        
 
+        pipeline.addLast("lifecycle", 
+            LanternHub.channelLifecycle().newHandler(
+                ChannelLifecycle.Role.CENTRAL));
         pipeline.addLast("stats", stats);
-        pipeline.addLast("ssl", new SslHandler(engine));
+        final SslHandler ssl = new SslHandler(engine);
+        pipeline.addLast("ssl", ssl);
         pipeline.addLast("encoder", new HttpRequestEncoder());
         pipeline.addLast("handler", 
             new HttpConnectRelayingHandler(this.browserToProxyChannel, 
@@ -383,8 +408,10 @@ public class DispatchingProxyRelayHandler extends SimpleChannelUpstreamHandler {
             ProxyUtils.closeOnFlush(browserToProxyChannel);
             throw new IOException("No proxy to use for CONNECT?");
         }
-        log.info("Connecting to relay proxy {} for {}", isa, request.getUri());
+        log.debug("Connecting to relay proxy {} for {}", isa, request.getUri());
+        trace.event("connect", isa);
         final ChannelFuture cf = cb.connect(isa);
+        LanternHub.latencyStats().recordConnect(cf, ssl, Upstream.CENTRAL);
         log.debug("Got an outbound channel on: {}", hashCode());
         
         final ChannelPipeline browserPipeline = 
@@ -0,0 +1,365 @@
+package org.lantern;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Delivers events to subscribers on other threads, so posting never waits
+ * on a subscriber. Subscribers use Guava's {@link Subscribe} annotation as
+ * they do with {@link EventBus}.
+ *
+ * Each subscriber has its own bounded queue and gets its events in the
+ * order they were posted, one at a time. If a subscriber falls so far
+ * behind that its queue fills up, new events for it are dropped and
+ * counted, except that a {@link CoalescedEvent} takes the place of the
+ * oldest ordinary event waiting, so subscribers don't lose track of the
+ * latest state. {@link CoalescedEvent}s replace any older event of the same
+ * type still waiting in a queue, and aren't delivered to a subscriber at
+ * all if they're equal to the last one it was sent.
+ */
+public class EventDispatcher implements EventDispatcherMXBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * How many events can wait for a single subscriber.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Executor executor;
+
+    private final int capacity;
+
+    private final CopyOnWriteArrayList<Mailbox> mailboxes =
+        new CopyOnWriteArrayList<Mailbox>();
+
+    private final AtomicLong posted = new AtomicLong();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a dispatcher with its own daemon threads.
+     *
+     * @param nameFormat The name format for the threads.
+     */
+    public EventDispatcher(final String nameFormat) {
+        this(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat(nameFormat).build()),
+            DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param executor Runs subscribers.
+     * @param capacity How many events can wait for each subscriber.
+     */
+    public EventDispatcher(final Executor executor, final int capacity) {
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Registers all the {@link Subscribe} methods on an object.
+     */
+    public void register(final Object subscriber) {
+        final Set<Class<?>> types = new HashSet<Class<?>>();
+        for (final Method method : subscriber.getClass().getMethods()) {
+            if (method.isAnnotationPresent(Subscribe.class) &&
+                method.getParameterTypes().length == 1) {
+                types.add(method.getParameterTypes()[0]);
+            }
+        }
+        if (!types.isEmpty()) {
+            mailboxes.add(new Mailbox(subscriber, types));
+        }
+    }
+
+    public void unregister(final Object subscriber) {
+        for (final Mailbox mailbox : mailboxes) {
+            if (mailbox.subscriber == subscriber) {
+                mailboxes.remove(mailbox);
+            }
+        }
+    }
+
+    /**
+     * Queues an event for every subscriber that handles it.
+     */
+    public void post(final Object event) {
+        posted.incrementAndGet();
+        final boolean coalesce = event instanceof CoalescedEvent;
+        for (final Mailbox mailbox : mailboxes) {
+            if (mailbox.handles(event.getClass())) {
+                mailbox.offer(event, coalesce);
+            }
+        }
+    }
+
+    @Override
+    public long getPosted() {
+        return posted.get();
+    }
+
+    @Override
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public Map<String, Integer> getQueued() {
+        final Map<String, Integer> queued = new TreeMap<String, Integer>();
+        for (final Mailbox mailbox : mailboxes) {
+            final Integer sum = queued.get(mailbox.name);
+            queued.put(mailbox.name,
+                (sum == null ? 0 : sum) + mailbox.size());
+        }
+        return queued;
+    }
+
+    @Override
+    public Map<String, Long> getDroppedBySubscriber() {
+        final Map<String, Long> drops = new TreeMap<String, Long>();
+        for (final Mailbox mailbox : mailboxes) {
+            final Long sum = drops.get(mailbox.name);
+            drops.put(mailbox.name,
+                (sum == null ? 0 : sum) + mailbox.dropped.get());
+        }
+        return drops;
+    }
+
+    public void registerMBean() {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final String oName =
+                getClass().getPackage().getName()+":type=Events";
+            final ObjectName mxBeanName = new ObjectName(oName);
+            if(!mbs.isRegistered(mxBeanName)) {
+                mbs.registerMBean(this, mxBeanName);
+            }
+        } catch (final MalformedObjectNameException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final InstanceAlreadyExistsException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final MBeanRegistrationException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final NotCompliantMBeanException e) {
+            log.error("Could not set up JMX", e);
+        }
+    }
+
+    /**
+     * The queue of events for a single subscriber. It's run on the
+     * executor whenever it has events and isn't running already, so a
+     * subscriber only ever handles one event at a time.
+     */
+    private final class Mailbox implements Runnable {
+
+        private final Object subscriber;
+
+        private final String name;
+
+        /**
+         * Calls the subscriber's methods for us, as it would if it were
+         * registered with a synchronous bus.
+         */
+        private final EventBus bus;
+
+        private final Set<Class<?>> types;
+
+        private final ConcurrentMap<Class<?>, Boolean> handled =
+            new ConcurrentHashMap<Class<?>, Boolean>();
+
+        /**
+         * Each slot holds one event, so a coalesced event can be swapped
+         * for a newer one while it waits.
+         */
+        private final Queue<Object[]> queue = new ArrayDeque<Object[]>();
+
+        /**
+         * The waiting slot for each type of coalesced event.
+         */
+        private final Map<Class<?>, Object[]> pending =
+            new HashMap<Class<?>, Object[]>();
+
+        /**
+         * The latest coalesced event of each type we've queued, whether
+         * or not it's been delivered yet. We check for duplicates against
+         * these under the same lock we queue with, so the subscriber
+         * always ends up with the last one it was sent.
+         */
+        private final Map<Class<?>, Object> latest =
+            new HashMap<Class<?>, Object>();
+
+        private boolean scheduled;
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private Mailbox(final Object subscriber, final Set<Class<?>> types) {
+            this.subscriber = subscriber;
+            this.name = subscriber.getClass().getName();
+            this.types = types;
+            this.bus = new EventBus(name);
+            this.bus.register(subscriber);
+        }
+
+        private boolean handles(final Class<?> eventType) {
+            final Boolean cached = handled.get(eventType);
+            if (cached != null) {
+                return cached;
+            }
+            boolean handles = false;
+            for (final Class<?> type : types) {
+                if (type.isAssignableFrom(eventType)) {
+                    handles = true;
+                    break;
+                }
+            }
+            handled.put(eventType, handles);
+            return handles;
+        }
+
+        private void offer(final Object event, final boolean coalesce) {
+            synchronized (this) {
+                if (coalesce) {
+                    if (event.equals(latest.get(event.getClass()))) {
+                        duplicates.incrementAndGet();
+                        return;
+                    }
+                    final Object[] slot = pending.get(event.getClass());
+                    if (slot != null) {
+                        slot[0] = event;
+                        latest.put(event.getClass(), event);
+                        coalesced.incrementAndGet();
+                        return;
+                    }
+                }
+                if (queue.size() >= capacity &&
+                    !(coalesce && evictOrdinaryEvent())) {
+                    drop(event);
+                    return;
+                }
+                if (coalesce) {
+                    latest.put(event.getClass(), event);
+                }
+                final Object[] slot = new Object[] {event};
+                queue.add(slot);
+                if (coalesce) {
+                    pending.put(event.getClass(), slot);
+                }
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (final RejectedExecutionException e) {
+                log.warn("Could not dispatch events to {}", name);
+                synchronized (this) {
+                    scheduled = false;
+                }
+            }
+        }
+
+        /**
+         * Drops the oldest event waiting that isn't a coalesced one.
+         *
+         * @return Whether there was one to drop.
+         */
+        private boolean evictOrdinaryEvent() {
+            final Iterator<Object[]> slots = queue.iterator();
+            while (slots.hasNext()) {
+                final Object event = slots.next()[0];
+                if (!(event instanceof CoalescedEvent)) {
+                    slots.remove();
+                    drop(event);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void drop(final Object event) {
+            EventDispatcher.this.dropped.incrementAndGet();
+            final long count = dropped.incrementAndGet();
+            // Log the first drop and then less and less often.
+            if (Long.bitCount(count) == 1) {
+                log.warn("{} is behind -- dropped {} events, latest {}",
+                    new Object[] {name, count, event});
+            }
+        }
+
+        private synchronized int size() {
+            return queue.size();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Object event;
+                synchronized (this) {
+                    final Object[] slot = queue.poll();
+                    if (slot == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    event = slot[0];
+                    if (pending.get(event.getClass()) == slot) {
+                        pending.remove(event.getClass());
+                    }
+                }
+                bus.post(event);
+                delivered.incrementAndGet();
+            }
+        }
+    }
+}
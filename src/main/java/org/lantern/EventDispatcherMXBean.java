@@ -0,0 +1,30 @@
+package org.lantern;
+
+import java.util.Map;
+
+/**
+ * JMX view of how events are getting through to subscribers.
+ */
+public interface EventDispatcherMXBean {
+
+    long getPosted();
+
+    long getDelivered();
+
+    long getCoalesced();
+
+    long getDuplicates();
+
+    long getDropped();
+
+    /**
+     * @return How many events are waiting for each subscriber.
+     */
+    Map<String, Integer> getQueued();
+
+    /**
+     * @return How many events each subscriber has missed because its
+     * queue was full.
+     */
+    Map<String, Long> getDroppedBySubscriber();
+}
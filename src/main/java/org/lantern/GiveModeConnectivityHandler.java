@@ -48,7 +48,7 @@ public class GiveModeConnectivityHandler {
         }
         log.info("Linking Google Talk state {} to connectivity state {}", 
             state, cs);
-        LanternHub.eventBus().post(
+        LanternHub.asyncEventBus().post(
             new ConnectivityStatusChangeEvent(cs));
     }
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package org.lantern;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time statistics for one I/O worker loop.
+ */
+public class IoLoopStats {
+
+    private final int index;
+    private final String thread;
+    private final int queueDepth;
+    private final long busyMillis;
+    private final long channels;
+
+    @ConstructorProperties({"index", "thread", "queueDepth", "busyMillis",
+        "channels"})
+    public IoLoopStats(final int index, final String thread,
+        final int queueDepth, final long busyMillis, final long channels) {
+        this.index = index;
+        this.thread = thread;
+        this.queueDepth = queueDepth;
+        this.busyMillis = busyMillis;
+        this.channels = channels;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return The name of the loop's thread, or an empty string if it
+     * hasn't started.
+     */
+    public String getThread() {
+        return thread;
+    }
+
+    /**
+     * @return The number of tasks and pending writes waiting to run on the
+     * loop.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return The total time the loop has spent reading and running tasks.
+     */
+    public long getBusyMillis() {
+        return busyMillis;
+    }
+
+    /**
+     * @return The number of channels that have been registered with the
+     * loop.
+     */
+    public long getChannels() {
+        return channels;
+    }
+
+    @Override
+    public String toString() {
+        return "IoLoopStats [index=" + index + ", thread=" + thread +
+            ", queueDepth=" + queueDepth + ", busyMillis=" + busyMillis +
+            ", channels=" + channels + "]";
+    }
+}
@@ -0,0 +1,302 @@
+package org.lantern;
+
+import java.lang.management.ManagementFactory;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioWorker;
+import org.jboss.netty.channel.socket.nio.WorkerPool;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The Netty I/O threads shared by all of our proxy servers and their
+ * outbound connections.
+ *
+ * There is a fixed number of worker loops, by default one per core. A
+ * channel opened from one of our own loops -- the outbound connection a
+ * relay handler opens when a request comes in from the browser or a peer,
+ * say -- is registered with that same loop, so both sides of the relay
+ * are served by one thread and relayed buffers never cross threads. Any
+ * other channel, including every accepted channel, goes to the next loop
+ * round robin.
+ */
+public class IoRuntime implements WorkerPool<NioWorker>,
+    ExternalResourceReleasable, IoRuntimeMXBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The loop running on the current thread, if any.
+     */
+    private static final ThreadLocal<Loop> CURRENT_LOOP =
+        new ThreadLocal<Loop>();
+
+    private final Loop[] loops;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final AtomicLong affinityHits = new AtomicLong();
+
+    private final AtomicLong roundRobin = new AtomicLong();
+
+    private final ExecutorService serverBossExecutor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat(
+                "Lantern-Netty-Server-Boss-Thread-%d").setDaemon(true).build());
+
+    private final ExecutorService clientBossExecutor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat(
+                "Lantern-Netty-Client-Boss-Thread-%d").setDaemon(true).build());
+
+    private final ServerSocketChannelFactory serverChannelFactory;
+
+    private final ClientSocketChannelFactory clientChannelFactory;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * Returns the number of worker loops to use.
+     *
+     * @param configured The configured number, or zero or less to use
+     * one per core.
+     */
+    public static int workerCount(final int configured) {
+        if (configured > 0) {
+            return configured;
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Creates a new runtime. The loop threads start as channels are
+     * registered with them.
+     *
+     * @param workers The number of worker loops.
+     */
+    public IoRuntime(final int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        log.info("Creating I/O runtime with {} workers", workers);
+        this.loops = new Loop[workers];
+        for (int i = 0; i < workers; i++) {
+            loops[i] = new Loop(i, new LoopExecutor(i));
+        }
+        this.serverChannelFactory =
+            new NioServerSocketChannelFactory(serverBossExecutor, this);
+        this.clientChannelFactory =
+            new NioClientSocketChannelFactory(clientBossExecutor, 1, this);
+    }
+
+    public ServerSocketChannelFactory getServerChannelFactory() {
+        return serverChannelFactory;
+    }
+
+    public ClientSocketChannelFactory getClientChannelFactory() {
+        return clientChannelFactory;
+    }
+
+    @Override
+    public NioWorker nextWorker() {
+        final Loop current = CURRENT_LOOP.get();
+        if (current != null && current.runtime() == this) {
+            affinityHits.incrementAndGet();
+            current.channels.incrementAndGet();
+            return current;
+        }
+        roundRobin.incrementAndGet();
+        final Loop loop =
+            loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        loop.channels.incrementAndGet();
+        return loop;
+    }
+
+    /**
+     * Both channel factories release the worker pool when they're
+     * released, so this only does anything the first time.
+     */
+    @Override
+    public void releaseExternalResources() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        serverBossExecutor.shutdownNow();
+        clientBossExecutor.shutdownNow();
+        for (final Loop loop : loops) {
+            loop.executor.shutdown();
+        }
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return loops.length;
+    }
+
+    @Override
+    public long getAffinityHits() {
+        return affinityHits.get();
+    }
+
+    @Override
+    public long getRoundRobinAssignments() {
+        return roundRobin.get();
+    }
+
+    @Override
+    public List<IoLoopStats> getLoops() {
+        final List<IoLoopStats> stats = new ArrayList<IoLoopStats>(loops.length);
+        for (final Loop loop : loops) {
+            stats.add(loop.stats());
+        }
+        return stats;
+    }
+
+    public void registerMBean() {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final String oName =
+                getClass().getPackage().getName()+":type=IoRuntime";
+            final ObjectName mxBeanName = new ObjectName(oName);
+            if(!mbs.isRegistered(mxBeanName)) {
+                mbs.registerMBean(this, mxBeanName);
+            }
+        } catch (final MalformedObjectNameException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final InstanceAlreadyExistsException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final MBeanRegistrationException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final NotCompliantMBeanException e) {
+            log.error("Could not set up JMX", e);
+        }
+    }
+
+    /**
+     * Runs a loop on a dedicated thread that knows which loop it's
+     * running.
+     */
+    private final class LoopExecutor implements Executor {
+
+        private final int index;
+
+        private final ThreadFactory threadFactory;
+
+        private final ExecutorService executor;
+
+        private LoopExecutor(final int index) {
+            this.index = index;
+            this.threadFactory = new ThreadFactoryBuilder().setNameFormat(
+                "Lantern-Netty-Worker-Thread-"+index+"-%d").setDaemon(true).build();
+            this.executor = Executors.newSingleThreadExecutor(threadFactory);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CURRENT_LOOP.set(loops[index]);
+                    try {
+                        command.run();
+                    } finally {
+                        CURRENT_LOOP.remove();
+                    }
+                }
+            });
+        }
+
+        private void shutdown() {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A worker loop that keeps track of how busy it is.
+     */
+    private final class Loop extends NioWorker {
+
+        private final int index;
+
+        private final LoopExecutor executor;
+
+        private final AtomicInteger pendingTasks = new AtomicInteger();
+
+        private final AtomicLong busyNanos = new AtomicLong();
+
+        private final AtomicLong channels = new AtomicLong();
+
+        private Loop(final int index, final LoopExecutor executor) {
+            super(executor, false);
+            this.index = index;
+            this.executor = executor;
+        }
+
+        private IoRuntime runtime() {
+            return IoRuntime.this;
+        }
+
+        @Override
+        protected boolean read(final SelectionKey key) {
+            final long start = System.nanoTime();
+            try {
+                return super.read(key);
+            } finally {
+                busyNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void executeInIoThread(final Runnable task) {
+            executeInIoThread(task, false);
+        }
+
+        @Override
+        public void executeInIoThread(final Runnable task,
+            final boolean alwaysAsync) {
+            pendingTasks.incrementAndGet();
+            super.executeInIoThread(new Runnable() {
+                @Override
+                public void run() {
+                    pendingTasks.decrementAndGet();
+                    final long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } finally {
+                        busyNanos.addAndGet(System.nanoTime() - start);
+                    }
+                }
+            }, alwaysAsync);
+        }
+
+        private IoLoopStats stats() {
+            final Thread t = thread;
+            return new IoLoopStats(index, t == null ? "" : t.getName(),
+                pendingTasks.get() + writeTaskQueue.size(),
+                busyNanos.get() / 1000000, channels.get());
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.lantern;
+
+import java.util.List;
+
+/**
+ * JMX view of the shared Netty I/O runtime.
+ */
+public interface IoRuntimeMXBean {
+
+    int getWorkerCount();
+
+    /**
+     * @return How many outbound channels were put on the same loop as the
+     * channel that opened them.
+     */
+    long getAffinityHits();
+
+    /**
+     * @return How many channels were spread across loops round robin,
+     * including all accepted channels.
+     */
+    long getRoundRobinAssignments();
+
+    List<IoLoopStats> getLoops();
+}
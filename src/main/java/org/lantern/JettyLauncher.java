@@ -53,6 +53,11 @@ public class JettyLauncher {
 
     private final File resourceBaseFile;
 
+    /**
+     * The dashboard files we serve from memory, once we've read them.
+     */
+    private volatile DashboardAssets assets;
+
     public JettyLauncher() {
         final File staticdir = 
             new File(LanternHub.settings().getUiDir(), "assets");
@@ -217,7 +222,7 @@ public class JettyLauncher {
                 final String offPath = "/proxy_off.pac";
                 final String allPath = "/proxy_all.pac";
                 if (uri.startsWith("/proxy_on") && !uri.equals(onPath)) {
-                    writeFileToResponse(resp, Proxifier.PROXY_ON);
+                    writePacToResponse(req, resp);
                     //resp.sendRedirect(onPath);
                 } else if (uri.startsWith("/proxy_off") && !uri.equals(offPath)) {
                     writeFileToResponse(resp, Proxifier.PROXY_OFF);
@@ -226,16 +231,21 @@ public class JettyLauncher {
                     writeFileToResponse(resp, Proxifier.PROXY_ALL);
                     //resp.sendRedirect(allPath);
                 } else {
-                    super.doGet(req, resp);
+                    final DashboardAssets da = assets;
+                    if (da == null || !da.serve(req, resp)) {
+                        super.doGet(req, resp);
+                    }
                 }
             }
         });
+        final String cacheControl;
         if (LanternHub.settings().isCache()) {
-            ds.setInitParameter("cacheControl", "private, max-age=" +
-                LanternConstants.DASHCACHE_MAXAGE);
+            cacheControl = "private, max-age=" +
+                LanternConstants.DASHCACHE_MAXAGE;
         } else {
-            ds.setInitParameter("cacheControl", "no-cache");
+            cacheControl = "no-cache";
         }
+        ds.setInitParameter("cacheControl", cacheControl);
         ds.setInitParameter("aliases", "true");
 
         ds.setInitOrder(3);
@@ -286,6 +296,10 @@ public class JettyLauncher {
             public void run() {
                 try {
                     server.start();
+                    // The DefaultServlet serves everything from disk until
+                    // we're done reading it in.
+                    assets = new DashboardAssets(resourceBaseFile, 
+                        cacheControl);
                     server.join();
                 } catch (final Exception e) {
                     log.error("Exception on HTTP server");
@@ -298,6 +312,28 @@ public class JettyLauncher {
     }
 
 
+    /**
+     * Serves the pac file for the current whitelist from memory, telling the
+     * browser it hasn't changed if it already has it.
+     */
+    private void writePacToResponse(final HttpServletRequest req, 
+        final HttpServletResponse resp) throws IOException {
+        final PacFileGenerator.Pac pac = 
+            PacFileGenerator.getPac(LanternHub.whitelist());
+        resp.setHeader(HttpHeaders.Names.ETAG, pac.getEtag());
+        resp.setHeader(HttpHeaders.Names.CACHE_CONTROL, "no-cache");
+        final String ifNoneMatch = 
+            req.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.contains(pac.getEtag())) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        final byte[] raw = pac.getBytes();
+        resp.setContentType("application/x-ns-proxy-autoconfig");
+        resp.setContentLength(raw.length);
+        resp.getOutputStream().write(raw);
+    }
+
     private void writeFileToResponse(final HttpServletResponse resp,
         final File file) {
         InputStream is = null;
@@ -0,0 +1,91 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+
+/**
+ * Computes structural differences between two JSON trees as a list of
+ * JSON patch style operations (see RFC 6902). Only objects are descended
+ * into -- arrays and scalars that differ are replaced wholesale, which
+ * keeps both the diff here and the patching code in the browser trivial.
+ */
+public class JsonDiff {
+
+    public static final String ADD = "add";
+
+    public static final String REPLACE = "replace";
+
+    public static final String REMOVE = "remove";
+
+    private JsonDiff() {}
+
+    /**
+     * Returns the operations that transform the first tree into the second.
+     *
+     * @param from The old tree.
+     * @param to The new tree.
+     * @return The list of operations, empty if the trees are equal.
+     */
+    public static List<Map<String, Object>> diff(final JsonNode from,
+        final JsonNode to) {
+        final List<Map<String, Object>> ops =
+            new ArrayList<Map<String,Object>>();
+        diff("", from, to, ops);
+        return ops;
+    }
+
+    private static void diff(final String path, final JsonNode from,
+        final JsonNode to, final List<Map<String, Object>> ops) {
+        if (from.equals(to)) {
+            return;
+        }
+        if (!from.isObject() || !to.isObject()) {
+            ops.add(op(REPLACE, path, to));
+            return;
+        }
+        final Iterator<String> removed = from.getFieldNames();
+        while (removed.hasNext()) {
+            final String name = removed.next();
+            if (!to.has(name)) {
+                ops.add(op(REMOVE, path + "/" + escape(name), null));
+            }
+        }
+        final Iterator<String> names = to.getFieldNames();
+        while (names.hasNext()) {
+            final String name = names.next();
+            final String childPath = path + "/" + escape(name);
+            final JsonNode old = from.get(name);
+            if (old == null) {
+                ops.add(op(ADD, childPath, to.get(name)));
+            } else {
+                diff(childPath, old, to.get(name), ops);
+            }
+        }
+    }
+
+    private static Map<String, Object> op(final String op, final String path,
+        final JsonNode value) {
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("op", op);
+        map.put("path", path);
+        if (value != null) {
+            map.put("value", value);
+        }
+        return map;
+    }
+
+    /**
+     * Escapes a field name for use as a JSON pointer token (RFC 6901).
+     */
+    private static String escape(final String name) {
+        if (name.indexOf('~') == -1 && name.indexOf('/') == -1) {
+            return name;
+        }
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+}
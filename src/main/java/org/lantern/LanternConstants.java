@@ -136,6 +136,26 @@ public class LanternConstants {
         "Lantern-Version";
     
     public static final String LANTERN_VERSION_HTTP_HEADER_VALUE = VERSION;
+
+    /**
+     * Sent by peers that can decompress responses from other peers, with
+     * the encodings they accept.
+     */
+    public static final String LANTERN_ACCEPT_ENCODING_HTTP_HEADER_NAME = 
+        "Lantern-Accept-Encoding";
+
+    /**
+     * Set on responses a peer compressed for another peer.
+     */
+    public static final String LANTERN_CONTENT_ENCODING_HTTP_HEADER_NAME = 
+        "Lantern-Content-Encoding";
+
+    /**
+     * The Content-Length of a response before a peer compressed it, if it
+     * had one.
+     */
+    public static final String LANTERN_ORIGINAL_LENGTH_HTTP_HEADER_NAME = 
+        "Lantern-Original-Length";
     
     public static File DATA_DIR;
     
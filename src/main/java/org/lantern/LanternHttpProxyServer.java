@@ -134,6 +134,9 @@ public class LanternHttpProxyServer implements HttpProxyServer {
                         channelGroup);
                 
                 final ChannelPipeline pipeline = pipeline();
+                pipeline.addLast("lifecycle", 
+                    LanternHub.channelLifecycle().newHandler(
+                        ChannelLifecycle.Role.BROWSER));
                 pipeline.addLast("decoder", 
                     new HttpRequestDecoder(8192, 8192*2, 8192*2));
                 pipeline.addLast("encoder", 
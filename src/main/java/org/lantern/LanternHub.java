@@ -7,7 +7,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.security.SecureRandom;
 import java.util.Timer;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 
@@ -28,9 +27,7 @@ import org.lantern.privacy.WindowsLocalCipherProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.eventbus.AsyncEventBus;
 import com.google.common.eventbus.EventBus;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.maxmind.geoip.LookupService;
 
 /**
@@ -42,10 +39,8 @@ public class LanternHub {
     
     private static final EventBus eventBus = new EventBus();
     
-    private static final AsyncEventBus asyncEventBus =
-        new AsyncEventBus("Async-Event-Bus", Executors.newCachedThreadPool(
-            new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
-                "Async-Event-Thread-%d").build()));
+    private static final EventDispatcher asyncEventBus =
+        new EventDispatcher("Async-Event-Thread-%d");
     
     private static final AtomicReference<SecureRandom> secureRandom =
         new AtomicReference<SecureRandom>(new SecureRandom());
@@ -62,15 +57,35 @@ public class LanternHub {
     
     private static final AtomicReference<StatsTracker> statsTracker = 
         new AtomicReference<StatsTracker>();
-    private static LanternKeyStoreManager proxyKeyStore;
-    
-    static {
-        if (!LanternConstants.ON_APP_ENGINE) {
-            proxyKeyStore = new LanternKeyStoreManager();
-        } else {
-            proxyKeyStore = null;
-        }
-    }
+
+    private static final AtomicReference<TrafficHistory> trafficHistory =
+        new AtomicReference<TrafficHistory>();
+
+    private static final AtomicReference<LatencyStats> latencyStats =
+        new AtomicReference<LatencyStats>();
+
+    private static final AtomicReference<RequestTracer> requestTracer =
+        new AtomicReference<RequestTracer>();
+
+    private static final AtomicReference<BandwidthScheduler> bandwidthScheduler =
+        new AtomicReference<BandwidthScheduler>();
+
+    private static final AtomicReference<PeerTransports> peerTransports =
+        new AtomicReference<PeerTransports>();
+
+    private static final AtomicReference<ChannelLifecycle> channelLifecycle =
+        new AtomicReference<ChannelLifecycle>();
+
+    private static final AtomicReference<StartupGraph> startupGraph =
+        new AtomicReference<StartupGraph>();
+
+    /**
+     * Created on first use rather than when this class loads, since 
+     * creating it runs keytool and startup does that in parallel with 
+     * other work.
+     */
+    private static final AtomicReference<LanternKeyStoreManager> proxyKeyStore =
+        new AtomicReference<LanternKeyStoreManager>();
         
     
     private static final AtomicReference<XmppHandler> xmppHandler = 
@@ -136,6 +151,8 @@ public class LanternHub {
     private static ChannelGroup channelGroup;
 
     static {
+        asyncEventBus.registerMBean();
+        
         // start with an UNSET settings object until loaded
         settings.set(new Settings());
         postSettingsState();
@@ -238,13 +255,108 @@ public class LanternHub {
         }
     }
     
+    public static TrafficHistory trafficHistory() {
+        synchronized (trafficHistory) {
+            if (trafficHistory.get() == null) {
+                if (LanternConstants.DATA_DIR == null) {
+                    trafficHistory.set(new TrafficHistory());
+                } else {
+                    final TrafficHistory history = new TrafficHistory(
+                        new File(LanternConstants.DATA_DIR, "traffic.db"));
+                    Runtime.getRuntime().addShutdownHook(new Thread(
+                        new Runnable() {
+                        @Override
+                        public void run() {
+                            history.close();
+                        }
+                    }, "Write-Traffic-History-Thread"));
+                    trafficHistory.set(history);
+                }
+            }
+            return trafficHistory.get();
+        }
+    }
+
+    public static LatencyStats latencyStats() {
+        synchronized (latencyStats) {
+            if (latencyStats.get() == null) {
+                final LatencyStats stats = new LatencyStats();
+                stats.registerMBeans();
+                latencyStats.set(stats);
+            }
+            return latencyStats.get();
+        }
+    }
+
+    public static RequestTracer requestTracer() {
+        synchronized (requestTracer) {
+            if (requestTracer.get() == null) {
+                final RequestTracer tracer = new RequestTracer();
+                tracer.registerMBean();
+                requestTracer.set(tracer);
+            }
+            return requestTracer.get();
+        }
+    }
+
+    public static BandwidthScheduler bandwidthScheduler() {
+        synchronized (bandwidthScheduler) {
+            if (bandwidthScheduler.get() == null) {
+                final BandwidthScheduler scheduler = new BandwidthScheduler();
+                scheduler.registerMBean();
+                scheduler.start();
+                bandwidthScheduler.set(scheduler);
+            }
+            return bandwidthScheduler.get();
+        }
+    }
+
+    public static PeerTransports peerTransports() {
+        synchronized (peerTransports) {
+            if (peerTransports.get() == null) {
+                final PeerTransports transports = new PeerTransports();
+                transports.registerMBean();
+                peerTransports.set(transports);
+            }
+            return peerTransports.get();
+        }
+    }
+
+    public static ChannelLifecycle channelLifecycle() {
+        synchronized (channelLifecycle) {
+            if (channelLifecycle.get() == null) {
+                final ChannelLifecycle lifecycle = new ChannelLifecycle();
+                lifecycle.registerMBean();
+                channelLifecycle.set(lifecycle);
+            }
+            return channelLifecycle.get();
+        }
+    }
+    
+    public static StartupGraph startupGraph() {
+        synchronized (startupGraph) {
+            if (startupGraph.get() == null) {
+                final StartupGraph graph = new StartupGraph(4);
+                graph.registerMBean();
+                startupGraph.set(graph);
+            }
+            return startupGraph.get();
+        }
+    }
+    
     public static LanternKeyStoreManager getKeyStoreManager() {
-        return proxyKeyStore;
+        synchronized (proxyKeyStore) {
+            if (proxyKeyStore.get() == null && 
+                !LanternConstants.ON_APP_ENGINE) {
+                proxyKeyStore.set(new LanternKeyStoreManager());
+            }
+            return proxyKeyStore.get();
+        }
     }
 
     
     public static void setKeyStoreManager(final LanternKeyStoreManager lksm) {
-        proxyKeyStore = lksm;
+        proxyKeyStore.set(lksm);
     }
     
     public static XmppHandler xmppHandler() {
@@ -312,7 +424,13 @@ public class LanternHub {
     }
     
     protected static void resetCookieTracker() {
-        cookieTracker.set(new InMemoryCookieTracker());
+        final InMemoryCookieTracker tracker = new InMemoryCookieTracker();
+        final CookieTracker old = cookieTracker.getAndSet(tracker);
+        if (old instanceof InMemoryCookieTracker) {
+            ((InMemoryCookieTracker) old).stopExpirySweep();
+        }
+        tracker.startExpirySweep(timer(), 
+            InMemoryCookieTracker.DEFAULT_EXPIRY_SWEEP_MILLIS);
     }
     
     public static LocalCipherProvider localCipherProvider() {
@@ -424,7 +542,11 @@ public class LanternHub {
         return eventBus;
     }
     
-    public static AsyncEventBus asyncEventBus() {
+    /**
+     * @return The bus for events that can be handled after they're 
+     * posted, which never makes the poster wait on subscribers.
+     */
+    public static EventDispatcher asyncEventBus() {
         return asyncEventBus;
     }
 
@@ -47,8 +47,6 @@ import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.net.SocketFactory;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -86,6 +84,8 @@ import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.packet.Packet;
 import org.lantern.SettingsState.State;
+import org.lantern.privacy.LocalCipherInputStream;
+import org.lantern.privacy.LocalCipherOutputStream;
 import org.lastbamboo.common.offer.answer.IceConfig;
 import org.lastbamboo.common.offer.answer.NoAnswerException;
 import org.lastbamboo.common.p2p.P2PClient;
@@ -129,7 +129,7 @@ public class LanternUtils {
     public static void writeRequest(final Queue<HttpRequest> httpRequests,
         final HttpRequest request, final ChannelFuture cf) {
         httpRequests.add(request);
-        LOG.info("Writing request: {}", request);
+        LOG.debug("Writing request: {}", request);
         LanternUtils.genericWrite(request, cf);
     }
     
@@ -666,9 +666,8 @@ public class LanternUtils {
 
     public static InputStream localDecryptInputStream(final InputStream in) 
         throws IOException, GeneralSecurityException {
-        Cipher cipher = 
-            LanternHub.localCipherProvider().newLocalCipher(Cipher.DECRYPT_MODE);
-        return new CipherInputStream(in, cipher);
+        return new LocalCipherInputStream(in, 
+            LanternHub.localCipherProvider());
     }
     
     public static InputStream localDecryptInputStream(File file) 
@@ -678,9 +677,8 @@ public class LanternUtils {
     
     public static OutputStream localEncryptOutputStream(final OutputStream os)
         throws IOException, GeneralSecurityException {
-        Cipher cipher = 
-            LanternHub.localCipherProvider().newLocalCipher(Cipher.ENCRYPT_MODE);
-        return new CipherOutputStream(os, cipher);
+        return new LocalCipherOutputStream(os, 
+            LanternHub.localCipherProvider());
     }
     
     public static OutputStream localEncryptOutputStream(File file) 
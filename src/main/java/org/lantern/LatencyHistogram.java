@@ -0,0 +1,184 @@
+package org.lantern;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets. Each power of two
+ * is split into eight buckets, so any recorded value is reported to
+ * within 12.5%, and histograms taken at different times or from
+ * different recorders can be subtracted and merged bucket by bucket.
+ *
+ * Values are in microseconds.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Values below this each get their own bucket.
+     */
+    private static final int LINEAR = SUB_BUCKETS * 2;
+
+    /**
+     * Values are bucketed up to 2^41 micros, or about 25 days.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    static final int BUCKETS =
+        LINEAR + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single value.
+     *
+     * @param micros The value in microseconds.
+     */
+    public void record(final long micros) {
+        final long value = micros < 0 ? 0 : micros;
+        counts.incrementAndGet(bucketFor(value));
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the current counts. Recording can continue while
+     * the snapshot is taken, so it may include part of a concurrent
+     * recording's effects, but the bucket counts are always consistent
+     * with the total count.
+     */
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.get(), max.get());
+    }
+
+    static int bucketFor(final long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) ((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+        final int index = LINEAR + (exp - SUB_BITS - 1) * SUB_BUCKETS + sub;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * Returns the largest value that falls into the specified bucket.
+     */
+    static long upperBound(final int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        final int exp = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+        final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        final long width = 1L << (exp - SUB_BITS);
+        return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+
+    /**
+     * Immutable histogram counts.
+     */
+    public static final class Snapshot {
+
+        public static final Snapshot EMPTY =
+            new Snapshot(new long[BUCKETS], 0, 0, 0);
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(final long[] counts, final long count,
+            final long sum, final long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Returns the values recorded since the specified earlier snapshot
+         * of the same histogram. The maximum is only known to within the
+         * bucket it fell in.
+         */
+        public Snapshot minus(final Snapshot earlier) {
+            final long[] diff = new long[BUCKETS];
+            long total = 0;
+            int highest = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                diff[i] = Math.max(0, counts[i] - earlier.counts[i]);
+                total += diff[i];
+                if (diff[i] > 0) {
+                    highest = i;
+                }
+            }
+            final long newMax = highest < 0 ? 0 :
+                Math.min(max, upperBound(highest));
+            return new Snapshot(diff, total,
+                Math.max(0, sum - earlier.sum), newMax);
+        }
+
+        /**
+         * Returns the combined counts of this and the other snapshot.
+         */
+        public Snapshot merge(final Snapshot other) {
+            final long[] merged = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(merged, count + other.count,
+                sum + other.sum, Math.max(max, other.max));
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * Returns the value at the specified quantile, rounded up to the
+         * top of its bucket.
+         *
+         * @param quantile The quantile, from 0 to 1.
+         */
+        public long getValueAtQuantile(final double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank =
+                Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
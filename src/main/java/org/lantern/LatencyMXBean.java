@@ -0,0 +1,19 @@
+package org.lantern;
+
+/**
+ * JMX view of the latency of one stage of proxying requests through one
+ * type of upstream.
+ */
+public interface LatencyMXBean {
+
+    /**
+     * @return Everything recorded since startup.
+     */
+    LatencySummary getTotal();
+
+    /**
+     * @return Everything recorded since the window was last read over JMX.
+     * Reading this starts a new window.
+     */
+    LatencySummary getWindow();
+}
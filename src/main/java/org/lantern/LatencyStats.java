@@ -0,0 +1,264 @@
+package org.lantern;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency histograms for each stage of proxying a request, kept
+ * separately for each type of upstream. Recording is a few atomic
+ * increments, so it's cheap enough to do for every request.
+ *
+ * Readers each keep their own window, so the API and JMX can both ask
+ * for "everything since I last looked" without resetting each other.
+ */
+public class LatencyStats {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The stages of proxying a request that we time.
+     */
+    public enum Stage {
+        /** Picking an upstream and handing the request to it. */
+        DISPATCH,
+        /** The TCP connect to the upstream. */
+        CONNECT,
+        /** The TLS handshake with the upstream. */
+        HANDSHAKE,
+        /** From writing a request to the upstream to its response. */
+        FIRST_BYTE,
+        /** Getting a connected socket to a peer. */
+        PEER_SOCKET
+    }
+
+    /**
+     * The types of upstream requests are sent through.
+     */
+    public enum Upstream {
+        PEER,
+        LAE,
+        CENTRAL,
+        /** For requests no upstream could handle. */
+        NONE
+    }
+
+    private final LatencyHistogram[][] histograms =
+        new LatencyHistogram[Stage.values().length][Upstream.values().length];
+
+    public LatencyStats() {
+        for (final Stage stage : Stage.values()) {
+            for (final Upstream upstream : Upstream.values()) {
+                histograms[stage.ordinal()][upstream.ordinal()] =
+                    new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Records the time since the specified start time.
+     *
+     * @param stage The stage.
+     * @param upstream The type of upstream.
+     * @param startNanos The start time from {@link System#nanoTime()}.
+     */
+    public void record(final Stage stage, final Upstream upstream,
+        final long startNanos) {
+        histogram(stage, upstream).record(TimeUnit.NANOSECONDS.toMicros(
+            System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Times the TCP connect and then the TLS handshake of a new channel to
+     * an upstream. This must be called before any other listeners that
+     * write to the channel are added to the connect future, as it starts
+     * the handshake itself so it knows when it began.
+     *
+     * @param connectFuture The future for the connection attempt.
+     * @param ssl The channel's SSL handler.
+     * @param upstream The type of upstream.
+     */
+    public void recordConnect(final ChannelFuture connectFuture,
+        final SslHandler ssl, final Upstream upstream) {
+        final long start = System.nanoTime();
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    return;
+                }
+                record(Stage.CONNECT, upstream, start);
+                final long handshakeStart = System.nanoTime();
+                ssl.handshake().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(final ChannelFuture hf) {
+                        if (hf.isSuccess()) {
+                            record(Stage.HANDSHAKE, upstream, handshakeStart);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public LatencyHistogram histogram(final Stage stage,
+        final Upstream upstream) {
+        return histograms[stage.ordinal()][upstream.ordinal()];
+    }
+
+    /**
+     * Creates a new reader with its own window, starting now.
+     */
+    public Reader newReader() {
+        return new Reader();
+    }
+
+    /**
+     * Keeps the last snapshot it read of each histogram so it can report
+     * what happened since.
+     */
+    public class Reader {
+
+        private final LatencyHistogram.Snapshot[][] last =
+            new LatencyHistogram.Snapshot[Stage.values().length][Upstream.values().length];
+
+        private Reader() {
+            for (final Stage stage : Stage.values()) {
+                for (final Upstream upstream : Upstream.values()) {
+                    last[stage.ordinal()][upstream.ordinal()] =
+                        LatencyHistogram.Snapshot.EMPTY;
+                }
+            }
+        }
+
+        /**
+         * Returns the total and window summaries for every stage and
+         * upstream that has recorded anything, keyed by lower case stage
+         * then upstream, and starts a new window. Each stage also has the
+         * merged summaries of all its upstreams under "all".
+         */
+        public synchronized Map<String, Map<String, Map<String, LatencySummary>>> read() {
+            final Map<String, Map<String, Map<String, LatencySummary>>> stages =
+                new LinkedHashMap<String, Map<String, Map<String, LatencySummary>>>();
+            for (final Stage stage : Stage.values()) {
+                final Map<String, Map<String, LatencySummary>> upstreams =
+                    new LinkedHashMap<String, Map<String, LatencySummary>>();
+                LatencyHistogram.Snapshot allTotal =
+                    LatencyHistogram.Snapshot.EMPTY;
+                LatencyHistogram.Snapshot allWindow =
+                    LatencyHistogram.Snapshot.EMPTY;
+                for (final Upstream upstream : Upstream.values()) {
+                    final LatencyHistogram.Snapshot current =
+                        histogram(stage, upstream).snapshot();
+                    if (current.getCount() == 0) {
+                        continue;
+                    }
+                    final LatencyHistogram.Snapshot window =
+                        current.minus(last[stage.ordinal()][upstream.ordinal()]);
+                    last[stage.ordinal()][upstream.ordinal()] = current;
+                    upstreams.put(upstream.name().toLowerCase(),
+                        summaries(current, window));
+                    allTotal = allTotal.merge(current);
+                    allWindow = allWindow.merge(window);
+                }
+                if (!upstreams.isEmpty()) {
+                    upstreams.put("all", summaries(allTotal, allWindow));
+                    stages.put(stage.name().toLowerCase(), upstreams);
+                }
+            }
+            return stages;
+        }
+
+        private Map<String, LatencySummary> summaries(
+            final LatencyHistogram.Snapshot total,
+            final LatencyHistogram.Snapshot window) {
+            final Map<String, LatencySummary> summaries =
+                new LinkedHashMap<String, LatencySummary>();
+            summaries.put("total", new LatencySummary(total));
+            summaries.put("window", new LatencySummary(window));
+            return summaries;
+        }
+
+        /**
+         * Returns the summary of a single histogram since this reader last
+         * read it, and starts a new window.
+         */
+        public synchronized LatencySummary readWindow(final Stage stage,
+            final Upstream upstream) {
+            final LatencyHistogram.Snapshot current =
+                histogram(stage, upstream).snapshot();
+            final LatencySummary summary = new LatencySummary(
+                current.minus(last[stage.ordinal()][upstream.ordinal()]));
+            last[stage.ordinal()][upstream.ordinal()] = current;
+            return summary;
+        }
+    }
+
+    /**
+     * Registers an MBean for each stage and upstream.
+     */
+    public void registerMBeans() {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        final Reader reader = newReader();
+        for (final Stage stage : Stage.values()) {
+            for (final Upstream upstream : Upstream.values()) {
+                try {
+                    final String oName = getClass().getPackage().getName() +
+                        ":type=Latency,stage=" + stage.name().toLowerCase() +
+                        ",upstream=" + upstream.name().toLowerCase();
+                    final ObjectName mxBeanName = new ObjectName(oName);
+                    if (!mbs.isRegistered(mxBeanName)) {
+                        mbs.registerMBean(
+                            new Latency(stage, upstream, reader), mxBeanName);
+                    }
+                } catch (final MalformedObjectNameException e) {
+                    log.error("Could not set up JMX", e);
+                } catch (final InstanceAlreadyExistsException e) {
+                    log.error("Could not set up JMX", e);
+                } catch (final MBeanRegistrationException e) {
+                    log.error("Could not set up JMX", e);
+                } catch (final NotCompliantMBeanException e) {
+                    log.error("Could not set up JMX", e);
+                }
+            }
+        }
+    }
+
+    private class Latency implements LatencyMXBean {
+
+        private final Stage stage;
+        private final Upstream upstream;
+        private final Reader reader;
+
+        private Latency(final Stage stage, final Upstream upstream,
+            final Reader reader) {
+            this.stage = stage;
+            this.upstream = upstream;
+            this.reader = reader;
+        }
+
+        @Override
+        public LatencySummary getTotal() {
+            return new LatencySummary(histogram(stage, upstream).snapshot());
+        }
+
+        @Override
+        public LatencySummary getWindow() {
+            return reader.readWindow(stage, upstream);
+        }
+    }
+}
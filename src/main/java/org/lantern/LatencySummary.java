@@ -0,0 +1,65 @@
+package org.lantern;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a latency histogram, in microseconds.
+ */
+public class LatencySummary {
+
+    private final long count;
+    private final long mean;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    @ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+    public LatencySummary(final long count, final long mean, final long p50,
+        final long p99, final long p999, final long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    public LatencySummary(final LatencyHistogram.Snapshot snapshot) {
+        this(snapshot.getCount(), snapshot.getMean(),
+            snapshot.getValueAtQuantile(0.5),
+            snapshot.getValueAtQuantile(0.99),
+            snapshot.getValueAtQuantile(0.999), snapshot.getMax());
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencySummary [count=" + count + ", mean=" + mean +
+            ", p50=" + p50 + ", p99=" + p99 + ", p999=" + p999 +
+            ", max=" + max + "]";
+    }
+}
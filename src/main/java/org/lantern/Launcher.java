@@ -10,7 +10,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Properties;
-import java.util.concurrent.Executors;
 
 import javax.security.auth.login.CredentialException;
 
@@ -35,8 +34,6 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.util.HashedWheelTimer;
 import org.jboss.netty.util.ThreadNameDeterminer;
 import org.jboss.netty.util.ThreadRenamingRunnable;
@@ -57,7 +54,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.eventbus.Subscribe;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 
 /**
@@ -67,8 +63,8 @@ public class Launcher {
 
     private static Logger LOG;
     private static boolean lanternStarted = false;
-    private static LanternHttpProxyServer localProxy;
-    private static DefaultHttpProxyServer plainTextAnsererRelayProxy;
+    private static volatile LanternHttpProxyServer localProxy;
+    private static volatile DefaultHttpProxyServer plainTextAnsererRelayProxy;
     
     
     /**
@@ -196,8 +192,9 @@ public class Launcher {
         set.setUseLaeProxies(parseOptionDefaultTrue(cmd, OPTION_LAE));
         set.setUseCentralProxies(parseOptionDefaultTrue(cmd, OPTION_CENTRAL));
         
-        IceConfig.setTcp(parseOptionDefaultTrue(cmd, OPTION_TCP));
-        IceConfig.setUdp(parseOptionDefaultTrue(cmd, OPTION_UDP));
+        LanternHub.peerTransports().setEnabled(
+            parseOptionDefaultTrue(cmd, OPTION_TCP),
+            parseOptionDefaultTrue(cmd, OPTION_UDP));
         
         if (cmd.hasOption(OPTION_USER)) {
             set.setCommandLineEmail(cmd.getOptionValue(OPTION_USER));
@@ -615,107 +612,171 @@ public class Launcher {
         
         final Timer timer = new HashedWheelTimer();
         
+        final IoRuntime ioRuntime = new IoRuntime(
+            IoRuntime.workerCount(LanternHub.settings().getIoWorkers()));
+        ioRuntime.registerMBean();
         final ServerSocketChannelFactory serverChannelFactory = 
-            new NioServerSocketChannelFactory(
-                Executors.newCachedThreadPool(
-                    new ThreadFactoryBuilder().setNameFormat(
-                        "Lantern-Netty-Server-Boss-Thread-%d").setDaemon(true).build()),
-                Executors.newCachedThreadPool(
-                    new ThreadFactoryBuilder().setNameFormat(
-                        "Lantern-Netty-Server-Worker-Thread-%d").setDaemon(true).build()));
+            ioRuntime.getServerChannelFactory();
         final ClientSocketChannelFactory clientChannelFactory = 
-            new NioClientSocketChannelFactory(
-                Executors.newCachedThreadPool(
-                    new ThreadFactoryBuilder().setNameFormat(
-                        "Lantern-Netty-Client-Boss-Thread-%d").setDaemon(true).build()),
-                Executors.newCachedThreadPool(
-                    new ThreadFactoryBuilder().setNameFormat(
-                        "Lantern-Netty-Client-Worker-Thread-%d").setDaemon(true).build()));
+            ioRuntime.getClientChannelFactory();
         
         final ChannelGroup channelGroup = 
             new DefaultChannelGroup("Local-HTTP-Proxy-Server");
         
         LanternHub.setNettyTimer(timer);
+        LanternHub.channelLifecycle().start(timer);
         LanternHub.setServerChannelFactory(serverChannelFactory);
         LanternHub.setClientChannelFactory(clientChannelFactory);
         LanternHub.setChannelGroup(channelGroup);
         
         
-        // Note that just passing in the keystore manager triggers this to 
-        // become an SSL proxy server.
-        final int staticRandomPort = LanternHub.settings().getServerPort();
-        final StatsTrackingDefaultHttpProxyServer sslProxy =
-            new StatsTrackingDefaultHttpProxyServer(staticRandomPort,
-            new HttpResponseFilters() {
-                @Override
-                public HttpFilter getFilter(String arg0) {
-                    return null;
-                }
-            }, null, publicOnlyRequestFilter, clientChannelFactory, timer, 
-            serverChannelFactory);
-        LOG.debug("SSL port is {}", staticRandomPort);
-        //final org.littleshoot.proxy.HttpProxyServer sslProxy = 
-        //    new DefaultHttpProxyServer(LanternHub.randomSslPort());
-        sslProxy.start(false, false);
-         
-        // The reason this exists is complicated. It's for the case when the
-        // offerer gets an incoming connection from the answerer, and then
-        // only on the answerer side. The answerer "client" socket relays
-        // its data to the local proxy.
-        // See http://cdn.getlantern.org/IMAG0210.jpg
-        Launcher.plainTextAnsererRelayProxy = 
-            new DefaultHttpProxyServer(
-                LanternUtils.PLAINTEXT_LOCALHOST_PROXY_PORT,
-                publicOnlyRequestFilter, clientChannelFactory, timer, 
-                serverChannelFactory);
-        plainTextAnsererRelayProxy.start(true, false);
-        
-        LOG.info("About to start Lantern server on port: "+
-            LanternConstants.LANTERN_LOCALHOST_HTTP_PORT);
+        final StartupGraph startup = LanternHub.startupGraph();
+        
+        // The browser can't get anywhere until the local proxy is up, so 
+        // it goes first.
+        startup.add("local-proxy", new Runnable() {
+            @Override
+            public void run() {
+                LOG.info("About to start Lantern server on port: "+
+                    LanternConstants.LANTERN_LOCALHOST_HTTP_PORT);
+                /*
+                // Delegate all calls to the current hub cookie tracker.
+                final CookieTracker hubTracker = new CookieTracker() {
+
+                    @Override
+                    public void setCookies(Collection<Cookie> cookies, HttpRequest context) {
+                        LanternHub.cookieTracker().setCookies(cookies, context);
+                    }
+
+                    @Override
+                    public boolean wouldSendCookie(final Cookie cookie, final URI toRequestUri) {
+                        return LanternHub.cookieTracker().wouldSendCookie(cookie, toRequestUri);
+                    }
 
+                    @Override
+                    public boolean wouldSendCookie(final Cookie cookie, final URI toRequestUri, final boolean requireValueMatch) {
+                        return LanternHub.cookieTracker().wouldSendCookie(cookie, toRequestUri, requireValueMatch);
+                    }
 
-        /*
-        // Delegate all calls to the current hub cookie tracker.
-        final CookieTracker hubTracker = new CookieTracker() {
+                    @Override
+                    public CookieFilter asOutboundCookieFilter(final HttpRequest request, final boolean requireValueMatch) throws URISyntaxException {
+                        return LanternHub.cookieTracker().asOutboundCookieFilter(request, requireValueMatch);
+                    }
+                };
 
+                final SetCookieObserver cookieObserver = new WhitelistSetCookieObserver(hubTracker);
+                final CookieFilter.Factory cookieFilterFactory = new DefaultCookieFilterFactory(hubTracker);
+                */
+                Launcher.localProxy = 
+                    new LanternHttpProxyServer(
+                        LanternConstants.LANTERN_LOCALHOST_HTTP_PORT, 
+                        //null, sslRandomPort,
+                        null, null, serverChannelFactory, 
+                        clientChannelFactory, timer, channelGroup);
+                localProxy.start();
+            }
+        });
+        
+        startup.add("keystore", new Runnable() {
             @Override
-            public void setCookies(Collection<Cookie> cookies, HttpRequest context) {
-                LanternHub.cookieTracker().setCookies(cookies, context);
+            public void run() {
+                LanternHub.getKeyStoreManager();
             }
-
+        });
+        
+        startup.add("ssl-proxy", new Runnable() {
             @Override
-            public boolean wouldSendCookie(final Cookie cookie, final URI toRequestUri) {
-                return LanternHub.cookieTracker().wouldSendCookie(cookie, toRequestUri);
+            public void run() {
+                // Note that just passing in the keystore manager triggers 
+                // this to become an SSL proxy server.
+                final int staticRandomPort = 
+                    LanternHub.settings().getServerPort();
+                final StatsTrackingDefaultHttpProxyServer sslProxy =
+                    new StatsTrackingDefaultHttpProxyServer(staticRandomPort,
+                    new HttpResponseFilters() {
+                        @Override
+                        public HttpFilter getFilter(String arg0) {
+                            return null;
+                        }
+                    }, null, publicOnlyRequestFilter, clientChannelFactory, 
+                    timer, serverChannelFactory);
+                LOG.debug("SSL port is {}", staticRandomPort);
+                //final org.littleshoot.proxy.HttpProxyServer sslProxy = 
+                //    new DefaultHttpProxyServer(LanternHub.randomSslPort());
+                sslProxy.start(false, false);
             }
-
+        }, "keystore");
+        
+        startup.add("relay-proxy", new Runnable() {
             @Override
-            public boolean wouldSendCookie(final Cookie cookie, final URI toRequestUri, final boolean requireValueMatch) {
-                return LanternHub.cookieTracker().wouldSendCookie(cookie, toRequestUri, requireValueMatch);
+            public void run() {
+                // The reason this exists is complicated. It's for the case 
+                // when the offerer gets an incoming connection from the 
+                // answerer, and then only on the answerer side. The answerer 
+                // "client" socket relays its data to the local proxy.
+                // See http://cdn.getlantern.org/IMAG0210.jpg
+                Launcher.plainTextAnsererRelayProxy = 
+                    new DefaultHttpProxyServer(
+                        LanternUtils.PLAINTEXT_LOCALHOST_PROXY_PORT,
+                        publicOnlyRequestFilter, clientChannelFactory, timer, 
+                        serverChannelFactory);
+                plainTextAnsererRelayProxy.start(true, false);
             }
-
+        });
+        
+        startup.add("dashboard", new Runnable() {
             @Override
-            public CookieFilter asOutboundCookieFilter(final HttpRequest request, final boolean requireValueMatch) throws URISyntaxException {
-                return LanternHub.cookieTracker().asOutboundCookieFilter(request, requireValueMatch);
+            public void run() {
+                LanternHub.jettyLauncher();
             }
-        };
-
-        final SetCookieObserver cookieObserver = new WhitelistSetCookieObserver(hubTracker);
-        final CookieFilter.Factory cookieFilterFactory = new DefaultCookieFilterFactory(hubTracker);
-        */
-        Launcher.localProxy = 
-            new LanternHttpProxyServer(
-                LanternConstants.LANTERN_LOCALHOST_HTTP_PORT, 
-                //null, sslRandomPort,
-                null, null, serverChannelFactory, 
-                clientChannelFactory, timer, channelGroup);
-        localProxy.start();
-        
-        new AutoConnector(); 
-
+        });
+        
+        startup.add("https-everywhere", new Runnable() {
+            @Override
+            public void run() {
+                LanternHub.httpsEverywhere();
+            }
+        });
+        
+        startup.add("geoip", new Runnable() {
+            @Override
+            public void run() {
+                LanternHub.getGeoIpLookup();
+            }
+        });
+        
+        // Creating the XMPP handler also sets up NAT-PMP and UPnP.
+        startup.add("xmpp", new Runnable() {
+            @Override
+            public void run() {
+                LanternHub.xmppHandler();
+            }
+        }, "keystore");
+        
+        startup.add("auto-connect", new Runnable() {
+            @Override
+            public void run() {
+                new AutoConnector(); 
+            }
+        }, "xmpp", "local-proxy", "ssl-proxy", "relay-proxy");
+        
+        startup.add("firefox-extension", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LanternHub.configurator().copyFireFoxExtension();
+                } catch (final IOException e) {
+                    LOG.error("Could not copy extension", e);
+                }
+            }
+        });
+        
         try {
-            LanternHub.configurator().copyFireFoxExtension();
-        } catch (final IOException e) {
-            LOG.error("Could not copy extension", e);
+            if (!startup.run()) {
+                LOG.error("Not every part of Lantern started");
+            }
+        } catch (final InterruptedException e) {
+            LOG.warn("Interrupted while starting", e);
         }
         
         lanternStarted = true;
@@ -0,0 +1,459 @@
+package org.lantern;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpClientCodec;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of keep-alive HTTP connections to origin servers, shared between
+ * all the peers we proxy for in give mode.
+ *
+ * Each pooled channel has an HTTP client codec named "codec" followed by
+ * the pool's own handler named "pool". Whoever leases a channel adds
+ * their handlers after those and removes them again before releasing it.
+ * Idle channels are closed after a timeout, and if the origin closes an
+ * idle channel it's simply dropped from the pool.
+ */
+public class OriginConnectionPool {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Callback for leasing a channel.
+     */
+    public interface Callback {
+
+        /**
+         * Called with a connected channel that's now leased to the caller.
+         *
+         * @param channel The channel.
+         * @param reused Whether the channel has been used before.
+         */
+        void onLeased(Channel channel, boolean reused);
+
+        /**
+         * Called if we could not connect to the origin.
+         *
+         * @param cause The cause of the failure, if known.
+         */
+        void onFailed(Throwable cause);
+    }
+
+    private static final ChannelLocal<String> ORIGIN =
+        new ChannelLocal<String>();
+
+    private final ClientSocketChannelFactory clientChannelFactory;
+
+    private final Timer timer;
+
+    private final int maxPerOrigin;
+
+    private final int maxIdlePerOrigin;
+
+    private final long idleTimeoutMillis;
+
+    /**
+     * Origins keyed by host and port. Guarded by this.
+     */
+    private final Map<String, Origin> origins = new HashMap<String, Origin>();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param clientChannelFactory The factory for connecting to origins.
+     * @param timer The timer for closing idle channels.
+     * @param maxPerOrigin The most channels to have open to a single origin
+     * at once. Further requests wait for a channel to be released.
+     * @param maxIdlePerOrigin The most idle channels to keep for a single
+     * origin.
+     * @param idleTimeoutMillis How long to keep idle channels open for.
+     */
+    public OriginConnectionPool(
+        final ClientSocketChannelFactory clientChannelFactory,
+        final Timer timer, final int maxPerOrigin, final int maxIdlePerOrigin,
+        final long idleTimeoutMillis) {
+        this.clientChannelFactory = clientChannelFactory;
+        this.timer = timer;
+        this.maxPerOrigin = maxPerOrigin;
+        this.maxIdlePerOrigin = maxIdlePerOrigin;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Leases a channel to the specified origin, reusing an idle one if
+     * there is one.
+     *
+     * @param hostAndPort The host and port of the origin.
+     * @param callback The callback to notify once we have a channel.
+     */
+    public void acquire(final String hostAndPort, final Callback callback) {
+        acquire(hostAndPort, callback, false);
+    }
+
+    /**
+     * Leases a new channel to the specified origin. This is for retrying
+     * requests that failed on reused channels the origin had already
+     * closed.
+     *
+     * @param hostAndPort The host and port of the origin.
+     * @param callback The callback to notify once we have a channel.
+     */
+    public void acquireNew(final String hostAndPort, final Callback callback) {
+        acquire(hostAndPort, callback, true);
+    }
+
+    private void acquire(final String hostAndPort, final Callback callback,
+        final boolean fresh) {
+        Channel idle = null;
+        synchronized (this) {
+            final Origin origin = origin(hostAndPort);
+            if (!fresh) {
+                idle = origin.pollIdle();
+            }
+            if (idle != null) {
+                origin.leased.add(idle);
+            } else if (origin.active() < maxPerOrigin) {
+                origin.connecting++;
+            } else {
+                origin.waiters.add(callback);
+                return;
+            }
+        }
+        if (idle != null) {
+            onHit();
+            callback.onLeased(idle, true);
+        } else {
+            connect(hostAndPort, callback);
+        }
+    }
+
+    /**
+     * Returns a channel to the pool.
+     *
+     * @param channel The channel.
+     * @param reusable Whether the channel is ready for another request.
+     * If not, it's closed.
+     */
+    public void release(final Channel channel, final boolean reusable) {
+        final String hostAndPort = ORIGIN.get(channel);
+        if (hostAndPort == null) {
+            return;
+        }
+        final Callback waiter;
+        boolean close = false;
+        boolean connect = false;
+        synchronized (this) {
+            final Origin origin = origins.get(hostAndPort);
+            if (origin == null || !origin.leased.remove(channel)) {
+                return;
+            }
+            final boolean keep = reusable && channel.isConnected();
+            waiter = origin.waiters.poll();
+            if (waiter != null) {
+                if (keep) {
+                    origin.leased.add(channel);
+                } else {
+                    origin.connecting++;
+                    connect = true;
+                    close = true;
+                }
+            } else if (keep && origin.idle.size() < maxIdlePerOrigin) {
+                origin.idle.addFirst(new Idle(channel,
+                    timer.newTimeout(new IdleTimeout(channel),
+                        idleTimeoutMillis, TimeUnit.MILLISECONDS)));
+            } else {
+                close = true;
+                remove(hostAndPort, origin);
+            }
+        }
+        if (close) {
+            channel.close();
+        }
+        if (waiter != null) {
+            if (connect) {
+                connect(hostAndPort, waiter);
+            } else {
+                onHit();
+                waiter.onLeased(channel, true);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of idle channels to the specified origin.
+     */
+    public synchronized int idleCount(final String hostAndPort) {
+        final Origin origin = origins.get(hostAndPort);
+        return origin == null ? 0 : origin.idle.size();
+    }
+
+    /**
+     * Called when a request is given a channel that's been used before.
+     */
+    protected void onHit() {
+        LanternHub.statsTracker().incrementOriginPoolHits();
+    }
+
+    /**
+     * Called when a request needs a new channel.
+     */
+    protected void onMiss() {
+        LanternHub.statsTracker().incrementOriginPoolMisses();
+    }
+
+    private void connect(final String hostAndPort, final Callback callback) {
+        onMiss();
+        final ClientBootstrap cb = new ClientBootstrap(clientChannelFactory);
+        cb.setOption("connectTimeoutMillis", 40 * 1000);
+        final ChannelPipeline pipeline = cb.getPipeline();
+        pipeline.addLast("codec", new HttpClientCodec());
+        pipeline.addLast("pool", new PoolHandler());
+
+        final ChannelFuture cf;
+        try {
+            cf = cb.connect(address(hostAndPort));
+        } catch (final IllegalArgumentException e) {
+            log.warn("Bad origin: " + hostAndPort, e);
+            connectFailed(hostAndPort, callback, e);
+            return;
+        }
+        ORIGIN.set(cf.getChannel(), hostAndPort);
+        cf.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                if (future.isSuccess()) {
+                    synchronized (OriginConnectionPool.this) {
+                        final Origin origin = origin(hostAndPort);
+                        origin.connecting--;
+                        origin.leased.add(future.getChannel());
+                    }
+                    callback.onLeased(future.getChannel(), false);
+                } else {
+                    ORIGIN.remove(future.getChannel());
+                    connectFailed(hostAndPort, callback, future.getCause());
+                }
+            }
+        });
+    }
+
+    private void connectFailed(final String hostAndPort,
+        final Callback callback, final Throwable cause) {
+        final List<Callback> failed = new ArrayList<Callback>();
+        failed.add(callback);
+        synchronized (this) {
+            final Origin origin = origin(hostAndPort);
+            origin.connecting--;
+            // If we can't connect, nothing waiting on this origin is
+            // likely to do any better.
+            if (origin.active() == 0) {
+                failed.addAll(origin.waiters);
+                origin.waiters.clear();
+                remove(hostAndPort, origin);
+            }
+        }
+        for (final Callback cb : failed) {
+            cb.onFailed(cause);
+        }
+    }
+
+    private InetSocketAddress address(final String hostAndPort) {
+        if (!hostAndPort.contains(":")) {
+            return new InetSocketAddress(hostAndPort, 80);
+        }
+        final String host = StringUtils.substringBeforeLast(hostAndPort, ":");
+        final int port =
+            Integer.parseInt(StringUtils.substringAfterLast(hostAndPort, ":"));
+        return new InetSocketAddress(host, port);
+    }
+
+    private Origin origin(final String hostAndPort) {
+        Origin origin = origins.get(hostAndPort);
+        if (origin == null) {
+            origin = new Origin();
+            origins.put(hostAndPort, origin);
+        }
+        return origin;
+    }
+
+    private void remove(final String hostAndPort, final Origin origin) {
+        if (origin.active() == 0 && origin.idle.isEmpty() &&
+            origin.waiters.isEmpty()) {
+            origins.remove(hostAndPort);
+        }
+    }
+
+    /**
+     * Drops a channel that's been closed.
+     */
+    private void closed(final Channel channel) {
+        final String hostAndPort = ORIGIN.remove(channel);
+        if (hostAndPort == null) {
+            return;
+        }
+        final Callback waiter;
+        synchronized (this) {
+            final Origin origin = origins.get(hostAndPort);
+            if (origin == null) {
+                return;
+            }
+            final boolean wasLeased = origin.leased.remove(channel);
+            final boolean wasIdle = origin.removeIdle(channel);
+            if (wasLeased && !origin.waiters.isEmpty()) {
+                waiter = origin.waiters.poll();
+                origin.connecting++;
+            } else {
+                waiter = null;
+                if (wasLeased || wasIdle) {
+                    remove(hostAndPort, origin);
+                }
+            }
+        }
+        if (waiter != null) {
+            connect(hostAndPort, waiter);
+        }
+    }
+
+    private static final class Idle {
+
+        private final Channel channel;
+
+        private final Timeout timeout;
+
+        private Idle(final Channel channel, final Timeout timeout) {
+            this.channel = channel;
+            this.timeout = timeout;
+        }
+    }
+
+    private static final class Origin {
+
+        /**
+         * Idle channels, most recently used first.
+         */
+        private final LinkedList<Idle> idle = new LinkedList<Idle>();
+
+        private final Set<Channel> leased = new HashSet<Channel>();
+
+        private final LinkedList<Callback> waiters = new LinkedList<Callback>();
+
+        private int connecting;
+
+        private int active() {
+            return leased.size() + connecting;
+        }
+
+        private Channel pollIdle() {
+            Idle entry;
+            while ((entry = idle.poll()) != null) {
+                entry.timeout.cancel();
+                if (entry.channel.isConnected()) {
+                    return entry.channel;
+                }
+            }
+            return null;
+        }
+
+        private boolean removeIdle(final Channel channel) {
+            final Iterator<Idle> iter = idle.iterator();
+            while (iter.hasNext()) {
+                final Idle entry = iter.next();
+                if (entry.channel == channel) {
+                    entry.timeout.cancel();
+                    iter.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class IdleTimeout implements TimerTask {
+
+        private final Channel channel;
+
+        private IdleTimeout(final Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run(final Timeout timeout) {
+            final String hostAndPort = ORIGIN.get(channel);
+            if (hostAndPort == null) {
+                return;
+            }
+            final boolean expired;
+            synchronized (OriginConnectionPool.this) {
+                final Origin origin = origins.get(hostAndPort);
+                expired = origin != null && origin.removeIdle(channel);
+            }
+            if (expired) {
+                log.debug("Closing idle channel to {}", hostAndPort);
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Drops channels from the pool when they close, and closes idle
+     * channels that get anything we didn't ask for.
+     */
+    private final class PoolHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+            if (ctx.getPipeline().getLast() == this) {
+                log.debug("Unexpected message on idle channel to {}",
+                    ORIGIN.get(e.getChannel()));
+                e.getChannel().close();
+                return;
+            }
+            super.messageReceived(ctx, e);
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+            closed(e.getChannel());
+            super.channelClosed(ctx, e);
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent e) throws Exception {
+            if (ctx.getPipeline().getLast() == this) {
+                log.debug("Exception on idle channel", e.getCause());
+                e.getChannel().close();
+                return;
+            }
+            super.exceptionCaught(ctx, e);
+        }
+    }
+}
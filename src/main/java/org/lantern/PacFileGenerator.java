@@ -4,8 +4,11 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.Collection;
+import java.util.Iterator;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +21,63 @@ public class PacFileGenerator {
     private final static Logger LOG = 
         LoggerFactory.getLogger(PacFileGenerator.class);
     
+    /**
+     * A generated pac file along with the whitelist version it was
+     * generated from.
+     */
+    public static final class Pac {
+
+        private final Whitelist whitelist;
+        private final int version;
+        private final byte[] bytes;
+        private final String etag;
+
+        private Pac(final Whitelist whitelist, final int version,
+            final byte[] bytes) {
+            this.whitelist = whitelist;
+            this.version = version;
+            this.bytes = bytes;
+            this.etag = "\"" + DigestUtils.md5Hex(bytes) + "\"";
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+
+    private static volatile Pac currentPac;
+
+    /**
+     * Returns the pac file for the specified whitelist, only regenerating
+     * it if the whitelist has changed since the last call.
+     *
+     * @param whitelist The whitelist.
+     * @return The pac file.
+     */
+    public static Pac getPac(final Whitelist whitelist) {
+        final int version = whitelist.getVersion();
+        final Pac pac = currentPac;
+        if (pac != null && pac.whitelist == whitelist &&
+            pac.version == version) {
+            return pac;
+        }
+        LOG.debug("Generating pac file for whitelist version {}", version);
+        final String str =
+            generatePacFileString(whitelist.getEntriesAsStrings());
+        try {
+            final Pac generated =
+                new Pac(whitelist, version, str.getBytes("UTF-8"));
+            currentPac = generated;
+            return generated;
+        } catch (final UnsupportedEncodingException e) {
+            throw new Error("UTF-8 not supported?", e);
+        }
+    }
+
     /**
      * Generates a pac file from the specified sites using a template.
      * 
@@ -29,10 +89,16 @@ public class PacFileGenerator {
 
         final String template = loadTemplate();
         
-        for (final String site : sites) {
-            sb.append("proxyDomains[i++] = \"");
-            sb.append(site);
-            sb.append("\";\n");
+        // Note we avoid a trailing comma for older versions of IE.
+        final Iterator<String> iter = sites.iterator();
+        while (iter.hasNext()) {
+            sb.append("\"");
+            sb.append(iter.next().toLowerCase());
+            sb.append("\": 1");
+            if (iter.hasNext()) {
+                sb.append(",");
+            }
+            sb.append("\n");
         }
         return template.replace("allDomainsTok", sb.toString().trim());
     }
@@ -0,0 +1,81 @@
+package org.lantern;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time bandwidth use of a single peer we're proxying for in give
+ * mode.
+ */
+public class PeerBandwidth {
+
+    private final String peer;
+    private final int weight;
+    private final int connections;
+    private final long upRate;
+    private final long downRate;
+    private final long upBytes;
+    private final long downBytes;
+
+    @ConstructorProperties({"peer", "weight", "connections", "upRate",
+        "downRate", "upBytes", "downBytes"})
+    public PeerBandwidth(final String peer, final int weight,
+        final int connections, final long upRate, final long downRate,
+        final long upBytes, final long downBytes) {
+        this.peer = peer;
+        this.weight = weight;
+        this.connections = connections;
+        this.upRate = upRate;
+        this.downRate = downRate;
+        this.upBytes = upBytes;
+        this.downBytes = downBytes;
+    }
+
+    /**
+     * @return The address of the peer.
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return The number of open connections for the peer.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return The rate we've been sending data to the peer at over the
+     * last second, in bytes per second.
+     */
+    public long getUpRate() {
+        return upRate;
+    }
+
+    /**
+     * @return The rate we've been reading data from the peer at over the
+     * last second, in bytes per second.
+     */
+    public long getDownRate() {
+        return downRate;
+    }
+
+    public long getUpBytes() {
+        return upBytes;
+    }
+
+    public long getDownBytes() {
+        return downBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerBandwidth [peer=" + peer + ", weight=" + weight +
+            ", connections=" + connections + ", upRate=" + upRate +
+            ", downRate=" + downRate + "]";
+    }
+}
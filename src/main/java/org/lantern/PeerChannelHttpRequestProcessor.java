@@ -2,6 +2,7 @@ package org.lantern;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler;
@@ -16,6 +17,7 @@ import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
 import org.littleshoot.proxy.ProxyUtils;
 import org.slf4j.Logger;
@@ -44,6 +46,14 @@ public class PeerChannelHttpRequestProcessor implements HttpRequestProcessor {
 
     private final ChannelGroup channelGroup;
 
+    /**
+     * Bytes read from the peer for the response we're waiting on, so we can
+     * tell how fast the transport to the peer is.
+     */
+    private final AtomicLong responseBytes = new AtomicLong();
+
+    private volatile long requestSent;
+
     public PeerChannelHttpRequestProcessor(final Socket sock, 
         final ChannelGroup channelGroup) {
         this.sock = sock;
@@ -64,12 +74,17 @@ public class PeerChannelHttpRequestProcessor implements HttpRequestProcessor {
                 @Override
                 public void addDownBytes(long bytes, Channel channel) {
                     statsTracker().addDownBytesViaProxies(bytes, channel);
+                    responseBytes.addAndGet(bytes);
                 }
             };
             
             ChannelPipeline pipeline = Channels.pipeline();
+            pipeline.addLast("lifecycle", 
+                LanternHub.channelLifecycle().newHandler(
+                    ChannelLifecycle.Role.PEER));
             pipeline.addLast("stats", stats);
             pipeline.addLast("decoder", new HttpResponseDecoder());
+            pipeline.addLast("decompressor", new PeerCompressionDecoder());
             pipeline.addLast("encoder", new HttpRequestEncoder());
             pipeline.addLast("relay", new RelayToBrowserHandler(browserToProxyChannel));
 
@@ -79,6 +94,13 @@ public class PeerChannelHttpRequestProcessor implements HttpRequestProcessor {
         }
 
         final HttpRequest request = (HttpRequest) me.getMessage();
+        if (LanternHub.settings().isPeerCompression()) {
+            request.setHeader(
+                LanternConstants.LANTERN_ACCEPT_ENCODING_HTTP_HEADER_NAME,
+                PeerCompressionEncoder.DEFLATE);
+        }
+        requestSent = System.nanoTime();
+        responseBytes.set(0);
         Channels.write(peerChannel, request);
         
         // We return true in all these case to preserve the behavior before
@@ -114,7 +136,20 @@ public class PeerChannelHttpRequestProcessor implements HttpRequestProcessor {
 
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent me) {
-            browserToProxyChannel.write(me.getMessage());
+            final Object msg = me.getMessage();
+            browserToProxyChannel.write(msg);
+            if (isLast(msg)) {
+                LanternHub.peerTransports().addSample(sock,
+                    responseBytes.getAndSet(0), 
+                    System.nanoTime() - requestSent);
+            }
+        }
+
+        private boolean isLast(final Object msg) {
+            if (msg instanceof HttpResponse) {
+                return !((HttpResponse) msg).isChunked();
+            }
+            return msg instanceof HttpChunk && ((HttpChunk) msg).isLast();
         }
         
         @Override
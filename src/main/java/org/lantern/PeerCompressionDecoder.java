@@ -0,0 +1,170 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.compression.ZlibDecoder;
+import org.jboss.netty.handler.codec.compression.ZlibWrapper;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decompresses responses a peer compressed for us with
+ * {@link PeerCompressionEncoder}, so the browser gets the response just as
+ * the origin sent it. This sits just after the response decoder on
+ * channels to peers.
+ */
+public class PeerCompressionDecoder extends SimpleChannelUpstreamHandler {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The decoder for the chunked response we're reading, or
+     * <code>null</code> if it wasn't compressed.
+     */
+    private DecoderEmbedder<ChannelBuffer> decoder;
+
+    private long uncompressedBytes;
+
+    private long compressedBytes;
+
+    /**
+     * Called when we've finished decompressing a response body.
+     *
+     * @param uncompressed The size of the body.
+     * @param compressed The size of the compressed body.
+     */
+    protected void onDecompressed(final long uncompressed,
+        final long compressed) {
+        LanternHub.statsTracker().addPeerCompressedBytes(uncompressed,
+            compressed);
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+        final MessageEvent me) throws Exception {
+        final Object msg = me.getMessage();
+        if (msg instanceof HttpResponse) {
+            readResponse(ctx, me, (HttpResponse) msg);
+        } else if (msg instanceof HttpChunk && this.decoder != null) {
+            readChunk(ctx, me, (HttpChunk) msg);
+        } else {
+            ctx.sendUpstream(me);
+        }
+    }
+
+    private void readResponse(final ChannelHandlerContext ctx,
+        final MessageEvent me, final HttpResponse response) {
+        this.decoder = null;
+        final String encoding = response.getHeader(
+            LanternConstants.LANTERN_CONTENT_ENCODING_HTTP_HEADER_NAME);
+        if (encoding == null) {
+            ctx.sendUpstream(me);
+            return;
+        }
+        if (!PeerCompressionEncoder.DEFLATE.equalsIgnoreCase(encoding.trim())) {
+            // We never ask for anything else, so this shouldn't happen.
+            log.warn("Unexpected encoding from peer: {}", encoding);
+            ctx.sendUpstream(me);
+            return;
+        }
+        final String length = response.getHeader(
+            LanternConstants.LANTERN_ORIGINAL_LENGTH_HTTP_HEADER_NAME);
+        response.removeHeader(
+            LanternConstants.LANTERN_CONTENT_ENCODING_HTTP_HEADER_NAME);
+        response.removeHeader(
+            LanternConstants.LANTERN_ORIGINAL_LENGTH_HTTP_HEADER_NAME);
+
+        final DecoderEmbedder<ChannelBuffer> embedder = newDecoder();
+        if (response.isChunked()) {
+            this.decoder = embedder;
+            this.uncompressedBytes = 0;
+            this.compressedBytes = 0;
+            if (length != null) {
+                // Send the body on as the origin framed it.
+                response.removeHeader(HttpHeaders.Names.TRANSFER_ENCODING);
+                response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, length);
+            }
+            ctx.sendUpstream(me);
+            return;
+        }
+        final ChannelBuffer content = response.getContent();
+        final int compressed = content.readableBytes();
+        final ChannelBuffer body = ChannelBuffers.wrappedBuffer(
+            decode(embedder, content), finish(embedder));
+        response.setContent(body);
+        HttpHeaders.setContentLength(response, body.readableBytes());
+        onDecompressed(body.readableBytes(), compressed);
+        ctx.sendUpstream(me);
+    }
+
+    private void readChunk(final ChannelHandlerContext ctx,
+        final MessageEvent me, final HttpChunk chunk) {
+        final DecoderEmbedder<ChannelBuffer> current = this.decoder;
+        final ChannelBuffer content = chunk.getContent();
+        this.compressedBytes += content.readableBytes();
+        ChannelBuffer data = decode(current, content);
+        if (!chunk.isLast()) {
+            this.uncompressedBytes += data.readableBytes();
+            if (data.readable()) {
+                Channels.fireMessageReceived(ctx, new DefaultHttpChunk(data),
+                    me.getRemoteAddress());
+            }
+            return;
+        }
+        this.decoder = null;
+        data = ChannelBuffers.wrappedBuffer(data, finish(current));
+        this.uncompressedBytes += data.readableBytes();
+        onDecompressed(this.uncompressedBytes, this.compressedBytes);
+        if (data.readable()) {
+            Channels.fireMessageReceived(ctx, new DefaultHttpChunk(data),
+                me.getRemoteAddress());
+        }
+        ctx.sendUpstream(me);
+    }
+
+    private static DecoderEmbedder<ChannelBuffer> newDecoder() {
+        return new DecoderEmbedder<ChannelBuffer>(
+            new ZlibDecoder(ZlibWrapper.ZLIB));
+    }
+
+    private static ChannelBuffer decode(
+        final DecoderEmbedder<ChannelBuffer> embedder,
+        final ChannelBuffer data) {
+        if (data.readable()) {
+            embedder.offer(data);
+        }
+        return drain(embedder);
+    }
+
+    private static ChannelBuffer finish(
+        final DecoderEmbedder<ChannelBuffer> embedder) {
+        embedder.finish();
+        return drain(embedder);
+    }
+
+    private static ChannelBuffer drain(
+        final DecoderEmbedder<ChannelBuffer> embedder) {
+        final List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+        ChannelBuffer buf;
+        while ((buf = embedder.poll()) != null) {
+            buffers.add(buf);
+        }
+        if (buffers.isEmpty()) {
+            return ChannelBuffers.EMPTY_BUFFER;
+        }
+        return ChannelBuffers.wrappedBuffer(
+            buffers.toArray(new ChannelBuffer[buffers.size()]));
+    }
+}
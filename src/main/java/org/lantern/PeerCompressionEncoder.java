@@ -0,0 +1,265 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.compression.ZlibEncoder;
+import org.jboss.netty.handler.codec.compression.ZlibWrapper;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Compresses responses we send to peers that told us they can decompress
+ * them, using the {@link LanternConstants#LANTERN_ACCEPT_ENCODING_HTTP_HEADER_NAME}
+ * header. This sits just after the HTTP codec on give mode channels, so it
+ * sees responses from both the pooled relay and LittleProxy.
+ *
+ * We use our own headers rather than Content-Encoding so the browser on
+ * the other end gets exactly the response the origin sent. Bodies are
+ * compressed as a stream with a flush per chunk, so the other peer can
+ * pass each chunk on as soon as it arrives.
+ */
+public class PeerCompressionEncoder extends SimpleChannelHandler {
+
+    /**
+     * The only encoding we use.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Bodies smaller than this aren't worth compressing.
+     */
+    private static final int MIN_LENGTH = 256;
+
+    private static final int LEVEL = 6;
+
+    /**
+     * Content types that are already compressed.
+     */
+    private static final String[] COMPRESSED_TYPES = {
+        "image/", "video/", "audio/", "application/zip",
+        "application/gzip", "application/x-gzip", "application/x-compress",
+        "application/x-bzip2", "application/x-7z-compressed",
+        "application/x-rar-compressed", "application/octet-stream",
+        "application/x-shockwave-flash", "application/font-woff",
+        "application/x-font-woff", "font/woff"
+    };
+
+    private volatile boolean peerAccepts;
+
+    /**
+     * The encoder for the chunked response we're writing, or
+     * <code>null</code> if we're not compressing it.
+     */
+    private volatile EncoderEmbedder<ChannelBuffer> encoder;
+
+    private volatile long uncompressedBytes;
+
+    private volatile long compressedBytes;
+
+    /**
+     * Whether we compress responses at all.
+     *
+     * @return <code>true</code> if we do.
+     */
+    protected boolean enabled() {
+        return LanternHub.settings().isPeerCompression();
+    }
+
+    /**
+     * Called when we've finished compressing a response body.
+     *
+     * @param uncompressed The size of the body.
+     * @param compressed The size of the compressed body.
+     */
+    protected void onCompressed(final long uncompressed,
+        final long compressed) {
+        LanternHub.statsTracker().addPeerCompressedBytes(uncompressed,
+            compressed);
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+        final MessageEvent me) throws Exception {
+        final Object msg = me.getMessage();
+        if (msg instanceof HttpRequest) {
+            final HttpRequest request = (HttpRequest) msg;
+            final String accept = request.getHeader(
+                LanternConstants.LANTERN_ACCEPT_ENCODING_HTTP_HEADER_NAME);
+            // This is for us, not for the origin.
+            request.removeHeader(
+                LanternConstants.LANTERN_ACCEPT_ENCODING_HTTP_HEADER_NAME);
+            this.peerAccepts = accept != null &&
+                accept.toLowerCase().contains(DEFLATE);
+        }
+        super.messageReceived(ctx, me);
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx,
+        final MessageEvent me) throws Exception {
+        final Object msg = me.getMessage();
+        if (msg instanceof HttpResponse) {
+            writeResponse(ctx, me, (HttpResponse) msg);
+        } else if (msg instanceof HttpChunk && this.encoder != null) {
+            writeChunk(ctx, me, (HttpChunk) msg);
+        } else {
+            super.writeRequested(ctx, me);
+        }
+    }
+
+    private void writeResponse(final ChannelHandlerContext ctx,
+        final MessageEvent me, final HttpResponse response) {
+        this.encoder = null;
+        if (!this.peerAccepts || !compressible(response) || !enabled()) {
+            ctx.sendDownstream(me);
+            return;
+        }
+        if (response.isChunked()) {
+            this.encoder = newEncoder();
+            this.uncompressedBytes = 0;
+            this.compressedBytes = 0;
+            final String length =
+                response.getHeader(HttpHeaders.Names.CONTENT_LENGTH);
+            if (length != null) {
+                response.setHeader(
+                    LanternConstants.LANTERN_ORIGINAL_LENGTH_HTTP_HEADER_NAME,
+                    length);
+                response.removeHeader(HttpHeaders.Names.CONTENT_LENGTH);
+            }
+            response.setHeader(HttpHeaders.Names.TRANSFER_ENCODING,
+                HttpHeaders.Values.CHUNKED);
+            response.setHeader(
+                LanternConstants.LANTERN_CONTENT_ENCODING_HTTP_HEADER_NAME,
+                DEFLATE);
+            ctx.sendDownstream(me);
+            return;
+        }
+        final ChannelBuffer content = response.getContent();
+        final EncoderEmbedder<ChannelBuffer> full = newEncoder();
+        final ChannelBuffer compressed = ChannelBuffers.wrappedBuffer(
+            encode(full, content.duplicate()), finish(full));
+        final int length = content.readableBytes();
+        if (compressed.readableBytes() >= length) {
+            ctx.sendDownstream(me);
+            return;
+        }
+        response.setHeader(
+            LanternConstants.LANTERN_ORIGINAL_LENGTH_HTTP_HEADER_NAME,
+            String.valueOf(length));
+        response.setHeader(
+            LanternConstants.LANTERN_CONTENT_ENCODING_HTTP_HEADER_NAME,
+            DEFLATE);
+        response.setContent(compressed);
+        HttpHeaders.setContentLength(response, compressed.readableBytes());
+        onCompressed(length, compressed.readableBytes());
+        ctx.sendDownstream(me);
+    }
+
+    private void writeChunk(final ChannelHandlerContext ctx,
+        final MessageEvent me, final HttpChunk chunk) {
+        final EncoderEmbedder<ChannelBuffer> current = this.encoder;
+        final ChannelBuffer content = chunk.getContent();
+        this.uncompressedBytes += content.readableBytes();
+        ChannelBuffer data = encode(current, content);
+        if (!chunk.isLast()) {
+            this.compressedBytes += data.readableBytes();
+            if (data.readable()) {
+                Channels.write(ctx, me.getFuture(), new DefaultHttpChunk(data),
+                    me.getRemoteAddress());
+            } else {
+                me.getFuture().setSuccess();
+            }
+            return;
+        }
+        this.encoder = null;
+        data = ChannelBuffers.wrappedBuffer(data, finish(current));
+        this.compressedBytes += data.readableBytes();
+        onCompressed(this.uncompressedBytes, this.compressedBytes);
+        if (data.readable()) {
+            Channels.write(ctx, Channels.future(ctx.getChannel()),
+                new DefaultHttpChunk(data), me.getRemoteAddress());
+        }
+        ctx.sendDownstream(me);
+    }
+
+    /**
+     * Decides whether a response is worth compressing.
+     *
+     * @param response The response.
+     * @return <code>true</code> if we should compress it.
+     */
+    static boolean compressible(final HttpResponse response) {
+        final int status = response.getStatus().getCode();
+        if (status < 200 || status == 204 || status == 304) {
+            return false;
+        }
+        final String encoding =
+            response.getHeader(HttpHeaders.Names.CONTENT_ENCODING);
+        if (StringUtils.isNotBlank(encoding) &&
+            !HttpHeaders.Values.IDENTITY.equalsIgnoreCase(encoding.trim())) {
+            return false;
+        }
+        final String type = response.getHeader(HttpHeaders.Names.CONTENT_TYPE);
+        if (type != null) {
+            final String lower = type.toLowerCase();
+            if (!lower.startsWith("image/svg")) {
+                for (final String compressed : COMPRESSED_TYPES) {
+                    if (lower.startsWith(compressed)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        if (!response.isChunked()) {
+            return response.getContent().readableBytes() >= MIN_LENGTH;
+        }
+        final long length = HttpHeaders.getContentLength(response, -1);
+        return length == -1 || length >= MIN_LENGTH;
+    }
+
+    private static EncoderEmbedder<ChannelBuffer> newEncoder() {
+        return new EncoderEmbedder<ChannelBuffer>(
+            new ZlibEncoder(ZlibWrapper.ZLIB, LEVEL));
+    }
+
+    private static ChannelBuffer encode(
+        final EncoderEmbedder<ChannelBuffer> embedder,
+        final ChannelBuffer data) {
+        if (data.readable()) {
+            embedder.offer(data);
+        }
+        return drain(embedder);
+    }
+
+    private static ChannelBuffer finish(
+        final EncoderEmbedder<ChannelBuffer> embedder) {
+        embedder.finish();
+        return drain(embedder);
+    }
+
+    private static ChannelBuffer drain(
+        final EncoderEmbedder<ChannelBuffer> embedder) {
+        final List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+        ChannelBuffer buf;
+        while ((buf = embedder.poll()) != null) {
+            buffers.add(buf);
+        }
+        if (buffers.isEmpty()) {
+            return ChannelBuffers.EMPTY_BUFFER;
+        }
+        return ChannelBuffers.wrappedBuffer(
+            buffers.toArray(new ChannelBuffer[buffers.size()]));
+    }
+}
@@ -64,14 +64,17 @@ public class PeerHttpConnectRequestProcessor implements HttpRequestProcessor {
             browserToProxyChannel.setReadable(true);
         }
 
-        log.info("Processing request...");
+        log.debug("Processing request...");
         // Lantern's a transparent proxy here, so we forward the HTTP CONNECT
         // message to the remote peer.
         final HttpRequest request = (HttpRequest) me.getMessage();
         try {
             final OutputStream os = this.sock.getOutputStream();
             final byte[] data = LanternUtils.toByteBuffer(request, ctx);
-            log.info("Writing data on peer socket: {}", new String(data, "UTF-8"));
+            if (log.isDebugEnabled()) {
+                log.debug("Writing data on peer socket: {}", 
+                    new String(data, "UTF-8"));
+            }
             os.write(data);
             // shady, hard to know if it's really been done
             LanternHub.statsTracker().addUpBytesViaProxies(data.length, this.sock);
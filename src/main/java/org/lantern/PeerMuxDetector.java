@@ -0,0 +1,109 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks at the first bytes a peer sends to see whether it wants to open
+ * streams with {@link PeerMuxSession}. If it does we replace the rest of
+ * the pipeline with a {@link PeerMuxSessionHandler}, and otherwise we get
+ * out of the way of the HTTP handlers.
+ */
+public class PeerMuxDetector extends SimpleChannelUpstreamHandler {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ChannelFactory streamChannelFactory;
+
+    private final LocalAddress streamAddress;
+
+    private ChannelBuffer received = ChannelBuffers.EMPTY_BUFFER;
+
+    /**
+     * Creates a new detector.
+     *
+     * @param streamChannelFactory Factory for local channels to the server
+     * that handles each stream.
+     * @param streamAddress The address of that server.
+     */
+    public PeerMuxDetector(final ChannelFactory streamChannelFactory,
+        final LocalAddress streamAddress) {
+        this.streamChannelFactory = streamChannelFactory;
+        this.streamAddress = streamAddress;
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+        final MessageEvent me) throws Exception {
+        received = ChannelBuffers.wrappedBuffer(received,
+            (ChannelBuffer) me.getMessage());
+        final int length = PeerMuxFrame.PREFACE.length;
+        final int readable = received.readableBytes();
+        for (int i = 0; i < Math.min(length, readable); i++) {
+            if (received.getByte(received.readerIndex() + i) !=
+                PeerMuxFrame.PREFACE[i]) {
+                passThrough(ctx);
+                return;
+            }
+        }
+        if (readable < length) {
+            return;
+        }
+        received.skipBytes(length);
+        startSession(ctx);
+    }
+
+    private void passThrough(final ChannelHandlerContext ctx) {
+        final ChannelBuffer data = received;
+        received = null;
+        ctx.getPipeline().remove(this);
+        Channels.fireMessageReceived(ctx, data);
+    }
+
+    private void startSession(final ChannelHandlerContext ctx) {
+        log.debug("Starting stream session with {}",
+            ctx.getChannel().getRemoteAddress());
+        final ChannelPipeline pipeline = ctx.getPipeline();
+        final List<String> after = new ArrayList<String>();
+        boolean found = false;
+        for (final Map.Entry<String, ChannelHandler> entry :
+            pipeline.toMap().entrySet()) {
+            if (found) {
+                after.add(entry.getKey());
+            } else if (entry.getValue() == this) {
+                found = true;
+            }
+        }
+        for (final String name : after) {
+            pipeline.remove(name);
+        }
+        final ChannelBuffer data = received;
+        received = null;
+        pipeline.addLast("muxDecoder", new PeerMuxFrame.Decoder());
+        pipeline.addLast("muxSession",
+            new PeerMuxSessionHandler(streamChannelFactory, streamAddress));
+        // The session lives as long as the peer uses it, and each of its
+        // streams gets its own lifetime limit.
+        LanternHub.channelLifecycle().removeMaxAge(ctx.getChannel());
+        ctx.getChannel().write(
+            ChannelBuffers.wrappedBuffer(PeerMuxFrame.PREFACE));
+        pipeline.remove(this);
+        if (data.readable()) {
+            Channels.fireMessageReceived(ctx, data);
+        }
+    }
+}
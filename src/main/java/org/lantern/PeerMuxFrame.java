@@ -0,0 +1,183 @@
+package org.lantern;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+/**
+ * A frame of the protocol we use to carry many streams over a single
+ * connection to a peer. The side that opens the connection starts with
+ * {@link #PREFACE}, and the other side answers with the same bytes if it
+ * supports streams. After that everything is a frame of:
+ *
+ * <pre>
+ * type (1 byte) | stream ID (4 bytes) | length (4 bytes) | payload
+ * </pre>
+ *
+ * Only the opening side opens streams. Each side can have at most
+ * {@link #WINDOW} bytes of a stream's data in flight, and gets more with
+ * {@link #TYPE_WINDOW} frames once the other side has consumed some.
+ */
+public final class PeerMuxFrame {
+
+    /**
+     * Sent first by both sides. It doesn't parse as an HTTP request, so a
+     * peer without stream support will just hang up.
+     */
+    public static final byte[] PREFACE = {
+        'L', 'M', 'U', 'X', '/', '1', '\r', '\n'
+    };
+
+    public static final byte TYPE_OPEN = 1;
+
+    public static final byte TYPE_DATA = 2;
+
+    public static final byte TYPE_WINDOW = 3;
+
+    public static final byte TYPE_CLOSE = 4;
+
+    public static final int HEADER_LENGTH = 9;
+
+    /**
+     * The largest payload we send in a single data frame, so one stream
+     * can't hold the connection for long.
+     */
+    public static final int MAX_DATA = 16 * 1024;
+
+    /**
+     * The most data of a stream that can be in flight in each direction.
+     */
+    public static final int WINDOW = 256 * 1024;
+
+    private final byte type;
+
+    private final int streamId;
+
+    private final ChannelBuffer payload;
+
+    public PeerMuxFrame(final byte type, final int streamId,
+        final ChannelBuffer payload) {
+        this.type = type;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public ChannelBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the window increment in a {@link #TYPE_WINDOW} frame.
+     *
+     * @return The number of bytes.
+     */
+    public int getIncrement() {
+        return payload.getInt(payload.readerIndex());
+    }
+
+    /**
+     * Encodes a frame for a channel.
+     *
+     * @param type The frame type.
+     * @param streamId The stream.
+     * @param payload The payload.
+     * @return The frame.
+     */
+    public static ChannelBuffer encode(final byte type, final int streamId,
+        final ChannelBuffer payload) {
+        final ChannelBuffer header = ChannelBuffers.buffer(HEADER_LENGTH);
+        header.writeByte(type);
+        header.writeInt(streamId);
+        header.writeInt(payload.readableBytes());
+        return ChannelBuffers.wrappedBuffer(header, payload);
+    }
+
+    /**
+     * Encodes a window update for a channel.
+     *
+     * @param streamId The stream.
+     * @param increment The number of bytes the other side can send.
+     * @return The frame.
+     */
+    public static ChannelBuffer window(final int streamId,
+        final int increment) {
+        final ChannelBuffer payload = ChannelBuffers.buffer(4);
+        payload.writeInt(increment);
+        return encode(TYPE_WINDOW, streamId, payload);
+    }
+
+    /**
+     * Writes a frame to a stream. Callers are expected to synchronize.
+     */
+    static void write(final DataOutputStream out, final byte type,
+        final int streamId, final byte[] data, final int off, final int len)
+        throws IOException {
+        out.writeByte(type);
+        out.writeInt(streamId);
+        out.writeInt(len);
+        out.write(data, off, len);
+        out.flush();
+    }
+
+    /**
+     * Reads a frame from a stream.
+     *
+     * @return The frame, or <code>null</code> if the stream ended cleanly.
+     */
+    static PeerMuxFrame read(final DataInputStream in) throws IOException {
+        final int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        final int streamId = in.readInt();
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_DATA) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new PeerMuxFrame((byte) type, streamId,
+            ChannelBuffers.wrappedBuffer(payload));
+    }
+
+    /**
+     * Splits a channel's data into frames.
+     */
+    static final class Decoder extends FrameDecoder {
+
+        @Override
+        protected Object decode(final ChannelHandlerContext ctx,
+            final Channel channel, final ChannelBuffer buffer)
+            throws Exception {
+            if (buffer.readableBytes() < HEADER_LENGTH) {
+                return null;
+            }
+            final int start = buffer.readerIndex();
+            final int length = buffer.getInt(start + 5);
+            if (length < 0 || length > MAX_DATA) {
+                throw new IOException("Bad frame length: " + length);
+            }
+            if (buffer.readableBytes() < HEADER_LENGTH + length) {
+                return null;
+            }
+            final byte type = buffer.readByte();
+            final int streamId = buffer.readInt();
+            buffer.skipBytes(4);
+            return new PeerMuxFrame(type, streamId, buffer.readBytes(length));
+        }
+    }
+}
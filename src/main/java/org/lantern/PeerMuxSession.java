@@ -0,0 +1,241 @@
+package org.lantern;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single connection to a peer that carries many streams, so we only pay
+ * for signalling and ICE and SSL setup once per peer. Streams are
+ * {@link Socket}s, so they can be used anywhere we'd use a socket to a
+ * peer.
+ *
+ * See {@link PeerMuxFrame} for the protocol.
+ */
+public class PeerMuxSession {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * How long we wait for the peer to answer our preface before deciding
+     * it doesn't support streams.
+     */
+    private static final int PREFACE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final Socket sock;
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    private final Map<Integer, PeerMuxStream> streams =
+        new ConcurrentHashMap<Integer, PeerMuxStream>();
+
+    private int nextStreamId = 1;
+
+    private volatile boolean closed;
+
+    private PeerMuxSession(final Socket sock) throws IOException {
+        this.sock = sock;
+        this.in = new DataInputStream(
+            new BufferedInputStream(sock.getInputStream()));
+        this.out = new DataOutputStream(
+            new BufferedOutputStream(sock.getOutputStream()));
+    }
+
+    /**
+     * Starts a session on a newly opened connection to a peer.
+     *
+     * @param sock The connection.
+     * @return The session.
+     * @throws IOException If the peer doesn't support streams, in which
+     * case the connection is closed.
+     */
+    public static PeerMuxSession connect(final Socket sock)
+        throws IOException {
+        final PeerMuxSession session = new PeerMuxSession(sock);
+        try {
+            session.handshake();
+        } catch (final IOException e) {
+            IOUtils.closeQuietly(sock);
+            throw e;
+        }
+        session.start();
+        return session;
+    }
+
+    private void handshake() throws IOException {
+        synchronized (out) {
+            out.write(PeerMuxFrame.PREFACE);
+            out.flush();
+        }
+        final int timeout = sock.getSoTimeout();
+        sock.setSoTimeout(PREFACE_TIMEOUT_MILLIS);
+        final byte[] preface = new byte[PeerMuxFrame.PREFACE.length];
+        try {
+            in.readFully(preface);
+        } catch (final SocketTimeoutException e) {
+            throw new IOException("No answer to preface from " +
+                sock.getRemoteSocketAddress());
+        }
+        if (!Arrays.equals(PeerMuxFrame.PREFACE, preface)) {
+            throw new IOException("Peer doesn't support streams");
+        }
+        sock.setSoTimeout(timeout);
+    }
+
+    private void start() {
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "Peer-Mux-Reading-Thread");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Opens a new stream to the peer.
+     *
+     * @return The stream.
+     * @throws IOException If the session is closed.
+     */
+    public PeerMuxStream openStream() throws IOException {
+        final PeerMuxStream stream;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Session closed");
+            }
+            stream = new PeerMuxStream(this, nextStreamId++);
+            streams.put(stream.getStreamId(), stream);
+        }
+        send(PeerMuxFrame.TYPE_OPEN, stream.getStreamId(), new byte[0], 0, 0);
+        return stream;
+    }
+
+    /**
+     * Returns whether the connection to the peer is gone.
+     *
+     * @return <code>true</code> if it is.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the number of open streams.
+     *
+     * @return The number of streams.
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * Closes the connection and every stream on it.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        IOUtils.closeQuietly(sock);
+        for (final PeerMuxStream stream : streams.values()) {
+            stream.onSessionClosed();
+        }
+        streams.clear();
+    }
+
+    Socket getSocket() {
+        return sock;
+    }
+
+    void send(final byte type, final int streamId, final byte[] data,
+        final int off, final int len) throws IOException {
+        try {
+            synchronized (out) {
+                PeerMuxFrame.write(out, type, streamId, data, off, len);
+            }
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    void sendWindow(final int streamId, final int increment)
+        throws IOException {
+        final byte[] data = {
+            (byte) (increment >>> 24), (byte) (increment >>> 16),
+            (byte) (increment >>> 8), (byte) increment
+        };
+        send(PeerMuxFrame.TYPE_WINDOW, streamId, data, 0, data.length);
+    }
+
+    /**
+     * Called when a stream is closed on our side.
+     */
+    void closed(final PeerMuxStream stream) {
+        if (streams.remove(stream.getStreamId()) == null || closed) {
+            return;
+        }
+        try {
+            send(PeerMuxFrame.TYPE_CLOSE, stream.getStreamId(), new byte[0],
+                0, 0);
+        } catch (final IOException e) {
+            log.debug("Could not close stream", e);
+        }
+    }
+
+    private void read() {
+        try {
+            PeerMuxFrame frame;
+            while ((frame = PeerMuxFrame.read(in)) != null) {
+                final PeerMuxStream stream = streams.get(frame.getStreamId());
+                if (stream == null) {
+                    // We've already closed it.
+                    continue;
+                }
+                switch (frame.getType()) {
+                case PeerMuxFrame.TYPE_DATA:
+                    stream.onData(frame.getPayload());
+                    break;
+                case PeerMuxFrame.TYPE_WINDOW:
+                    stream.onWindow(frame.getIncrement());
+                    break;
+                case PeerMuxFrame.TYPE_CLOSE:
+                    streams.remove(frame.getStreamId());
+                    stream.onRemoteClose();
+                    break;
+                default:
+                    log.warn("Unexpected frame type: {}", frame.getType());
+                }
+            }
+            log.debug("Peer closed session");
+        } catch (final IOException e) {
+            if (!closed) {
+                log.info("Error reading from peer", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "-" + sock.getRemoteSocketAddress();
+    }
+}
@@ -0,0 +1,382 @@
+package org.lantern;
+
+import java.net.SocketAddress;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the streams a peer opens over a single connection with
+ * {@link PeerMuxSession}. Each stream gets a local channel to a server
+ * with the usual give mode HTTP pipeline, so streams are handled just like
+ * connections of their own.
+ */
+public class PeerMuxSessionHandler extends SimpleChannelUpstreamHandler {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(PeerMuxSessionHandler.class);
+
+    /**
+     * How much data for the peer can wait on a stream before we stop
+     * reading from the stream server. We start again once half of it has
+     * gone out.
+     */
+    static final int MAX_OUTBOUND = PeerMuxFrame.WINDOW;
+
+    /**
+     * How much data for the peer can wait on a stream at all. Local
+     * channels don't stop delivering when they're not readable, so a
+     * stream server that keeps writing to a peer that isn't reading gets
+     * its stream reset rather than using up our memory.
+     */
+    static final int MAX_OUTBOUND_HARD = 4 * MAX_OUTBOUND;
+
+    /**
+     * Connections to peers, keyed by the address of the local channel for
+     * each stream as seen from the stream server.
+     */
+    private static final Map<SocketAddress, Channel> PEER_CHANNELS =
+        new ConcurrentHashMap<SocketAddress, Channel>();
+
+    private final Map<Integer, Stream> streams =
+        new ConcurrentHashMap<Integer, Stream>();
+
+    private final ChannelFactory streamChannelFactory;
+
+    private final LocalAddress streamAddress;
+
+    private volatile Channel peerChannel;
+
+    /**
+     * Creates a new handler for a connection from a peer.
+     *
+     * @param streamChannelFactory Factory for local channels to the stream
+     * server.
+     * @param streamAddress The address of the stream server.
+     */
+    public PeerMuxSessionHandler(final ChannelFactory streamChannelFactory,
+        final LocalAddress streamAddress) {
+        this.streamChannelFactory = streamChannelFactory;
+        this.streamAddress = streamAddress;
+    }
+
+    /**
+     * Returns the connection to the peer for a channel on the stream server,
+     * so we can track bandwidth by peer.
+     *
+     * @param channel A channel.
+     * @return The connection to the peer if the channel is for a stream,
+     * or the channel itself otherwise.
+     */
+    public static Channel peerChannel(final Channel channel) {
+        final SocketAddress address = channel.getRemoteAddress();
+        if (!(address instanceof LocalAddress)) {
+            return channel;
+        }
+        final Channel peer = PEER_CHANNELS.get(address);
+        return peer == null ? channel : peer;
+    }
+
+    /**
+     * Returns the number of streams open on this connection.
+     *
+     * @return The number of streams.
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+        final MessageEvent me) {
+        this.peerChannel = ctx.getChannel();
+        final PeerMuxFrame frame = (PeerMuxFrame) me.getMessage();
+        final int id = frame.getStreamId();
+        switch (frame.getType()) {
+        case PeerMuxFrame.TYPE_OPEN:
+            open(id);
+            break;
+        case PeerMuxFrame.TYPE_DATA:
+            final Stream stream = streams.get(id);
+            if (stream != null) {
+                stream.received(frame.getPayload());
+            }
+            break;
+        case PeerMuxFrame.TYPE_WINDOW:
+            final Stream windowed = streams.get(id);
+            if (windowed != null) {
+                windowed.window(frame.getIncrement());
+            }
+            break;
+        case PeerMuxFrame.TYPE_CLOSE:
+            final Stream closed = streams.remove(id);
+            if (closed != null) {
+                closed.remoteClosed();
+            }
+            break;
+        default:
+            LOG.warn("Unexpected frame type: {}", frame.getType());
+        }
+    }
+
+    private void open(final int id) {
+        if (streams.containsKey(id)) {
+            LOG.warn("Stream {} is already open", id);
+            return;
+        }
+        final Stream stream = new Stream(id);
+        streams.put(id, stream);
+        final Channel local = streamChannelFactory.newChannel(
+            Channels.pipeline(new StreamRelay(stream)));
+        local.connect(streamAddress).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                if (future.isSuccess()) {
+                    stream.connected(future.getChannel());
+                } else {
+                    LOG.warn("Could not open stream", future.getCause());
+                    streams.remove(id);
+                    stream.localClosed();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx,
+        final ChannelStateEvent e) {
+        for (final Stream stream : streams.values()) {
+            stream.remoteClosed();
+        }
+        streams.clear();
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx,
+        final ExceptionEvent e) {
+        LOG.info("Exception on stream session", e.getCause());
+        e.getChannel().close();
+    }
+
+    /**
+     * A stream from the peer and its local channel.
+     */
+    private final class Stream {
+
+        private final int id;
+
+        private Channel local;
+
+        /**
+         * Data from the peer that arrived before the local channel was
+         * connected.
+         */
+        private final Queue<ChannelBuffer> early =
+            new LinkedList<ChannelBuffer>();
+
+        /**
+         * Data for the peer that's waiting for window.
+         */
+        private final Queue<ChannelBuffer> outbound =
+            new LinkedList<ChannelBuffer>();
+
+        private int outboundBytes;
+
+        /**
+         * The channel we stopped reading because too much was waiting for
+         * the peer, if any.
+         */
+        private Channel paused;
+
+        private int sendWindow = PeerMuxFrame.WINDOW;
+
+        private int consumed;
+
+        private boolean localClosed;
+
+        private boolean closeSent;
+
+        private Stream(final int id) {
+            this.id = id;
+        }
+
+        private void connected(final Channel channel) {
+            final Queue<ChannelBuffer> toWrite;
+            synchronized (this) {
+                this.local = channel;
+                if (closeSent) {
+                    channel.close();
+                    return;
+                }
+                PEER_CHANNELS.put(channel.getLocalAddress(), peerChannel);
+                toWrite = new LinkedList<ChannelBuffer>(early);
+                early.clear();
+            }
+            for (final ChannelBuffer data : toWrite) {
+                writeLocal(channel, data);
+            }
+        }
+
+        private void received(final ChannelBuffer data) {
+            final Channel channel;
+            synchronized (this) {
+                if (local == null) {
+                    early.add(data);
+                    return;
+                }
+                channel = local;
+            }
+            // We don't hold the lock here, as local channels deliver
+            // writes right away and the stream server may write back.
+            writeLocal(channel, data);
+        }
+
+        private void writeLocal(final Channel channel,
+            final ChannelBuffer data) {
+            final int length = data.readableBytes();
+            channel.write(data).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) {
+                    consumed(length);
+                }
+            });
+        }
+
+        private synchronized void consumed(final int length) {
+            consumed += length;
+            if (consumed >= PeerMuxFrame.WINDOW / 2 && !closeSent) {
+                peerChannel.write(PeerMuxFrame.window(id, consumed));
+                consumed = 0;
+            }
+        }
+
+        private synchronized void send(final Channel source,
+            final ChannelBuffer data) {
+            if (closeSent) {
+                return;
+            }
+            outbound.add(data);
+            outboundBytes += data.readableBytes();
+            flush();
+            if (outboundBytes > MAX_OUTBOUND_HARD) {
+                LOG.info("Peer isn't reading stream {}, resetting it", id);
+                reset();
+            } else if (outboundBytes >= MAX_OUTBOUND && paused == null) {
+                paused = source;
+                source.setReadable(false);
+            }
+        }
+
+        private synchronized void window(final int increment) {
+            sendWindow += increment;
+            flush();
+        }
+
+        private void flush() {
+            while (sendWindow > 0 && !outbound.isEmpty() && !closeSent) {
+                final ChannelBuffer data = outbound.peek();
+                final int n = Math.min(data.readableBytes(),
+                    Math.min(sendWindow, PeerMuxFrame.MAX_DATA));
+                peerChannel.write(PeerMuxFrame.encode(PeerMuxFrame.TYPE_DATA,
+                    id, data.readSlice(n)));
+                sendWindow -= n;
+                outboundBytes -= n;
+                if (!data.readable()) {
+                    outbound.poll();
+                }
+            }
+            if (paused != null && outboundBytes <= MAX_OUTBOUND / 2) {
+                paused.setReadable(true);
+                paused = null;
+            }
+            if (localClosed && outbound.isEmpty() && !closeSent) {
+                closeSent = true;
+                streams.remove(id);
+                peerChannel.write(PeerMuxFrame.encode(PeerMuxFrame.TYPE_CLOSE,
+                    id, ChannelBuffers.EMPTY_BUFFER));
+            }
+        }
+
+        private synchronized void localClosed() {
+            localClosed = true;
+            if (local != null) {
+                PEER_CHANNELS.remove(local.getLocalAddress());
+            }
+            flush();
+        }
+
+        private void remoteClosed() {
+            final Channel channel;
+            synchronized (this) {
+                closeSent = true;
+                outbound.clear();
+                outboundBytes = 0;
+                channel = local;
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        private synchronized void reset() {
+            closeSent = true;
+            outbound.clear();
+            outboundBytes = 0;
+            paused = null;
+            streams.remove(id);
+            peerChannel.write(PeerMuxFrame.encode(PeerMuxFrame.TYPE_CLOSE,
+                id, ChannelBuffers.EMPTY_BUFFER));
+            if (local != null) {
+                local.close();
+            }
+        }
+    }
+
+    /**
+     * Sends what the stream server writes on to the peer.
+     */
+    private final class StreamRelay extends SimpleChannelUpstreamHandler {
+
+        private final Stream stream;
+
+        private StreamRelay(final Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent me) {
+            stream.send(ctx.getChannel(), (ChannelBuffer) me.getMessage());
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) {
+            stream.localClosed();
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent e) {
+            LOG.debug("Exception on stream channel", e.getCause());
+            e.getChannel().close();
+        }
+    }
+}
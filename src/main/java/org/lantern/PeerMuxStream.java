@@ -0,0 +1,370 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A stream in a {@link PeerMuxSession}. This looks like a socket to the
+ * peer so it can be used anywhere we'd otherwise open a new connection.
+ *
+ * Data from the peer goes in a buffer that grows as it arrives, up to the
+ * size of the flow control window, and we give the peer more window as
+ * it's read. Writes block while we're out of window.
+ */
+public class PeerMuxStream extends Socket {
+
+    private final PeerMuxSession session;
+
+    private final int streamId;
+
+    /**
+     * The size we start the buffer at once data arrives.
+     */
+    private static final int INITIAL_BUFFER = 4 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * A ring of data from the peer that we haven't read yet. Most streams
+     * carry short requests and responses, so this only gets as big as the
+     * data waiting in it.
+     */
+    private byte[] buffer = EMPTY;
+
+    private int head;
+
+    private int count;
+
+    /**
+     * Bytes we've read that we haven't told the peer about yet.
+     */
+    private int consumed;
+
+    private int sendWindow = PeerMuxFrame.WINDOW;
+
+    private int timeout;
+
+    private boolean closed;
+
+    private boolean remoteClosed;
+
+    private boolean sessionClosed;
+
+    private final InputStream inputStream = new StreamInput();
+
+    private final OutputStream outputStream = new StreamOutput();
+
+    PeerMuxStream(final PeerMuxSession session, final int streamId)
+        throws SocketException {
+        super((SocketImpl) null);
+        this.session = session;
+        this.streamId = streamId;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Returns the connection to the peer this stream is carried over.
+     */
+    Socket getSessionSocket() {
+        return session.getSocket();
+    }
+
+    synchronized void onData(final ChannelBuffer data) throws IOException {
+        final int length = data.readableBytes();
+        if (length > PeerMuxFrame.WINDOW - count) {
+            throw new IOException("Peer overran window on stream " + streamId);
+        }
+        if (length == 0) {
+            return;
+        }
+        if (length > buffer.length - count) {
+            grow(count + length);
+        }
+        int tail = (head + count) % buffer.length;
+        int remaining = length;
+        while (remaining > 0) {
+            final int n = Math.min(remaining, buffer.length - tail);
+            data.readBytes(buffer, tail, n);
+            tail = (tail + n) % buffer.length;
+            remaining -= n;
+        }
+        count += length;
+        notifyAll();
+    }
+
+    /**
+     * Makes room for at least the given number of bytes, keeping what's in
+     * the buffer in order from the start of the new one.
+     */
+    private void grow(final int needed) {
+        int size = Math.max(buffer.length, INITIAL_BUFFER);
+        while (size < needed) {
+            size *= 2;
+        }
+        final byte[] grown = new byte[Math.min(size, PeerMuxFrame.WINDOW)];
+        final int first = Math.min(count, buffer.length - head);
+        System.arraycopy(buffer, head, grown, 0, first);
+        System.arraycopy(buffer, 0, grown, first, count - first);
+        buffer = grown;
+        head = 0;
+    }
+
+    synchronized void onWindow(final int increment) {
+        sendWindow += increment;
+        notifyAll();
+    }
+
+    synchronized void onRemoteClose() {
+        remoteClosed = true;
+        notifyAll();
+    }
+
+    synchronized void onSessionClosed() {
+        sessionClosed = true;
+        notifyAll();
+    }
+
+    private int read(final byte[] b, final int off, final int len)
+        throws IOException {
+        final int window;
+        final int n;
+        synchronized (this) {
+            final long deadline = timeout == 0 ? 0 :
+                System.currentTimeMillis() + timeout;
+            while (count == 0) {
+                if (closed) {
+                    throw new SocketException("Socket closed");
+                }
+                if (remoteClosed) {
+                    return -1;
+                }
+                if (sessionClosed) {
+                    throw new SocketException("Connection to peer closed");
+                }
+                await(deadline);
+            }
+            n = Math.min(len, Math.min(count, buffer.length - head));
+            System.arraycopy(buffer, head, b, off, n);
+            head = (head + n) % buffer.length;
+            count -= n;
+            consumed += n;
+            if (consumed < PeerMuxFrame.WINDOW / 2 || remoteClosed) {
+                return n;
+            }
+            window = consumed;
+            consumed = 0;
+        }
+        session.sendWindow(streamId, window);
+        return n;
+    }
+
+    private void write(final byte[] b, final int off, final int len)
+        throws IOException {
+        int written = 0;
+        while (written < len) {
+            final int n;
+            synchronized (this) {
+                while (sendWindow == 0 && !closed && !remoteClosed &&
+                    !sessionClosed) {
+                    await(0);
+                }
+                if (closed || remoteClosed || sessionClosed) {
+                    throw new SocketException("Socket closed");
+                }
+                n = Math.min(len - written,
+                    Math.min(sendWindow, PeerMuxFrame.MAX_DATA));
+                sendWindow -= n;
+            }
+            session.send(PeerMuxFrame.TYPE_DATA, streamId, b, off + written, n);
+            written += n;
+        }
+    }
+
+    private void await(final long deadline) throws IOException {
+        try {
+            if (deadline == 0) {
+                wait();
+                return;
+            }
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            wait(remaining);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        session.closed(this);
+    }
+
+    /**
+     * A stream is closed once either side has closed it or the connection
+     * to the peer is gone, as it can't be used for anything new after that.
+     */
+    @Override
+    public synchronized boolean isClosed() {
+        return closed || remoteClosed || sessionClosed;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isInputShutdown() {
+        return closed || remoteClosed;
+    }
+
+    @Override
+    public synchronized boolean isOutputShutdown() {
+        return closed || remoteClosed;
+    }
+
+    @Override
+    public synchronized void setSoTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public synchronized int getSoTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public void setTcpNoDelay(final boolean on) {
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    @Override
+    public void setKeepAlive(final boolean on) {
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return session.getSocket().getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return session.getSocket().getLocalSocketAddress();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return session.getSocket().getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return session.getSocket().getLocalAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return session.getSocket().getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return session.getSocket().getLocalPort();
+    }
+
+    @Override
+    public String toString() {
+        return "PeerMuxStream-" + streamId + "-" + session;
+    }
+
+    private final class StreamInput extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return PeerMuxStream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (PeerMuxStream.this) {
+                return count;
+            }
+        }
+
+        @Override
+        public void close() {
+            PeerMuxStream.this.close();
+        }
+    }
+
+    private final class StreamOutput extends OutputStream {
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+            PeerMuxStream.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            PeerMuxStream.this.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.lantern;
+
+/**
+ * The ways we can carry connections to peers.
+ */
+public enum PeerTransport {
+
+    /**
+     * Plain TCP, which is reliable but slows to a crawl on lossy, high
+     * latency links.
+     */
+    TCP,
+
+    /**
+     * UDT over UDP, which keeps its throughput up on lossy links where TCP
+     * would back off.
+     */
+    UDT;
+
+    /**
+     * Parses the transport setting, ignoring case.
+     *
+     * @param name The name of a transport.
+     * @return The transport, or <code>null</code> if the name is blank or
+     * isn't a transport, meaning we should choose for ourselves.
+     */
+    public static PeerTransport forName(final String name) {
+        if (name == null) {
+            return null;
+        }
+        for (final PeerTransport transport : values()) {
+            if (transport.name().equalsIgnoreCase(name.trim())) {
+                return transport;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,383 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.lastbamboo.common.offer.answer.IceConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the transports we use to reach peers. ICE gathers
+ * candidates for every transport we allow and picks the one that works for
+ * each peer, so falling back from UDT to TCP happens within a single ICE
+ * attempt. We decide which transports ICE may use at all, from the command
+ * line and the transport setting, and time responses over each transport
+ * so we can see how each one is doing. ICE only takes process wide
+ * switches, so we don't rank the transports ourselves.
+ *
+ * The sockets we hand out are ordinary {@link Socket}s that work with
+ * {@link PeerSocketChannel} and {@link PeerMuxSession} whichever transport
+ * is underneath.
+ */
+public class PeerTransports implements PeerTransportsMXBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Responses smaller than this mostly measure latency rather than
+     * throughput, so we don't time them.
+     */
+    static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+    private final Map<PeerTransport, Counters> counters =
+        new EnumMap<PeerTransport, Counters>(PeerTransport.class);
+
+    private final Map<Socket, PeerTransport> sockets =
+        Collections.synchronizedMap(new WeakHashMap<Socket, PeerTransport>());
+
+    /**
+     * The socket under each TLS socket layered over an existing connection,
+     * which is how ICE adds TLS to the sockets it picks.
+     */
+    private final Map<Socket, Socket> layers =
+        Collections.synchronizedMap(new WeakHashMap<Socket, Socket>());
+
+    /**
+     * Connection attempts that failed over every transport ICE tried. ICE
+     * doesn't tell us which ones those were.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile boolean tcpEnabled = true;
+
+    private volatile boolean udtEnabled = true;
+
+    /**
+     * The transports we last allowed ICE to use, or <code>null</code> if we
+     * haven't told it yet. Guarded by this.
+     */
+    private List<PeerTransport> allowed;
+
+    public PeerTransports() {
+        for (final PeerTransport transport : PeerTransport.values()) {
+            counters.put(transport, new Counters());
+        }
+    }
+
+    /**
+     * Sets which transports we're allowed to use at all, typically from the
+     * command line.
+     *
+     * @param tcp Whether we can use TCP.
+     * @param udt Whether we can use UDT.
+     */
+    public void setEnabled(final boolean tcp, final boolean udt) {
+        this.tcpEnabled = tcp;
+        this.udtEnabled = udt;
+        configure();
+    }
+
+    /**
+     * Opens a new socket to a peer. This is a single ICE attempt however
+     * many transports we allow, so a peer we can't reach only counts one
+     * failure.
+     *
+     * @param peerUri The URI of the peer.
+     * @param peerFailureCount Counts of failed attempts to reach peers.
+     * @return The socket.
+     * @throws IOException If we can't reach the peer with any transport.
+     */
+    public Socket newSocket(final URI peerUri,
+        final Map<URI, AtomicInteger> peerFailureCount) throws IOException {
+        final List<PeerTransport> transports = configure();
+        if (transports.isEmpty()) {
+            throw new IOException("No peer transports enabled");
+        }
+        final Socket sock;
+        try {
+            sock = open(peerUri, peerFailureCount);
+        } catch (final IOException e) {
+            log.info("Could not connect to {} over {}", peerUri, transports);
+            failures.incrementAndGet();
+            throw e;
+        }
+        final PeerTransport transport = detect(sock, transports);
+        log.debug("Connected to {} over {}", peerUri, transport);
+        sockets.put(sock, transport);
+        counters.get(transport).connections.incrementAndGet();
+        return sock;
+    }
+
+    /**
+     * Returns the transports we allow.
+     *
+     * @return The transports.
+     */
+    List<PeerTransport> transports() {
+        final List<PeerTransport> transports = new ArrayList<PeerTransport>();
+        final PeerTransport setting = PeerTransport.forName(setting());
+        if (tcpEnabled && setting != PeerTransport.UDT) {
+            transports.add(PeerTransport.TCP);
+        }
+        if (udtEnabled && setting != PeerTransport.TCP) {
+            transports.add(PeerTransport.UDT);
+        }
+        return transports;
+    }
+
+    /**
+     * Tells ICE which transports it can use if that's changed, which only
+     * happens when the command line or the transport setting does. We never
+     * change it around a single connection, since it applies to every
+     * connection ICE makes.
+     *
+     * @return The transports we allow.
+     */
+    private List<PeerTransport> configure() {
+        final List<PeerTransport> transports = transports();
+        synchronized (this) {
+            if (!transports.equals(allowed)) {
+                allow(transports.contains(PeerTransport.TCP),
+                    transports.contains(PeerTransport.UDT));
+                allowed = transports;
+            }
+        }
+        return transports;
+    }
+
+    /**
+     * Sets the transports ICE gathers candidates for.
+     *
+     * @param tcp Whether ICE can use TCP.
+     * @param udp Whether ICE can use UDP, which is how it carries UDT.
+     */
+    protected void allow(final boolean tcp, final boolean udp) {
+        IceConfig.setTcp(tcp);
+        IceConfig.setUdp(udp);
+    }
+
+    /**
+     * Opens a socket to a peer over whichever allowed transport ICE picks.
+     *
+     * @param peerUri The URI of the peer.
+     * @param peerFailureCount Counts of failed attempts to reach peers.
+     * @return The socket.
+     * @throws IOException If we can't reach the peer.
+     */
+    protected Socket open(final URI peerUri,
+        final Map<URI, AtomicInteger> peerFailureCount) throws IOException {
+        return LanternUtils.openOutgoingPeerSocket(peerUri,
+            LanternHub.xmppHandler().getP2PClient(), peerFailureCount);
+    }
+
+    /**
+     * Works out which transport ICE picked for a socket. ICE's UDT sockets
+     * come from barchart-udt, so we look at the socket under any TLS we
+     * layered on with {@link #socketFactory(SSLSocketFactory)}. A TLS socket
+     * that connected itself is on TCP.
+     *
+     * @param sock The socket.
+     * @param transports The transports ICE could pick from.
+     * @return The transport.
+     */
+    PeerTransport detect(final Socket sock,
+        final List<PeerTransport> transports) {
+        final Socket under = layers.remove(sock);
+        if (transports.size() == 1) {
+            return transports.get(0);
+        }
+        final Socket transportSocket = under == null ? sock : under;
+        if (transportSocket.getClass().getName().startsWith(
+            "com.barchart.udt.")) {
+            return PeerTransport.UDT;
+        }
+        return PeerTransport.TCP;
+    }
+
+    /**
+     * Wraps the factory ICE uses to add TLS to peer sockets, so we can see
+     * which transport is under each one.
+     *
+     * @param sf The factory.
+     * @return A factory that creates the same sockets.
+     */
+    public SSLSocketFactory socketFactory(final SSLSocketFactory sf) {
+        return new SSLSocketFactory() {
+            @Override
+            public Socket createSocket(final Socket s, final String host,
+                final int port, final boolean autoClose) throws IOException {
+                final Socket sock = sf.createSocket(s, host, port, autoClose);
+                layers.put(sock, s);
+                return sock;
+            }
+
+            @Override
+            public Socket createSocket() throws IOException {
+                return sf.createSocket();
+            }
+
+            @Override
+            public Socket createSocket(final String host, final int port)
+                throws IOException, UnknownHostException {
+                return sf.createSocket(host, port);
+            }
+
+            @Override
+            public Socket createSocket(final String host, final int port,
+                final InetAddress localHost, final int localPort)
+                throws IOException, UnknownHostException {
+                return sf.createSocket(host, port, localHost, localPort);
+            }
+
+            @Override
+            public Socket createSocket(final InetAddress host, final int port)
+                throws IOException {
+                return sf.createSocket(host, port);
+            }
+
+            @Override
+            public Socket createSocket(final InetAddress address,
+                final int port, final InetAddress localAddress,
+                final int localPort) throws IOException {
+                return sf.createSocket(address, port, localAddress, localPort);
+            }
+
+            @Override
+            public String[] getDefaultCipherSuites() {
+                return sf.getDefaultCipherSuites();
+            }
+
+            @Override
+            public String[] getSupportedCipherSuites() {
+                return sf.getSupportedCipherSuites();
+            }
+        };
+    }
+
+    /**
+     * Returns the transport setting.
+     *
+     * @return The setting.
+     */
+    protected String setting() {
+        return LanternHub.settings().getPeerTransport();
+    }
+
+    /**
+     * Returns the transport a socket from {@link #newSocket(URI, Map)} uses,
+     * including streams on a {@link PeerMuxSession}.
+     *
+     * @param sock The socket.
+     * @return The transport, or <code>null</code> if we didn't open the
+     * socket.
+     */
+    public PeerTransport transportOf(final Socket sock) {
+        if (sock instanceof PeerMuxStream) {
+            return sockets.get(((PeerMuxStream) sock).getSessionSocket());
+        }
+        return sockets.get(sock);
+    }
+
+    /**
+     * Records how long it took to read a response from a peer.
+     *
+     * @param sock The socket we read the response from.
+     * @param bytes The size of the response on the wire.
+     * @param nanos The time from sending the request to reading the end of
+     * the response.
+     */
+    public void addSample(final Socket sock, final long bytes,
+        final long nanos) {
+        final PeerTransport transport = transportOf(sock);
+        if (transport == null || bytes < MIN_SAMPLE_BYTES) {
+            return;
+        }
+        final Counters count = counters.get(transport);
+        synchronized (count) {
+            count.samples++;
+            count.bytes += bytes;
+            count.nanos += nanos;
+        }
+    }
+
+    /**
+     * Returns how a transport has been doing.
+     *
+     * @param transport The transport.
+     * @return Its throughput and connection counts.
+     */
+    public TransportThroughput throughput(final PeerTransport transport) {
+        final Counters count = counters.get(transport);
+        final boolean enabled =
+            transport == PeerTransport.TCP ? tcpEnabled : udtEnabled;
+        synchronized (count) {
+            return new TransportThroughput(transport.name(), enabled,
+                count.connections.get(), count.samples, count.bytes,
+                TimeUnit.NANOSECONDS.toMillis(count.nanos));
+        }
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public List<TransportThroughput> getTransports() {
+        final List<TransportThroughput> transports =
+            new ArrayList<TransportThroughput>();
+        for (final PeerTransport transport : PeerTransport.values()) {
+            transports.add(throughput(transport));
+        }
+        return transports;
+    }
+
+    public void registerMBean() {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final String oName =
+                getClass().getPackage().getName()+":type=PeerTransports";
+            final ObjectName mxBeanName = new ObjectName(oName);
+            if(!mbs.isRegistered(mxBeanName)) {
+                mbs.registerMBean(this, mxBeanName);
+            }
+        } catch (final MalformedObjectNameException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final InstanceAlreadyExistsException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final MBeanRegistrationException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final NotCompliantMBeanException e) {
+            log.error("Could not set up JMX", e);
+        }
+    }
+
+    private static final class Counters {
+        private final AtomicLong connections = new AtomicLong();
+        private long samples;
+        private long bytes;
+        private long nanos;
+    }
+}
@@ -0,0 +1,18 @@
+package org.lantern;
+
+import java.util.List;
+
+/**
+ * JMX view of the transports we use to reach peers and how well each is
+ * doing.
+ */
+public interface PeerTransportsMXBean {
+
+    /**
+     * @return The number of times we couldn't connect to a peer over any
+     * of the transports we allow.
+     */
+    long getFailures();
+
+    List<TransportThroughput> getTransports();
+}
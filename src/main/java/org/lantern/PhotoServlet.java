@@ -4,8 +4,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.security.auth.login.CredentialException;
 import javax.servlet.ServletException;
@@ -14,6 +12,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
@@ -44,10 +43,32 @@ public final class PhotoServlet extends HttpServlet {
      */
     private static final long serialVersionUID = -8442913539662036158L;
     
-    private static final Map<String, VCard> cache = new HashMap<String, VCard>();
+    /**
+     * The maximum number of avatar bytes we keep in memory.
+     */
+    private static final long MAX_CACHED_BYTES = 4 * 1024 * 1024;
+    
+    /**
+     * The maximum number of vcards we fetch from the server at once.
+     */
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+    
+    private static final AvatarCache avatars = new AvatarCache(
+        new File(LanternConstants.DATA_DIR, "avatars"), MAX_CACHED_BYTES, 
+        CACHE_DURATION_IN_MS, MAX_CONCURRENT_FETCHES, 
+        new AvatarCache.AvatarFetcher() {
+            @Override
+            public byte[] fetch(final String email) throws CredentialException,
+                XMPPException, IOException {
+                return getVCard(email).getAvatar();
+            }
+        });
     
     private static final byte[] noImage = loadNoImage();
     
+    private static final String noImageEtag = 
+        "\"" + DigestUtils.md5Hex(noImage) + "\"";
+    
     //private static final MimeUtil2 mimeUtil = new MimeUtil2();
     
     private static final Object CONNECTION_LOCK = new Object();
@@ -71,42 +92,56 @@ public final class PhotoServlet extends HttpServlet {
             return;
         }
         
-        byte[] raw = null;
+        final AvatarCache.Avatar avatar;
         try {
-            raw = getVCard(email).getAvatar();
+            avatar = avatars.get(email);
         } catch (final CredentialException e) {
             sendError(resp, HttpStatus.SC_UNAUTHORIZED, 
                 "Could not authorize Google Talk connection");
             return;
-        } catch (final XMPPException e) {
-            log.debug("Exception accessing vcard for "+email, e);
+        } catch (final IOException e) {
+            // Show the placeholder, but don't have the browser keep it, as
+            // we'll try to fetch the real avatar again next time.
+            log.debug("Could not load avatar for "+email, e);
+            resp.addHeader(HttpHeaders.Names.CACHE_CONTROL, "no-cache");
+            resp.setContentLength(noImage.length);
+            resp.getOutputStream().write(noImage);
+            return;
         }
         
         final byte[] imageData;
-        if (raw == null) {
+        final String etag;
+        if (avatar.getData() == null) {
             imageData = noImage;
+            etag = noImageEtag;
         } else {
-            imageData = raw;
-            /*
-            final Collection<MimeType> types = mimeUtil.getMimeTypes(imageData);
-            if (types != null && !types.isEmpty()) {
-                final String ct = types.iterator().next().toString();
-                resp.setContentType(ct);
-                log.debug("Set content type to {}", ct);
-            }
-            */
+            imageData = avatar.getData();
+            etag = avatar.getEtag();
         }
         
         resp.addHeader(HttpHeaders.Names.CACHE_CONTROL, 
             "max-age=" + CACHE_DURATION_IN_SECOND);
         resp.setDateHeader(HttpHeaders.Names.EXPIRES, 
             System.currentTimeMillis() + CACHE_DURATION_IN_MS);
+        resp.setHeader(HttpHeaders.Names.ETAG, etag);
+        
+        final String ifNoneMatch = 
+            req.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        if (ifNoneMatch != null && 
+            (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+            resp.setStatus(HttpStatus.SC_NOT_MODIFIED);
+            return;
+        }
         
         resp.setContentLength(imageData.length);
         resp.getOutputStream().write(imageData);
         //resp.getOutputStream().close();
     }
     
+    /**
+     * Fetches the vcard for the specified user from the server. Note this
+     * is not cached -- use {@link AvatarCache} for avatars.
+     */
     public static VCard getVCard(final String email) 
         throws CredentialException, XMPPException, IOException {
         
@@ -114,13 +149,7 @@ public final class PhotoServlet extends HttpServlet {
             //sendError(resp, HttpStatus.SC_BAD_REQUEST, "email required");
             throw new NullPointerException("No email!");
         } else {
-            if (cache.containsKey(email)) {
-                return cache.get(email);
-            } else {
-                final VCard vcard = XmppUtils.getVCard(establishConnection(), email);
-                cache.put(email, vcard);
-                return vcard;
-            }
+            return XmppUtils.getVCard(establishConnection(), email);
         }
     }
 
@@ -149,7 +178,8 @@ public final class PhotoServlet extends HttpServlet {
         XMPPException, IOException {
         // The browser will send a bunch of requests for photos, and we don't
         // want to hammer the Google Talk servers, so we synchronize to 
-        // create a single connection.
+        // create a single connection. Fetches themselves share the 
+        // connection concurrently, bounded by the avatar cache.
         synchronized (CONNECTION_LOCK) {
             if (conn != null && conn.isConnected()) {
                 return conn;
@@ -0,0 +1,424 @@
+package org.lantern;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.littleshoot.proxy.HttpRequestFilter;
+import org.littleshoot.proxy.NetworkUtils;
+import org.littleshoot.proxy.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays plain HTTP requests from a peer to origin servers over channels
+ * from an {@link OriginConnectionPool}, so connections to popular sites
+ * are reused across requests and across peers.
+ *
+ * This sits in front of the LittleProxy request handler. Once a peer
+ * sends a CONNECT everything on its channel is passed through to
+ * LittleProxy, as tunnels can't be pooled.
+ *
+ * Requests are run through the request filter before we look at their
+ * host, and we refuse any request for a host that isn't a public address,
+ * so peers can't reach the giver's own network through the pool.
+ *
+ * Requests from a peer are relayed one at a time, so pipelined requests
+ * are answered in order. We stop reading from the peer while we wait for
+ * a response, and queue anything that was already read.
+ */
+public class PooledOriginRelayHandler extends SimpleChannelUpstreamHandler {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final OriginConnectionPool pool;
+
+    private final HttpRequestFilter requestFilter;
+
+    /**
+     * Messages read from the peer while we were busy with an earlier
+     * request.
+     */
+    private final Queue<MessageEvent> pending = new LinkedList<MessageEvent>();
+
+    private ChannelHandlerContext ctx;
+
+    private Channel inbound;
+
+    private boolean passThrough;
+
+    /**
+     * Whether we've refused a request and are closing the channel.
+     */
+    private boolean refused;
+
+    private String hostAndPort;
+
+    /**
+     * The request we're relaying, or <code>null</code> if we're not
+     * relaying one.
+     */
+    private HttpRequest request;
+
+    private boolean readingChunks;
+
+    private Channel origin;
+
+    private boolean reused;
+
+    private boolean retried;
+
+    private boolean responding;
+
+    private OriginHandler originHandler;
+
+    /**
+     * Creates a new handler for a single peer channel.
+     *
+     * @param pool The pool of origin channels.
+     * @param requestFilter The filter for requests, or <code>null</code>.
+     */
+    public PooledOriginRelayHandler(final OriginConnectionPool pool,
+        final HttpRequestFilter requestFilter) {
+        this.pool = pool;
+        this.requestFilter = requestFilter;
+    }
+
+    /**
+     * Called when we've leased an origin channel, to add any handlers the
+     * channel needs while it's relaying for this peer.
+     *
+     * @param pipeline The origin channel's pipeline.
+     * @param peerChannel The channel to the peer.
+     */
+    protected void onLease(final ChannelPipeline pipeline,
+        final Channel peerChannel) {
+    }
+
+    /**
+     * Called before we release an origin channel, to remove anything added
+     * in {@link #onLease(ChannelPipeline, Channel)}.
+     *
+     * @param pipeline The origin channel's pipeline.
+     */
+    protected void onRelease(final ChannelPipeline pipeline) {
+    }
+
+    /**
+     * Returns whether we'll relay requests to an address.
+     *
+     * @param address The address of the origin.
+     * @return <code>true</code> if the address is a public one.
+     */
+    protected boolean isAllowed(final InetAddress address) {
+        return NetworkUtils.isPublicAddress(address);
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext context,
+        final MessageEvent me) throws Exception {
+        synchronized (this) {
+            this.ctx = context;
+            this.inbound = context.getChannel();
+            if (refused) {
+                return;
+            }
+            if (!passThrough) {
+                if (request != null) {
+                    final Object msg = me.getMessage();
+                    if (readingChunks && origin != null &&
+                        msg instanceof HttpChunk && pending.isEmpty()) {
+                        relayChunk((HttpChunk) msg);
+                    } else {
+                        pending.add(me);
+                    }
+                    return;
+                }
+                if (handle(me)) {
+                    return;
+                }
+            }
+        }
+        super.messageReceived(context, me);
+    }
+
+    /**
+     * Starts relaying a request over a pooled channel.
+     *
+     * @return <code>true</code> if we're handling the message, or
+     * <code>false</code> if it should go to LittleProxy.
+     */
+    private boolean handle(final MessageEvent me) {
+        final Object msg = me.getMessage();
+        if (!(msg instanceof HttpRequest)) {
+            return false;
+        }
+        final HttpRequest httpRequest = (HttpRequest) msg;
+        if (httpRequest.getMethod() == HttpMethod.CONNECT) {
+            passThrough = true;
+            return false;
+        }
+        if (this.requestFilter != null) {
+            try {
+                this.requestFilter.filter(httpRequest);
+            } catch (final RuntimeException e) {
+                refuse(httpRequest, e.getMessage());
+                return true;
+            }
+        }
+        final String hap = ProxyUtils.parseHostAndPort(httpRequest);
+        if (StringUtils.isBlank(hap)) {
+            refuse(httpRequest, "No host");
+            return true;
+        }
+        final String host = hap.contains(":") ?
+            StringUtils.substringBeforeLast(hap, ":") : hap;
+        try {
+            if (!isAllowed(InetAddress.getByName(host))) {
+                refuse(httpRequest, "Not a public address");
+                return true;
+            }
+        } catch (final UnknownHostException e) {
+            refuse(httpRequest, "Unknown host");
+            return true;
+        }
+        this.hostAndPort = hap;
+        this.request = httpRequest;
+        this.readingChunks = httpRequest.isChunked();
+        this.retried = false;
+        this.responding = false;
+
+        inbound.setReadable(false);
+        pool.acquire(hostAndPort, new Lease());
+        return true;
+    }
+
+    /**
+     * Answers a request we won't relay and closes the channel, dropping
+     * anything else the peer sends.
+     */
+    private void refuse(final HttpRequest httpRequest, final String reason) {
+        log.info("Refusing request for {}: {}", httpRequest.getUri(), reason);
+        refused = true;
+        pending.clear();
+        final HttpResponse response = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN);
+        response.setHeader(HttpHeaders.Names.CONNECTION,
+            HttpHeaders.Values.CLOSE);
+        HttpHeaders.setContentLength(response, 0);
+        inbound.write(response);
+        ProxyUtils.closeOnFlush(inbound);
+    }
+
+    private void relayChunk(final HttpChunk chunk) {
+        if (chunk.isLast()) {
+            readingChunks = false;
+        }
+        origin.write(chunk);
+    }
+
+    private synchronized void leased(final Lease lease, final Channel channel,
+        final boolean wasReused) {
+        if (request == null || !inbound.isOpen()) {
+            pool.release(channel, true);
+            return;
+        }
+        this.origin = channel;
+        this.reused = wasReused;
+        this.originHandler = new OriginHandler(lease);
+        final ChannelPipeline pipeline = channel.getPipeline();
+        pipeline.addLast("relay", originHandler);
+        onLease(pipeline, inbound);
+
+        final HttpRequest toSend = ProxyUtils.copyHttpRequest(request, false);
+        toSend.setHeader(HttpHeaders.Names.CONNECTION,
+            HttpHeaders.Values.KEEP_ALIVE);
+        channel.write(toSend);
+        if (readingChunks) {
+            while (readingChunks && !pending.isEmpty() &&
+                pending.peek().getMessage() instanceof HttpChunk) {
+                relayChunk((HttpChunk) pending.poll().getMessage());
+            }
+            if (readingChunks) {
+                // Let the rest of the body through.
+                inbound.setReadable(true);
+            }
+        }
+    }
+
+    private synchronized void failed(final Throwable cause) {
+        log.debug("Could not connect to " + hostAndPort, cause);
+        request = null;
+        pending.clear();
+        ProxyUtils.closeOnFlush(inbound);
+    }
+
+    private synchronized void response(final OriginHandler handler,
+        final Object msg) {
+        if (handler != originHandler) {
+            return;
+        }
+        responding = true;
+        final boolean done;
+        if (msg instanceof HttpResponse) {
+            final HttpResponse response = (HttpResponse) msg;
+            handler.keepAlive = HttpHeaders.isKeepAlive(response);
+            done = !response.isChunked();
+        } else if (msg instanceof HttpChunk) {
+            done = ((HttpChunk) msg).isLast();
+        } else {
+            log.warn("Unexpected message from origin: {}", msg);
+            return;
+        }
+        if (!done) {
+            inbound.write(msg);
+            return;
+        }
+        // Give the channel back before the peer sees the end of the
+        // response, so it's free for whatever the peer asks for next.
+        final boolean keepAlive = handler.keepAlive;
+        final boolean peerKeepAlive = HttpHeaders.isKeepAlive(request);
+        finish(keepAlive && !readingChunks);
+        request = null;
+        inbound.write(msg);
+        if (keepAlive && peerKeepAlive) {
+            next();
+        } else {
+            pending.clear();
+            ProxyUtils.closeOnFlush(inbound);
+        }
+    }
+
+    /**
+     * Moves on to whatever the peer sent next.
+     */
+    private void next() {
+        while (request == null && !passThrough && !pending.isEmpty()) {
+            final MessageEvent me = pending.poll();
+            if (!handle(me)) {
+                ctx.sendUpstream(me);
+            }
+        }
+        if (request == null) {
+            while (!pending.isEmpty()) {
+                ctx.sendUpstream(pending.poll());
+            }
+            inbound.setReadable(true);
+        }
+    }
+
+    private synchronized void originClosed(final OriginHandler handler) {
+        if (handler != originHandler) {
+            return;
+        }
+        finish(false);
+        if (!responding && reused && !retried && !request.isChunked() &&
+            idempotent(request.getMethod())) {
+            // The origin closed the connection while it was idle in the
+            // pool, so try again on a new one.
+            log.debug("Retrying request to {} on new channel", hostAndPort);
+            retried = true;
+            pool.acquireNew(hostAndPort, handler.lease);
+            return;
+        }
+        request = null;
+        pending.clear();
+        ProxyUtils.closeOnFlush(inbound);
+    }
+
+    private boolean idempotent(final HttpMethod method) {
+        return method == HttpMethod.GET || method == HttpMethod.HEAD ||
+            method == HttpMethod.OPTIONS;
+    }
+
+    /**
+     * Hands the origin channel back to the pool.
+     */
+    private void finish(final boolean reusable) {
+        final Channel channel = this.origin;
+        if (channel == null) {
+            return;
+        }
+        this.origin = null;
+        this.originHandler = null;
+        final ChannelPipeline pipeline = channel.getPipeline();
+        onRelease(pipeline);
+        if (pipeline.get("relay") != null) {
+            pipeline.remove("relay");
+        }
+        pool.release(channel, reusable);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext context,
+        final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            // We can't reuse a channel with a response half read.
+            finish(false);
+            request = null;
+            pending.clear();
+        }
+        super.channelClosed(context, e);
+    }
+
+    private final class Lease implements OriginConnectionPool.Callback {
+
+        @Override
+        public void onLeased(final Channel channel, final boolean wasReused) {
+            leased(this, channel, wasReused);
+        }
+
+        @Override
+        public void onFailed(final Throwable cause) {
+            failed(cause);
+        }
+    }
+
+    private final class OriginHandler extends SimpleChannelUpstreamHandler {
+
+        private final Lease lease;
+
+        private boolean keepAlive;
+
+        private OriginHandler(final Lease lease) {
+            this.lease = lease;
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext context,
+            final MessageEvent e) {
+            response(this, e.getMessage());
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext context,
+            final ChannelStateEvent e) {
+            originClosed(this);
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext context,
+            final ExceptionEvent e) {
+            log.debug("Exception on origin channel to " + hostAndPort,
+                e.getCause());
+            e.getChannel().close();
+        }
+    }
+}
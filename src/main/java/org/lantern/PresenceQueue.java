@@ -0,0 +1,209 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Queue that collects incoming presences and hands them off in batches.
+ * Presences from the same JID that arrive within a single batch window are
+ * collapsed into the most recent one, so a storm of presences at login
+ * results in a few batches rather than thousands of individual updates.
+ */
+public class PresenceQueue {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Class that processes batches of presences.
+     */
+    public interface BatchProcessor {
+
+        /**
+         * Processes a batch of presences.
+         *
+         * @param batch The presences, at most one per JID.
+         * @return Any presences that should be retried in the next batch.
+         */
+        Collection<Presence> processBatch(Collection<Presence> batch);
+    }
+
+    private final Map<String, Presence> pending =
+        new LinkedHashMap<String, Presence>();
+
+    private boolean scheduled;
+
+    private final BatchProcessor processor;
+
+    private final long windowMillis;
+
+    private final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
+                "Presence-Batch-Thread-%d").build());
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private volatile int lastBatchSize;
+    private volatile int maxBatchSize;
+    private volatile int maxQueueDepth;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param processor The class that processes each batch.
+     * @param windowMillis How long to collect presences before processing
+     * them.
+     */
+    public PresenceQueue(final BatchProcessor processor,
+        final long windowMillis) {
+        this.processor = processor;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Adds a presence to the queue, replacing any pending presence from the
+     * same JID.
+     *
+     * @param presence The presence.
+     */
+    public void offer(final Presence presence) {
+        received.incrementAndGet();
+        synchronized (pending) {
+            if (pending.put(key(presence), presence) != null) {
+                deduplicated.incrementAndGet();
+            }
+            if (pending.size() > maxQueueDepth) {
+                maxQueueDepth = pending.size();
+            }
+            scheduleBatch();
+        }
+    }
+
+    private void requeue(final Collection<Presence> presences) {
+        synchronized (pending) {
+            for (final Presence presence : presences) {
+                // Don't clobber anything newer that came in while we were
+                // processing.
+                final String key = key(presence);
+                if (!pending.containsKey(key)) {
+                    pending.put(key, presence);
+                }
+            }
+            if (!pending.isEmpty()) {
+                scheduleBatch();
+            }
+        }
+    }
+
+    /**
+     * Must be called holding the pending lock.
+     */
+    private void scheduleBatch() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                processBatch();
+            }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void processBatch() {
+        final Collection<Presence> batch;
+        synchronized (pending) {
+            batch = new ArrayList<Presence>(pending.values());
+            pending.clear();
+            scheduled = false;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        processed.addAndGet(batch.size());
+        lastBatchSize = batch.size();
+        if (batch.size() > maxBatchSize) {
+            maxBatchSize = batch.size();
+        }
+        log.debug("Processing batch of {} presences", batch.size());
+        try {
+            final Collection<Presence> retry = processor.processBatch(batch);
+            if (retry != null && !retry.isEmpty()) {
+                log.debug("Retrying {} presences", retry.size());
+                requeue(retry);
+            }
+        } catch (final Throwable t) {
+            log.warn("Error processing presences", t);
+        }
+    }
+
+    private String key(final Presence presence) {
+        final String from = presence.getFrom();
+        return from == null ? "" : from;
+    }
+
+    public void clear() {
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public String toString() {
+        return "PresenceQueue [queueDepth=" + getQueueDepth() +
+            ", maxQueueDepth=" + maxQueueDepth + ", received=" + received +
+            ", deduplicated=" + deduplicated + ", batches=" + batches +
+            ", processed=" + processed + ", lastBatchSize=" + lastBatchSize +
+            ", maxBatchSize=" + maxBatchSize + "]";
+    }
+}
@@ -37,6 +37,11 @@ public class Proxifier {
     private static final MacProxyManager mpm = 
         new MacProxyManager("testId", 4291);
     
+    /**
+     * The pac file URL we last configured the system with.
+     */
+    private static volatile String lastPacUrl;
+    
     public static final File PROXY_ON = 
         new File(LanternConstants.CONFIG_DIR, "proxy_on.pac");
     public static final File PROXY_OFF = 
@@ -162,12 +167,8 @@ public class Proxifier {
             return;
         }
 
-        // Always update the pac file to make sure we've got all the latest
-        // entries -- only recreates proxy_on.
-        if (pacFile.equals(PROXY_ON)) {
-            PacFileGenerator.generatePacFile(
-                LanternHub.whitelist().getEntriesAsStrings(), PROXY_ON);
-        }
+        // Note the proxy_on pac file is served from memory by the API 
+        // server and regenerated whenever the whitelist changes.
         
         LOG.info("Autoconfiguring local to proxy Lantern");
         final String url = pacFileUrl(pacFile);
@@ -179,6 +180,7 @@ public class Proxifier {
         } else if (SystemUtils.IS_OS_LINUX) {
             proxyLinux(url);
         }
+        lastPacUrl = url;
         // success
         try {
             if (!LANTERN_PROXYING_FILE.isFile() &&
@@ -242,6 +244,7 @@ public class Proxifier {
 
         LOG.info("Unproxying Lantern");
         LANTERN_PROXYING_FILE.delete();
+        lastPacUrl = null;
         if (SystemUtils.IS_OS_MAC_OSX) {
             unproxyOsx();
         } else if (SystemUtils.IS_OS_WINDOWS) {
@@ -369,11 +372,37 @@ public class Proxifier {
     }
     
     private static String pacFileUrl(final File pacFile) {
+        final String suffix;
+        if (pacFile == PROXY_ON) {
+            // The same whitelist always gives the same URL, so we know when
+            // there's no need to tell the system about it again.
+            final String etag = 
+                PacFileGenerator.getPac(LanternHub.whitelist()).getEtag();
+            suffix = etag.replace("\"", "");
+        } else {
+            suffix = String.valueOf(RandomUtils.nextInt());
+        }
         final String url = 
             "http://127.0.0.1:"+LanternHub.jettyLauncher().getPort()+"/"+
-                pacFile.getName()+"-"+RandomUtils.nextInt();
+                pacFile.getName()+"-"+suffix;
         return url;
     }
+    
+    /**
+     * Returns whether the system is already configured with the current 
+     * version of a pac file.
+     */
+    private static boolean pacUnchanged(final File pacFile) {
+        final String last = lastPacUrl;
+        if (last == null) {
+            return false;
+        }
+        if (pacFile == PROXY_ON) {
+            return last.equals(pacFileUrl(PROXY_ON));
+        }
+        // The other pac files don't depend on the whitelist.
+        return last.contains("/" + pacFile.getName() + "-");
+    }
 
     /**
      * Calls out to AppleScript to check if the user has the security setting
@@ -418,20 +447,22 @@ public class Proxifier {
      */
     public static void refresh() {
         if (isProxying()) {
+            final File pacFile;
             if (LanternHub.settings().isProxyAllSites()) {
                 // If we were previously configured to proxy all sites, then we
                 // need to force the override.
-                try {
-                    startProxying(true, PROXY_ALL);
-                } catch (final ProxyConfigurationError e) {
-                    LOG.warn("Could not proxy", e);
-                }
+                pacFile = PROXY_ALL;
             } else {
-                try {
-                    startProxying(true, PROXY_ON);
-                } catch (final ProxyConfigurationError e) {
-                    LOG.warn("Could not proxy", e);
-                }
+                pacFile = PROXY_ON;
+            }
+            if (pacUnchanged(pacFile)) {
+                LOG.info("Pac file hasn't changed -- not reconfiguring");
+                return;
+            }
+            try {
+                startProxying(true, pacFile);
+            } catch (final ProxyConfigurationError e) {
+                LOG.warn("Could not proxy", e);
             }
         }
     }
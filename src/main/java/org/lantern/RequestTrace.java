@@ -0,0 +1,131 @@
+package org.lantern;
+
+/**
+ * What happened to a single proxied request. Every request gets an ID,
+ * but only sampled requests and requests to hosts we're tracing record
+ * their steps, so for everything else this is just the ID.
+ *
+ * A trace is only written by the thread handling its request, and it's
+ * only read by others once {@link RequestTracer} has published it.
+ */
+public class RequestTrace {
+
+    private final long id;
+    private final boolean sampled;
+    private final boolean verbose;
+    private final String method;
+    private final String uri;
+    private final long started;
+    private final long startNanos;
+    private final StringBuilder events;
+    private String outcome = "";
+    private long micros = -1;
+
+    RequestTrace(final long id, final boolean sampled, final boolean verbose,
+        final String method, final String uri) {
+        this.id = id;
+        this.sampled = sampled;
+        this.verbose = verbose;
+        this.method = method;
+        this.uri = uri;
+        this.startNanos = System.nanoTime();
+        if (sampled) {
+            this.started = System.currentTimeMillis();
+            this.events = new StringBuilder(64);
+        } else {
+            this.started = 0;
+            this.events = null;
+        }
+    }
+
+    /**
+     * Notes a step in handling the request, with the microseconds since
+     * the request came in. Does nothing unless the request is sampled.
+     */
+    public void event(final String step) {
+        if (events == null) {
+            return;
+        }
+        if (events.length() > 0) {
+            events.append(' ');
+        }
+        events.append(step).append('@').append(elapsedMicros());
+    }
+
+    /**
+     * Like {@link #event(String)}, with something about the step. The
+     * detail is only turned into a string if the request is sampled.
+     */
+    public void event(final String step, final Object detail) {
+        if (events == null) {
+            return;
+        }
+        event(step);
+        events.append('(').append(detail).append(')');
+    }
+
+    void finish(final String outcome) {
+        this.outcome = outcome;
+        this.micros = elapsedMicros();
+    }
+
+    private long elapsedMicros() {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    /**
+     * @return The ID in base 36, which is short enough to put in logs.
+     */
+    public String getId() {
+        return Long.toString(id, 36);
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return Whether the request is to a host we're fully tracing, in
+     * which case its steps are worth logging at info.
+     */
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * @return Where the request went, such as PEER or LAE.
+     */
+    public String getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return How long it took to dispatch the request, or -1 if it
+     * hasn't been dispatched.
+     */
+    public long getMicros() {
+        return micros;
+    }
+
+    public String getEvents() {
+        return events == null ? "" : events.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Trace " + getId() + ": " + method + " " + uri + " " +
+            outcome + " in " + micros + "us [" + getEvents() + "]";
+    }
+}
@@ -0,0 +1,200 @@
+package org.lantern;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Traces proxied requests instead of logging each of them. Every request
+ * gets a trace ID, one in every so many records what happened to it, and
+ * the last {@link #CAPACITY} of those are kept in a ring for the API and
+ * JMX. Requests to hosts we're tracing are always recorded and logged at
+ * info, so we can see everything for a site that's giving users trouble
+ * without logging every request for everyone.
+ *
+ * Requests that aren't sampled cost an atomic increment, and recording
+ * one that is is an atomic increment and an array write, so there are no
+ * locks on the request path.
+ */
+public class RequestTracer implements RequestTracerMXBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * How many traces we keep. This must be a power of two.
+     */
+    static final int CAPACITY = 1024;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private final AtomicReferenceArray<RequestTrace> ring =
+        new AtomicReferenceArray<RequestTrace>(CAPACITY);
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final AtomicLong cursor = new AtomicLong();
+
+    private final Set<String> hosts =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile int sampleRate = 100;
+
+    /**
+     * Starts tracing a request.
+     *
+     * @param request The request from the browser.
+     * @return The trace, which is only recorded if it's sampled.
+     */
+    public RequestTrace start(final HttpRequest request) {
+        final long id = ids.incrementAndGet();
+        final boolean verbose = !hosts.isEmpty() && isTraced(hostOf(request));
+        final int rate = sampleRate;
+        final boolean sampled = verbose || (rate > 0 && id % rate == 0);
+        return new RequestTrace(id, sampled, verbose,
+            request.getMethod().getName(), request.getUri());
+    }
+
+    /**
+     * Finishes a trace, recording it if it's sampled.
+     *
+     * @param trace The trace.
+     * @param outcome Where the request went.
+     */
+    public void finish(final RequestTrace trace, final String outcome) {
+        if (!trace.isSampled()) {
+            return;
+        }
+        trace.finish(outcome);
+        ring.set((int) (cursor.getAndIncrement() & MASK), trace);
+        if (trace.isVerbose()) {
+            log.info("{}", trace);
+        }
+    }
+
+    /**
+     * @return The traces we've kept, newest first.
+     */
+    @Override
+    public List<RequestTrace> getTraces() {
+        final long end = cursor.get();
+        final long begin = Math.max(0, end - CAPACITY);
+        final List<RequestTrace> traces =
+            new ArrayList<RequestTrace>((int) (end - begin));
+        for (long i = end - 1; i >= begin; i--) {
+            final RequestTrace trace = ring.get((int) (i & MASK));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+
+    /**
+     * @return How many requests there are for each one we sample, or 0 if
+     * we only trace requests to hosts we're tracing.
+     */
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void setSampleRate(final int sampleRate) {
+        this.sampleRate = Math.max(0, sampleRate);
+    }
+
+    @Override
+    public List<String> getTracedHosts() {
+        final List<String> traced = new ArrayList<String>(hosts);
+        Collections.sort(traced);
+        return traced;
+    }
+
+    /**
+     * Traces every request to the given host and its subdomains.
+     */
+    @Override
+    public void traceHost(final String host) {
+        if (StringUtils.isNotBlank(host)) {
+            hosts.add(host.trim().toLowerCase());
+        }
+    }
+
+    @Override
+    public void untraceHost(final String host) {
+        if (StringUtils.isNotBlank(host)) {
+            hosts.remove(host.trim().toLowerCase());
+        }
+    }
+
+    private boolean isTraced(final String host) {
+        if (StringUtils.isBlank(host)) {
+            return false;
+        }
+        String domain = host.toLowerCase();
+        while (true) {
+            if (hosts.contains(domain)) {
+                return true;
+            }
+            final int dot = domain.indexOf('.');
+            if (dot == -1) {
+                return false;
+            }
+            domain = domain.substring(dot + 1);
+        }
+    }
+
+    /**
+     * Gets the host a request is for, from its Host header or, for
+     * CONNECT requests and absolute URIs, from its URI.
+     */
+    static String hostOf(final HttpRequest request) {
+        String host = HttpHeaders.getHost(request, "");
+        if (StringUtils.isBlank(host)) {
+            host = StringUtils.substringBefore(
+                StringUtils.substringAfter(request.getUri(), "://"), "/");
+            if (StringUtils.isBlank(host)) {
+                host = request.getUri();
+            }
+        }
+        return StringUtils.substringBefore(host, ":");
+    }
+
+    public void registerMBean() {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final String oName =
+                getClass().getPackage().getName()+":type=RequestTracer";
+            final ObjectName mxBeanName = new ObjectName(oName);
+            if(!mbs.isRegistered(mxBeanName)) {
+                mbs.registerMBean(this, mxBeanName);
+            }
+        } catch (final MalformedObjectNameException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final InstanceAlreadyExistsException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final MBeanRegistrationException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final NotCompliantMBeanException e) {
+            log.error("Could not set up JMX", e);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.lantern;
+
+import java.util.List;
+
+/**
+ * JMX controls for request tracing.
+ */
+public interface RequestTracerMXBean {
+
+    int getSampleRate();
+
+    void setSampleRate(int sampleRate);
+
+    List<String> getTracedHosts();
+
+    void traceHost(String host);
+
+    void untraceHost(String host);
+
+    List<RequestTrace> getTraces();
+}
@@ -1,16 +1,19 @@
 package org.lantern;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.security.auth.login.CredentialException;
 
 import org.apache.commons.lang3.StringUtils;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.jivesoftware.smack.RosterEntry;
 import org.jivesoftware.smack.RosterListener;
 import org.jivesoftware.smack.XMPPConnection;
@@ -27,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.RateLimiter;
 
 /**
  * Class that keeps track of all roster entries.
@@ -49,6 +53,29 @@ public class Roster implements RosterListener {
     private final RandomRoutingTable kscopeRoutingTable = 
         new BasicRandomRoutingTable();
     
+    /**
+     * How long we collect presences before processing them in a batch.
+     */
+    private static final long PRESENCE_BATCH_MILLIS = 250;
+    
+    /**
+     * The maximum rate at which we start connecting to Lantern peers, as 
+     * each connection attempt kicks off a certificate exchange.
+     */
+    private static final double PEER_CONNECTS_PER_SECOND = 5.0;
+    
+    private final RateLimiter peerConnectLimiter = 
+        RateLimiter.create(PEER_CONNECTS_PER_SECOND);
+    
+    private final PresenceQueue presenceQueue = new PresenceQueue(
+        new PresenceQueue.BatchProcessor() {
+            @Override
+            public Collection<Presence> processBatch(
+                final Collection<Presence> batch) {
+                return processPresences(batch);
+            }
+        }, PRESENCE_BATCH_MILLIS);
+    
     /**
      * Creates a new roster.
      */
@@ -79,8 +106,7 @@ public class Roster implements RosterListener {
                     final Iterator<Presence> presences = 
                         roster.getPresences(entry.getUser());
                     while (presences.hasNext()) {
-                        final Presence p = presences.next();
-                        processPresence(p);
+                        presenceQueue.offer(presences.next());
                     }
                 }
                 populated = true;
@@ -136,18 +162,56 @@ public class Roster implements RosterListener {
         return entries;
     }
     
-    private void processPresence(final Presence presence) {
+    /**
+     * Processes a batch of presences, posting a single roster changed event
+     * for the whole batch.
+     * 
+     * @param batch The presences to process.
+     * @return Presences from Lantern peers we're not ready to connect to yet
+     * because we're over the connection rate. Everything else about them
+     * has already been processed.
+     */
+    private Collection<Presence> processPresences(
+        final Collection<Presence> batch) {
+        final Collection<Presence> deferred = new ArrayList<Presence>();
+        for (final Presence presence : batch) {
+            if (!processPresence(presence)) {
+                deferred.add(presence);
+            }
+        }
+        if (!batch.isEmpty()) {
+            LanternHub.asyncEventBus().post(new RosterStateChangedEvent());
+        }
+        log.debug("Processed {} presences, deferred {} peers -- {}", 
+            new Object[] {batch.size(), deferred.size(), presenceQueue});
+        return deferred;
+    }
+    
+    /**
+     * @return Whether we handled the presence fully, or whether it's from a
+     * Lantern peer we're not ready to connect to yet.
+     */
+    private boolean processPresence(final Presence presence) {
         final String from = presence.getFrom();
-        log.debug("Got presence: {}", presence.toXML());
+        if (log.isDebugEnabled()) {
+            log.debug("Got presence: {}", presence.toXML());
+        }
         if (LanternUtils.isLanternHub(from)) {
             log.info("Got Lantern hub presence");
+            return true;
         } else if (LanternUtils.isLanternJid(from)) {
-            this.xmppHandler.addOrRemovePeer(presence, from);
             final TrustGraphNodeId id = new BasicTrustGraphNodeId(from);
             this.kscopeRoutingTable.addNeighbor(id);
             onPresence(presence);
+            if (presence.isAvailable() && 
+                !peerConnectLimiter.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            this.xmppHandler.addOrRemovePeer(presence, from);
+            return true;
         } else {
             onPresence(presence);
+            return true;
         }
     }
     
@@ -236,8 +300,18 @@ public class Roster implements RosterListener {
     @Override
     public void presenceChanged(final Presence pres) {
         log.debug("Got presence changed event.");
-        processPresence(pres);
-        //LanternHub.asyncEventBus().post(new RosterStateChangedEvent());
+        presenceQueue.offer(pres);
+    }
+    
+    /**
+     * Returns the queue incoming presences go through, mostly for its 
+     * queue depth and batch size statistics.
+     * 
+     * @return The presence queue.
+     */
+    @JsonIgnore
+    public PresenceQueue getPresenceQueue() {
+        return presenceQueue;
     }
     
 
@@ -246,6 +320,7 @@ public class Roster implements RosterListener {
     }
     
     public void reset() {
+        this.presenceQueue.clear();
         this.incomingSubscriptionRequests.clear();
         this.rosterEntries.clear();
         this.kscopeRoutingTable.clear();
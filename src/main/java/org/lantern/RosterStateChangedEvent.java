@@ -6,12 +6,12 @@ import org.slf4j.LoggerFactory;
 /**
  * Event for when the state of the roster has changed.
  */
-public class RosterStateChangedEvent {
+public class RosterStateChangedEvent implements CoalescedEvent {
 
     private static final Logger LOG = 
         LoggerFactory.getLogger(RosterStateChangedEvent.class);
     
     public RosterStateChangedEvent() {
-        LOG.info("Creating new event!");
+        LOG.debug("Creating new event!");
     }
 }
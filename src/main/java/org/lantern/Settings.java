@@ -11,6 +11,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -174,6 +175,35 @@ public class Settings implements MutableSettings {
     private boolean useLaeProxies = true;
     private boolean useCentralProxies = true;
 
+    /**
+     * The number of Netty I/O worker threads, or zero for one per core.
+     */
+    private int ioWorkers = 0;
+
+    /**
+     * The most we'll upload to peers in give mode, in kilobytes per second,
+     * or zero for no limit.
+     */
+    private int giveModeUploadLimit = 0;
+
+    /**
+     * The most we'll download from peers in give mode, in kilobytes per
+     * second, or zero for no limit.
+     */
+    private int giveModeDownloadLimit = 0;
+
+    /**
+     * Whether we compress traffic between ourselves and other peers when
+     * they support it.
+     */
+    private boolean peerCompression = true;
+
+    /**
+     * The transport we connect to peers over, either "tcp", "udt" or
+     * "auto" to choose by how fast each has been.
+     */
+    private String peerTransport = "auto";
+
     private final Object getModeLock = new Object();
     
     private Set<String> stunServers = new HashSet<String>();
@@ -563,6 +593,11 @@ public class Settings implements MutableSettings {
         historicalDownBytes = value;
     }
     
+    @JsonView(UIStateSettings.class)
+    public List<ChannelRoleStats> getConnections() {
+        return LanternHub.channelLifecycle().getRoles();
+    }
+    
     @JsonView(UIStateSettings.class)
     public boolean isProxying() {
         return Proxifier.isProxying();
@@ -720,6 +755,51 @@ public class Settings implements MutableSettings {
     public boolean isUseCentralProxies() {
         return useCentralProxies;
     }
+
+    public void setIoWorkers(final int ioWorkers) {
+        this.ioWorkers = ioWorkers;
+    }
+
+    @JsonView({UIStateSettings.class, PersistentSettings.class})
+    public int getIoWorkers() {
+        return ioWorkers;
+    }
+
+    public void setGiveModeUploadLimit(final int giveModeUploadLimit) {
+        this.giveModeUploadLimit = giveModeUploadLimit;
+    }
+
+    @JsonView({UIStateSettings.class, PersistentSettings.class})
+    public int getGiveModeUploadLimit() {
+        return giveModeUploadLimit;
+    }
+
+    public void setGiveModeDownloadLimit(final int giveModeDownloadLimit) {
+        this.giveModeDownloadLimit = giveModeDownloadLimit;
+    }
+
+    @JsonView({UIStateSettings.class, PersistentSettings.class})
+    public int getGiveModeDownloadLimit() {
+        return giveModeDownloadLimit;
+    }
+
+    public void setPeerCompression(final boolean peerCompression) {
+        this.peerCompression = peerCompression;
+    }
+
+    @JsonView({UIStateSettings.class, PersistentSettings.class})
+    public boolean isPeerCompression() {
+        return peerCompression;
+    }
+
+    public void setPeerTransport(final String peerTransport) {
+        this.peerTransport = peerTransport;
+    }
+
+    @JsonView({UIStateSettings.class, PersistentSettings.class})
+    public String getPeerTransport() {
+        return peerTransport;
+    }
     
     public void setStunServers(final Set<String> stunServers){
         this.stunServers = stunServers;
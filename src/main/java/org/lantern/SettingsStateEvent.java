@@ -3,7 +3,7 @@ package org.lantern;
 /**
  * Event for a change in the state of the settings
  */
-public class SettingsStateEvent {
+public class SettingsStateEvent implements CoalescedEvent {
 
     private final SettingsState state;
 
@@ -0,0 +1,289 @@
+package org.lantern;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the parts of startup that don't depend on each other at the same
+ * time. Each stage names the stages it needs, which have to be added
+ * before it, so there can't be any cycles. Stages start in the order they
+ * were added as soon as what they need is done and a thread is free, so
+ * the most urgent stages should be added first.
+ *
+ * If a stage fails, the stages that need it are skipped. How long each
+ * stage took is logged once everything's done and kept for the API and
+ * JMX, so slow startups can be tracked down.
+ */
+public class StartupGraph implements StartupGraphMXBean {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private enum State {
+        WAITING, RUNNING, DONE, FAILED, SKIPPED
+    }
+
+    private final Map<String, Stage> stages =
+        new LinkedHashMap<String, Stage>();
+
+    private final int threads;
+
+    private long start;
+
+    private long end;
+
+    private CountDownLatch remaining;
+
+    private ExecutorService exec;
+
+    /**
+     * Creates a new graph.
+     *
+     * @param threads The most stages to run at once.
+     */
+    public StartupGraph(final int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Adds a stage.
+     *
+     * @param name The name of the stage.
+     * @param task What the stage does.
+     * @param dependencies The names of the stages that have to finish
+     * first.
+     */
+    public synchronized void add(final String name, final Runnable task,
+        final String... dependencies) {
+        if (remaining != null) {
+            throw new IllegalStateException("Already started");
+        }
+        if (stages.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate stage: " + name);
+        }
+        for (final String dependency : dependencies) {
+            if (!stages.containsKey(dependency)) {
+                throw new IllegalArgumentException(
+                    "Unknown stage " + dependency + " for " + name);
+            }
+        }
+        stages.put(name, new Stage(name, task, Arrays.asList(dependencies)));
+    }
+
+    /**
+     * Runs every stage, waiting for them all to finish.
+     *
+     * @return <code>true</code> if every stage succeeded, otherwise
+     * <code>false</code>.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public boolean run() throws InterruptedException {
+        synchronized (this) {
+            if (remaining != null) {
+                throw new IllegalStateException("Already started");
+            }
+            this.start = System.currentTimeMillis();
+            this.remaining = new CountDownLatch(stages.size());
+            this.exec = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
+                    "Startup-Thread-%d").build());
+            startReady();
+        }
+        remaining.await();
+        exec.shutdown();
+        boolean succeeded = true;
+        final StringBuilder sb = new StringBuilder("Startup took ");
+        synchronized (this) {
+            this.end = System.currentTimeMillis();
+            sb.append(end - start).append("ms:");
+            for (final Stage stage : stages.values()) {
+                sb.append("\n  ").append(stage.toStartupStage());
+                succeeded &= stage.state == State.DONE;
+            }
+        }
+        log.info(sb.toString());
+        return succeeded;
+    }
+
+    /**
+     * Waits for a single stage to finish, whether or not it succeeded.
+     *
+     * @param name The stage.
+     * @param timeout How long to wait.
+     * @param unit The units of the timeout.
+     * @return <code>true</code> if the stage finished, otherwise
+     * <code>false</code>.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public boolean await(final String name, final long timeout,
+        final TimeUnit unit) throws InterruptedException {
+        final Stage stage;
+        synchronized (this) {
+            stage = stages.get(name);
+        }
+        if (stage == null) {
+            throw new IllegalArgumentException("Unknown stage: " + name);
+        }
+        return stage.finished.await(timeout, unit);
+    }
+
+    /**
+     * Starts or skips every waiting stage whose dependencies are done. The
+     * caller must hold the lock.
+     */
+    private void startReady() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (final Stage stage : stages.values()) {
+                if (stage.state != State.WAITING) {
+                    continue;
+                }
+                boolean ready = true;
+                boolean blocked = false;
+                for (final String dependency : stage.dependencies) {
+                    final State state = stages.get(dependency).state;
+                    if (state == State.FAILED || state == State.SKIPPED) {
+                        blocked = true;
+                    } else if (state != State.DONE) {
+                        ready = false;
+                    }
+                }
+                if (blocked) {
+                    log.warn("Skipping {} since a stage it needs failed",
+                        stage.name);
+                    stage.finish(State.SKIPPED);
+                    // Stages that need this one might now be skipped too.
+                    changed = true;
+                } else if (ready) {
+                    stage.state = State.RUNNING;
+                    exec.execute(stage);
+                }
+            }
+        }
+    }
+
+    private synchronized void finished(final Stage stage, final State state) {
+        stage.finish(state);
+        startReady();
+    }
+
+    @Override
+    public synchronized List<StartupStage> getStages() {
+        final List<StartupStage> list = new ArrayList<StartupStage>();
+        for (final Stage stage : stages.values()) {
+            list.add(stage.toStartupStage());
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized long getTotalMillis() {
+        if (start == 0) {
+            return 0;
+        }
+        if (end == 0) {
+            return System.currentTimeMillis() - start;
+        }
+        return end - start;
+    }
+
+    public void registerMBean() {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final String oName =
+                getClass().getPackage().getName()+":type=Startup";
+            final ObjectName mxBeanName = new ObjectName(oName);
+            if(!mbs.isRegistered(mxBeanName)) {
+                mbs.registerMBean(this, mxBeanName);
+            }
+        } catch (final MalformedObjectNameException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final InstanceAlreadyExistsException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final MBeanRegistrationException e) {
+            log.error("Could not set up JMX", e);
+        } catch (final NotCompliantMBeanException e) {
+            log.error("Could not set up JMX", e);
+        }
+    }
+
+    private final class Stage implements Runnable {
+
+        private final String name;
+
+        private final Runnable task;
+
+        private final List<String> dependencies;
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private State state = State.WAITING;
+
+        private String thread = "";
+
+        private long started;
+
+        private long millis;
+
+        private Stage(final String name, final Runnable task,
+            final List<String> dependencies) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = Collections.unmodifiableList(dependencies);
+        }
+
+        @Override
+        public void run() {
+            final long now = System.currentTimeMillis();
+            synchronized (StartupGraph.this) {
+                this.thread = Thread.currentThread().getName();
+                this.started = now;
+            }
+            State result = State.FAILED;
+            try {
+                task.run();
+                result = State.DONE;
+            } catch (final RuntimeException e) {
+                log.error("Startup stage " + name + " failed", e);
+            } finally {
+                final long done = System.currentTimeMillis();
+                synchronized (StartupGraph.this) {
+                    this.millis = done - now;
+                }
+                finished(this, result);
+            }
+        }
+
+        private void finish(final State result) {
+            this.state = result;
+            finished.countDown();
+            remaining.countDown();
+        }
+
+        private StartupStage toStartupStage() {
+            return new StartupStage(name, dependencies, state.name(), thread,
+                started == 0 ? 0 : started - start, millis);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.lantern;
+
+import java.util.List;
+
+/**
+ * JMX view of how long each part of startup took.
+ */
+public interface StartupGraphMXBean {
+
+    List<StartupStage> getStages();
+
+    long getTotalMillis();
+}
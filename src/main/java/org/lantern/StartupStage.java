@@ -0,0 +1,61 @@
+package org.lantern;
+
+import java.beans.ConstructorProperties;
+import java.util.List;
+
+/**
+ * When a single startup stage ran and how long it took. Times are in 
+ * milliseconds since startup began.
+ */
+public class StartupStage {
+
+    private final String name;
+    private final List<String> dependencies;
+    private final String state;
+    private final String thread;
+    private final long started;
+    private final long millis;
+
+    @ConstructorProperties({"name", "dependencies", "state", "thread",
+        "started", "millis"})
+    public StartupStage(final String name, final List<String> dependencies,
+        final String state, final String thread, final long started,
+        final long millis) {
+        this.name = name;
+        this.dependencies = dependencies;
+        this.state = state;
+        this.thread = thread;
+        this.started = started;
+        this.millis = millis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getDependencies() {
+        return dependencies;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public String getThread() {
+        return thread;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + state + " at " + started + "ms in " + millis +
+            "ms on " + thread;
+    }
+}
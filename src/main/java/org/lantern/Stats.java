@@ -48,6 +48,14 @@ public interface Stats {
 
     int getDirectRequests();
 
+    long getOriginPoolHits();
+
+    long getOriginPoolMisses();
+
+    long getPeerCompressionBytesSaved();
+
+    double getPeerCompressionRatio();
+
     boolean isUpnp();
 
     boolean isNatpmp();
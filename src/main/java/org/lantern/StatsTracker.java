@@ -32,6 +32,14 @@ public class StatsTracker implements Stats {
     
     private final AtomicInteger directRequests = new AtomicInteger(0);
 
+    private final AtomicLong originPoolHits = new AtomicLong(0L);
+
+    private final AtomicLong originPoolMisses = new AtomicLong(0L);
+
+    private final AtomicLong peerUncompressedBytes = new AtomicLong(0L);
+
+    private final AtomicLong peerCompressedBytes = new AtomicLong(0L);
+
     private static final ConcurrentHashMap<String, CountryData> countries = 
         new ConcurrentHashMap<String, CountryData>();
     
@@ -73,6 +81,23 @@ public class StatsTracker implements Stats {
     
     private boolean natpmp;
     
+    private final TrafficHistory history;
+    
+    public StatsTracker() {
+        this(LanternHub.trafficHistory());
+    }
+    
+    public StatsTracker(final TrafficHistory history) {
+        this.history = history;
+    }
+    
+    /**
+     * @return The persistent history of the bytes we've sent and received.
+     */
+    public TrafficHistory getTrafficHistory() {
+        return history;
+    }
+    
     /* (non-Javadoc)
      * @see org.lantern.Stats#getUptime()
      */
@@ -272,6 +297,7 @@ public class StatsTracker implements Stats {
      */
     public void addUpBytesViaProxies(final long bp, final Channel channel) {
         upBytesPerSecondViaProxies.addData(bp);
+        history.addUp(bp);
         log.debug("upBytesPerSecondViaProxies += {} up-rate {}", bp, getUpBytesPerSecond());
     }
 
@@ -280,6 +306,7 @@ public class StatsTracker implements Stats {
      */
     public void addUpBytesViaProxies(final long bp, final Socket sock) {
         upBytesPerSecondViaProxies.addData(bp);
+        history.addUp(bp);
         log.debug("upBytesPerSecondViaProxies += {} up-rate {}", bp, getUpBytesPerSecond());
     }
 
@@ -289,6 +316,7 @@ public class StatsTracker implements Stats {
      */
     public void addUpBytesForPeers(final long bp, final Channel channel) {
         upBytesPerSecondForPeers.addData(bp);
+        history.addUp(bp);
         log.debug("upBytesPerSecondForPeers += {} up-rate {}", bp, getUpBytesPerSecond());
     }
 
@@ -298,6 +326,7 @@ public class StatsTracker implements Stats {
      */
     public void addUpBytesForPeers(final long bp, final Socket sock) {
         upBytesPerSecondForPeers.addData(bp);
+        history.addUp(bp);
         log.debug("upBytesPerSecondForPeers += {} up-rate {}", bp, getUpBytesPerSecond());
     }
 
@@ -306,6 +335,7 @@ public class StatsTracker implements Stats {
      */
     public void addDownBytesViaProxies(final long bp, final Channel channel) {
         downBytesPerSecondViaProxies.addData(bp);
+        history.addDown(bp);
         log.debug("downBytesPerSecondViaProxies += {} down-rate {}", bp, getDownBytesPerSecond());
     }
 
@@ -314,6 +344,7 @@ public class StatsTracker implements Stats {
      */
     public void addDownBytesViaProxies(final long bp, final Socket sock) {
         downBytesPerSecondViaProxies.addData(bp);
+        history.addDown(bp);
         log.debug("downBytesPerSecondViaProxies += {} down-rate {}", bp, getDownBytesPerSecond());
     }
 
@@ -323,6 +354,7 @@ public class StatsTracker implements Stats {
      */
     public void addDownBytesForPeers(final long bp, final Channel channel) {
         downBytesPerSecondForPeers.addData(bp);
+        history.addDown(bp);
         log.debug("downBytesPerSecondForPeers += {} down-rate {}", bp, getDownBytesPerSecond());
     }
     /**
@@ -331,6 +363,7 @@ public class StatsTracker implements Stats {
      */
     public void addDownBytesForPeers(final long bp, final Socket sock) {
         downBytesPerSecondForPeers.addData(bp);
+        history.addDown(bp);
         log.debug("downBytesPerSecondForPeers += {} down-rate {}", bp, getDownBytesPerSecond());
     }
     
@@ -339,6 +372,7 @@ public class StatsTracker implements Stats {
      */
     public void addDownBytesFromPeers(final long bp, final Channel channel) {
         downBytesPerSecondFromPeers.addData(bp);
+        history.addDown(bp);
         log.debug("downBytesPerSecondFromPeers += {} down-rate {}", bp, getDownBytesPerSecond());
     }
     /**
@@ -346,6 +380,7 @@ public class StatsTracker implements Stats {
      */
     public void addDownBytesFromPeers(final long bp, final Socket sock) {
         downBytesPerSecondFromPeers.addData(bp);
+        history.addDown(bp);
         log.debug("downBytesPerSecondFromPeers += {} down-rate {}", bp, getDownBytesPerSecond());
     }
     
@@ -354,6 +389,7 @@ public class StatsTracker implements Stats {
      */
     public void addUpBytesToPeers(final long bp, final Channel channel) {
         upBytesPerSecondToPeers.addData(bp);
+        history.addUp(bp);
         log.debug("upBytesPerSecondToPeers += {} up-rate {}", bp, getUpBytesPerSecond());
     }
     /** 
@@ -361,6 +397,7 @@ public class StatsTracker implements Stats {
      */
     public void addUpBytesToPeers(final long bp, final Socket sock) {
         upBytesPerSecondToPeers.addData(bp);
+        history.addUp(bp);
         log.debug("upBytesPerSecondToPeers += {} up-rate {}", bp, getUpBytesPerSecond());
     }
 
@@ -392,6 +429,69 @@ public class StatsTracker implements Stats {
         this.proxiedRequests.incrementAndGet();
     }
 
+    /**
+     * A give mode request was relayed over a pooled origin connection.
+     */
+    public void incrementOriginPoolHits() {
+        this.originPoolHits.incrementAndGet();
+    }
+
+    /**
+     * A give mode request needed a new origin connection.
+     */
+    public void incrementOriginPoolMisses() {
+        this.originPoolMisses.incrementAndGet();
+    }
+
+    /* (non-Javadoc)
+     * @see org.lantern.Stats#getOriginPoolHits()
+     */
+    @Override
+    public long getOriginPoolHits() {
+        return originPoolHits.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.lantern.Stats#getOriginPoolMisses()
+     */
+    @Override
+    public long getOriginPoolMisses() {
+        return originPoolMisses.get();
+    }
+
+    /**
+     * A response body was compressed for, or decompressed from, another
+     * peer.
+     *
+     * @param uncompressed The size of the body before compression.
+     * @param compressed The size of the body on the wire.
+     */
+    public void addPeerCompressedBytes(final long uncompressed,
+        final long compressed) {
+        this.peerUncompressedBytes.addAndGet(uncompressed);
+        this.peerCompressedBytes.addAndGet(compressed);
+    }
+
+    /* (non-Javadoc)
+     * @see org.lantern.Stats#getPeerCompressionBytesSaved()
+     */
+    @Override
+    public long getPeerCompressionBytesSaved() {
+        return peerUncompressedBytes.get() - peerCompressedBytes.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.lantern.Stats#getPeerCompressionRatio()
+     */
+    @Override
+    public double getPeerCompressionRatio() {
+        final long uncompressed = peerUncompressedBytes.get();
+        if (uncompressed == 0) {
+            return 1.0;
+        }
+        return (double) peerCompressedBytes.get() / uncompressed;
+    }
+
     /* (non-Javadoc)
      * @see org.lantern.Stats#getTotalProxiedRequests()
      */
@@ -414,6 +514,7 @@ public class StatsTracker implements Stats {
         final CountryData cd = toCountryData(channel);
         if (cd != null) {
             cd.bytes += bp;
+            addHistory(bp, cd);
         }
         else {
             log.warn("No CountryData for {} Not adding bytes proxied.", channel);
@@ -425,12 +526,26 @@ public class StatsTracker implements Stats {
         final CountryData cd = toCountryData(sock);
         if (cd != null) {
             cd.bytes += bp;
+            addHistory(bp, cd);
         }
         else {
             log.warn("No CountryData for {} Not adding bytes proxied.", sock);
         }
     }
 
+    /**
+     * Adds proxied bytes to the history for the country. We only build the
+     * series name the first time we see each country, so this doesn't
+     * allocate once it's known. We don't keep history for single peers, as
+     * that would put their addresses on disk.
+     */
+    private void addHistory(final long bp, final CountryData cd) {
+        if (cd.historySeries == CountryData.NO_SERIES) {
+            cd.historySeries = history.series("country/" + cd.code);
+        }
+        history.add(cd.historySeries, bp);
+    }
+
     public void setUpnp(final boolean upnp) {
         this.upnp = upnp;
     }
@@ -519,13 +634,17 @@ public class StatsTracker implements Stats {
     }
     
     public static final class CountryData {
+        private static final int NO_SERIES = -2;
         private final Set<InetAddress> addresses = new HashSet<InetAddress>();
         private volatile long bytes;
+        private final String code;
+        private volatile int historySeries = NO_SERIES;
         
         private final JSONObject lanternData = new JSONObject();
         final JSONObject data = new JSONObject();
         
         private CountryData(final Country country) {
+            this.code = country.getCode();
             data.put("censored", LanternHub.censored().isCensored(country));
             data.put("name", country.getName());
             data.put("code", country.getCode());
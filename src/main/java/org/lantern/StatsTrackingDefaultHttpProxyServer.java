@@ -12,6 +12,9 @@ import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
 import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -65,6 +68,24 @@ public class StatsTrackingDefaultHttpProxyServer implements HttpProxyServer {
 
     private ClientSocketChannelFactory clientChannelFactory;
 
+    /**
+     * Keep-alive connections to origins, shared between all peers.
+     */
+    private final OriginConnectionPool originPool;
+
+    private static final int MAX_CONNECTIONS_PER_ORIGIN = 6;
+
+    private static final int MAX_IDLE_CONNECTIONS_PER_ORIGIN = 4;
+
+    private static final long ORIGIN_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * Factory for the local channels that carry streams peers open over a
+     * single connection.
+     */
+    private final ChannelFactory streamChannelFactory =
+        new DefaultLocalClientChannelFactory();
+
     /**
      * Creates a new proxy server.
      *
@@ -141,6 +162,9 @@ public class StatsTrackingDefaultHttpProxyServer implements HttpProxyServer {
         this.clientChannelFactory = clientChannelFactory;
         this.timer = timer;
         this.serverChannelFactory = serverChannelFactory;
+        this.originPool = new OriginConnectionPool(clientChannelFactory, timer,
+            MAX_CONNECTIONS_PER_ORIGIN, MAX_IDLE_CONNECTIONS_PER_ORIGIN,
+            ORIGIN_IDLE_TIMEOUT_MILLIS);
         Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler() {
             @Override
             public void uncaughtException(final Thread t, final Throwable e) {
@@ -158,13 +182,29 @@ public class StatsTrackingDefaultHttpProxyServer implements HttpProxyServer {
 
     public void start(final boolean localOnly, final boolean anyAddress) {
         log.info("Starting proxy on port: "+this.port);
+        final RelayPipelineFactoryFactory relayFactory =
+            new StatsTrackingDefaultRelayPipelineFactoryFactory(chainProxyManager,
+                this.responseFilters, this.requestFilter,
+                this.allChannels, this.timer);
+
+        // Streams from peers each get a local channel to this server, with
+        // the same pipeline as a connection of their own.
+        final LocalAddress streamAddress = 
+            new LocalAddress("peer-streams-" + this.port);
+        final ServerBootstrap streamBootstrap =
+            new ServerBootstrap(new DefaultLocalServerChannelFactory());
+        streamBootstrap.setPipelineFactory(
+            new StatsTrackingHttpServerPipelineFactory(authenticationManager,
+                this.allChannels, this.chainProxyManager, relayFactory,
+                this.clientChannelFactory, this.timer, this.originPool,
+                this.requestFilter, null, null));
+        allChannels.add(streamBootstrap.bind(streamAddress));
+
         final HttpServerPipelineFactory factory =
             new StatsTrackingHttpServerPipelineFactory(authenticationManager,
-                this.allChannels, this.chainProxyManager, 
-                new StatsTrackingDefaultRelayPipelineFactoryFactory(chainProxyManager,
-                    this.responseFilters, this.requestFilter,
-                    this.allChannels, this.timer), this.clientChannelFactory, 
-                    this.timer);
+                this.allChannels, this.chainProxyManager, relayFactory,
+                this.clientChannelFactory, this.timer, this.originPool,
+                this.requestFilter, this.streamChannelFactory, streamAddress);
         serverBootstrap.setPipelineFactory(factory);
 
         // Binding only to localhost can significantly improve the security of
@@ -210,29 +250,92 @@ public class StatsTrackingDefaultHttpProxyServer implements HttpProxyServer {
     private static class StatsTrackingHttpServerPipelineFactory 
         extends HttpServerPipelineFactory {
         
+        private final OriginConnectionPool originPool;
+
+        private final HttpRequestFilter requestFilter;
+
+        private final ChannelFactory streamChannelFactory;
+
+        private final LocalAddress streamAddress;
+
+        /**
+         * Creates a pipeline factory for connections from peers or, if 
+         * there's no stream address, for streams within those connections.
+         */
         public StatsTrackingHttpServerPipelineFactory(
             final ProxyAuthorizationManager authorizationManager, 
             final ChannelGroup channelGroup, 
             final ChainProxyManager chainProxyManager, 
             final RelayPipelineFactoryFactory relayPipelineFactoryFactory,
             final ClientSocketChannelFactory clientChannelFactory, 
-            final Timer timer) {
+            final Timer timer, final OriginConnectionPool originPool,
+            final HttpRequestFilter requestFilter,
+            final ChannelFactory streamChannelFactory,
+            final LocalAddress streamAddress) {
             super(authorizationManager, channelGroup, chainProxyManager, 
                 LanternHub.getKeyStoreManager(), relayPipelineFactoryFactory, 
                 timer, clientChannelFactory);
+            this.originPool = originPool;
+            this.requestFilter = requestFilter;
+            this.streamChannelFactory = streamChannelFactory;
+            this.streamAddress = streamAddress;
         }
 
         @Override
         public ChannelPipeline getPipeline() throws Exception {
             ChannelPipeline pipeline = super.getPipeline();
-            pipeline.addFirst("stats", new StatsTrackingHandler() {
-                public void addUpBytes(long bytes, Channel channel) {
-                    statsTracker().addUpBytesToPeers(bytes, channel);
+            if (this.streamAddress == null) {
+                // The connection the stream came in on already has SSL,
+                // stats and throttling.
+                if (pipeline.get("ssl") != null) {
+                    pipeline.remove("ssl");
                 }
-                public void addDownBytes(long bytes, Channel channel) {
-                    statsTracker().addDownBytesFromPeers(bytes, channel);
-                }
-            });
+            } else {
+                pipeline.addFirst("stats", new StatsTrackingHandler() {
+                    public void addUpBytes(long bytes, Channel channel) {
+                        statsTracker().addUpBytesToPeers(bytes, channel);
+                    }
+                    public void addDownBytes(long bytes, Channel channel) {
+                        statsTracker().addDownBytesFromPeers(bytes, channel);
+                    }
+                });
+                pipeline.addFirst("throttle",
+                    LanternHub.bandwidthScheduler().newThrottle(
+                        BandwidthScheduler.Direction.DOWN, null));
+                pipeline.addBefore("decoder", "mux", new PeerMuxDetector(
+                    this.streamChannelFactory, this.streamAddress));
+            }
+            pipeline.addAfter("encoder", "compressor",
+                new PeerCompressionEncoder());
+            pipeline.addBefore("handler", "pooled",
+                new PooledOriginRelayHandler(originPool, requestFilter) {
+                    @Override
+                    protected void onLease(final ChannelPipeline originPipeline,
+                        final Channel browserToProxyChannel) {
+                        originPipeline.addFirst("stats", new StatsTrackingHandler() {
+                            @Override
+                            public void addUpBytes(final long bytes, final Channel channel) {
+                                statsTracker().addUpBytesForPeers(bytes, browserToProxyChannel);
+                            }
+                            @Override
+                            public void addDownBytes(final long bytes, final Channel channel) {
+                                statsTracker().addDownBytesForPeers(bytes, browserToProxyChannel);
+                            }
+                        });
+                        originPipeline.addFirst("throttle",
+                            LanternHub.bandwidthScheduler().newThrottle(
+                                BandwidthScheduler.Direction.UP,
+                                browserToProxyChannel));
+                    }
+                    @Override
+                    protected void onRelease(final ChannelPipeline originPipeline) {
+                        originPipeline.remove("throttle");
+                        originPipeline.remove("stats");
+                    }
+                });
+            pipeline.addFirst("lifecycle",
+                LanternHub.channelLifecycle().newHandler(
+                    ChannelLifecycle.Role.GIVE_MODE));
             return pipeline;
         }
     }
@@ -270,6 +373,13 @@ public class StatsTrackingDefaultHttpProxyServer implements HttpProxyServer {
                             statsTracker().addDownBytesForPeers(bytes, browserToProxyChannel);
                         }
                     });
+                    pipeline.addFirst("throttle",
+                        LanternHub.bandwidthScheduler().newThrottle(
+                            BandwidthScheduler.Direction.UP,
+                            browserToProxyChannel));
+                    pipeline.addFirst("lifecycle",
+                        LanternHub.channelLifecycle().newHandler(
+                            ChannelLifecycle.Role.GIVE_MODE));
                     return pipeline;
                 }
             };
@@ -1,38 +1,64 @@
 package org.lantern;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.cometd.bayeux.server.ServerSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Strategy for syncing/pushing with the browser using direct calls to 
- * JavaScript from the SWT browser widget.
+ * Strategy for syncing/pushing with the browser using direct calls to
+ * JavaScript from the SWT browser widget. The browser reloads the full
+ * state itself, so all we do here is skip calls when nothing has changed
+ * since the last one.
  */
 public class SwtJavaScriptSyncStrategy implements SyncStrategy {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
-    
-    private volatile long lastUpdateTime = System.currentTimeMillis();
-    
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<String, JsonNode> lastSynced =
+        new ConcurrentHashMap<String, JsonNode>();
+
+    public SwtJavaScriptSyncStrategy() {
+        this.mapper.setSerializationConfig(
+            this.mapper.getSerializationConfig().withView(
+                Settings.UIStateSettings.class));
+    }
+
     @Override
-    public void sync(final boolean force, final String channelName, 
+    public void sync(final boolean force, final String channelName,
         final ServerSession session) {
-        final long elapsed = System.currentTimeMillis() - lastUpdateTime;
-        if (!force && elapsed < 100) {
-            log.debug("Not pushing more than 10 times a second...{} ms elapsed", 
-                elapsed);
+        final Object syncer;
+        if (channelName.equals(LanternConstants.ROSTER_SYNC_CHANNEL)) {
+            syncer = LanternHub.xmppHandler().getRoster();
+        } else if (channelName.equals(LanternConstants.SETTINGS_SYNC_CHANNEL)) {
+            syncer = LanternHub.settings();
+        } else {
+            throw new Error("Bad channel name?");
+        }
+        final JsonNode tree = this.mapper.valueToTree(syncer);
+        if (!force && tree.equals(lastSynced.get(channelName))) {
+            log.debug("Nothing changed on {}", channelName);
             return;
         }
+        lastSynced.put(channelName, tree);
 
         if (channelName.equals(LanternConstants.ROSTER_SYNC_CHANNEL)) {
             log.debug("Syncing roster...");
             LanternHub.dashboard().rosterSync();
-        } else if (channelName.equals(LanternConstants.SETTINGS_SYNC_CHANNEL)) {
-            LanternHub.dashboard().settingsSync();
         } else {
-            throw new Error("Bad channel name?");
+            LanternHub.dashboard().settingsSync();
         }
-        lastUpdateTime = System.currentTimeMillis();
         log.debug("Sync performed");
     }
+
+    @Override
+    public void resync(final String channelName, final ServerSession remote) {
+        lastSynced.remove(channelName);
+    }
 }
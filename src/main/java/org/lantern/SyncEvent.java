@@ -1,5 +1,8 @@
 package org.lantern;
 
-public class SyncEvent {
+/**
+ * Event asking for the state to be synced to the dashboard.
+ */
+public class SyncEvent implements CoalescedEvent {
 
 }
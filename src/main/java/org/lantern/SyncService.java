@@ -1,7 +1,13 @@
 package org.lantern;
 
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.cometd.bayeux.Channel;
 import org.cometd.bayeux.Message;
@@ -15,20 +21,46 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Service for pushing updated Lantern state to the client.
+ *
+ * Sync requests don't push anything directly. They just mark a channel as
+ * dirty, and a single flush runs at most once per frame interval, so a
+ * burst of events results in one push per channel.
  */
 @Service("sync")
 public class SyncService {
-    
+
     private final Logger log = LoggerFactory.getLogger(getClass());
-    
+
+    /**
+     * The minimum time between two flushes to the browser.
+     */
+    private static final long FRAME_MILLIS = 100;
+
     @Session
     private ServerSession session;
-    
+
     private final SyncStrategy strategy;
-    
+
+    /**
+     * Channels waiting to be flushed, mapped to whether or not the sync was
+     * forced.
+     */
+    private final Map<String, Boolean> pending =
+        new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    private volatile long lastFlushTime = 0L;
+
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
+                "Sync-Scheduler-Thread-%d").build());
+
     /**
      * Creates a new sync service.
      */
@@ -36,7 +68,9 @@ public class SyncService {
         this.strategy = strategy;
         // Make sure the config class is added as a listener before this class.
         LanternHub.register(this);
-        
+
+        // Some settings such as stats change without any event, so check
+        // periodically. This only pushes whatever actually changed.
         final Timer timer = LanternHub.timer();
         timer.schedule(new TimerTask() {
             @Override
@@ -45,76 +79,123 @@ public class SyncService {
             }
         }, 3000, 4000);
     }
-    
+
     @SuppressWarnings("unused")
     @Configure("/service/sync")
     private void configureSync(final ConfigurableServerChannel channel) {
         channel.setPersistent(true);
     }
-    
-    @Listener(Channel.META_CONNECT)
-    public void metaConnect(final ServerSession remote, final Message connect) {
-        // Make sure we give clients the most recent data whenever they connect.
-        log.debug("Got connection from client, calling sync");
-        sync();
+
+    @Listener(Channel.META_SUBSCRIBE)
+    public void metaSubscribe(final ServerSession remote,
+        final Message subscribe) {
+        // Make sure we give clients the full state whenever they
+        // (re)subscribe.
+        final Object channel = subscribe.get(Message.SUBSCRIPTION_FIELD);
+        if (LanternConstants.SETTINGS_SYNC_CHANNEL.equals(channel) ||
+            LanternConstants.ROSTER_SYNC_CHANNEL.equals(channel)) {
+            log.debug("Got subscription to {}, calling sync", channel);
+            resync((String) channel, remote);
+        }
     }
 
     @Listener("/service/sync")
     public void processSync(final ServerSession remote, final Message message) {
         log.debug("JSON: {}", message.getJSON());
-        log.debug("DATA: {}", message.getData());
-        log.debug("DATA CLASS: {}", message.getData().getClass());
-        
-        /*
-        final String fullJson = message.getJSON();
-        final String json = StringUtils.substringBetween(fullJson, "\"data\":", ",\"channel\":");
-        final Map<String, Object> update = message.getDataAsMap();
-        log.debug("MAP: {}", update);
-        */
+
+        // Clients ask for a full resync when they see a patch that doesn't
+        // apply to the version they have.
+        final Map<String, Object> data = message.getDataAsMap();
+        final Object channel = data == null ? null : data.get("resync");
+        if (LanternConstants.SETTINGS_SYNC_CHANNEL.equals(channel) ||
+            LanternConstants.ROSTER_SYNC_CHANNEL.equals(channel)) {
+            log.debug("Client requested resync of {}", channel);
+            resync((String) channel, remote);
+            return;
+        }
 
         log.debug("Pushing updated config to browser...");
         sync();
     }
-    
+
     @Subscribe
     public void onUpdate(final UpdateEvent updateEvent) {
         log.debug("Got update");
         sync();
     }
-    
+
     @Subscribe
     public void onSync(final SyncEvent syncEvent) {
         log.debug("Got sync event");
-        // We want to force a sync here regardless of whether or not we've 
-        // recently synced.
         sync(true);
     }
 
-    @Subscribe 
+    @Subscribe
     public void onRosterStateChanged(final RosterStateChangedEvent rsce) {
         log.debug("Roster changed...");
         rosterSync();
     }
-    
-    @Subscribe 
+
+    @Subscribe
     public void closedBeta(final ClosedBetaEvent betaEvent) {
         sync(true);
     }
-    
+
+    private void resync(final String channelName, final ServerSession remote) {
+        this.strategy.resync(channelName, remote);
+        sync(true, channelName);
+    }
+
     private void rosterSync() {
         sync(false, LanternConstants.ROSTER_SYNC_CHANNEL);
     }
-    
+
     private void sync(final boolean force) {
         sync(force, LanternConstants.SETTINGS_SYNC_CHANNEL);
     }
-    
+
     private void sync() {
         sync(false);
     }
-    
+
     private void sync(final boolean force, final String channelName) {
         log.debug("In sync method");
-        this.strategy.sync(force, channelName, this.session);
+        synchronized (pending) {
+            final Boolean existing = pending.get(channelName);
+            pending.put(channelName,
+                force || (existing != null && existing.booleanValue()));
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            final long elapsed = System.currentTimeMillis() - lastFlushTime;
+            final long delay = Math.max(0, FRAME_MILLIS - elapsed);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        // Clear the flag first so syncs requested while we're flushing
+        // schedule the next frame.
+        flushScheduled.set(false);
+        lastFlushTime = System.currentTimeMillis();
+        for (final String channelName : pending.keySet()) {
+            final Boolean force;
+            synchronized (pending) {
+                force = pending.remove(channelName);
+            }
+            if (force == null) {
+                continue;
+            }
+            try {
+                this.strategy.sync(force.booleanValue(), channelName,
+                    this.session);
+            } catch (final Throwable t) {
+                log.warn("Error syncing "+channelName, t);
+            }
+        }
     }
 }
@@ -6,4 +6,15 @@ public interface SyncStrategy {
 
     void sync(boolean force, String channelName, ServerSession session);
 
+    /**
+     * Forgets whatever state we think the specified client has for the
+     * given channel, so that the next sync sends it a full snapshot. This
+     * is called when a client (re)subscribes or detects that it has missed
+     * an update.
+     *
+     * @param channelName The channel to reset.
+     * @param remote The remote client session.
+     */
+    void resync(String channelName, ServerSession remote);
+
 }
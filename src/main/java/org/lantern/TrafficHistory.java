@@ -0,0 +1,462 @@
+package org.lantern;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed-size round-robin store of how many bytes we've sent and received
+ * over time, kept at 1-second, 1-minute, 1-hour and 1-day resolution.
+ *
+ * Every write adds to the current bucket in each tier, so the coarser
+ * tiers are always rolled up from the finer ones and there's nothing to
+ * consolidate later. Each bucket records which period it belongs to, so
+ * buckets left over from a previous lap around the ring, or from before
+ * a restart, are simply overwritten.
+ *
+ * The store lives in a memory-mapped file, so it survives restarts, and
+ * its size never changes once created. Besides the totals, there's room
+ * for a fixed number of named series, such as per country. Once those are
+ * used up, new names just aren't tracked. Writing doesn't
+ * allocate, as it's on the path of every byte we proxy.
+ */
+public class TrafficHistory {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The series for all bytes we've sent.
+     */
+    public static final String UP = "up";
+
+    /**
+     * The series for all bytes we've received.
+     */
+    public static final String DOWN = "down";
+
+    /**
+     * The most named series we keep, including the totals.
+     */
+    static final int MAX_SERIES = 48;
+
+    /**
+     * The most points we'll return for a single query.
+     */
+    static final int MAX_POINTS = 2000;
+
+    private static final long ONE_SECOND = 1000;
+    private static final long ONE_MINUTE = 60 * ONE_SECOND;
+    private static final long ONE_HOUR = 60 * ONE_MINUTE;
+    private static final long ONE_DAY = 24 * ONE_HOUR;
+
+    /**
+     * The length of each tier's buckets, from finest to coarsest.
+     */
+    private static final long[] STEPS = {
+        ONE_SECOND, ONE_MINUTE, ONE_HOUR, ONE_DAY
+    };
+
+    /**
+     * The number of buckets in each tier: an hour of seconds, a day of
+     * minutes, a month of hours and two years of days.
+     */
+    private static final int[] LENGTHS = {3600, 1440, 744, 732};
+
+    private static final int MAGIC = 0x4c545248;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Series older versions kept that we drop when we open a store. We
+     * used to keep one for each peer, named with its IP address, which we
+     * don't want sitting on disk and which crowded out the countries.
+     */
+    private static final String DROPPED_PREFIX = "peer/";
+
+    private static final int HEADER_BYTES = 16 + STEPS.length * 12;
+
+    private static final int NAME_BYTES = 64;
+
+    /**
+     * Each bucket is the period it's for followed by the byte count.
+     */
+    private static final int BUCKET_BYTES = 16;
+
+    private static final int[] TIER_OFFSETS = new int[STEPS.length];
+
+    private static final int SERIES_BYTES;
+
+    static {
+        int offset = 0;
+        for (int i = 0; i < STEPS.length; i++) {
+            TIER_OFFSETS[i] = offset;
+            offset += LENGTHS[i] * BUCKET_BYTES;
+        }
+        SERIES_BYTES = offset;
+    }
+
+    private static final int DATA_OFFSET = HEADER_BYTES + MAX_SERIES * NAME_BYTES;
+
+    /**
+     * The size of the whole store, about 5MB.
+     */
+    static final int TOTAL_BYTES = DATA_OFFSET + MAX_SERIES * SERIES_BYTES;
+
+    private final ByteBuffer buffer;
+
+    private final RandomAccessFile raf;
+
+    private final Map<String, Integer> series = new HashMap<String, Integer>();
+
+    private final List<String> names = new ArrayList<String>();
+
+    private final int up;
+
+    private final int down;
+
+    /**
+     * Creates a store that's only kept in memory.
+     */
+    public TrafficHistory() {
+        this(null);
+    }
+
+    /**
+     * Creates a store backed by the given file, reading anything already
+     * there. If the file can't be used, we just keep the history in
+     * memory.
+     *
+     * @param file The file, or <code>null</code> to just use memory.
+     */
+    public TrafficHistory(final File file) {
+        RandomAccessFile opened = null;
+        ByteBuffer mapped = null;
+        if (file != null) {
+            try {
+                opened = new RandomAccessFile(file, "rw");
+                opened.setLength(TOTAL_BYTES);
+                mapped = opened.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, TOTAL_BYTES);
+            } catch (final IOException e) {
+                log.error("Could not map traffic history: " + file, e);
+                IOUtils.closeQuietly(opened);
+                opened = null;
+            }
+        }
+        this.raf = opened;
+        this.buffer = mapped == null ? ByteBuffer.allocate(TOTAL_BYTES) : mapped;
+        if (!readHeader()) {
+            if (file != null) {
+                log.info("Starting new traffic history in {}", file);
+            }
+            writeHeader();
+        }
+        this.up = series(UP);
+        this.down = series(DOWN);
+    }
+
+    private boolean readHeader() {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+            buffer.getInt(8) != MAX_SERIES || buffer.getInt(12) != STEPS.length) {
+            return false;
+        }
+        for (int i = 0; i < STEPS.length; i++) {
+            if (buffer.getLong(16 + i * 12) != STEPS[i] ||
+                buffer.getInt(24 + i * 12) != LENGTHS[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < MAX_SERIES; i++) {
+            final int offset = HEADER_BYTES + i * NAME_BYTES;
+            final int length = buffer.getShort(offset);
+            if (length <= 0 || length > NAME_BYTES - 2) {
+                break;
+            }
+            final byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bytes[j] = buffer.get(offset + 2 + j);
+            }
+            final String name = utf8(bytes);
+            if (name.startsWith(DROPPED_PREFIX)) {
+                continue;
+            }
+            if (names.size() != i) {
+                moveSeries(i, names.size());
+            }
+            series.put(name, names.size());
+            names.add(name);
+        }
+        for (int i = names.size(); i < MAX_SERIES; i++) {
+            clearSeries(i);
+        }
+        return true;
+    }
+
+    /**
+     * Moves a series, name and all, to an earlier slot.
+     */
+    private void moveSeries(final int from, final int to) {
+        for (int i = 0; i < NAME_BYTES; i++) {
+            buffer.put(HEADER_BYTES + to * NAME_BYTES + i,
+                buffer.get(HEADER_BYTES + from * NAME_BYTES + i));
+        }
+        for (int i = 0; i < SERIES_BYTES; i += 8) {
+            buffer.putLong(DATA_OFFSET + to * SERIES_BYTES + i,
+                buffer.getLong(DATA_OFFSET + from * SERIES_BYTES + i));
+        }
+    }
+
+    private void clearSeries(final int index) {
+        if (buffer.getShort(HEADER_BYTES + index * NAME_BYTES) == 0) {
+            return;
+        }
+        for (int i = 0; i < NAME_BYTES; i++) {
+            buffer.put(HEADER_BYTES + index * NAME_BYTES + i, (byte) 0);
+        }
+        for (int i = 0; i < SERIES_BYTES; i += 8) {
+            buffer.putLong(DATA_OFFSET + index * SERIES_BYTES + i, 0L);
+        }
+    }
+
+    private void writeHeader() {
+        for (int i = 0; i < TOTAL_BYTES; i += 8) {
+            buffer.putLong(i, 0L);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, MAX_SERIES);
+        buffer.putInt(12, STEPS.length);
+        for (int i = 0; i < STEPS.length; i++) {
+            buffer.putLong(16 + i * 12, STEPS[i]);
+            buffer.putInt(24 + i * 12, LENGTHS[i]);
+        }
+    }
+
+    /**
+     * Returns the index of a series to pass to {@link #add(int, long)},
+     * adding the series if it's new and there's room.
+     *
+     * @param name The name of the series.
+     * @return The index of the series, or -1 if we're out of room.
+     */
+    public synchronized int series(final String name) {
+        final Integer existing = series.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final byte[] bytes;
+        try {
+            bytes = name.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            log.error("We need UTF-8");
+            return -1;
+        }
+        if (isFull() || bytes.length == 0 || bytes.length > NAME_BYTES - 2) {
+            return -1;
+        }
+        final int index = names.size();
+        final int offset = HEADER_BYTES + index * NAME_BYTES;
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(offset + 2 + i, bytes[i]);
+        }
+        buffer.putShort(offset, (short) bytes.length);
+        series.put(name, index);
+        names.add(name);
+        return index;
+    }
+
+    /**
+     * @return Whether there's no more room for new series.
+     */
+    public synchronized boolean isFull() {
+        return names.size() >= MAX_SERIES;
+    }
+
+    /**
+     * @return The names of all the series we have.
+     */
+    public synchronized List<String> getSeries() {
+        return new ArrayList<String>(names);
+    }
+
+    public void addUp(final long bytes) {
+        add(up, System.currentTimeMillis(), bytes);
+    }
+
+    public void addDown(final long bytes) {
+        add(down, System.currentTimeMillis(), bytes);
+    }
+
+    /**
+     * Adds bytes to a series now.
+     *
+     * @param index The index of the series from {@link #series(String)}.
+     * Negative indexes are ignored.
+     * @param bytes The number of bytes.
+     */
+    public void add(final int index, final long bytes) {
+        add(index, System.currentTimeMillis(), bytes);
+    }
+
+    synchronized void add(final int index, final long time, final long bytes) {
+        if (index < 0 || index >= names.size()) {
+            return;
+        }
+        final int base = DATA_OFFSET + index * SERIES_BYTES;
+        for (int tier = 0; tier < STEPS.length; tier++) {
+            final long period = time / STEPS[tier];
+            final int offset = base + TIER_OFFSETS[tier] +
+                (int) (period % LENGTHS[tier]) * BUCKET_BYTES;
+            // Periods start at 1 so an empty bucket never matches.
+            if (buffer.getLong(offset) == period + 1) {
+                buffer.putLong(offset + 8, buffer.getLong(offset + 8) + bytes);
+            } else {
+                buffer.putLong(offset, period + 1);
+                buffer.putLong(offset + 8, bytes);
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes in a series over a time range, in points of at
+     * least the given length. We use the finest tier that still covers
+     * the start of the range.
+     *
+     * @param name The name of the series.
+     * @param from The start of the range, in milliseconds since the epoch.
+     * @param to The end of the range.
+     * @param step The length of each point we'd like, in milliseconds.
+     * @return The points, or <code>null</code> if there's no such series.
+     * @throws IllegalArgumentException If the range starts after it ends.
+     */
+    public Range query(final String name, final long from, final long to,
+        final long step) {
+        return query(name, from, to, step, System.currentTimeMillis());
+    }
+
+    synchronized Range query(final String name, final long from,
+        final long to, final long step, final long now) {
+        if (from > to) {
+            throw new IllegalArgumentException("Range starts after it ends");
+        }
+        final Integer index = series.get(name);
+        if (index == null) {
+            return null;
+        }
+        int tier = 0;
+        while (tier < STEPS.length - 1 &&
+            (now - from > STEPS[tier] * (LENGTHS[tier] - 1) ||
+             STEPS[tier + 1] <= step)) {
+            tier++;
+        }
+        final long tierStep = STEPS[tier];
+        final long span = Math.max(to - from, 0) + 1;
+        // Points are whole numbers of buckets, with no more than we allow.
+        long pointStep = Math.max(step, tierStep);
+        pointStep = Math.max(pointStep, span / MAX_POINTS + 1);
+        pointStep = (pointStep + tierStep - 1) / tierStep * tierStep;
+        final long start = from / pointStep * pointStep;
+        final int points = Math.max((int) ((to - start) / pointStep) + 1, 0);
+        final long[] values = new long[points];
+
+        final int base = DATA_OFFSET + index * SERIES_BYTES + TIER_OFFSETS[tier];
+        final long oldest = Math.max(start / tierStep,
+            now / tierStep - LENGTHS[tier] + 1);
+        // Nothing's recorded after now, however far ahead the range goes.
+        final long newest = Math.min(to, now) / tierStep;
+        for (long period = oldest; period <= newest; period++) {
+            final int offset = base +
+                (int) (period % LENGTHS[tier]) * BUCKET_BYTES;
+            if (buffer.getLong(offset) == period + 1) {
+                values[(int) ((period * tierStep - start) / pointStep)] +=
+                    buffer.getLong(offset + 8);
+            }
+        }
+        return new Range(name, start, pointStep, values);
+    }
+
+    /**
+     * Writes any changes to disk.
+     */
+    public void flush() {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /**
+     * Writes any changes to disk and closes the file.
+     */
+    public void close() {
+        flush();
+        IOUtils.closeQuietly(raf);
+    }
+
+    private static String utf8(final byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new Error("We need UTF-8", e);
+        }
+    }
+
+    /**
+     * The bytes in a series over a range of time.
+     */
+    public static final class Range {
+
+        private final String name;
+
+        private final long start;
+
+        private final long step;
+
+        private final long[] values;
+
+        private Range(final String name, final long start, final long step,
+            final long[] values) {
+            this.name = name;
+            this.start = start;
+            this.step = step;
+            this.values = values;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The start of the first point, in milliseconds since the
+         * epoch.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return The length of each point in milliseconds.
+         */
+        public long getStep() {
+            return step;
+        }
+
+        /**
+         * @return The bytes in each point.
+         */
+        public long[] getValues() {
+            return values;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.lantern;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point in time record of how a single peer transport has been doing.
+ */
+public class TransportThroughput {
+
+    private final String transport;
+    private final boolean enabled;
+    private final long connections;
+    private final long samples;
+    private final long bytes;
+    private final long millis;
+
+    @ConstructorProperties({"transport", "enabled", "connections",
+        "samples", "bytes", "millis"})
+    public TransportThroughput(final String transport, final boolean enabled,
+        final long connections, final long samples, final long bytes,
+        final long millis) {
+        this.transport = transport;
+        this.enabled = enabled;
+        this.connections = connections;
+        this.samples = samples;
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return The number of connections to peers we've opened with the
+     * transport.
+     */
+    public long getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return The number of responses we've timed over the transport.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return The bytes read in the responses we've timed.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The time it took to read the responses we've timed.
+     */
+    public long getMillis() {
+        return millis;
+    }
+
+    /**
+     * @return The rate we've read responses at, in bytes per second.
+     */
+    public long getBytesPerSecond() {
+        if (millis == 0) {
+            return 0;
+        }
+        return bytes * 1000 / millis;
+    }
+
+    @Override
+    public String toString() {
+        return "TransportThroughput [transport=" + transport +
+            ", connections=" + connections + ", samples=" + samples + ", bytesPerSecond=" +
+            getBytesPerSecond() + "]";
+    }
+}
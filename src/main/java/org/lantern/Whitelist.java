@@ -1,10 +1,14 @@
 package org.lantern;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.StringUtils;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -137,9 +141,21 @@ public class Whitelist {
         "yzzk.com",
     };
     
-    private Collection<WhitelistEntry> whitelist = 
+    /**
+     * Replaced rather than changed in place, so readers never see a 
+     * partly applied update.
+     */
+    private volatile Collection<WhitelistEntry> whitelist = 
         new TreeSet<WhitelistEntry>();
     
+    private final Object updateLock = new Object();
+    
+    /**
+     * Incremented on every change so things derived from the whitelist, 
+     * like the pac file, know when to regenerate.
+     */
+    private final AtomicInteger version = new AtomicInteger();
+    
     {
         // these domains host required services and can't be removed
         addDefaultEntry("getlantern.org", true);
@@ -204,12 +220,45 @@ public class Whitelist {
     }
     
     public void addEntry(final String entry) {
-        whitelist.add(new WhitelistEntry(entry));
+        updateEntries(Arrays.asList(entry), Collections.<String>emptyList());
     }
 
     public void removeEntry(final String entry) {
-        if (!this.requiredEntries.contains(entry)) {
-            whitelist.remove(new WhitelistEntry(entry));
+        updateEntries(Collections.<String>emptyList(), Arrays.asList(entry));
+    }
+    
+    /**
+     * Adds and removes any number of sites in one go. Removals are applied
+     * first, and required sites are never removed.
+     * 
+     * @param additions The sites to add.
+     * @param removals The sites to remove.
+     * @return <code>true</code> if the whitelist changed, otherwise 
+     * <code>false</code>.
+     */
+    public boolean updateEntries(final Collection<String> additions, 
+        final Collection<String> removals) {
+        synchronized (updateLock) {
+            final Collection<WhitelistEntry> updated = 
+                new TreeSet<WhitelistEntry>(whitelist);
+            boolean changed = false;
+            for (final String entry : removals) {
+                if (StringUtils.isNotBlank(entry) && 
+                    !this.requiredEntries.contains(entry)) {
+                    changed |= updated.remove(new WhitelistEntry(entry));
+                }
+            }
+            for (final String entry : additions) {
+                if (StringUtils.isNotBlank(entry)) {
+                    changed |= updated.add(new WhitelistEntry(entry));
+                }
+            }
+            if (!changed) {
+                return false;
+            }
+            this.whitelist = updated;
+            version.incrementAndGet();
+            return true;
         }
     }
     
@@ -218,9 +267,20 @@ public class Whitelist {
     }
     
     public void setEntries(final Collection<WhitelistEntry> entries) {
-        synchronized (whitelist) {
+        synchronized (updateLock) {
             this.whitelist = entries; 
         }
+        version.incrementAndGet();
+    }
+    
+    /**
+     * Returns a number that changes whenever the entries change.
+     * 
+     * @return The current version of the whitelist.
+     */
+    @JsonIgnore
+    public int getVersion() {
+        return version.get();
     }
 
 
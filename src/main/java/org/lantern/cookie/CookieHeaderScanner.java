@@ -0,0 +1,253 @@
+package org.lantern.cookie;
+
+import org.jboss.netty.handler.codec.http.DefaultCookie;
+
+/**
+ * Walks the name=value pairs of a request Cookie header in place
+ * and filters them without decoding the header into a set and
+ * re-encoding it.  The header is only rewritten if some cookie
+ * is actually dropped, in which case the retained pairs are
+ * copied through verbatim.
+ *
+ * Pairs are separated by ';' as in RFC 6265 Section 5.4.  As with
+ * Netty's CookieDecoder, a ',' also ends a quoted value, while an
+ * unquoted value runs on past any ',' up to the next ';'.  Names
+ * starting with '$' (RFC 2965 $Version, $Path, $Domain...) are
+ * treated as attributes of the preceding cookie, or kept as-is if
+ * they come before any cookie.
+ */
+public class CookieHeaderScanner {
+
+    private final String header;
+    private final int length;
+    private int pos;
+
+    // the current pair
+    private String name;
+    private String value;
+    private int start;
+    private int end;
+
+    private CookieHeaderScanner(final String header) {
+        this.header = header;
+        this.length = header.length();
+    }
+
+    /**
+     * filters the name=value pairs in a Cookie header.
+     *
+     * @return the header itself (the identical String) if every cookie
+     *         was accepted, otherwise a new header containing only the
+     *         accepted cookies, which is empty if none were accepted.
+     * @throws IllegalArgumentException if the header is malformed.
+     */
+    public static String filter(final String header, final CookieFilter filter) {
+        final CookieHeaderScanner scanner = new CookieHeaderScanner(header);
+
+        // null until the first cookie is dropped, then holds the
+        // rewritten header.
+        StringBuilder out = null;
+
+        // until something is dropped, the retained pairs are just
+        // the region [keptStart, keptEnd) of the original header.
+        int keptStart = -1;
+        int keptEnd = -1;
+        int keptCookies = 0;
+
+        DefaultCookie cookie = null;
+        int cookieStart = 0;
+        int cookieEnd = 0;
+
+        while (true) {
+            final boolean more = scanner.next();
+            if (more && scanner.name.charAt(0) == '$') {
+                if (cookie == null) {
+                    // eg $Version, not associated with any cookie.
+                    if (out != null) {
+                        append(out, header, scanner.start, scanner.end);
+                    }
+                    else {
+                        if (keptStart < 0) {
+                            keptStart = scanner.start;
+                        }
+                        keptEnd = scanner.end;
+                    }
+                }
+                else {
+                    scanner.applyAttribute(cookie);
+                    cookieEnd = scanner.end;
+                }
+                continue;
+            }
+
+            // we've reached the end of the previous cookie and
+            // any attributes that followed it.
+            if (cookie != null) {
+                if (filter.accepts(cookie)) {
+                    keptCookies++;
+                    if (out != null) {
+                        append(out, header, cookieStart, cookieEnd);
+                    }
+                    else {
+                        if (keptStart < 0) {
+                            keptStart = cookieStart;
+                        }
+                        keptEnd = cookieEnd;
+                    }
+                }
+                else if (out == null) {
+                    out = new StringBuilder(header.length());
+                    if (keptStart >= 0) {
+                        out.append(header, keptStart, keptEnd);
+                    }
+                }
+            }
+
+            if (!more) {
+                break;
+            }
+            cookie = new DefaultCookie(scanner.name, scanner.value);
+            cookieStart = scanner.start;
+            cookieEnd = scanner.end;
+        }
+
+        if (out == null) {
+            return header;
+        }
+        if (keptCookies == 0) {
+            return "";
+        }
+        return out.toString();
+    }
+
+    private static void append(final StringBuilder out, final String header,
+                               final int start, final int end) {
+        if (out.length() > 0) {
+            out.append("; ");
+        }
+        out.append(header, start, end);
+    }
+
+    /**
+     * advances to the next name=value pair.
+     *
+     * @return false if there are no more pairs.
+     */
+    private boolean next() {
+        // skip separators and whitespace
+        while (pos < length) {
+            final char c = header.charAt(pos);
+            if (!isSeparator(c) && !Character.isWhitespace(c)) {
+                break;
+            }
+            pos++;
+        }
+        if (pos >= length) {
+            return false;
+        }
+
+        start = pos;
+        while (pos < length) {
+            final char c = header.charAt(pos);
+            if (c == '=' || c == ';') {
+                break;
+            }
+            pos++;
+        }
+        end = trimEnd(start, pos);
+        name = header.substring(start, end);
+        if (name.length() == 0) {
+            throw new IllegalArgumentException("empty name: " + header);
+        }
+
+        if (pos >= length || header.charAt(pos) == ';') {
+            value = "";
+            return true;
+        }
+
+        // skip the '=' and any whitespace following it.
+        final int equals = pos;
+        pos++;
+        while (pos < length && Character.isWhitespace(header.charAt(pos))) {
+            pos++;
+        }
+
+        if (pos < length && header.charAt(pos) == '"') {
+            value = readQuoted();
+            end = pos;
+            while (pos < length && Character.isWhitespace(header.charAt(pos))) {
+                pos++;
+            }
+            if (pos < length && !isSeparator(header.charAt(pos))) {
+                throw new IllegalArgumentException(
+                    "unexpected data after quoted value: " + header);
+            }
+        }
+        else {
+            final int valueStart = pos;
+            while (pos < length && header.charAt(pos) != ';') {
+                pos++;
+            }
+            final int valueEnd = trimEnd(valueStart, pos);
+            value = header.substring(valueStart, valueEnd);
+            // keep the '=' of "name=" with an empty value.
+            end = valueEnd > valueStart ? valueEnd : equals + 1;
+        }
+        return true;
+    }
+
+    /**
+     * reads a quoted-string starting at the current position,
+     * leaving the position after the closing quote.
+     */
+    private String readQuoted() {
+        // skip the open quote
+        pos++;
+        final int valueStart = pos;
+        StringBuilder unescaped = null;
+        while (pos < length) {
+            final char c = header.charAt(pos);
+            if (c == '"') {
+                final String v = unescaped == null ?
+                    header.substring(valueStart, pos) : unescaped.toString();
+                pos++;
+                return v;
+            }
+            if (c == '\\' && pos + 1 < length) {
+                if (unescaped == null) {
+                    unescaped = new StringBuilder();
+                    unescaped.append(header, valueStart, pos);
+                }
+                unescaped.append(header.charAt(pos + 1));
+                pos += 2;
+                continue;
+            }
+            if (unescaped != null) {
+                unescaped.append(c);
+            }
+            pos++;
+        }
+        throw new IllegalArgumentException("unterminated quoted value: " + header);
+    }
+
+    private static boolean isSeparator(final char c) {
+        return c == ';' || c == ',';
+    }
+
+    private void applyAttribute(final DefaultCookie cookie) {
+        if ("$Path".equalsIgnoreCase(name)) {
+            cookie.setPath(value);
+        }
+        else if ("$Domain".equalsIgnoreCase(name)) {
+            cookie.setDomain(value);
+        }
+    }
+
+    private int trimEnd(final int from, final int to) {
+        int e = to;
+        while (e > from && Character.isWhitespace(header.charAt(e - 1))) {
+            e--;
+        }
+        return e;
+    }
+}
@@ -145,10 +145,51 @@ public class CookieUtils {
         //   3.  Concatenate the resulting labels, separated by a %x2E (".")
         //       character.
 
+        // [ nearly every host we see is already lower case LDH, which 
+        //   IDN.toASCII would hand back unchanged, so skip it. ]
+        if (isCanonicalLdh(host)) {
+            return host;
+        }
+
         // [ java.net.IDN.toASCII supports full hostnames and RFC3490 ]
         return IDN.toASCII(host).toLowerCase();
     }
 
+    private static boolean isAscii(final String host) {
+        for (int i = 0; i < host.length(); i++) {
+            if (host.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the host consists only of non-empty labels of 
+     * at most 63 lower case letters, digits and hyphens.
+     */
+    private static boolean isCanonicalLdh(final String host) {
+        int labelLength = 0;
+        for (int i = 0; i < host.length(); i++) {
+            final char c = host.charAt(i);
+            if (c == '.') {
+                if (labelLength == 0) {
+                    return false;
+                }
+                labelLength = 0;
+            }
+            else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-') {
+                if (++labelLength > 63) {
+                    return false;
+                }
+            }
+            else {
+                return false;
+            }
+        }
+        return labelLength > 0;
+    }
+
     /**
      * @return true if and only if the Path setting of the given cookie
      * matches the given request path according to RFC 6265 Section 5.1.4
@@ -291,6 +332,9 @@ public class CookieUtils {
     public static URI makeSafeURI(final String uri) throws URISyntaxException {
         try {
             final URL url = new URL(uri);
+            if (isAscii(url.getHost())) {
+                return new URI(uri);
+            }
             final String safeHost = IDN.toASCII(url.getHost());
             if (safeHost.equals(url.getHost())) {
                 return new URI(uri);
@@ -2,13 +2,24 @@ package org.lantern.cookie;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap; 
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.net.InetAddresses;
+import com.google.common.net.InternetDomainName;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.jboss.netty.handler.codec.http.Cookie; 
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -28,6 +39,14 @@ import org.slf4j.LoggerFactory;
  * All information about the cookies is discarded when the 
  * program exits.
  *
+ * Cookies are indexed by the registrable domain of their Domain 
+ * (e.g. example.com for www.example.com), then by (name, domain, path), 
+ * so a lookup only considers cookies that could belong to the 
+ * request host's domain chain.  The store is bounded both per 
+ * registrable domain and in total, evicting according to RFC 6265 
+ * Section 5.3: expired cookies first, then the least recently 
+ * accessed.
+ *
  */
 public class InMemoryCookieTracker implements CookieTracker {
 
@@ -36,7 +55,38 @@ public class InMemoryCookieTracker implements CookieTracker {
     // controls which cookies are allowed in.
     private CookieFilter.Factory setCookiePolicy; 
     
-    private ConcurrentNavigableMap<CookieKey, CookieHolder> storedCookies;
+    /**
+     * default maximum number of cookies kept for a single registrable 
+     * domain.  RFC 6265 Section 6.1 asks for at least 50.
+     */
+    public static final int DEFAULT_MAX_COOKIES_PER_DOMAIN = 180;
+
+    /**
+     * default maximum number of cookies kept in total.  RFC 6265 
+     * Section 6.1 asks for at least 3000.
+     */
+    public static final int DEFAULT_MAX_COOKIES = 3000;
+
+    /**
+     * default interval between sweeps for expired cookies.
+     */
+    public static final long DEFAULT_EXPIRY_SWEEP_MILLIS = 60 * 1000;
+
+    // registrable domain -> cookies for that domain
+    private final ConcurrentMap<String, DomainCookies> storedCookies = 
+        new ConcurrentHashMap<String, DomainCookies>();
+
+    // total number of stored cookies across all domains.
+    private final AtomicInteger numCookies = new AtomicInteger();
+
+    // serializes global eviction passes.
+    private final Object evictionLock = new Object();
+
+    private final int maxCookiesPerDomain;
+
+    private final int maxCookies;
+
+    private volatile TimerTask expirySweep;
 
     /**
      * construct with default cookie storage 
@@ -63,8 +113,63 @@ public class InMemoryCookieTracker implements CookieTracker {
      *        if setCookiePolicy.accepts(cookie) returns true.
      */ 
     public InMemoryCookieTracker(CookieFilter.Factory setCookiePolicy) {
-        storedCookies = new ConcurrentSkipListMap<CookieKey, CookieHolder>();
+        this(setCookiePolicy, DEFAULT_MAX_COOKIES_PER_DOMAIN, DEFAULT_MAX_COOKIES);
+    }
+
+    /**
+     * construct with a specific storage policy and size limits.
+     *
+     * @param setCookiePolicy  A cookie is retained only 
+     *        if setCookiePolicy.accepts(cookie) returns true.
+     * @param maxCookiesPerDomain maximum number of cookies stored 
+     *        for any one registrable domain.
+     * @param maxCookies maximum number of cookies stored in total.
+     */
+    public InMemoryCookieTracker(CookieFilter.Factory setCookiePolicy, 
+                                 final int maxCookiesPerDomain, final int maxCookies) {
         this.setCookiePolicy = setCookiePolicy;
+        this.maxCookiesPerDomain = maxCookiesPerDomain;
+        this.maxCookies = maxCookies;
+    }
+
+    /**
+     * starts periodically discarding expired cookies on the timer 
+     * given, replacing any sweep that was already running.
+     */
+    public void startExpirySweep(final Timer timer, final long periodMillis) {
+        final TimerTask sweep = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    discardExpiredCookies();
+                }
+                catch (final RuntimeException e) {
+                    log.warn("Error discarding expired cookies", e);
+                }
+            }
+        };
+        stopExpirySweep();
+        expirySweep = sweep;
+        timer.schedule(sweep, periodMillis, periodMillis);
+    }
+
+    /**
+     * stops any running expiry sweep.
+     */
+    public void stopExpirySweep() {
+        final TimerTask sweep = expirySweep;
+        if (sweep != null) {
+            sweep.cancel();
+            expirySweep = null;
+        }
+    }
+
+    /**
+     * @return the number of cookies currently stored, including any
+     * that have expired but not yet been discarded.
+     */
+    public int size() {
+        return numCookies.get();
     }
 
     public void setCookie(final Cookie cookie, final HttpRequest request) {
@@ -122,15 +227,114 @@ public class InMemoryCookieTracker implements CookieTracker {
      */ 
     protected void storeCookie(StoredCookie cookie) {
         final CookieKey key = new CookieKey(cookie);
+        final String registrableDomain = registrableDomain(cookie.getDomain());
+
+        while (true) {
+            final DomainCookies domainCookies = domainCookiesFor(registrableDomain);
+            synchronized (domainCookies) {
+                // lost a race with the sweep discarding this domain, 
+                // try again with a fresh one.
+                if (domainCookies.isRetired()) {
+                    continue;
+                }
+
+                // adopt the creation timestamp of any existing stored cookie with 
+                // the identical key (what we are replacing) according to 
+                // RFC6265 Section 5.3.11 
+                final CookieHolder existing = domainCookies.getCookies().get(key); 
+                if (existing != null) {
+                    cookie.setCreationTimestamp(existing.getCookie().getCreationTimestamp());
+                }
+                if (domainCookies.getCookies().put(key, new CookieHolder(cookie)) == null) {
+                    numCookies.incrementAndGet();
+                }
+
+                final int excess = domainCookies.getCookies().size() - maxCookiesPerDomain;
+                if (excess > 0) {
+                    evict(Collections.singleton(domainCookies), excess);
+                }
+            }
+            break;
+        }
+
+        if (numCookies.get() > maxCookies) {
+            synchronized (evictionLock) {
+                if (numCookies.get() > maxCookies) {
+                    discardExpiredCookies();
+                    final int excess = numCookies.get() - maxCookies;
+                    if (excess > 0) {
+                        evict(storedCookies.values(), excess);
+                    }
+                }
+            }
+        }
+    }
+
+    private DomainCookies domainCookiesFor(final String registrableDomain) {
+        final DomainCookies domainCookies = storedCookies.get(registrableDomain);
+        if (domainCookies != null) {
+            return domainCookies;
+        }
+        final DomainCookies created = new DomainCookies(registrableDomain);
+        final DomainCookies raced = storedCookies.putIfAbsent(registrableDomain, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * evicts up to count cookies from the given domains following the
+     * order of RFC 6265 Section 5.3 step 12: expired cookies first, then 
+     * those with the oldest last-access date.
+     */
+    private void evict(final Collection<DomainCookies> from, final int count) {
+        final long now = System.currentTimeMillis();
+        final List<Eviction> candidates = new ArrayList<Eviction>();
+        for (final DomainCookies domainCookies : from) {
+            for (final Map.Entry<CookieKey, CookieHolder> me : domainCookies.getCookies().entrySet()) {
+                final StoredCookie storedCookie = me.getValue().getCookie();
+                // the access timestamp is snapshotted since lookups may 
+                // update it while we are sorting.
+                candidates.add(new Eviction(domainCookies, me.getKey(), me.getValue(), 
+                    storedCookie.isExpired() ? Long.MIN_VALUE : storedCookie.getAccessTimestamp()));
+            }
+        }
+        Collections.sort(candidates, new Comparator<Eviction>() {
+            @Override
+            public int compare(final Eviction a, final Eviction b) {
+                if (a.rank == b.rank) {
+                    return 0;
+                }
+                return a.rank < b.rank ? -1 : 1;
+            }
+        });
+
+        int evicted = 0;
+        for (final Eviction candidate : candidates) {
+            if (evicted >= count) {
+                break;
+            }
+            if (remove(candidate.domainCookies, candidate.key, candidate.holder)) {
+                log.debug("evicted cookie {} (last accessed {} ms ago)", 
+                          candidate.holder.getCookie(), 
+                          now - candidate.holder.getCookie().getAccessTimestamp());
+                evicted++;
+            }
+        }
+    }
 
-        // adopt the creation timestamp of any existing stored cookie with 
-        // the identical key (what we are replacing) according to 
-        // RFC6265 Section 5.3.11 
-        final CookieHolder existing = storedCookies.get(key); 
-        if (existing != null) {
-            cookie.setCreationTimestamp(existing.getCookie().getCreationTimestamp());
+    private boolean remove(final DomainCookies domainCookies, final CookieKey key, 
+                           final CookieHolder holder) {
+        synchronized (domainCookies) {
+            // this should only remove if the cookie stored
+            // with the key equals() the cookie we saw.  This 
+            // is a necessary precaution because a new cookie 
+            // may have been written into the store with 
+            // different information between detection and deletion.
+            if (domainCookies.getCookies().remove(key, holder)) {
+                numCookies.decrementAndGet();
+                return true;
+            }
+            return false;
         }
-        storedCookies.put(key, new CookieHolder(cookie));
     }
 
     /**
@@ -150,12 +354,29 @@ public class InMemoryCookieTracker implements CookieTracker {
      * (specifically RFC 6265) and is not expired.
      */
     public boolean wouldSendCookie(final Cookie cookie, final URI toRequestUri, final boolean requireValueMatch) {
+        return wouldSendCookie(cookie, toRequestUri, 
+                               registrableDomain(toRequestUri.getHost()), 
+                               requireValueMatch);
+    }
+
+    private boolean wouldSendCookie(final Cookie cookie, final URI toRequestUri, 
+                                    final String registrableDomain, 
+                                    final boolean requireValueMatch) {
+        // any cookie that could be sent to this host has a domain 
+        // that the host domain-matches, and cookies for public suffixes 
+        // are not stored, so they all live under the host's 
+        // registrable domain.
+        final DomainCookies domainCookies = storedCookies.get(registrableDomain);
+        if (domainCookies == null) {
+            return false;
+        }
+
         // find all the cookies with the same name...
         final String cookieName = cookie.getName(); 
         final String cookieValue = cookie.getValue();
 
         final CookieKey byName = new CookieKey(cookieName, "", "");
-        for (CookieHolder val : storedCookies.tailMap(byName).values()) {
+        for (CookieHolder val : domainCookies.getCookies().tailMap(byName).values()) {
             final StoredCookie storedCookie = val.getCookie(); 
 
             // stop iteration when we reach a Cookie with a different Name.
@@ -182,6 +403,8 @@ public class InMemoryCookieTracker implements CookieTracker {
             // domain and path-wise according to RFC6265 Section 5.4.1, 
             // then the answer is Yes, we would send this cookie.
             if (CookieUtils.canBeSent(storedCookie, toRequestUri)) {
+                // RFC6265 Section 5.4 step 3, this feeds eviction.
+                storedCookie.setAccessTimestamp(System.currentTimeMillis());
                 return true;
             }
         }
@@ -211,10 +434,11 @@ public class InMemoryCookieTracker implements CookieTracker {
      */
     public CookieFilter asOutboundCookieFilter(final HttpRequest request, final boolean requireValueMatch) throws URISyntaxException {
         final URI requestUri = CookieUtils.makeSafeURI(request.getUri());
+        final String registrableDomain = registrableDomain(requestUri.getHost());
         return new CookieFilter() {
             @Override
             public boolean accepts(Cookie cookie) {
-                return wouldSendCookie(cookie, requestUri, requireValueMatch);
+                return wouldSendCookie(cookie, requestUri, registrableDomain, requireValueMatch);
             }
         };
     }
@@ -224,24 +448,126 @@ public class InMemoryCookieTracker implements CookieTracker {
      *
      */
     public void discardExpiredCookies() {
-        final Set<Map.Entry<CookieKey, CookieHolder>> toDelete = new HashSet<Map.Entry<CookieKey, CookieHolder>>(); 
+        for (final DomainCookies domainCookies : storedCookies.values()) {
+            for (Map.Entry<CookieKey, CookieHolder> me : domainCookies.getCookies().entrySet()) {
+                if (me.getValue().getCookie().isExpired()) {
+                    remove(domainCookies, me.getKey(), me.getValue());
+                }
+            }
 
-        // iterate all cookies, gather entries that need to be deleted.       
-        for (Map.Entry<CookieKey, CookieHolder> me : storedCookies.entrySet()) {
-            if (me.getValue().getCookie().isExpired()) {
-                toDelete.add(me);
+            // drop the domain entirely once it's empty.  storeCookie 
+            // checks the retired flag under the same lock, so nothing 
+            // can be added to it after this.
+            synchronized (domainCookies) {
+                if (domainCookies.getCookies().isEmpty()) {
+                    domainCookies.retire();
+                    storedCookies.remove(domainCookies.getRegistrableDomain(), domainCookies);
+                }
             }
         }
-        // delete the cookies gathered in the prior loop
-        for (Map.Entry<CookieKey, CookieHolder> me: toDelete) {
-            // this should only remove if the cookie stored
-            // with the key in the entry equals() the cookie 
-            // we saw above. This is a necessary precaution 
-            // because a new cookie may have been written into 
-            // the store with different information changing
-            // the expiration status of the cookie between 
-            // detection and deletion.
-            storedCookies.remove(me.getKey(), me.getValue());
+    }
+
+    /**
+     * @return the key cookies sent to or from the given host are 
+     * indexed under -- the registrable domain (public suffix plus one 
+     * label) where there is one, or the canonical host itself for 
+     * IP addresses, public suffixes and anything unparseable.
+     */
+    static String registrableDomain(final String host) {
+        if (host == null) {
+            return "";
+        }
+        return REGISTRABLE_DOMAINS.getUnchecked(host);
+    }
+
+    // public suffix lookups are relatively expensive and the same 
+    // handful of hosts come up over and over.
+    private static final LoadingCache<String, String> REGISTRABLE_DOMAINS = 
+        CacheBuilder.newBuilder().maximumSize(1024).build(
+            new CacheLoader<String, String>() {
+                @Override
+                public String load(final String host) {
+                    return computeRegistrableDomain(host);
+                }
+            });
+
+    private static String computeRegistrableDomain(final String host) {
+        final String canonicalHost;
+        try {
+            canonicalHost = CookieUtils.canonicalizeHost(host);
+        }
+        catch (IllegalArgumentException e) {
+            return host.toLowerCase();
+        }
+        if (canonicalHost.length() == 0 || InetAddresses.isInetAddress(canonicalHost)) {
+            return canonicalHost;
+        }
+        try {
+            final InternetDomainName name = InternetDomainName.fromLenient(canonicalHost);
+            if (name.isUnderPublicSuffix()) {
+                return name.topPrivateDomain().name();
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // not a valid domain name, fall through.
+        }
+        catch (IllegalStateException e) {
+            // not a valid domain name, fall through.
+        }
+        return canonicalHost;
+    }
+
+    /**
+     * the cookies for a single registrable domain, ordered by 
+     * (name, domain, path).  Reads are lock free, modifications 
+     * synchronize on this object.
+     */
+    private static final class DomainCookies {
+
+        private final String registrableDomain;
+
+        private final ConcurrentNavigableMap<CookieKey, CookieHolder> cookies = 
+            new ConcurrentSkipListMap<CookieKey, CookieHolder>();
+
+        private boolean retired;
+
+        private DomainCookies(final String registrableDomain) {
+            this.registrableDomain = registrableDomain;
+        }
+
+        public String getRegistrableDomain() {
+            return registrableDomain;
+        }
+
+        public ConcurrentNavigableMap<CookieKey, CookieHolder> getCookies() {
+            return cookies;
+        }
+
+        public boolean isRetired() {
+            return retired;
+        }
+
+        public void retire() {
+            retired = true;
+        }
+    }
+
+    /**
+     * a cookie considered for eviction, ranked by the order it 
+     * should be evicted in.
+     */
+    private static final class Eviction {
+        private final DomainCookies domainCookies;
+        private final CookieKey key;
+        private final CookieHolder holder;
+        private final long rank;
+
+        private Eviction(final DomainCookies domainCookies, final CookieKey key, 
+                         final CookieHolder holder, final long rank) {
+            this.domainCookies = domainCookies;
+            this.key = key;
+            this.holder = holder;
+            this.rank = rank;
         }
     }
 
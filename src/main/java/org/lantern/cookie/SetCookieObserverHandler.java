@@ -2,6 +2,7 @@ package org.lantern.cookie;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -10,9 +11,12 @@ import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.handler.codec.http.Cookie;
 import org.jboss.netty.handler.codec.http.CookieDecoder;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,7 +29,7 @@ public class SetCookieObserverHandler extends SimpleChannelHandler {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     // tracks original upstream requests to correlate with downstream cookies
-    private final Queue<HttpRequest> requests; 
+    private final Queue<RequestInfo> requests; 
     private final SetCookieObserver observer;
 
     public SetCookieObserverHandler() {
@@ -33,19 +37,20 @@ public class SetCookieObserverHandler extends SimpleChannelHandler {
     }
 
     public SetCookieObserverHandler(final SetCookieObserver observer) {
-        this.requests = new ConcurrentLinkedQueue<HttpRequest>();
+        this.requests = new ConcurrentLinkedQueue<RequestInfo>();
         this.observer = observer;
     }
 
     @Override
     public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent evt) throws Exception {
         // track request information to relate with response information. 
-        // A clone of the reqeust is tracked because the request URI and other 
+        // A snapshot of the reqeust is tracked because the request URI and other 
         // parts of the request can be mutated downstream for various reasons 
-        // (eg LaeHttpRequestTransformer)
-        if (evt.getMessage() instanceof HttpRequest) {
-            final HttpRequest request = (HttpRequest) evt.getMessage();            
-            requests.add(CookieUtils.copyHttpRequestInfo(request));
+        // (eg LaeHttpRequestTransformer).  The snapshot only holds references 
+        // to the immutable parts; a full copy of the request is only built 
+        // if the response actually carries a Set-Cookie.
+        if (this.observer != null && evt.getMessage() instanceof HttpRequest) {
+            requests.add(new RequestInfo((HttpRequest) evt.getMessage()));
         }
         ctx.sendUpstream(evt);
     }
@@ -65,11 +70,13 @@ public class SetCookieObserverHandler extends SimpleChannelHandler {
      *
      */
     void handleSetCookies(final HttpResponse response) {
+        if (this.observer == null) {
+            return;
+        }
         // pop the request corresponding to this response.
-        final HttpRequest request = requests.remove();
-        // if anyone is listening, gather up the set-cookies in the request
-        // and pass them along.
-        if (this.observer != null && response.containsHeader(HttpHeaders.Names.SET_COOKIE)) {
+        final RequestInfo request = requests.remove();
+        // gather up the set-cookies in the request and pass them along.
+        if (response.containsHeader(HttpHeaders.Names.SET_COOKIE)) {
             final List<String> setCookieHeaders = response.getHeaders(HttpHeaders.Names.SET_COOKIE);
             final List<Cookie> setCookies = new ArrayList<Cookie>();
             final CookieDecoder decoder = new CookieDecoder();
@@ -84,7 +91,7 @@ public class SetCookieObserverHandler extends SimpleChannelHandler {
                 }
             }
             if (!setCookies.isEmpty()) {
-                this.observer.setCookies(setCookies, request);
+                this.observer.setCookies(setCookies, request.toHttpRequest());
             }
         }
     }
@@ -95,4 +102,34 @@ public class SetCookieObserverHandler extends SimpleChannelHandler {
         log.error("Caught exception observing Set-Cookie headers: {}", e.getCause());
     }
 
+    /**
+     * the parts of a request needed to rebuild it with 
+     * CookieUtils.copyHttpRequestInfo semantics later on. 
+     */
+    private static final class RequestInfo {
+        private final HttpVersion version;
+        private final HttpMethod method;
+        private final String uri;
+        private final List<Map.Entry<String, String>> headers;
+
+        private RequestInfo(final HttpRequest request) {
+            this.version = request.getProtocolVersion();
+            this.method = request.getMethod();
+            this.uri = request.getUri();
+            // this is a new list, so later changes to the request's 
+            // headers don't show up in it.
+            this.headers = request.getHeaders();
+        }
+
+        private HttpRequest toHttpRequest() {
+            final HttpVersion verCopy = 
+                new HttpVersion(version.getText(), version.isKeepAliveDefault());
+            final DefaultHttpRequest request = new DefaultHttpRequest(verCopy, method, uri);
+            for (final Map.Entry<String, String> header : headers) {
+                request.addHeader(header.getKey(), header.getValue());
+            }
+            return request;
+        }
+    }
+
 }
\ No newline at end of file
@@ -186,7 +186,7 @@ public class StoredCookie extends DefaultCookie {
     
     /** 
      * set the creation time of this Cookie in 
-     * seconds since the epoch.
+     * milliseconds since the epoch.
      */ 
     public void setCreationTimestamp(long timestamp) {
         this.creationTimestamp = timestamp;
@@ -232,8 +232,8 @@ public class StoredCookie extends DefaultCookie {
         if (maxAge == -1) {
             return false;
         }
-        long now = System.currentTimeMillis() / 1000; 
-        long age = now - creationTimestamp; 
+        // creationTimestamp is in milliseconds, maxAge in seconds.
+        long age = (System.currentTimeMillis() - creationTimestamp) / 1000; 
         if (age > maxAge) {
             return true;
         }
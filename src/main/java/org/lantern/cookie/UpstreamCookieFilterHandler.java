@@ -1,14 +1,10 @@
 package org.lantern.cookie;
 
-import java.util.Set;
-
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.handler.codec.http.Cookie;
-import org.jboss.netty.handler.codec.http.CookieDecoder;
-import org.jboss.netty.handler.codec.http.CookieEncoder;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.slf4j.Logger;
@@ -47,6 +43,9 @@ public class UpstreamCookieFilterHandler extends SimpleChannelUpstreamHandler {
      * A name=value pair in the Cookie header value of the request will be retained
      * if and only if the current CookieFilter accepts the value. If no Cookie name=value
      * pairs exist, the Cookie header is removed from the request.
+     * 
+     * The header is scanned in place and only rewritten if some cookie is 
+     * actually rejected.
      */
     public void filterCookies(final HttpRequest request) {
         if (request.containsHeader(HttpHeaders.Names.COOKIE)) {
@@ -56,35 +55,19 @@ public class UpstreamCookieFilterHandler extends SimpleChannelUpstreamHandler {
             }
             
             final String inCookieHeader = request.getHeader(HttpHeaders.Names.COOKIE);
-            Set<Cookie> inCookies = null; 
+            final String outCookieHeader;
             try {
-                inCookies = new CookieDecoder().decode(inCookieHeader);
+                outCookieHeader = CookieHeaderScanner.filter(inCookieHeader, 
+                    log.isDebugEnabled() ? loggingFilter(cookieFilter, request) : cookieFilter);
             }
             catch (IllegalArgumentException e) {
                 log.warn("Ignoring malformed cookie header {}: {}", inCookieHeader, e);
                 return; 
             }
 
-            // empty or invalid, just ignore without modification
-            if (inCookies == null || inCookies.isEmpty()) {
-                return;
-            }
-            
-            CookieEncoder outCookies = new CookieEncoder(false);
-            
-            for (Cookie cookie: inCookies) {
-                if (cookieFilter.accepts(cookie)) {
-                    log.debug("Permitting upstream cookie {}={} in request to {}",
-                              new Object[]{cookie.getName(), cookie.getValue(), request.getUri()});
-                    outCookies.addCookie(cookie);
-                }
-                else {
-                    log.debug("Rejecting upstream cookie {}={} in request to {}", 
-                              new Object[]{cookie.getName(), cookie.getValue(), request.getUri()});
-                }
-            }
-            final String outCookieHeader = outCookies.encode();
-            if (!outCookieHeader.equals(inCookieHeader)) {
+            // the scanner hands back the identical header if nothing 
+            // was dropped, so there's nothing to rewrite.
+            if (outCookieHeader != inCookieHeader) {
                 if (outCookieHeader.length() > 0) {
                     request.setHeader(HttpHeaders.Names.COOKIE, outCookieHeader);
                 }
@@ -94,6 +77,22 @@ public class UpstreamCookieFilterHandler extends SimpleChannelUpstreamHandler {
             }
         }
     }
+
+    private CookieFilter loggingFilter(final CookieFilter cookieFilter, final HttpRequest request) {
+        return new CookieFilter() {
+            @Override
+            public boolean accepts(final Cookie cookie) {
+                if (cookieFilter.accepts(cookie)) {
+                    log.debug("Permitting upstream cookie {}={} in request to {}",
+                              new Object[]{cookie.getName(), cookie.getValue(), request.getUri()});
+                    return true;
+                }
+                log.debug("Rejecting upstream cookie {}={} in request to {}", 
+                          new Object[]{cookie.getName(), cookie.getValue(), request.getUri()});
+                return false;
+            }
+        };
+    }
     
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, 
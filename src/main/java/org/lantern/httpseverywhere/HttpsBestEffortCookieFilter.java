@@ -50,9 +50,12 @@ public class HttpsBestEffortCookieFilter implements CookieFilter {
     
     @Override
     public boolean accepts(final Cookie cookie) {
-        if (whitelist.accepts(cookie)) {
+        // the blacklist is a single match, while the whitelist 
+        // may have to look the cookie up, and most cookies aren't 
+        // on the blacklist at all.
+        if (blacklist.accepts(cookie)) {
             return true;
         }
-        return blacklist.accepts(cookie); 
+        return whitelist.accepts(cookie); 
     }
 }
\ No newline at end of file
@@ -10,6 +10,7 @@ import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import javax.xml.xpath.XPathExpressionException;
 
@@ -25,6 +26,9 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 
 /**
@@ -130,7 +134,7 @@ public class HttpsEverywhere {
             //LOG.info("Rewriting to HTTPS for base URI: {}", toMatch);
             //LOG.info("Got rules in: {}", httpsRules);
             //LOG.info("RULES: {}", rules);
-            if (excluded(uri, ruleSet.getExclusions())) {
+            if (excluded(uri, ruleSet)) {
                 LOG.info("Excluding ignored URI: {}", uri);
                 continue;
             }
@@ -168,20 +172,77 @@ public class HttpsEverywhere {
             return applicable;
         } 
         for (final HttpsRuleSet ruleSet : ruleSets) {
-            if (!excluded(uri, ruleSet.getExclusions())) {
+            if (!excluded(uri, ruleSet)) {
                 applicable.add(ruleSet);
             }
         }
         return applicable;
     }
 
-    private boolean excluded(final String uri,
-        final Collection<String> exclusions) {
-        for (final String exclusion : exclusions) {
-            if (uri.matches(exclusion)) {
-                LOG.info("URI {} matches exclusion {}", uri, exclusion);
-                return true;
+    /**
+     * Returns the securecookie policy for the host of a URI.
+     * 
+     * @param uri The URI.
+     * @return The policy, which is {@link SecureCookiePolicy#NONE} if 
+     * there are no securecookie rules for the host.
+     */
+    public SecureCookiePolicy getSecureCookiePolicy(final String uri) {
+        final String host = hostOf(uri);
+        if (host == null) {
+            return SecureCookiePolicy.NONE;
+        }
+        return secureCookiePolicies.getUnchecked(host);
+    }
+
+    // building a policy means looking up the rulesets for every candidate
+    // domain and compiling their patterns, and the same handful of hosts 
+    // come up over and over.
+    private final LoadingCache<String, SecureCookiePolicy> secureCookiePolicies =
+        CacheBuilder.newBuilder().maximumSize(1024).build(
+            new CacheLoader<String, SecureCookiePolicy>() {
+                @Override
+                public SecureCookiePolicy load(final String host) {
+                    return SecureCookiePolicy.forHost(host, getRules(
+                        LanternUtils.toHttpsCandidates("http://" + host + "/")));
+                }
+            });
+
+    /**
+     * Returns the lower case host of an absolute URI, without parsing the
+     * whole thing.
+     */
+    static String hostOf(final String uri) {
+        final int scheme = uri.indexOf("://");
+        if (scheme == -1) {
+            return null;
+        }
+        int start = scheme + 3;
+        int end = start;
+        while (end < uri.length()) {
+            final char c = uri.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            if (c == '@') {
+                start = end + 1;
             }
+            end++;
+        }
+        final int port = uri.indexOf(':', start);
+        if (port != -1 && port < end) {
+            end = port;
+        }
+        if (end == start) {
+            return null;
+        }
+        return uri.substring(start, end).toLowerCase();
+    }
+
+    private boolean excluded(final String uri, final HttpsRuleSet ruleSet) {
+        final Pattern exclusion = ruleSet.getExclusionPattern();
+        if (exclusion != null && exclusion.matcher(uri).matches()) {
+            LOG.info("URI {} matches exclusions {}", uri, exclusion);
+            return true;
         }
         return false;
     }
@@ -204,6 +265,7 @@ public class HttpsEverywhere {
         private final Collection<HttpsRule> rules;
         private final Collection<HttpsSecureCookieRule> secureCookieRules;
         private final Collection<String> exclusions;
+        private final Pattern exclusionPattern;
 
 
         public HttpsRuleSet(final Collection<HttpsRule> rules,
@@ -212,6 +274,7 @@ public class HttpsEverywhere {
             this.rules = rules;
             this.secureCookieRules = secureCookieRules;
             this.exclusions = exclusions;
+            this.exclusionPattern = SecureCookiePolicy.combine(exclusions);
         }
         
         public Collection<HttpsSecureCookieRule> getSecureCookieRules() {
@@ -225,6 +288,14 @@ public class HttpsEverywhere {
         public Collection<String> getExclusions() {
             return exclusions;
         }
+
+        /**
+         * @return A single pattern matching any URI one of the exclusions
+         * matches, or <code>null</code> if there are no exclusions.
+         */
+        public Pattern getExclusionPattern() {
+            return exclusionPattern;
+        }
         
         @Override
         public String toString() {
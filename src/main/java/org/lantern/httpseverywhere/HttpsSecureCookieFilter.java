@@ -1,14 +1,12 @@
 package org.lantern.httpseverywhere; 
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
+import java.util.regex.Pattern;
 
 import org.jboss.netty.handler.codec.http.Cookie;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.lantern.LanternHub;
 import org.lantern.cookie.CookieFilter;
-import org.lantern.httpseverywhere.HttpsEverywhere.HttpsRuleSet;
 
 /**
  * filters any outbound Cookie header that 
@@ -32,32 +30,26 @@ import org.lantern.httpseverywhere.HttpsEverywhere.HttpsRuleSet;
  */ 
 public class HttpsSecureCookieFilter implements CookieFilter {
     
-    final List<HttpsSecureCookieRule> rules;
+    /**
+     * The name patterns of every applicable rule combined, or null if no
+     * rules apply.
+     */
+    final Pattern names;
     
     public HttpsSecureCookieFilter(HttpRequest context) {
-        rules = new ArrayList<HttpsSecureCookieRule>();
-        for (HttpsRuleSet ruleSet : LanternHub.httpsEverywhere().getApplicableRuleSets(context.getUri())) {
-            for (HttpsSecureCookieRule rule : ruleSet.getSecureCookieRules()) {
-                rules.add(rule);
-            }
-        }
+        final String uri = context.getUri();
+        names = LanternHub.httpsEverywhere().getSecureCookiePolicy(uri).namesFor(uri);
     }
 
     public HttpsSecureCookieFilter(Collection<HttpsSecureCookieRule> rules) {
-        this.rules = new ArrayList<HttpsSecureCookieRule>();
-        for (HttpsSecureCookieRule rule : rules) {
-            this.rules.add(rule);
-        }
+        names = SecureCookiePolicy.forRules(rules).namesFor("");
     }
     
     @Override
     public boolean accepts(final Cookie cookie) {
-        final String cookieName = cookie.getName();
-        for (HttpsSecureCookieRule rule : rules) {
-            if (rule.nameMatches(cookieName)) {
-                return false;
-            }
+        if (names == null) {
+            return true; // no rules.
         }
-        return true; // no match.
+        return !names.matcher(cookie.getName()).matches();
     }
 }
\ No newline at end of file
@@ -1,21 +1,60 @@
 package org.lantern.httpseverywhere;
 
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 
 /* Class representing a parsed HTTPS Everywhere securecookie rule */
 public class HttpsSecureCookieRule {
 
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(HttpsSecureCookieRule.class);
+
     private final String host;
     private final String name;
+    private final Pattern hostPattern;
+    private final Pattern namePattern;
 
     public HttpsSecureCookieRule(final String host, final String name) {
         this.host = host;
         this.name = name;
+        // XXX these are javascript regular expressions. 
+        // mostly should work, but no actual guarantee until run
+        this.hostPattern = compile(host);
+        this.namePattern = compile(name);
+    }
+
+    private static Pattern compile(final String regex) {
+        try {
+            return Pattern.compile(regex);
+        } catch (final PatternSyntaxException e) {
+            LOG.warn("Ignoring securecookie rule with bad pattern: " + regex, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether both of the rule's patterns compiled, as rules we 
+     * can't parse never match anything.
+     */
+    public boolean isValid() {
+        return hostPattern != null && namePattern != null;
+    }
+
+    /**
+     * Returns whether the rule applies to cookies for a host. Like HTTPS
+     * Everywhere, the pattern only needs to match part of the host, so it's
+     * typically anchored.
+     */
+    public boolean hostMatches(final String hostname) {
+        return isValid() && hostPattern.matcher(hostname).find();
     }
 
     public boolean nameMatches(final String cookieName) {
-        // XXX these are javascript regular expressions. 
-        // mostly should work, but no actual guarantee until run
-        return cookieName.matches(name);
+        return isValid() && namePattern.matcher(cookieName).matches();
     }
     
     public String getHost() {
@@ -32,4 +71,4 @@ public class HttpsSecureCookieRule {
     }
 
 
-}
\ No newline at end of file
+}
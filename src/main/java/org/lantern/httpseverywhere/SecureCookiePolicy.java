@@ -0,0 +1,188 @@
+package org.lantern.httpseverywhere;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.lantern.httpseverywhere.HttpsEverywhere.HttpsRuleSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The HTTPS Everywhere securecookie rules for a single host, compiled up
+ * front. Policies are immutable, so {@link HttpsEverywhere} caches one per
+ * host and every request to the host shares it.
+ *
+ * The name patterns of all the rules that apply to the host are combined
+ * into a single pattern, so deciding whether a cookie is secure takes one
+ * match however many rules there are. Rulesets with exclusions still have
+ * to be checked against each URI, but only for the few hosts that have
+ * securecookie rules in such a ruleset.
+ */
+public final class SecureCookiePolicy {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SecureCookiePolicy.class);
+
+    /**
+     * The policy for hosts without any securecookie rules.
+     */
+    public static final SecureCookiePolicy NONE = new SecureCookiePolicy(
+        Collections.<String>emptyList(), Collections.<Conditional>emptyList());
+
+    /**
+     * Name patterns from rulesets without exclusions.
+     */
+    private final List<String> names;
+
+    /**
+     * Rulesets with exclusions.
+     */
+    private final List<Conditional> conditional;
+
+    /**
+     * All the name patterns combined, for URIs nothing is excluded for.
+     */
+    private final Pattern allNames;
+
+    private SecureCookiePolicy(final List<String> names,
+        final List<Conditional> conditional) {
+        this.names = names;
+        this.conditional = conditional;
+        final List<String> all = new ArrayList<String>(names);
+        for (final Conditional c : conditional) {
+            all.addAll(c.names);
+        }
+        this.allNames = combine(all);
+    }
+
+    /**
+     * Creates a policy from the rulesets that might apply to a host,
+     * keeping only the securecookie rules whose host pattern matches it.
+     *
+     * @param host The host.
+     * @param ruleSets The rulesets for the host's domain.
+     * @return The policy.
+     */
+    public static SecureCookiePolicy forHost(final String host,
+        final Collection<HttpsRuleSet> ruleSets) {
+        final List<String> names = new ArrayList<String>();
+        final List<Conditional> conditional = new ArrayList<Conditional>();
+        for (final HttpsRuleSet ruleSet : ruleSets) {
+            final List<String> ruleSetNames = new ArrayList<String>();
+            for (final HttpsSecureCookieRule rule :
+                ruleSet.getSecureCookieRules()) {
+                if (rule.hostMatches(host)) {
+                    ruleSetNames.add(rule.getName());
+                }
+            }
+            if (ruleSetNames.isEmpty()) {
+                continue;
+            }
+            if (ruleSet.getExclusionPattern() == null) {
+                names.addAll(ruleSetNames);
+            } else {
+                conditional.add(new Conditional(
+                    ruleSet.getExclusionPattern(), ruleSetNames));
+            }
+        }
+        if (names.isEmpty() && conditional.isEmpty()) {
+            return NONE;
+        }
+        return new SecureCookiePolicy(names, conditional);
+    }
+
+    /**
+     * Creates a policy that applies a set of rules regardless of host.
+     *
+     * @param rules The rules.
+     * @return The policy.
+     */
+    public static SecureCookiePolicy forRules(
+        final Collection<HttpsSecureCookieRule> rules) {
+        final List<String> names = new ArrayList<String>();
+        for (final HttpsSecureCookieRule rule : rules) {
+            if (rule.isValid()) {
+                names.add(rule.getName());
+            }
+        }
+        return new SecureCookiePolicy(names,
+            Collections.<Conditional>emptyList());
+    }
+
+    /**
+     * Returns the pattern for the names of cookies that should only be
+     * sent securely with a request.
+     *
+     * @param uri The URI of the request.
+     * @return The pattern, or <code>null</code> if no cookies need to be
+     * secure.
+     */
+    public Pattern namesFor(final String uri) {
+        boolean excluded = false;
+        for (final Conditional c : conditional) {
+            if (c.exclusion.matcher(uri).matches()) {
+                excluded = true;
+                break;
+            }
+        }
+        if (!excluded) {
+            return allNames;
+        }
+        final List<String> applicable = new ArrayList<String>(names);
+        for (final Conditional c : conditional) {
+            if (!c.exclusion.matcher(uri).matches()) {
+                applicable.addAll(c.names);
+            }
+        }
+        return combine(applicable);
+    }
+
+    /**
+     * Combines patterns into one that matches whatever any of them would
+     * match, skipping any that don't compile.
+     *
+     * @param regexes The patterns.
+     * @return The combined pattern, or <code>null</code> if there are no
+     * patterns.
+     */
+    static Pattern combine(final Collection<String> regexes) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String regex : regexes) {
+            try {
+                Pattern.compile(regex);
+            } catch (final PatternSyntaxException e) {
+                LOG.warn("Ignoring bad pattern: " + regex, e);
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('|');
+            }
+            sb.append("(?:").append(regex).append(')');
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "SecureCookiePolicy [names=" + allNames + "]";
+    }
+
+    private static final class Conditional {
+
+        private final Pattern exclusion;
+
+        private final List<String> names;
+
+        private Conditional(final Pattern exclusion, final List<String> names) {
+            this.exclusion = exclusion;
+            this.names = names;
+        }
+    }
+}
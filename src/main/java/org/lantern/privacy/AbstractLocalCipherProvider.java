@@ -37,7 +37,25 @@ abstract class AbstractLocalCipherProvider implements LocalCipherProvider {
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final File paramsFile;
     private final File validatorFile;
-    private Key localKey = null;
+    private volatile Key localKey = null;
+    
+    /**
+     * The parameters every cipher is initialized with, kept once they've
+     * been loaded or created so we don't read the file each time.
+     */
+    private volatile AlgorithmParameters params = null;
+    
+    /**
+     * Ciphers given back through releaseLocalCipher, by mode, for reuse
+     * on the thread that released them.
+     */
+    private final ThreadLocal<Cipher[]> idleCiphers = 
+        new ThreadLocal<Cipher[]>() {
+            @Override
+            protected Cipher[] initialValue() {
+                return new Cipher[Cipher.UNWRAP_MODE + 1];
+            }
+        };
     
     AbstractLocalCipherProvider() {
         this(DEFAULT_VALIDATOR_FILE, DEFAULT_CIPHER_PARAMS_FILE);
@@ -82,6 +100,8 @@ abstract class AbstractLocalCipherProvider implements LocalCipherProvider {
      */
     public void reset() throws IOException {
         localKey = null;
+        params = null;
+        idleCiphers.remove();
         FileUtils.forceDelete(paramsFile);
         FileUtils.forceDelete(validatorFile);
     }
@@ -133,8 +153,41 @@ abstract class AbstractLocalCipherProvider implements LocalCipherProvider {
         return Cipher.getInstance(getAlgorithm());
     }
 
+    /**
+     * Once we have the key and parameters this just initializes a cipher,
+     * reusing one this thread released if there is one, so callers don't 
+     * wait on each other or on the file system. Getting the key and 
+     * parameters the first time is synchronized.
+     */
+    @Override
+    public Cipher newLocalCipher(int opmode) throws IOException, GeneralSecurityException {
+        final Key key = localKey;
+        final AlgorithmParameters cached = params;
+        if (key == null || cached == null) {
+            return loadLocalCipher(opmode);
+        }
+        final Cipher[] idle = idleCiphers.get();
+        Cipher cipher = null;
+        if (opmode < idle.length) {
+            cipher = idle[opmode];
+            idle[opmode] = null;
+        }
+        if (cipher == null) {
+            cipher = getCipher();
+        }
+        cipher.init(opmode, key, cached);
+        return cipher;
+    }
+
     @Override
-    public synchronized Cipher newLocalCipher(int opmode) throws IOException, GeneralSecurityException {
+    public void releaseLocalCipher(int opmode, Cipher cipher) {
+        final Cipher[] idle = idleCiphers.get();
+        if (opmode < idle.length) {
+            idle[opmode] = cipher;
+        }
+    }
+
+    private synchronized Cipher loadLocalCipher(int opmode) throws IOException, GeneralSecurityException {
         final boolean init = !isInitialized();
         
         if (localKey == null) {
@@ -149,7 +202,9 @@ abstract class AbstractLocalCipherProvider implements LocalCipherProvider {
             saveParameters(cipher);
         }
         else {
-           final AlgorithmParameters params = loadParameters();
+           if (params == null) {
+               params = loadParameters();
+           }
            cipher.init(opmode, localKey, params);
         }
         return cipher;
@@ -163,9 +218,10 @@ abstract class AbstractLocalCipherProvider implements LocalCipherProvider {
     }
 
     void saveParameters(final Cipher cipher) throws IOException {
-        final AlgorithmParameters params = cipher.getParameters();
-        final byte[] encodedParams = params.getEncoded();
+        final AlgorithmParameters created = cipher.getParameters();
+        final byte[] encodedParams = created.getEncoded();
         FileUtils.writeByteArrayToFile(paramsFile, encodedParams);
+        params = created;
     }
 
     boolean checkKeyValid(byte[] key, byte[] validator) throws IOException, GeneralSecurityException {
@@ -0,0 +1,142 @@
+package org.lantern.privacy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * LocalCipherInputStream
+ *
+ * Decrypts a stream with a local cipher. Unlike CipherInputStream this
+ * reads and decrypts large chunks at a time, reports a corrupt stream or
+ * wrong key as an IOException, and gives the cipher back to its provider
+ * when closed.
+ */
+public class LocalCipherInputStream extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final LocalCipherProvider provider;
+    private final Cipher cipher;
+    private final byte[] encrypted = new byte[BUFFER_SIZE];
+    private byte[] decrypted = new byte[BUFFER_SIZE + 32];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    public LocalCipherInputStream(final InputStream in,
+        final LocalCipherProvider provider)
+        throws IOException, GeneralSecurityException {
+        super(in);
+        this.provider = provider;
+        this.cipher = provider.newLocalCipher(Cipher.DECRYPT_MODE);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return decrypted[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+        throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, limit - pos);
+        System.arraycopy(decrypted, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            final int step = (int) Math.min(n - skipped, limit - pos);
+            pos += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Makes sure there's decrypted data to read.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (pos >= limit) {
+            if (finished) {
+                return false;
+            }
+            pos = 0;
+            final int n = in.read(encrypted);
+            try {
+                if (n == -1) {
+                    finished = true;
+                    ensureCapacity(0);
+                    limit = cipher.doFinal(decrypted, 0);
+                } else {
+                    ensureCapacity(n);
+                    limit = cipher.update(encrypted, 0, n, decrypted, 0);
+                }
+            } catch (final GeneralSecurityException e) {
+                throw new IOException("Could not decrypt stream", e);
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(final int inputLength) {
+        final int size = cipher.getOutputSize(inputLength);
+        if (decrypted.length < size) {
+            decrypted = new byte[size];
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            in.close();
+        } finally {
+            provider.releaseLocalCipher(Cipher.DECRYPT_MODE, cipher);
+        }
+    }
+}
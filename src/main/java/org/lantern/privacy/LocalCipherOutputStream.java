@@ -0,0 +1,124 @@
+package org.lantern.privacy;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * LocalCipherOutputStream
+ *
+ * Encrypts a stream with a local cipher. Unlike CipherOutputStream this
+ * collects small writes and encrypts them in large chunks, and gives the
+ * cipher back to its provider when closed.
+ */
+public class LocalCipherOutputStream extends FilterOutputStream {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final LocalCipherProvider provider;
+    private final Cipher cipher;
+    private final byte[] plain = new byte[BUFFER_SIZE];
+    private byte[] encrypted = new byte[BUFFER_SIZE + 32];
+    private int count = 0;
+    private boolean closed = false;
+
+    public LocalCipherOutputStream(final OutputStream out,
+        final LocalCipherProvider provider)
+        throws IOException, GeneralSecurityException {
+        super(out);
+        this.provider = provider;
+        this.cipher = provider.newLocalCipher(Cipher.ENCRYPT_MODE);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (count == plain.length) {
+            encryptBuffer();
+        }
+        plain[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len >= plain.length) {
+            // Big writes skip the buffer.
+            encryptBuffer();
+            encrypt(b, off, len);
+            return;
+        }
+        if (len > plain.length - count) {
+            encryptBuffer();
+        }
+        System.arraycopy(b, off, plain, count, len);
+        count += len;
+    }
+
+    /**
+     * Encrypts and writes out everything written so far, except for
+     * whatever's left of the last block, which the cipher holds until
+     * there's more or we're closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        encryptBuffer();
+        out.flush();
+    }
+
+    private void encryptBuffer() throws IOException {
+        if (count > 0) {
+            encrypt(plain, 0, count);
+            count = 0;
+        }
+    }
+
+    private void encrypt(final byte[] b, final int off, final int len)
+        throws IOException {
+        ensureCapacity(len);
+        try {
+            final int n = cipher.update(b, off, len, encrypted, 0);
+            out.write(encrypted, 0, n);
+        } catch (final GeneralSecurityException e) {
+            throw new IOException("Could not encrypt stream", e);
+        }
+    }
+
+    private void ensureCapacity(final int inputLength) {
+        final int size = cipher.getOutputSize(inputLength);
+        if (encrypted.length < size) {
+            encrypted = new byte[size];
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            encryptBuffer();
+            ensureCapacity(0);
+            final int n = cipher.doFinal(encrypted, 0);
+            out.write(encrypted, 0, n);
+            out.flush();
+        } catch (final GeneralSecurityException e) {
+            throw new IOException("Could not encrypt stream", e);
+        } finally {
+            try {
+                out.close();
+            } finally {
+                provider.releaseLocalCipher(Cipher.ENCRYPT_MODE, cipher);
+            }
+        }
+    }
+}
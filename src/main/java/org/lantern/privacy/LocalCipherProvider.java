@@ -22,6 +22,15 @@ public interface LocalCipherProvider {
      */
     public Cipher newLocalCipher(int opmode) throws IOException, GeneralSecurityException;
 
+    /**
+     * Gives back a Cipher from newLocalCipher that the caller is done
+     * with, so later calls on the same thread can reuse it.
+     *
+     * @param opmode the mode the cipher was created with
+     * @param cipher the cipher, which must not be used again by the caller
+     */
+    public void releaseLocalCipher(int opmode, Cipher cipher);
+
     /** 
      * returns true if the cipher cannot be built until
      * additional user input is provided via feedUserInput.
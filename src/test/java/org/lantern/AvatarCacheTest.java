@@ -0,0 +1,125 @@
+package org.lantern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.jivesoftware.smack.XMPPException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AvatarCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"),
+            "avatar-cache-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testSingleFetchAndDiskTier() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        final AvatarCache.AvatarFetcher fetcher =
+            new AvatarCache.AvatarFetcher() {
+            @Override
+            public byte[] fetch(final String email) {
+                fetches.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (final InterruptedException e) {
+                }
+                if (email.startsWith("none")) {
+                    return null;
+                }
+                return email.getBytes();
+            }
+        };
+        final AvatarCache cache =
+            new AvatarCache(dir, 1024 * 1024, 60 * 1000, 2, fetcher);
+
+        final ExecutorService exec = Executors.newFixedThreadPool(10);
+        final Collection<Future<AvatarCache.Avatar>> futures =
+            new ArrayList<Future<AvatarCache.Avatar>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(exec.submit(new Callable<AvatarCache.Avatar>() {
+                @Override
+                public AvatarCache.Avatar call() throws Exception {
+                    return cache.get("a@gmail.com");
+                }
+            }));
+        }
+        for (final Future<AvatarCache.Avatar> future : futures) {
+            assertArrayEquals("a@gmail.com".getBytes(),
+                future.get().getData());
+        }
+        exec.shutdown();
+        assertEquals("Concurrent misses should only fetch once",
+            1, fetches.get());
+
+        final AvatarCache.Avatar none = cache.get("none@gmail.com");
+        assertNull(none.getData());
+        assertNull(none.getEtag());
+        assertEquals(2, fetches.get());
+
+        // A new cache should pick up the image from disk.
+        final AvatarCache reloaded =
+            new AvatarCache(dir, 1024 * 1024, 60 * 1000, 2, fetcher);
+        final AvatarCache.Avatar avatar = reloaded.get("a@gmail.com");
+        assertArrayEquals("a@gmail.com".getBytes(), avatar.getData());
+        assertNotNull(avatar.getEtag());
+        assertEquals(cache.get("a@gmail.com").getEtag(), avatar.getEtag());
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void testFailuresAndMissingAvatarsAreRetried() throws Exception {
+        final AtomicInteger fetches = new AtomicInteger();
+        final AvatarCache.AvatarFetcher fetcher =
+            new AvatarCache.AvatarFetcher() {
+            @Override
+            public byte[] fetch(final String email) throws XMPPException {
+                if (fetches.incrementAndGet() == 1) {
+                    throw new XMPPException("Not connected");
+                }
+                return null;
+            }
+        };
+        final AvatarCache cache =
+            new AvatarCache(dir, 1024 * 1024, 200, 2, fetcher);
+        try {
+            cache.get("a@gmail.com");
+            fail("Expected the failure to be passed on");
+        } catch (final IOException e) {
+            // Expected.
+        }
+        assertNull(cache.get("a@gmail.com").getData());
+        assertNull(cache.get("a@gmail.com").getData());
+        assertEquals(2, fetches.get());
+
+        // Having no avatar is only cached as long as avatars on disk are.
+        Thread.sleep(300);
+        assertNull(cache.get("a@gmail.com").getData());
+        assertEquals(3, fetches.get());
+    }
+}
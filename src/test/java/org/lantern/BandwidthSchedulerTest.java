@@ -0,0 +1,138 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.lantern.BandwidthScheduler.Direction;
+
+public class BandwidthSchedulerTest {
+
+    private static final long LIMIT = 400 * 1024;
+
+    private static final long TICK =
+        TimeUnit.MILLISECONDS.toNanos(BandwidthScheduler.TICK_MILLIS);
+
+    @Test
+    public void testWeightedShares() throws Exception {
+        final BandwidthScheduler scheduler = newScheduler(LIMIT, 0);
+        scheduler.setWeight("10.0.0.2", 3);
+        final Reader light = new Reader(scheduler, "10.0.0.1", Direction.UP);
+        final Reader heavy = new Reader(scheduler, "10.0.0.2", Direction.UP);
+
+        final int seconds = 10;
+        run(scheduler, seconds, light, heavy);
+
+        final long total = light.flow.getTotal() + heavy.flow.getTotal();
+        assertNear(LIMIT * seconds, total);
+        assertNear(total / 4, light.flow.getTotal());
+        assertNear(total * 3 / 4, heavy.flow.getTotal());
+        assertNear(LIMIT / 4, light.flow.getRate());
+        assertNear(LIMIT * 3 / 4, heavy.flow.getRate());
+
+        final List<PeerBandwidth> peers = scheduler.getPeers();
+        assertEquals(2, peers.size());
+        for (final PeerBandwidth peer : peers) {
+            assertEquals(1, peer.getConnections());
+            assertEquals(0, peer.getDownRate());
+        }
+        assertEquals(LIMIT, scheduler.getUploadLimit());
+        assertEquals(0, scheduler.getDownloadLimit());
+    }
+
+    @Test
+    public void testIdlePeerShareGoesToOthers() throws Exception {
+        final BandwidthScheduler scheduler = newScheduler(LIMIT, LIMIT);
+        final Reader busy = new Reader(scheduler, "10.0.0.1", Direction.DOWN);
+        final Reader idle = new Reader(scheduler, "10.0.0.2", Direction.DOWN);
+        idle.idle = true;
+
+        run(scheduler, 5, busy, idle);
+        assertNear(LIMIT * 5, busy.flow.getTotal());
+        assertEquals(0, idle.flow.getTotal());
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        final BandwidthScheduler scheduler = newScheduler(0, 0);
+        final Reader reader = new Reader(scheduler, "10.0.0.1", Direction.UP);
+        scheduler.tick(TICK);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(!reader.flow.spend(64 * 1024));
+        }
+    }
+
+    @Test
+    public void testClosedPeersAreDropped() throws Exception {
+        final BandwidthScheduler scheduler = newScheduler(LIMIT, LIMIT);
+        final Reader reader = new Reader(scheduler, "10.0.0.1", Direction.UP);
+        scheduler.tick(TICK);
+        assertEquals(1, scheduler.getPeers().size());
+        reader.flow.remove(reader);
+        scheduler.tick(2 * TICK);
+        assertEquals(0, scheduler.getPeers().size());
+    }
+
+    /**
+     * Has every reader read as fast as it's allowed to in 8K reads.
+     */
+    private void run(final BandwidthScheduler scheduler, final int seconds,
+        final Reader... readers) {
+        long now = TICK;
+        scheduler.tick(now);
+        now += TICK;
+        final long ticks = TimeUnit.SECONDS.toNanos(seconds) / TICK;
+        for (long i = 0; i < ticks; i++) {
+            for (final Reader reader : readers) {
+                while (!reader.paused && !reader.idle) {
+                    if (reader.flow.spend(8 * 1024)) {
+                        reader.pause();
+                    }
+                }
+            }
+            scheduler.tick(now);
+            now += TICK;
+        }
+    }
+
+    private BandwidthScheduler newScheduler(final long up, final long down) {
+        return new BandwidthScheduler() {
+            @Override
+            protected long limit(final Direction direction) {
+                return direction == Direction.UP ? up : down;
+            }
+        };
+    }
+
+    private void assertNear(final long expected, final long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+            Math.abs(expected - actual) <= expected / 20 + 32 * 1024);
+    }
+
+    private static final class Reader implements BandwidthScheduler.Pausable {
+
+        private final BandwidthScheduler.Flow flow;
+
+        private boolean paused;
+
+        private boolean idle;
+
+        private Reader(final BandwidthScheduler scheduler, final String peer,
+            final Direction direction) {
+            this.flow = scheduler.register(peer, direction, this);
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            paused = false;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelLifecycleTest {
+
+    private final ChannelGroup channels = new DefaultChannelGroup();
+    private final ChannelLifecycle lifecycle = new ChannelLifecycle();
+    private final List<Channel> sessions = new CopyOnWriteArrayList<Channel>();
+    private LocalAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        address = new LocalAddress(LocalAddress.EPHEMERAL);
+        final ServerBootstrap sb =
+            new ServerBootstrap(new DefaultLocalServerChannelFactory());
+        sb.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(
+                    lifecycle.newHandler(ChannelLifecycle.Role.GIVE_MODE),
+                    new SimpleChannelUpstreamHandler() {
+                        @Override
+                        public void channelConnected(
+                            final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) {
+                            sessions.add(e.getChannel());
+                        }
+                    });
+            }
+        });
+        final Channel server = sb.bind(address);
+        address = (LocalAddress) server.getLocalAddress();
+        channels.add(server);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channels.close().awaitUninterruptibly();
+    }
+
+    @Test
+    public void testClosesIdleChannels() throws Exception {
+        lifecycle.setTimeouts(ChannelLifecycle.Role.PEER, 300, 0);
+        lifecycle.setTimeouts(ChannelLifecycle.Role.GIVE_MODE, 0, 0);
+        final Channel ch = connect(ChannelLifecycle.Role.PEER);
+        assertEquals(1, lifecycle.stats(ChannelLifecycle.Role.PEER).getOpen());
+        assertEquals(1,
+            lifecycle.stats(ChannelLifecycle.Role.GIVE_MODE).getOpen());
+
+        // Channels that keep writing stay open.
+        for (int i = 0; i < 6; i++) {
+            ch.write(ChannelBuffers.wrappedBuffer(new byte[] {1}))
+                .awaitUninterruptibly();
+            Thread.sleep(100);
+            lifecycle.sweep();
+        }
+        assertTrue(ch.isOpen());
+
+        Thread.sleep(400);
+        lifecycle.sweep();
+        ch.getCloseFuture().awaitUninterruptibly(2000);
+        assertFalse(ch.isOpen());
+        final ChannelRoleStats peers =
+            lifecycle.stats(ChannelLifecycle.Role.PEER);
+        assertEquals(0, peers.getOpen());
+        assertEquals(1, peers.getOpened());
+        assertEquals(1, peers.getClosed());
+        assertEquals(1, peers.getClosedPerMinute());
+        assertEquals(1, peers.getReaped());
+
+        // The other end was closed by the peer, not by us.
+        Thread.sleep(100);
+        final ChannelRoleStats give =
+            lifecycle.stats(ChannelLifecycle.Role.GIVE_MODE);
+        assertEquals(0, give.getOpen());
+        assertEquals(1, give.getClosed());
+        assertEquals(0, give.getReaped());
+    }
+
+    @Test
+    public void testClosesChannelsOpenTooLong() throws Exception {
+        lifecycle.setTimeouts(ChannelLifecycle.Role.LAE, 0, 300);
+        final Channel ch = connect(ChannelLifecycle.Role.LAE);
+        for (int i = 0; i < 5; i++) {
+            ch.write(ChannelBuffers.wrappedBuffer(new byte[] {1}))
+                .awaitUninterruptibly();
+            Thread.sleep(100);
+        }
+        lifecycle.sweep();
+        ch.getCloseFuture().awaitUninterruptibly(2000);
+        assertFalse(ch.isOpen());
+        assertEquals(1, lifecycle.stats(ChannelLifecycle.Role.LAE).getReaped());
+    }
+
+    @Test
+    public void testChannelsWithoutMaxAge() throws Exception {
+        lifecycle.setTimeouts(ChannelLifecycle.Role.GIVE_MODE, 300, 100);
+        lifecycle.setTimeouts(ChannelLifecycle.Role.PEER, 0, 0);
+        final Channel ch = connect(ChannelLifecycle.Role.PEER);
+        Thread.sleep(100);
+        // The server side of the connection is the session.
+        assertEquals(1,
+            lifecycle.stats(ChannelLifecycle.Role.GIVE_MODE).getOpen());
+        lifecycle.removeMaxAge(sessions.get(0));
+        for (int i = 0; i < 3; i++) {
+            ch.write(ChannelBuffers.wrappedBuffer(new byte[] {1}))
+                .awaitUninterruptibly();
+            Thread.sleep(100);
+            lifecycle.sweep();
+        }
+        assertTrue(ch.isOpen());
+
+        // It's still closed once it goes idle.
+        Thread.sleep(400);
+        lifecycle.sweep();
+        ch.getCloseFuture().awaitUninterruptibly(2000);
+        assertFalse(ch.isOpen());
+        assertEquals(1,
+            lifecycle.stats(ChannelLifecycle.Role.GIVE_MODE).getReaped());
+    }
+
+    @Test
+    public void testGaugesByRole() throws Exception {
+        final Channel browser = connect(ChannelLifecycle.Role.BROWSER);
+        connect(ChannelLifecycle.Role.BROWSER);
+        connect(ChannelLifecycle.Role.CENTRAL);
+        lifecycle.sweep();
+        assertEquals(2,
+            lifecycle.stats(ChannelLifecycle.Role.BROWSER).getOpen());
+        assertEquals(2,
+            lifecycle.stats(ChannelLifecycle.Role.BROWSER).getOpenedPerMinute());
+        assertEquals(1,
+            lifecycle.stats(ChannelLifecycle.Role.CENTRAL).getOpen());
+        assertEquals(0,
+            lifecycle.stats(ChannelLifecycle.Role.CENTRAL).getIdle());
+        assertEquals(ChannelLifecycle.Role.values().length,
+            lifecycle.getRoles().size());
+
+        browser.close().awaitUninterruptibly();
+        final ChannelRoleStats stats =
+            lifecycle.stats(ChannelLifecycle.Role.BROWSER);
+        assertEquals(1, stats.getOpen());
+        assertEquals(1, stats.getClosed());
+        assertEquals(0, stats.getReaped());
+    }
+
+    private Channel connect(final ChannelLifecycle.Role role) {
+        final ClientBootstrap cb =
+            new ClientBootstrap(new DefaultLocalClientChannelFactory());
+        cb.getPipeline().addLast("lifecycle", lifecycle.newHandler(role));
+        cb.getPipeline().addLast("handler", new SimpleChannelUpstreamHandler());
+        final Channel ch = cb.connect(address).awaitUninterruptibly()
+            .getChannel();
+        channels.add(ch);
+        return ch;
+    }
+}
@@ -0,0 +1,152 @@
+package org.lantern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DashboardAssetsTest {
+
+    private File dir;
+    private Server server;
+    private int port;
+    private String js;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("assets", "");
+        dir.delete();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("var x").append(i).append(" = 'dashboard';\n");
+        }
+        js = sb.toString();
+        FileUtils.writeStringToFile(new File(dir, "js/app.js"), js, "UTF-8");
+        FileUtils.writeByteArrayToFile(new File(dir, "img/logo.png"),
+            new byte[] {1, 2, 3, 4});
+
+        final DashboardAssets assets =
+            new DashboardAssets(dir, "private, max-age=300");
+        assertEquals(2, assets.size());
+        server = new Server();
+        final SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new HttpServlet() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected void doGet(final HttpServletRequest req,
+                final HttpServletResponse resp) throws ServletException,
+                IOException {
+                if (!assets.serve(req, resp)) {
+                    resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                }
+            }
+        }), "/*");
+        server.setHandler(context);
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testGzipAndEtags() throws Exception {
+        final HttpURLConnection plain = get("/js/app.js", null, null);
+        assertEquals(200, plain.getResponseCode());
+        assertNull(plain.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", plain.getHeaderField("Vary"));
+        assertEquals("private, max-age=300",
+            plain.getHeaderField("Cache-Control"));
+        assertTrue(plain.getContentType().contains("javascript"));
+        assertEquals(js, IOUtils.toString(plain.getInputStream(), "UTF-8"));
+        final String etag = plain.getHeaderField("ETag");
+
+        final HttpURLConnection gzipped = get("/js/app.js", "gzip, deflate",
+            null);
+        assertEquals(200, gzipped.getResponseCode());
+        assertEquals("gzip", gzipped.getHeaderField("Content-Encoding"));
+        assertTrue(gzipped.getContentLength() < js.length() / 4);
+        final String gzipEtag = gzipped.getHeaderField("ETag");
+        assertFalse(etag.equals(gzipEtag));
+        final InputStream is = new GZIPInputStream(gzipped.getInputStream());
+        assertEquals(js, IOUtils.toString(is, "UTF-8"));
+
+        assertEquals(304, get("/js/app.js", null, etag).getResponseCode());
+        assertEquals(304,
+            get("/js/app.js", "gzip", gzipEtag).getResponseCode());
+        // The plain ETag doesn't match the gzipped variant.
+        assertEquals(200, get("/js/app.js", "gzip", etag).getResponseCode());
+        assertNull(get("/js/app.js", "gzip;q=0", null)
+            .getHeaderField("Content-Encoding"));
+    }
+
+    @Test
+    public void testBinaryAndMissingFiles() throws Exception {
+        final HttpURLConnection png = get("/img/logo.png", "gzip", null);
+        assertEquals(200, png.getResponseCode());
+        assertNull(png.getHeaderField("Content-Encoding"));
+        assertNull(png.getHeaderField("Vary"));
+        assertEquals("image/png", png.getContentType());
+        assertArrayEquals(new byte[] {1, 2, 3, 4},
+            IOUtils.toByteArray(png.getInputStream()));
+
+        assertEquals(404, get("/missing.js", null, null).getResponseCode());
+        assertEquals(404, get("/js/", null, null).getResponseCode());
+    }
+
+    @Test
+    public void testMemoryLimit() throws Exception {
+        final byte[] big = new byte[1000];
+        FileUtils.writeByteArrayToFile(new File(dir, "img/big.png"), big);
+        // Files are taken in order until they'd go over the limit.
+        assertEquals(2, new DashboardAssets(dir, "", 1004).size());
+        // The JavaScript only takes up its gzipped size.
+        assertEquals(3, new DashboardAssets(dir, "",
+            1004 + js.length() / 4).size());
+    }
+
+    private HttpURLConnection get(final String path,
+        final String acceptEncoding, final String ifNoneMatch)
+        throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection)
+            new URL("http://127.0.0.1:" + port + path).openConnection();
+        if (acceptEncoding != null) {
+            conn.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        if (ifNoneMatch != null) {
+            conn.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        return conn;
+    }
+}
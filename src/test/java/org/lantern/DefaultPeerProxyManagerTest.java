@@ -1,8 +1,17 @@
 package org.lantern;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.net.Socket;
 import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
@@ -40,4 +49,50 @@ public class DefaultPeerProxyManagerTest {
         assertEquals(l.timedSockets.poll(), cts3);
         assertEquals(l.timedSockets.poll(), cts4);
     }
+
+    @Test public void testSlowPeerDoesNotBlockOthers() throws Exception {
+        final URI slow = new URI("lantern://slow@example.com");
+        final URI fast = new URI("lantern://fast@example.com");
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DefaultPeerProxyManager l = new DefaultPeerProxyManager(true,
+            new DefaultChannelGroup("Local-HTTP-Proxy-Server")) {
+            @Override
+            protected Socket newTransportSocket(final URI peerUri,
+                final Map<URI, AtomicInteger> peerFailureCount)
+                throws IOException {
+                if (peerUri.equals(slow)) {
+                    connecting.countDown();
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                    }
+                }
+                throw new IOException("Could not reach "+peerUri);
+            }
+        };
+        final Map<URI, AtomicInteger> failures = 
+            new ConcurrentHashMap<URI, AtomicInteger>();
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    l.newPeerSocket(slow, failures);
+                } catch (final IOException e) {
+                }
+            }
+        };
+        thread.start();
+        assertTrue(connecting.await(5, TimeUnit.SECONDS));
+        try {
+            // Returns right away even though the slow peer is connecting.
+            l.newPeerSocket(fast, failures);
+            fail("Should not reach the fast peer");
+        } catch (final IOException e) {
+            assertTrue(thread.isAlive());
+        } finally {
+            release.countDown();
+        }
+        thread.join(5000);
+    }
 }
@@ -1,27 +1,244 @@
 package org.lantern;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
-import org.junit.Test;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
 
 public class DefaultTrustedContactsManagerTest {
 
-    @Test public void testLoadingContacts() throws Exception {
-        final DefaultTrustedContactsManager tcm = 
-            new DefaultTrustedContactsManager();
-        tcm.addTrustedContact("test@test.com");
-        
-        
-        final DefaultTrustedContactsManager tcm2 = 
-            new DefaultTrustedContactsManager();
-        assertTrue(tcm2.isTrusted("test@test.com"));
-        
-        tcm.removeTrustedContact("test@test.com");
-        
-        final DefaultTrustedContactsManager tcm3 = 
-            new DefaultTrustedContactsManager();
-        assertTrue(!tcm3.isTrusted("test@test.com"));
-    }
-    
+    private File dir;
+    private File journal;
+    private File legacy;
+
+    /**
+     * Makes every decrypt fail, as it does when the keychain isn't ready.
+     */
+    private boolean failDecrypt;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("trusted", "");
+        dir.delete();
+        dir.mkdirs();
+        journal = new File(dir, "trusted.journal");
+        legacy = new File(dir, "trusted.txt");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testBatchIsOneAppend() throws Exception {
+        final TestManager tcm = new TestManager();
+        final List<String> roster = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            roster.add("contact" + i + "@example.com");
+        }
+        tcm.addTrustedContacts(roster);
+        assertEquals(1, tcm.frames);
+        assertEquals(1000, tcm.getJournalRecords());
+        assertTrue(tcm.isTrusted("contact999@example.com"));
+
+        // Contacts that are already trusted aren't written again.
+        tcm.addTrustedContacts(roster.subList(0, 10));
+        assertEquals(1, tcm.frames);
+
+        tcm.removeTrustedContact("contact0@example.com");
+        tcm.addTrustedContact("new@example.com");
+        assertEquals(3, tcm.frames);
+
+        final TestManager reloaded = new TestManager();
+        assertFalse(reloaded.isTrusted("contact0@example.com"));
+        assertTrue(reloaded.isTrusted("contact1@example.com"));
+        assertTrue(reloaded.isTrusted("new@example.com"));
+        assertEquals(1002, reloaded.getJournalRecords());
+    }
+
+    @Test
+    public void testPartialFrame() throws Exception {
+        final TestManager tcm = new TestManager();
+        tcm.addTrustedContact("a@example.com");
+        tcm.addTrustedContact("b@example.com");
+        final long length = journal.length();
+        final RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.setLength(length - 3);
+        raf.close();
+
+        // We lose the change that didn't make it to disk, but later
+        // changes are still read.
+        final TestManager reloaded = new TestManager();
+        assertTrue(reloaded.isTrusted("a@example.com"));
+        assertFalse(reloaded.isTrusted("b@example.com"));
+        reloaded.addTrustedContact("c@example.com");
+        final TestManager again = new TestManager();
+        assertTrue(again.isTrusted("a@example.com"));
+        assertTrue(again.isTrusted("c@example.com"));
+    }
+
+    @Test
+    public void testDecryptFailureKeepsJournal() throws Exception {
+        final TestManager tcm = new TestManager();
+        for (int i = 0; i < 10; i++) {
+            tcm.addTrustedContact("contact" + i + "@example.com");
+        }
+        final byte[] before = FileUtils.readFileToByteArray(journal);
+
+        failDecrypt = true;
+        final TestManager failed = new TestManager();
+        assertFalse(failed.isTrusted("contact0@example.com"));
+        assertTrue(Arrays.equals(before, FileUtils.readFileToByteArray(journal)));
+
+        // Changes are still appended, but the journal is never rewritten
+        // from the little we know.
+        failed.addTrustedContact("late@example.com");
+        for (int i = 0; i < DefaultTrustedContactsManager.MIN_COMPACT_RECORDS; i++) {
+            failed.addTrustedContact("flaky@example.com");
+            failed.removeTrustedContact("flaky@example.com");
+        }
+        Thread.sleep(200);
+
+        failDecrypt = false;
+        final TestManager reloaded = new TestManager();
+        assertTrue(reloaded.isTrusted("contact9@example.com"));
+        assertTrue(reloaded.isTrusted("late@example.com"));
+        assertFalse(reloaded.isTrusted("flaky@example.com"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final TestManager tcm = new TestManager();
+        tcm.addTrustedContact("keep@example.com");
+        for (int i = 0; i < DefaultTrustedContactsManager.MIN_COMPACT_RECORDS; i++) {
+            tcm.addTrustedContact("flaky@example.com");
+            tcm.removeTrustedContact("flaky@example.com");
+        }
+        for (int i = 0; i < 50 && tcm.isCompacting(); i++) {
+            Thread.sleep(100);
+        }
+        // Compaction runs in the background while we keep writing, so
+        // some of the churn can land after the last one.
+        final int records = tcm.getJournalRecords();
+        assertTrue(records < DefaultTrustedContactsManager.MIN_COMPACT_RECORDS);
+
+        final TestManager reloaded = new TestManager();
+        assertTrue(reloaded.isTrusted("keep@example.com"));
+        assertFalse(reloaded.isTrusted("flaky@example.com"));
+        assertEquals(records, reloaded.getJournalRecords());
+    }
+
+    @Test
+    public void testMigratesLegacyFile() throws Exception {
+        final OutputStream os = new XorOutputStream(new FileOutputStream(legacy));
+        os.write("old@example.com\n\nother@example.com\n".getBytes("UTF-8"));
+        os.close();
+
+        final TestManager tcm = new TestManager();
+        assertTrue(tcm.isTrusted("old@example.com"));
+        assertTrue(tcm.isTrusted("other@example.com"));
+        assertFalse(legacy.exists());
+        assertTrue(new TestManager().isTrusted("old@example.com"));
+
+        tcm.clearTrustedContacts();
+        assertFalse(tcm.isTrusted("old@example.com"));
+        assertFalse(new TestManager().isTrusted("old@example.com"));
+    }
+
+    @Test
+    public void testLegacyFileKeptUntilRead() throws Exception {
+        final OutputStream os = new XorOutputStream(new FileOutputStream(legacy));
+        os.write("old@example.com\n".getBytes("UTF-8"));
+        os.close();
+
+        failDecrypt = true;
+        final TestManager failed = new TestManager();
+        assertTrue(legacy.isFile());
+        assertFalse(journal.exists());
+        failed.addTrustedContact("new@example.com");
+
+        failDecrypt = false;
+        final TestManager reloaded = new TestManager();
+        assertTrue(reloaded.isTrusted("old@example.com"));
+        assertTrue(reloaded.isTrusted("new@example.com"));
+        assertFalse(legacy.exists());
+        assertTrue(new TestManager().isTrusted("new@example.com"));
+    }
+
+    @Test
+    public void testJournalIsEncrypted() throws Exception {
+        final TestManager tcm = new TestManager();
+        tcm.addTrustedContacts(Arrays.asList("secret@example.com"));
+        final String raw = IOUtils.toString(journal.toURI(), "ISO-8859-1");
+        assertFalse(raw.contains("secret"));
+    }
+
+    private final class TestManager extends DefaultTrustedContactsManager {
+
+        private int frames;
+
+        private TestManager() {
+            super(journal, legacy);
+        }
+
+        @Override
+        protected OutputStream encrypt(final OutputStream os) {
+            frames++;
+            return new XorOutputStream(os);
+        }
+
+        @Override
+        protected InputStream decrypt(final InputStream is)
+            throws IOException {
+            if (failDecrypt) {
+                throw new IOException("Keychain not ready");
+            }
+            return new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    return b == -1 ? -1 : (b ^ 0x5a);
+                }
+                @Override
+                public int read(final byte[] b, final int off, final int len)
+                    throws IOException {
+                    final int read = super.read(b, off, len);
+                    for (int i = off; i < off + read; i++) {
+                        b[i] ^= 0x5a;
+                    }
+                    return read;
+                }
+            };
+        }
+    }
+
+    private static final class XorOutputStream extends FilterOutputStream {
+
+        private XorOutputStream(final OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            super.write(b ^ 0x5a);
+        }
+    }
 }
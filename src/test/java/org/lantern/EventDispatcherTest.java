@@ -0,0 +1,214 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.eventbus.Subscribe;
+
+public class EventDispatcherTest {
+
+    private ExecutorService executor;
+
+    private EventDispatcher dispatcher;
+
+    private CountDownLatch release;
+
+    private CountDownLatch started;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        dispatcher = new EventDispatcher(executor, 3);
+        release = new CountDownLatch(1);
+        started = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPostersDontWaitAndOrderIsKept() throws Exception {
+        final Subscriber slow = new Subscriber(true);
+        final Subscriber fast = new Subscriber(false);
+        dispatcher.register(slow);
+        dispatcher.register(fast);
+
+        dispatcher.post("a");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // The slow subscriber is stuck on "a", but we can still post and
+        // the fast one still gets everything.
+        dispatcher.post("b");
+        dispatcher.post("c");
+        fast.await(3);
+        assertEquals(3, fast.events.size());
+        assertEquals("c", fast.events.get(2));
+
+        release.countDown();
+        slow.await(3);
+        assertEquals(fast.events, slow.events);
+        assertEquals(6, dispatcher.getDelivered());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final Subscriber slow = new Subscriber(true);
+        dispatcher.register(slow);
+        dispatcher.post(connectivity(ConnectivityStatus.CONNECTING));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        dispatcher.post("a");
+        dispatcher.post(connectivity(ConnectivityStatus.DISCONNECTED));
+        dispatcher.post(connectivity(ConnectivityStatus.CONNECTING));
+        dispatcher.post(connectivity(ConnectivityStatus.CONNECTED));
+        // The same as the last one, so nobody gets it.
+        dispatcher.post(connectivity(ConnectivityStatus.CONNECTED));
+        release.countDown();
+        slow.await(3);
+        Thread.sleep(100);
+
+        assertEquals(3, slow.events.size());
+        assertEquals(connectivity(ConnectivityStatus.CONNECTING),
+            slow.events.get(0));
+        assertEquals("a", slow.events.get(1));
+        // The waiting event became the latest one, and kept its place.
+        assertEquals(connectivity(ConnectivityStatus.CONNECTED),
+            slow.events.get(2));
+        assertEquals(2, dispatcher.getCoalesced());
+        assertEquals(1, dispatcher.getDuplicates());
+    }
+
+    @Test
+    public void testDuplicatesArePerSubscriber() throws Exception {
+        final Subscriber first = new Subscriber(false);
+        dispatcher.register(first);
+        dispatcher.post(connectivity(ConnectivityStatus.CONNECTED));
+        first.await(1);
+
+        // A new subscriber still hears about the current state.
+        final Subscriber second = new Subscriber(false);
+        dispatcher.register(second);
+        dispatcher.post(connectivity(ConnectivityStatus.CONNECTED));
+        second.await(1);
+        Thread.sleep(100);
+        assertEquals(1, first.events.size());
+        assertEquals(1, dispatcher.getDuplicates());
+    }
+
+    @Test
+    public void testFullQueuesDrop() throws Exception {
+        final Subscriber slow = new Subscriber(true);
+        dispatcher.register(slow);
+        dispatcher.post("first");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            dispatcher.post("event" + i);
+        }
+        assertEquals(2, dispatcher.getDropped());
+        assertEquals(Long.valueOf(2), dispatcher.getDroppedBySubscriber()
+            .get(Subscriber.class.getName()));
+        assertEquals(Integer.valueOf(3),
+            dispatcher.getQueued().get(Subscriber.class.getName()));
+        release.countDown();
+        slow.await(4);
+        assertEquals("event2", slow.events.get(3));
+    }
+
+    @Test
+    public void testStateEventsDisplaceOrdinaryOnes() throws Exception {
+        final Subscriber slow = new Subscriber(true);
+        dispatcher.register(slow);
+        dispatcher.post("first");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        dispatcher.post("a");
+        dispatcher.post("b");
+        dispatcher.post("c");
+        // The queue is full, so the oldest ordinary event makes way.
+        dispatcher.post(connectivity(ConnectivityStatus.CONNECTING));
+        assertEquals(1, dispatcher.getDropped());
+        // Ordinary events don't push anything out.
+        dispatcher.post("d");
+        assertEquals(2, dispatcher.getDropped());
+        dispatcher.post(connectivity(ConnectivityStatus.CONNECTED));
+        release.countDown();
+        slow.await(4);
+        Thread.sleep(100);
+
+        assertEquals(4, slow.events.size());
+        assertEquals("b", slow.events.get(1));
+        assertEquals("c", slow.events.get(2));
+        assertEquals(connectivity(ConnectivityStatus.CONNECTED),
+            slow.events.get(3));
+    }
+
+    @Test
+    public void testOnlyHandledEventsAreQueued() throws Exception {
+        final Subscriber subscriber = new Subscriber(false);
+        dispatcher.register(subscriber);
+        dispatcher.post(Integer.valueOf(1));
+        dispatcher.post("a");
+        subscriber.await(1);
+        Thread.sleep(100);
+        assertEquals(1, subscriber.events.size());
+
+        dispatcher.unregister(subscriber);
+        dispatcher.post("b");
+        Thread.sleep(100);
+        assertEquals(1, subscriber.events.size());
+        assertTrue(dispatcher.getQueued().isEmpty());
+    }
+
+    private static ConnectivityStatusChangeEvent connectivity(
+        final ConnectivityStatus status) {
+        return new ConnectivityStatusChangeEvent(status);
+    }
+
+    public class Subscriber {
+
+        private final boolean blocks;
+
+        private final List<Object> events = new CopyOnWriteArrayList<Object>();
+
+        private Subscriber(final boolean blocks) {
+            this.blocks = blocks;
+        }
+
+        @Subscribe
+        public void onString(final String event) throws InterruptedException {
+            handle(event);
+        }
+
+        @Subscribe
+        public void onConnectivity(final ConnectivityStatusChangeEvent event)
+            throws InterruptedException {
+            handle(event);
+        }
+
+        private void handle(final Object event) throws InterruptedException {
+            if (blocks) {
+                started.countDown();
+                release.await();
+            }
+            events.add(event);
+        }
+
+        private void await(final int count) throws InterruptedException {
+            for (int i = 0; i < 500 && events.size() < count; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, events.size());
+        }
+    }
+}
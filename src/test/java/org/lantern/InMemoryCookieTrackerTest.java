@@ -13,6 +13,8 @@ import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import static org.junit.Assert.*;
 import org.junit.Test;
+import org.lantern.cookie.CookieFilter;
+import org.lantern.cookie.CookieUtils;
 import org.lantern.cookie.InMemoryCookieTracker;
 import static org.lantern.TestingUtils.*;
 
@@ -412,6 +414,70 @@ public class InMemoryCookieTrackerTest {
             assertTrue(ci.succeeded());
         }
     }
-    
-    
-}
\ No newline at end of file
+
+    @Test
+    public void testPerDomainEviction() throws Exception {
+        final InMemoryCookieTracker tracker = boundedTracker(3, 100);
+        final URI uri = new URI("http://example.com/");
+
+        for (final String c : new String[] {"a=1", "b=1", "c=1"}) {
+            tracker.setCookie(createDefaultCookie(c), createGetRequest("http://example.com/"));
+            Thread.sleep(5);
+        }
+        // touching a makes b the least recently accessed.
+        assertTrue(tracker.wouldSendCookie(createDefaultCookie("a=1"), uri));
+        Thread.sleep(5);
+        tracker.setCookie(createDefaultCookie("d=1"), createGetRequest("http://example.com/"));
+
+        assertEquals(3, tracker.size());
+        assertTrue(tracker.wouldSendCookie(createDefaultCookie("a=1"), uri));
+        assertFalse(tracker.wouldSendCookie(createDefaultCookie("b=1"), uri));
+        assertTrue(tracker.wouldSendCookie(createDefaultCookie("c=1"), uri));
+        assertTrue(tracker.wouldSendCookie(createDefaultCookie("d=1"), uri));
+
+        // other domains are unaffected by the per domain cap.
+        tracker.setCookie(createDefaultCookie("b=1"), createGetRequest("http://example.org/"));
+        assertEquals(4, tracker.size());
+        assertTrue(tracker.wouldSendCookie(createDefaultCookie("b=1"), new URI("http://example.org/")));
+    }
+
+    @Test
+    public void testGlobalEviction() throws Exception {
+        final InMemoryCookieTracker tracker = boundedTracker(10, 4);
+        final String[] hosts = {"a.com", "b.com", "c.com", "d.com", "e.com"};
+        for (final String host : hosts) {
+            tracker.setCookie(createDefaultCookie("foo=bar"), createGetRequest("http://" + host + "/"));
+            Thread.sleep(5);
+        }
+        assertEquals(4, tracker.size());
+        assertFalse(tracker.wouldSendCookie(createDefaultCookie("foo=bar"), new URI("http://a.com/")));
+        for (int i = 1; i < hosts.length; i++) {
+            assertTrue(tracker.wouldSendCookie(createDefaultCookie("foo=bar"), new URI("http://" + hosts[i] + "/")));
+        }
+    }
+
+    @Test
+    public void testDomainChain() throws Exception {
+        final InMemoryCookieTracker tracker = new InMemoryCookieTracker();
+        tracker.setCookie(createDefaultCookie("foo=bar; domain=example.co.uk"), 
+                          createGetRequest("http://www.example.co.uk/"));
+        final Cookie cookie = createDefaultCookie("foo=bar");
+        assertTrue(tracker.wouldSendCookie(cookie, new URI("http://example.co.uk/")));
+        assertTrue(tracker.wouldSendCookie(cookie, new URI("http://a.b.example.co.uk/")));
+        assertFalse(tracker.wouldSendCookie(cookie, new URI("http://other.co.uk/")));
+        assertFalse(tracker.wouldSendCookie(cookie, new URI("http://badexample.co.uk/")));
+
+        tracker.setCookie(createDefaultCookie("foo=bar"), createGetRequest("http://127.0.0.1/"));
+        assertTrue(tracker.wouldSendCookie(cookie, new URI("http://127.0.0.1/")));
+        assertFalse(tracker.wouldSendCookie(cookie, new URI("http://127.0.0.2/")));
+    }
+
+    private InMemoryCookieTracker boundedTracker(final int maxPerDomain, final int max) {
+        return new InMemoryCookieTracker(new CookieFilter.Factory() {
+            @Override
+            public CookieFilter createCookieFilter(final HttpRequest context) {
+                return new CookieUtils.RFC6265SetCookieFilter(context);
+            }
+        }, maxPerDomain, max);
+    }
+}
@@ -0,0 +1,138 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.junit.Test;
+
+public class IoRuntimeTest {
+
+    @Test
+    public void testOutboundChannelsShareInboundLoop() throws Exception {
+        final IoRuntime runtime = new IoRuntime(4);
+        try {
+            // An echo server standing in for an upstream proxy.
+            final ServerBootstrap echo =
+                new ServerBootstrap(runtime.getServerChannelFactory());
+            echo.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() {
+                    return Channels.pipeline(new SimpleChannelUpstreamHandler() {
+                        @Override
+                        public void messageReceived(final ChannelHandlerContext ctx,
+                            final MessageEvent e) {
+                            e.getChannel().write(e.getMessage());
+                        }
+                    });
+                }
+            });
+            final Channel echoChannel =
+                echo.bind(new InetSocketAddress("127.0.0.1", 0));
+            final InetSocketAddress echoAddress =
+                (InetSocketAddress) echoChannel.getLocalAddress();
+
+            // A relay that opens an outbound channel to the echo server
+            // for each inbound channel, and checks both use one thread.
+            final ServerBootstrap relay =
+                new ServerBootstrap(runtime.getServerChannelFactory());
+            relay.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() {
+                    return Channels.pipeline(new RelayHandler(runtime, echoAddress));
+                }
+            });
+            final Channel relayChannel =
+                relay.bind(new InetSocketAddress("127.0.0.1", 0));
+            final int relayPort =
+                ((InetSocketAddress) relayChannel.getLocalAddress()).getPort();
+
+            final int clients = 8;
+            for (int i = 0; i < clients; i++) {
+                final Socket sock = new Socket("127.0.0.1", relayPort);
+                sock.setSoTimeout(5000);
+                final OutputStream os = sock.getOutputStream();
+                final InputStream is = sock.getInputStream();
+                os.write('x');
+                os.flush();
+                // 's' if the relay's outbound channel ran on the same
+                // thread as its inbound channel.
+                assertEquals('s', is.read());
+                sock.close();
+            }
+            assertEquals(clients, runtime.getAffinityHits());
+
+            final List<IoLoopStats> loops = runtime.getLoops();
+            assertEquals(4, loops.size());
+            long channels = 0;
+            for (final IoLoopStats loop : loops) {
+                channels += loop.getChannels();
+                assertTrue(loop.getQueueDepth() >= 0);
+            }
+            // Each client has an inbound, an outbound and an accepted
+            // echo channel.
+            assertEquals(clients * 3, channels);
+
+            echoChannel.close().awaitUninterruptibly();
+            relayChannel.close().awaitUninterruptibly();
+        } finally {
+            runtime.releaseExternalResources();
+        }
+    }
+
+    private static final class RelayHandler extends SimpleChannelUpstreamHandler {
+
+        private final IoRuntime runtime;
+        private final InetSocketAddress upstream;
+
+        private RelayHandler(final IoRuntime runtime,
+            final InetSocketAddress upstream) {
+            this.runtime = runtime;
+            this.upstream = upstream;
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) {
+            final Channel inbound = e.getChannel();
+            final Thread inboundThread = Thread.currentThread();
+            final ClientBootstrap cb =
+                new ClientBootstrap(runtime.getClientChannelFactory());
+            cb.getPipeline().addLast("handler", new SimpleChannelUpstreamHandler() {
+                @Override
+                public void messageReceived(final ChannelHandlerContext octx,
+                    final MessageEvent oe) {
+                    final ChannelBuffer reply = (ChannelBuffer) oe.getMessage();
+                    reply.setByte(reply.readerIndex(),
+                        Thread.currentThread() == inboundThread ? 's' : 'd');
+                    inbound.write(reply);
+                    oe.getChannel().close();
+                }
+            });
+            final Object msg = e.getMessage();
+            cb.connect(upstream).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(final ChannelFuture future) {
+                    future.getChannel().write(msg);
+                }
+            });
+        }
+    }
+}
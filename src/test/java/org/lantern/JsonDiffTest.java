@@ -0,0 +1,48 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+public class JsonDiffTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testDiff() throws Exception {
+        final JsonNode from = mapper.readTree(
+            "{\"a\":1,\"b\":{\"c\":\"x\",\"d\":[1,2]},\"gone\":true}");
+        final JsonNode to = mapper.readTree(
+            "{\"a\":1,\"b\":{\"c\":\"y\",\"d\":[1,2,3]},\"a/b\":false}");
+
+        final List<Map<String, Object>> ops = JsonDiff.diff(from, to);
+        assertEquals(4, ops.size());
+
+        assertEquals(JsonDiff.REMOVE, ops.get(0).get("op"));
+        assertEquals("/gone", ops.get(0).get("path"));
+
+        assertEquals(JsonDiff.REPLACE, ops.get(1).get("op"));
+        assertEquals("/b/c", ops.get(1).get("path"));
+        assertEquals("y", ((JsonNode) ops.get(1).get("value")).getTextValue());
+
+        // Arrays are replaced wholesale.
+        assertEquals(JsonDiff.REPLACE, ops.get(2).get("op"));
+        assertEquals("/b/d", ops.get(2).get("path"));
+
+        assertEquals(JsonDiff.ADD, ops.get(3).get("op"));
+        assertEquals("/a~1b", ops.get(3).get("path"));
+    }
+
+    @Test
+    public void testNoDiff() throws Exception {
+        final JsonNode from = mapper.readTree("{\"a\":{\"b\":[1,{\"c\":2}]}}");
+        final JsonNode to = mapper.readTree("{\"a\":{\"b\":[1,{\"c\":2}]}}");
+        assertTrue(JsonDiff.diff(from, to).isEmpty());
+    }
+}
@@ -0,0 +1,107 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.lantern.LatencyStats.Stage;
+import org.lantern.LatencyStats.Upstream;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() throws Exception {
+        for (long v = 0; v < 1000000; v += 1 + v / 100) {
+            final int bucket = LatencyHistogram.bucketFor(v);
+            assertTrue("Value above bucket: " + v,
+                v <= LatencyHistogram.upperBound(bucket));
+            if (bucket > 0) {
+                assertTrue("Value below bucket: " + v,
+                    v > LatencyHistogram.upperBound(bucket - 1));
+            }
+            // Within 12.5%
+            assertTrue(LatencyHistogram.upperBound(bucket) - v <= v / 8);
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1,
+            LatencyHistogram.bucketFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testQuantiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500, snapshot.getMean());
+        assertEquals(1000, snapshot.getMax());
+        assertNear(500, snapshot.getValueAtQuantile(0.5));
+        assertNear(990, snapshot.getValueAtQuantile(0.99));
+        assertEquals(1000, snapshot.getValueAtQuantile(0.999));
+        assertEquals(0,
+            LatencyHistogram.Snapshot.EMPTY.getValueAtQuantile(0.5));
+    }
+
+    @Test
+    public void testMinusAndMerge() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10000);
+        }
+        final LatencyHistogram.Snapshot first = histogram.snapshot();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(100);
+        }
+        final LatencyHistogram.Snapshot window =
+            histogram.snapshot().minus(first);
+        assertEquals(100, window.getCount());
+        assertEquals(100, window.getMean());
+        assertNear(100, window.getMax());
+        assertNear(100, window.getValueAtQuantile(0.999));
+
+        final LatencyHistogram.Snapshot merged = first.merge(window);
+        assertEquals(200, merged.getCount());
+        assertNear(100, merged.getValueAtQuantile(0.5));
+        assertNear(10000, merged.getValueAtQuantile(0.99));
+        assertEquals(10000, merged.getMax());
+    }
+
+    @Test
+    public void testReaderWindows() throws Exception {
+        final LatencyStats stats = new LatencyStats();
+        final LatencyStats.Reader api = stats.newReader();
+        final LatencyStats.Reader jmx = stats.newReader();
+        final LatencyHistogram lae =
+            stats.histogram(Stage.CONNECT, Upstream.LAE);
+        final LatencyHistogram central =
+            stats.histogram(Stage.CONNECT, Upstream.CENTRAL);
+        lae.record(2000);
+        central.record(3000);
+
+        Map<String, Map<String, Map<String, LatencySummary>>> read = api.read();
+        assertEquals(1, read.size());
+        final Map<String, Map<String, LatencySummary>> connect =
+            read.get("connect");
+        assertEquals(1, connect.get("lae").get("window").getCount());
+        assertEquals(2, connect.get("all").get("window").getCount());
+
+        lae.record(2000);
+        read = api.read();
+        assertEquals(2, read.get("connect").get("lae").get("total").getCount());
+        assertEquals(1, read.get("connect").get("lae").get("window").getCount());
+        assertEquals(0,
+            read.get("connect").get("central").get("window").getCount());
+
+        // Each reader has its own window.
+        assertEquals(2, jmx.readWindow(Stage.CONNECT, Upstream.LAE).getCount());
+        assertEquals(0, jmx.readWindow(Stage.CONNECT, Upstream.LAE).getCount());
+    }
+
+    private void assertNear(final long expected, final long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+            actual >= expected && actual <= expected + expected / 8);
+    }
+}
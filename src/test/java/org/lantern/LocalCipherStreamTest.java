@@ -0,0 +1,166 @@
+package org.lantern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lantern.privacy.DefaultLocalCipherProvider;
+import org.lantern.privacy.LocalCipherInputStream;
+import org.lantern.privacy.LocalCipherOutputStream;
+import org.lantern.privacy.LocalCipherProvider;
+
+public class LocalCipherStreamTest {
+
+    private File validator;
+    private File params;
+    private LocalCipherProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        validator = File.createTempFile("cipher", ".validator");
+        params = File.createTempFile("cipher", ".params");
+        validator.delete();
+        params.delete();
+        provider = new DefaultLocalCipherProvider(validator, params);
+        provider.feedUserInput("secret".toCharArray(), true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        validator.delete();
+        params.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final Random random = new Random(7);
+        for (final int size : new int[] {0, 1, 7, 8, 9, 1000, 100000}) {
+            final byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            // Our streams and the JDK's read each other's data, so
+            // existing files are still readable.
+            assertArrayEquals(data, decrypt(encrypt(data)));
+            final ByteArrayOutputStream old = new ByteArrayOutputStream();
+            final OutputStream os = new CipherOutputStream(old,
+                provider.newLocalCipher(Cipher.ENCRYPT_MODE));
+            os.write(data);
+            os.close();
+            assertArrayEquals(data, decrypt(old.toByteArray()));
+            final InputStream is = new CipherInputStream(
+                new ByteArrayInputStream(encrypt(data)),
+                provider.newLocalCipher(Cipher.DECRYPT_MODE));
+            assertArrayEquals(data, IOUtils.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void testSingleByteWrites() throws Exception {
+        final byte[] data = new byte[40000];
+        new Random(3).nextBytes(data);
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        final OutputStream os = new LocalCipherOutputStream(encrypted, provider);
+        for (final byte b : data) {
+            os.write(b);
+        }
+        os.close();
+        final InputStream is = new LocalCipherInputStream(
+            new ByteArrayInputStream(encrypted.toByteArray()), provider);
+        final byte[] read = new byte[data.length];
+        for (int i = 0; i < read.length; i++) {
+            read[i] = (byte) is.read();
+        }
+        assertArrayEquals(data, read);
+        is.close();
+    }
+
+    @Test
+    public void testCiphersAreReusedPerThread() throws Exception {
+        final Cipher cipher = provider.newLocalCipher(Cipher.DECRYPT_MODE);
+        provider.releaseLocalCipher(Cipher.DECRYPT_MODE, cipher);
+        assertSame(cipher, provider.newLocalCipher(Cipher.DECRYPT_MODE));
+        // It's handed out once, and not to other modes or threads.
+        assertNotSame(cipher, provider.newLocalCipher(Cipher.DECRYPT_MODE));
+        provider.releaseLocalCipher(Cipher.DECRYPT_MODE, cipher);
+        assertNotSame(cipher, provider.newLocalCipher(Cipher.ENCRYPT_MODE));
+        final AtomicReference<Cipher> other = new AtomicReference<Cipher>();
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    other.set(provider.newLocalCipher(Cipher.DECRYPT_MODE));
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNotSame(cipher, other.get());
+
+        // A reused cipher starts over, even if its last stream didn't
+        // finish.
+        final byte[] data = new byte[1000];
+        final InputStream partial = new LocalCipherInputStream(
+            new ByteArrayInputStream(encrypt(data)), provider);
+        partial.read();
+        partial.close();
+        assertArrayEquals(data, decrypt(encrypt(data)));
+    }
+
+    @Test
+    public void testParametersAreCached() throws Exception {
+        final byte[] data = "cached".getBytes("UTF-8");
+        final byte[] encrypted = encrypt(data);
+        params.delete();
+        assertArrayEquals(data, decrypt(encrypted));
+    }
+
+    @Test
+    public void testCorruptData() throws Exception {
+        final byte[] encrypted = encrypt(new byte[100]);
+        try {
+            decrypt(Arrays.copyOf(encrypted, encrypted.length - 3));
+            fail("Should not decrypt truncated data");
+        } catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    private byte[] encrypt(final byte[] data) throws Exception {
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        final OutputStream os = new LocalCipherOutputStream(encrypted, provider);
+        os.write(data);
+        os.close();
+        return encrypted.toByteArray();
+    }
+
+    private byte[] decrypt(final byte[] data) throws Exception {
+        final InputStream is = new LocalCipherInputStream(
+            new ByteArrayInputStream(data), provider);
+        try {
+            return IOUtils.toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.littleshoot.proxy.HttpRequestFilter;
+
+public class OriginConnectionPoolTest {
+
+    private NioServerSocketChannelFactory serverFactory;
+    private NioClientSocketChannelFactory clientFactory;
+    private HashedWheelTimer timer;
+    private final AtomicInteger originConnections = new AtomicInteger();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private String origin;
+    private final ChannelGroup channels = new DefaultChannelGroup();
+
+    @Before
+    public void setUp() throws Exception {
+        serverFactory = new NioServerSocketChannelFactory(
+            Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        clientFactory = new NioClientSocketChannelFactory(
+            Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+        timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+
+        final ServerBootstrap sb = new ServerBootstrap(serverFactory);
+        sb.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new HttpRequestDecoder(),
+                    new HttpResponseEncoder(), new OriginHandler());
+            }
+        });
+        final Channel channel = sb.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(channel);
+        origin = "127.0.0.1:" +
+            ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channels.close().awaitUninterruptibly();
+        timer.stop();
+    }
+
+    @Test
+    public void testRelayReusesOriginConnections() throws Exception {
+        final OriginConnectionPool pool = newPool(6, 4, 10000);
+        final ServerBootstrap relay = new ServerBootstrap(serverFactory);
+        relay.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new HttpRequestDecoder(),
+                    new HttpResponseEncoder(),
+                    new PooledOriginRelayHandler(pool, null) {
+                        @Override
+                        protected boolean isAllowed(final InetAddress address) {
+                            // Our origin is on loopback.
+                            return true;
+                        }
+                    });
+            }
+        });
+        final Channel relayChannel =
+            relay.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(relayChannel);
+        final int relayPort =
+            ((InetSocketAddress) relayChannel.getLocalAddress()).getPort();
+
+        // Two pipelined requests from one peer, then one from another.
+        final Socket first = new Socket("127.0.0.1", relayPort);
+        first.setSoTimeout(5000);
+        final OutputStream os = first.getOutputStream();
+        os.write((request("/a") + request("/b")).getBytes("UTF-8"));
+        os.flush();
+        final BufferedReader firstReader = new BufferedReader(
+            new InputStreamReader(first.getInputStream(), "UTF-8"));
+        assertEquals("/a", readBody(firstReader));
+        assertEquals("/b", readBody(firstReader));
+
+        final Socket second = new Socket("127.0.0.1", relayPort);
+        second.setSoTimeout(5000);
+        second.getOutputStream().write(request("/c").getBytes("UTF-8"));
+        final BufferedReader secondReader = new BufferedReader(
+            new InputStreamReader(second.getInputStream(), "UTF-8"));
+        assertEquals("/c", readBody(secondReader));
+
+        assertEquals(1, originConnections.get());
+        assertEquals(1, misses.get());
+        assertEquals(2, hits.get());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testPrivateAddressesNeverReachPool() throws Exception {
+        final OriginConnectionPool pool = newPool(6, 4, 10000);
+        final AtomicInteger filtered = new AtomicInteger();
+        final HttpRequestFilter filter = new HttpRequestFilter() {
+            @Override
+            public void filter(final HttpRequest httpRequest) {
+                filtered.incrementAndGet();
+            }
+        };
+        final ServerBootstrap relay = new ServerBootstrap(serverFactory);
+        relay.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new HttpRequestDecoder(),
+                    new HttpResponseEncoder(),
+                    new PooledOriginRelayHandler(pool, filter));
+            }
+        });
+        final Channel relayChannel =
+            relay.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(relayChannel);
+        final Socket sock = new Socket("127.0.0.1",
+            ((InetSocketAddress) relayChannel.getLocalAddress()).getPort());
+        sock.setSoTimeout(5000);
+        sock.getOutputStream().write(
+            (request("/a") + request("/b")).getBytes("UTF-8"));
+        final BufferedReader reader = new BufferedReader(
+            new InputStreamReader(sock.getInputStream(), "UTF-8"));
+        assertEquals("HTTP/1.1 403 Forbidden", reader.readLine());
+        while (reader.readLine() != null) {
+        }
+        sock.close();
+
+        assertEquals(1, filtered.get());
+        assertEquals(0, hits.get() + misses.get());
+        assertEquals(0, originConnections.get());
+    }
+
+    @Test
+    public void testIdleChannelsAreClosed() throws Exception {
+        final OriginConnectionPool pool = newPool(6, 4, 50);
+        final Channel channel = lease(pool);
+        pool.release(channel, true);
+        assertEquals(1, pool.idleCount(origin));
+        assertTrue(channel.getCloseFuture().await(5000));
+        assertEquals(0, pool.idleCount(origin));
+
+        lease(pool);
+        assertEquals(0, hits.get());
+        assertEquals(2, misses.get());
+    }
+
+    @Test
+    public void testPerOriginLimit() throws Exception {
+        final OriginConnectionPool pool = newPool(1, 1, 10000);
+        final Channel channel = lease(pool);
+
+        final AtomicReference<Channel> waiter = new AtomicReference<Channel>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        pool.acquire(origin, new OriginConnectionPool.Callback() {
+            @Override
+            public void onLeased(final Channel ch, final boolean reused) {
+                waiter.set(ch);
+                latch.countDown();
+            }
+            @Override
+            public void onFailed(final Throwable cause) {
+                latch.countDown();
+            }
+        });
+        assertEquals(1, latch.getCount());
+        pool.release(channel, true);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(channel, waiter.get());
+        assertEquals(1, misses.get());
+
+        // Unusable channels are replaced with new ones for waiters.
+        final CountDownLatch second = new CountDownLatch(1);
+        pool.acquire(origin, new OriginConnectionPool.Callback() {
+            @Override
+            public void onLeased(final Channel ch, final boolean reused) {
+                second.countDown();
+            }
+            @Override
+            public void onFailed(final Throwable cause) {
+            }
+        });
+        pool.release(channel, false);
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertEquals(2, misses.get());
+    }
+
+    private Channel lease(final OriginConnectionPool pool) throws Exception {
+        final AtomicReference<Channel> leased = new AtomicReference<Channel>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        pool.acquire(origin, new OriginConnectionPool.Callback() {
+            @Override
+            public void onLeased(final Channel channel, final boolean reused) {
+                leased.set(channel);
+                latch.countDown();
+            }
+            @Override
+            public void onFailed(final Throwable cause) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(leased.get() != null);
+        return leased.get();
+    }
+
+    private OriginConnectionPool newPool(final int max, final int maxIdle,
+        final long idleTimeout) {
+        return new OriginConnectionPool(clientFactory, timer, max, maxIdle,
+            idleTimeout) {
+            @Override
+            protected void onHit() {
+                hits.incrementAndGet();
+            }
+            @Override
+            protected void onMiss() {
+                misses.incrementAndGet();
+            }
+        };
+    }
+
+    private String request(final String path) {
+        return "GET http://" + origin + path + " HTTP/1.1\r\n" +
+            "Host: " + origin + "\r\n\r\n";
+    }
+
+    private String readBody(final BufferedReader reader) throws Exception {
+        assertEquals("HTTP/1.1 200 OK", reader.readLine());
+        int length = -1;
+        String line;
+        while ((line = reader.readLine()).length() > 0) {
+            if (line.startsWith(HttpHeaders.Names.CONTENT_LENGTH)) {
+                length = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+            }
+        }
+        final char[] body = new char[length];
+        int read = 0;
+        while (read < length) {
+            read += reader.read(body, read, length - read);
+        }
+        return new String(body);
+    }
+
+    /**
+     * Echoes the request path back with keep-alive responses.
+     */
+    private final class OriginHandler extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void channelConnected(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) {
+            originConnections.incrementAndGet();
+            channels.add(e.getChannel());
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) {
+            final HttpRequest request = (HttpRequest) e.getMessage();
+            final HttpResponse response = new DefaultHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            response.setContent(ChannelBuffers.copiedBuffer(request.getUri(),
+                CharsetUtil.UTF_8));
+            HttpHeaders.setContentLength(response,
+                response.getContent().readableBytes());
+            e.getChannel().write(response);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package org.lantern;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.FileReader;
@@ -22,11 +25,26 @@ public class PacFileGeneratorTest {
         
         
         for (final String site : sites) {
-            assertTrue(pac.contains(site));
+            assertTrue(pac.contains("\""+site.toLowerCase()+"\""));
         }
         assertTrue(pac.startsWith(StringUtils.substringBefore(refPac, "allDomainsTok")));
         assertTrue(pac.endsWith(StringUtils.substringAfter(refPac, "allDomainsTok")));
     }
+    
+    @Test
+    public void testCachedPac() throws Exception {
+        final Whitelist whitelist = new Whitelist();
+        final PacFileGenerator.Pac pac = PacFileGenerator.getPac(whitelist);
+        assertSame(pac, PacFileGenerator.getPac(whitelist));
+        
+        whitelist.addEntry("newsite.org");
+        final PacFileGenerator.Pac updated = 
+            PacFileGenerator.getPac(whitelist);
+        assertNotSame(pac, updated);
+        assertFalse(pac.getEtag().equals(updated.getEtag()));
+        assertTrue(new String(updated.getBytes(), "UTF-8").contains(
+            "\"newsite.org\""));
+    }
 
 
     private String loadRefPac() throws IOException {
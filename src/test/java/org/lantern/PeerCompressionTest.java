@@ -0,0 +1,200 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+public class PeerCompressionTest {
+
+    private long uncompressed;
+
+    private long compressed;
+
+    private long decompressed;
+
+    @Test
+    public void testFullResponse() throws Exception {
+        final EncoderEmbedder<Object> giver = newGiver(true);
+        final String body = text(4000);
+        giver.offer(response("text/html", body, false));
+        final HttpResponse sent = (HttpResponse) giver.poll();
+        assertEquals(PeerCompressionEncoder.DEFLATE, sent.getHeader(
+            LanternConstants.LANTERN_CONTENT_ENCODING_HTTP_HEADER_NAME));
+        final int onWire = sent.getContent().readableBytes();
+        assertTrue(onWire < body.length() / 4);
+        assertEquals(onWire, HttpHeaders.getContentLength(sent));
+        assertEquals(body.length(), uncompressed);
+        assertEquals(onWire, compressed);
+
+        final DecoderEmbedder<Object> receiver = newReceiver();
+        receiver.offer(sent);
+        final HttpResponse received = (HttpResponse) receiver.poll();
+        assertEquals(body,
+            received.getContent().toString(CharsetUtil.UTF_8));
+        assertEquals(body.length(), HttpHeaders.getContentLength(received));
+        assertNull(received.getHeader(
+            LanternConstants.LANTERN_CONTENT_ENCODING_HTTP_HEADER_NAME));
+        assertNull(received.getHeader(
+            LanternConstants.LANTERN_ORIGINAL_LENGTH_HTTP_HEADER_NAME));
+        assertEquals(body.length(), decompressed);
+    }
+
+    @Test
+    public void testChunkedResponse() throws Exception {
+        final EncoderEmbedder<Object> giver = newGiver(true);
+        final String body = text(30000);
+        final HttpResponse response = response("application/json", "", true);
+        HttpHeaders.setContentLength(response, body.length());
+        giver.offer(response);
+        for (int i = 0; i < body.length(); i += 8192) {
+            final String part =
+                body.substring(i, Math.min(body.length(), i + 8192));
+            giver.offer(new DefaultHttpChunk(
+                ChannelBuffers.copiedBuffer(part, CharsetUtil.UTF_8)));
+        }
+        giver.offer(HttpChunk.LAST_CHUNK);
+
+        final HttpResponse sent = (HttpResponse) giver.poll();
+        assertNull(sent.getHeader(HttpHeaders.Names.CONTENT_LENGTH));
+        assertTrue(HttpHeaders.Values.CHUNKED.equals(
+            sent.getHeader(HttpHeaders.Names.TRANSFER_ENCODING)));
+
+        final DecoderEmbedder<Object> receiver = newReceiver();
+        receiver.offer(sent);
+        Object msg;
+        while ((msg = giver.poll()) != null) {
+            receiver.offer(msg);
+        }
+        final HttpResponse received = (HttpResponse) receiver.poll();
+        assertEquals(body.length(), HttpHeaders.getContentLength(received));
+        assertNull(received.getHeader(HttpHeaders.Names.TRANSFER_ENCODING));
+        final List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+        HttpChunk chunk;
+        do {
+            chunk = (HttpChunk) receiver.poll();
+            parts.add(chunk.getContent());
+        } while (!chunk.isLast());
+        assertNull(receiver.poll());
+        final ChannelBuffer all = ChannelBuffers.wrappedBuffer(
+            parts.toArray(new ChannelBuffer[parts.size()]));
+        assertEquals(body, all.toString(CharsetUtil.UTF_8));
+        assertEquals(body.length(), uncompressed);
+        assertEquals(body.length(), decompressed);
+        assertTrue(compressed < body.length() / 4);
+    }
+
+    @Test
+    public void testUncompressedResponses() throws Exception {
+        // Already compressed.
+        EncoderEmbedder<Object> giver = newGiver(true);
+        final String body = text(4000);
+        giver.offer(response("image/png", body, false));
+        assertUntouched(body, (HttpResponse) giver.poll());
+
+        giver.offer(response("text/html", text(100), false));
+        assertUntouched(text(100), (HttpResponse) giver.poll());
+
+        final HttpResponse gzipped = response("text/html", body, false);
+        gzipped.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "gzip");
+        giver.offer(gzipped);
+        assertUntouched(body, (HttpResponse) giver.poll());
+
+        // The peer didn't ask for compression.
+        giver = newGiver(false);
+        giver.offer(response("text/html", body, false));
+        assertUntouched(body, (HttpResponse) giver.poll());
+        assertEquals(0, uncompressed);
+    }
+
+    private void assertUntouched(final String body,
+        final HttpResponse response) {
+        assertNull(response.getHeader(
+            LanternConstants.LANTERN_CONTENT_ENCODING_HTTP_HEADER_NAME));
+        assertEquals(body, response.getContent().toString(CharsetUtil.UTF_8));
+    }
+
+    /**
+     * Creates the giving side, and has it read a request from the peer.
+     */
+    private EncoderEmbedder<Object> newGiver(final boolean accept) {
+        final EncoderEmbedder<Object> giver = new EncoderEmbedder<Object>(
+            new PeerCompressionEncoder() {
+                @Override
+                protected boolean enabled() {
+                    return true;
+                }
+                @Override
+                protected void onCompressed(final long u, final long c) {
+                    uncompressed += u;
+                    compressed += c;
+                }
+            });
+        final HttpRequest request = new DefaultHttpRequest(
+            HttpVersion.HTTP_1_1, HttpMethod.GET, "http://example.com/");
+        if (accept) {
+            request.setHeader(
+                LanternConstants.LANTERN_ACCEPT_ENCODING_HTTP_HEADER_NAME,
+                PeerCompressionEncoder.DEFLATE);
+        }
+        Channels.fireMessageReceived(giver.getPipeline().getChannel(),
+            request);
+        final HttpRequest relayed = (HttpRequest) giver.poll();
+        assertNull(relayed.getHeader(
+            LanternConstants.LANTERN_ACCEPT_ENCODING_HTTP_HEADER_NAME));
+        return giver;
+    }
+
+    private DecoderEmbedder<Object> newReceiver() {
+        return new DecoderEmbedder<Object>(new PeerCompressionDecoder() {
+            @Override
+            protected void onDecompressed(final long u, final long c) {
+                decompressed += u;
+            }
+        });
+    }
+
+    private HttpResponse response(final String type, final String body,
+        final boolean chunked) {
+        final HttpResponse response = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, type);
+        if (chunked) {
+            response.setChunked(true);
+        } else {
+            response.setContent(
+                ChannelBuffers.copiedBuffer(body, CharsetUtil.UTF_8));
+            HttpHeaders.setContentLength(response, body.length());
+        }
+        return response;
+    }
+
+    private String text(final int length) {
+        final StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (sb.length() < length) {
+            sb.append("<p>Line ").append(i++ % 50).append(" of the page</p>\n");
+        }
+        return sb.substring(0, length);
+    }
+}
@@ -0,0 +1,309 @@
+package org.lantern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PeerMuxTest {
+
+    private NioServerSocketChannelFactory serverFactory;
+    private final ChannelGroup channels = new DefaultChannelGroup();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<Channel, Channel> streamPeers =
+        new ConcurrentHashMap<Channel, Channel>();
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        serverFactory = new NioServerSocketChannelFactory(
+            Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+
+        // Streams are echoed back by a local server.
+        final LocalAddress streamAddress = new LocalAddress("mux-test");
+        final ServerBootstrap streams =
+            new ServerBootstrap(new DefaultLocalServerChannelFactory());
+        streams.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new Echo(true));
+            }
+        });
+        channels.add(streams.bind(streamAddress));
+
+        final ServerBootstrap sb = new ServerBootstrap(serverFactory);
+        sb.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(
+                    new PeerMuxDetector(new DefaultLocalClientChannelFactory(),
+                        streamAddress),
+                    new Echo(false));
+            }
+        });
+        final Channel channel = sb.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(channel);
+        port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channels.close().awaitUninterruptibly();
+    }
+
+    @Test
+    public void testManyStreamsOverOneConnection() throws Exception {
+        final PeerMuxSession session =
+            PeerMuxSession.connect(new Socket("127.0.0.1", port));
+        final ExecutorService exec = Executors.newFixedThreadPool(30);
+        final List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 30; i++) {
+            final String message = "Request " + i;
+            results.add(exec.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    final Socket stream = session.openStream();
+                    stream.setSoTimeout(5000);
+                    stream.getOutputStream().write(message.getBytes("UTF-8"));
+                    final byte[] echo = new byte[message.length()];
+                    new DataInputStream(stream.getInputStream()).readFully(echo);
+                    stream.close();
+                    return new String(echo, "UTF-8");
+                }
+            }));
+        }
+        for (int i = 0; i < 30; i++) {
+            assertEquals("Request " + i, results.get(i).get(10, TimeUnit.SECONDS));
+        }
+        exec.shutdown();
+        assertEquals(1, connections.get());
+
+        // The stream server can tell which peer each stream is for.
+        assertEquals(30, streamPeers.size());
+        for (final Channel peer : streamPeers.values()) {
+            assertTrue(peer.getRemoteAddress() instanceof InetSocketAddress);
+        }
+        session.close();
+    }
+
+    @Test
+    public void testSlowStreamDoesNotBlockOthers() throws Exception {
+        final PeerMuxSession session =
+            PeerMuxSession.connect(new Socket("127.0.0.1", port));
+        final Socket slow = session.openStream();
+        slow.setSoTimeout(5000);
+        final byte[] data = new byte[4 * PeerMuxFrame.WINDOW];
+        new Random().nextBytes(data);
+        final OutputStream os = slow.getOutputStream();
+        // The echo is more than the window, so most of it has to wait on
+        // the other side until we read.
+        os.write(data, 0, PeerMuxFrame.WINDOW);
+        os.write(data, PeerMuxFrame.WINDOW, PeerMuxFrame.WINDOW);
+
+        final Socket fast = session.openStream();
+        fast.setSoTimeout(5000);
+        fast.getOutputStream().write("ping".getBytes("UTF-8"));
+        final byte[] pong = new byte[4];
+        new DataInputStream(fast.getInputStream()).readFully(pong);
+        assertEquals("ping", new String(pong, "UTF-8"));
+
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    os.write(data, 2 * PeerMuxFrame.WINDOW,
+                        2 * PeerMuxFrame.WINDOW);
+                } catch (final IOException e) {
+                    fail(e.getMessage());
+                }
+            }
+        });
+        writer.start();
+        final byte[] echo = new byte[data.length];
+        new DataInputStream(slow.getInputStream()).readFully(echo);
+        assertArrayEquals(data, echo);
+        writer.join();
+        session.close();
+    }
+
+    @Test
+    public void testStreamThePeerDoesNotReadIsReset() throws Exception {
+        final PeerMuxSession session =
+            PeerMuxSession.connect(new Socket("127.0.0.1", port));
+        final Socket stream = session.openStream();
+        stream.setSoTimeout(5000);
+        // We never read the echo, so it piles up on the other side until
+        // there's too much of it.
+        final byte[] data = new byte[2 * PeerMuxSessionHandler.MAX_OUTBOUND_HARD];
+        try {
+            stream.getOutputStream().write(data);
+            fail("Stream should have been reset");
+        } catch (final SocketException e) {
+            // Expected.
+        }
+        final InputStream is = stream.getInputStream();
+        long read = 0;
+        while (is.read() != -1) {
+            read++;
+        }
+        assertTrue(read <= PeerMuxFrame.WINDOW);
+
+        // The session is still fine.
+        final Socket other = session.openStream();
+        other.setSoTimeout(5000);
+        other.getOutputStream().write("ping".getBytes("UTF-8"));
+        final byte[] pong = new byte[4];
+        new DataInputStream(other.getInputStream()).readFully(pong);
+        assertEquals("ping", new String(pong, "UTF-8"));
+        session.close();
+    }
+
+    @Test
+    public void testReceiveBufferGrows() throws Exception {
+        final PeerMuxStream stream = new PeerMuxStream(null, 1);
+        final byte[] data = new byte[10500];
+        new Random().nextBytes(data);
+        final InputStream is = stream.getInputStream();
+        final byte[] read = new byte[data.length];
+        stream.onData(ChannelBuffers.wrappedBuffer(data, 0, 3000));
+        new DataInputStream(is).readFully(read, 0, 2000);
+        // This wraps around the end of the buffer, and the next one makes
+        // it grow with the data still in order.
+        stream.onData(ChannelBuffers.wrappedBuffer(data, 3000, 2500));
+        stream.onData(ChannelBuffers.wrappedBuffer(data, 5500, 5000));
+        new DataInputStream(is).readFully(read, 2000, data.length - 2000);
+        assertArrayEquals(data, read);
+
+        stream.onData(ChannelBuffers.wrappedBuffer(data, 0, 1));
+        try {
+            stream.onData(ChannelBuffers.wrappedBuffer(
+                new byte[PeerMuxFrame.WINDOW]));
+            fail("Peer should not be able to overrun the window");
+        } catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testPlainConnectionsStillWork() throws Exception {
+        final Socket sock = new Socket("127.0.0.1", port);
+        sock.setSoTimeout(5000);
+        final String request = "GET / HTTP/1.1\r\n\r\n";
+        sock.getOutputStream().write(request.getBytes("UTF-8"));
+        final byte[] echo = new byte[request.length()];
+        new DataInputStream(sock.getInputStream()).readFully(echo);
+        assertEquals(request, new String(echo, "UTF-8"));
+        sock.close();
+    }
+
+    @Test
+    public void testPeerWithoutStreams() throws Exception {
+        // A server that hangs up on anything it doesn't understand, like
+        // an older peer.
+        final ServerBootstrap sb = new ServerBootstrap(serverFactory);
+        sb.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new SimpleChannelUpstreamHandler() {
+                    @Override
+                    public void messageReceived(final ChannelHandlerContext ctx,
+                        final MessageEvent e) {
+                        e.getChannel().close();
+                    }
+                });
+            }
+        });
+        final Channel channel = sb.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(channel);
+        final Socket sock = new Socket("127.0.0.1",
+            ((InetSocketAddress) channel.getLocalAddress()).getPort());
+        try {
+            PeerMuxSession.connect(sock);
+            fail("Expected the handshake to fail");
+        } catch (final IOException e) {
+            assertTrue(sock.isClosed());
+        }
+    }
+
+    @Test
+    public void testStreamsCloseWithSession() throws Exception {
+        final PeerMuxSession session =
+            PeerMuxSession.connect(new Socket("127.0.0.1", port));
+        final Socket stream = session.openStream();
+        final InputStream is = stream.getInputStream();
+        session.close();
+        assertTrue(stream.isClosed());
+        try {
+            is.read();
+            fail("Expected read to fail");
+        } catch (final IOException e) {
+        }
+    }
+
+    private final class Echo extends SimpleChannelUpstreamHandler {
+
+        private final boolean stream;
+
+        private Echo(final boolean stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void channelConnected(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) {
+            channels.add(e.getChannel());
+            if (!stream) {
+                connections.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent e) {
+            if (stream) {
+                streamPeers.put(ctx.getChannel(),
+                    PeerMuxSessionHandler.peerChannel(ctx.getChannel()));
+            }
+            e.getChannel().write(e.getMessage());
+        }
+    }
+}
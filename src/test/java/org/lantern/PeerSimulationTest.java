@@ -0,0 +1,214 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Small runs of the peer simulation. Run main for bigger ones, such as:
+ *
+ * <pre>
+ * PeerSimulationTest 300 3 50 0.02 262144 60
+ * </pre>
+ *
+ * for 300 give mode peers and 3 get mode peers with 50ms latency, 2%
+ * loss and 256KB/s links, churning for 60 seconds.
+ *
+ * The simulated peers handle presence the way {@link DefaultXmppHandler}
+ * does but don't run a {@link Roster}, so roster batching isn't covered
+ * here.
+ */
+public class PeerSimulationTest {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(PeerSimulationTest.class);
+
+    private SimulatedNetwork network;
+
+    @Before
+    public void setUp() throws Exception {
+        network = new SimulatedNetwork(42);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        network.close();
+    }
+
+    @Test
+    public void testCertExchangeAndFetch() throws Exception {
+        final List<SimulatedPeer> give = addPeers("give", 10, true);
+        final List<SimulatedPeer> get = addPeers("get", 3, false);
+        network.setLatency(5);
+        start(give, get);
+
+        for (final SimulatedPeer peer : get) {
+            for (final SimulatedPeer other : give) {
+                assertTrue(peer + " has no cert for " + other,
+                    peer.hasCert(other));
+                assertTrue(other.hasCert(peer));
+            }
+            for (int i = 0; i < 5; i++) {
+                assertTrue(peer.fetch(64 * 1024, 1));
+            }
+            assertEquals(5, peer.getFetches());
+            assertEquals(0, peer.getFailedFetches());
+        }
+        log.info(network.report());
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        final List<SimulatedPeer> give = addPeers("give", 4, true);
+        final List<SimulatedPeer> get = addPeers("get", 1, false);
+        start(give, get);
+        final SimulatedPeer peer = get.get(0);
+
+        // Most peers vanish, some without signing out, but we keep going
+        // through whoever's left.
+        give.get(0).goOffline();
+        give.get(1).goOffline();
+        give.get(2).fail();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(peer.fetch(16 * 1024, 20));
+        }
+        assertEquals(10, peer.getFetches());
+        log.info(network.report());
+    }
+
+    @Test
+    public void testLossAndBandwidth() throws Exception {
+        final List<SimulatedPeer> give = addPeers("give", 10, true);
+        final List<SimulatedPeer> get = addPeers("get", 1, false);
+        network.setLoss(0.2);
+        network.setBandwidth(512 * 1024);
+        for (final SimulatedPeer peer : give) {
+            peer.goOnline();
+        }
+        get.get(0).goOnline();
+        // Announcements are repeated, so lost signalling is made up for.
+        final SimulatedPeer peer = get.get(0);
+        for (int i = 0; i < 50 && peer.getPooledSockets() < 4; i++) {
+            network.getHub().announceProxies();
+            Thread.sleep(100);
+        }
+        assertTrue(peer.getPooledSockets() > 0);
+
+        network.setLoss(0);
+        final long start = System.currentTimeMillis();
+        assertTrue(peer.fetch(256 * 1024, 10));
+        // Half a second at 512KB/s, give or take some timer slack.
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        log.info(network.report());
+    }
+
+    private List<SimulatedPeer> addPeers(final String prefix, final int count,
+        final boolean give) {
+        final List<SimulatedPeer> peers = new ArrayList<SimulatedPeer>();
+        for (int i = 0; i < count; i++) {
+            final String user = prefix + i + "@example.com";
+            peers.add(give ? network.addGivePeer(user) :
+                network.addGetPeer(user));
+        }
+        return peers;
+    }
+
+    /**
+     * Signs everyone in and waits for each get mode peer to have some
+     * sockets.
+     */
+    private void start(final List<SimulatedPeer> give,
+        final List<SimulatedPeer> get) throws InterruptedException {
+        for (final SimulatedPeer peer : give) {
+            peer.goOnline();
+        }
+        for (final SimulatedPeer peer : get) {
+            peer.goOnline();
+        }
+        network.getHub().announceProxies();
+        for (final SimulatedPeer peer : get) {
+            for (int i = 0; i < 100 && (peer.getPooledSockets() < give.size() ||
+                peer.getCertCount() < give.size() + get.size() - 1); i++) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Runs a bigger simulation with churn and logs what happened.
+     *
+     * Arguments are the numbers of give and get mode peers, latency in
+     * milliseconds, loss, bandwidth in bytes per second and how many
+     * seconds to run.
+     */
+    public static void main(final String[] args) throws Exception {
+        final int givePeers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int getPeers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final long latency = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        final double loss = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+        final long bandwidth =
+            args.length > 4 ? Long.parseLong(args[4]) : 256 * 1024;
+        final int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+
+        final SimulatedNetwork network = new SimulatedNetwork(42);
+        network.setLatency(latency);
+        network.setLoss(loss);
+        network.setBandwidth(bandwidth);
+        final List<SimulatedPeer> get = new ArrayList<SimulatedPeer>();
+        for (int i = 0; i < givePeers; i++) {
+            network.addGivePeer("give" + i + "@example.com").goOnline();
+        }
+        for (int i = 0; i < getPeers; i++) {
+            final SimulatedPeer peer =
+                network.addGetPeer("get" + i + "@example.com");
+            peer.goOnline();
+            get.add(peer);
+        }
+        network.getHub().announceProxies();
+
+        // Every few seconds some peers come and go, and get mode peers
+        // fetch as fast as they can all along.
+        for (int i = 1; i <= seconds / 5; i++) {
+            network.schedule(i * 5000L, new Runnable() {
+                @Override
+                public void run() {
+                    network.churn(0.1);
+                }
+            });
+        }
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final ExecutorService exec = Executors.newFixedThreadPool(getPeers);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final SimulatedPeer peer : get) {
+            futures.add(exec.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while (System.currentTimeMillis() < end) {
+                        if (!peer.fetch(64 * 1024, 3)) {
+                            Thread.sleep(100);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final Future<Void> future : futures) {
+            future.get();
+        }
+        exec.shutdown();
+        log.info(network.report());
+        network.close();
+    }
+}
@@ -0,0 +1,394 @@
+package org.lantern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.barchart.udt.net.NetServerSocketUDT;
+import com.barchart.udt.net.NetSocketUDT;
+
+public class PeerTransportsTest {
+
+    private final URI peer = URI.create("lantern://peer@example.com");
+
+    @Test
+    public void testCountsFailuresOnce() throws Exception {
+        final TestTransports transports = new TestTransports("auto");
+        transports.unreachable = true;
+        final Map<URI, AtomicInteger> failures =
+            new HashMap<URI, AtomicInteger>();
+        for (int i = 0; i < 3; i++) {
+            try {
+                transports.newSocket(peer, failures);
+                fail("Expected no connection");
+            } catch (final IOException e) {
+            }
+        }
+        // One attempt each time, even with both transports allowed.
+        assertEquals(3, transports.attempts.get());
+        assertEquals(2, failures.get(peer).get());
+        assertEquals(3, transports.getFailures());
+
+        transports.unreachable = false;
+        final Socket sock = transports.newSocket(peer, failures);
+        assertEquals(PeerTransport.TCP, transports.transportOf(sock));
+        assertEquals(1,
+            transports.throughput(PeerTransport.TCP).getConnections());
+        assertEquals(3, transports.getFailures());
+    }
+
+    @Test
+    public void testNoTransports() throws Exception {
+        final TestTransports transports = new TestTransports("udt");
+        transports.setEnabled(true, false);
+        try {
+            transports.newSocket(peer, new HashMap<URI, AtomicInteger>());
+            fail("Expected no connection");
+        } catch (final IOException e) {
+        }
+        assertEquals(0, transports.attempts.get());
+        assertFalse(transports.iceTcp);
+        assertFalse(transports.iceUdp);
+    }
+
+    @Test
+    public void testSettingLimitsTransports() throws Exception {
+        final TestTransports transports = new TestTransports("tcp");
+        final Map<URI, AtomicInteger> failures =
+            new HashMap<URI, AtomicInteger>();
+        // Only one transport is allowed, so that's the one we got.
+        final Socket sock = transports.newSocket(peer, failures);
+        assertEquals(PeerTransport.TCP, transports.transportOf(sock));
+        assertTrue(transports.iceTcp);
+        assertFalse(transports.iceUdp);
+
+        transports.setting = "auto";
+        transports.newSocket(peer, failures);
+        assertTrue(transports.iceTcp);
+        assertTrue(transports.iceUdp);
+        // ICE is only told when something changes.
+        transports.newSocket(peer, failures);
+        assertEquals(2, transports.iceUpdates);
+
+        transports.setEnabled(true, false);
+        assertTrue(transports.iceTcp);
+        assertFalse(transports.iceUdp);
+        assertEquals(3, transports.iceUpdates);
+    }
+
+    @Test
+    public void testDetectsTransportUnderTls() throws Exception {
+        final TestTransports transports = new TestTransports("auto");
+        final SSLSocketFactory tls = transports.socketFactory(
+            SSLContext.getDefault().getSocketFactory());
+        final Map<URI, AtomicInteger> failures =
+            new HashMap<URI, AtomicInteger>();
+
+        final ServerSocket tcpServer = new ServerSocket();
+        tcpServer.bind(new InetSocketAddress("127.0.0.1", 0));
+        transports.next = tls.createSocket(
+            new Socket("127.0.0.1", tcpServer.getLocalPort()),
+            "127.0.0.1", tcpServer.getLocalPort(), true);
+        final Socket tcp = transports.newSocket(peer, failures);
+        assertTrue(tcp instanceof SSLSocket);
+        assertEquals(PeerTransport.TCP, transports.transportOf(tcp));
+        assertTrue(transports.iceTcp);
+        assertTrue(transports.iceUdp);
+        tcp.close();
+        tcpServer.close();
+
+        // See testUdtOverLossyLoopback.
+        Assume.assumeTrue(hasPortField());
+        final ServerSocket udtServer = new NetServerSocketUDT();
+        udtServer.bind(new InetSocketAddress("127.0.0.1", 0));
+        final Socket raw = new NetSocketUDT();
+        raw.connect(udtServer.getLocalSocketAddress());
+        transports.next = tls.createSocket(raw, "127.0.0.1",
+            udtServer.getLocalPort(), true);
+        final Socket udt = transports.newSocket(peer, failures);
+        assertEquals(PeerTransport.UDT, transports.transportOf(udt));
+        assertEquals(1,
+            transports.throughput(PeerTransport.UDT).getConnections());
+        udt.close();
+        udtServer.close();
+    }
+
+    @Test
+    public void testTimesResponsesPerTransport() throws Exception {
+        final TestTransports transports = new TestTransports("tcp");
+        final Socket tcp = transports.newSocket(peer,
+            new HashMap<URI, AtomicInteger>());
+
+        final long bytes = PeerTransports.MIN_SAMPLE_BYTES;
+        for (int i = 0; i < 3; i++) {
+            transports.addSample(tcp, bytes, TimeUnit.SECONDS.toNanos(2));
+            // Small responses don't count.
+            transports.addSample(tcp, 100, 1);
+        }
+        // Nor do sockets we didn't open.
+        transports.addSample(new Socket(), bytes, 1);
+        final TransportThroughput throughput =
+            transports.throughput(PeerTransport.TCP);
+        assertEquals(3, throughput.getSamples());
+        assertEquals(bytes / 2, throughput.getBytesPerSecond());
+        assertEquals(0, transports.throughput(PeerTransport.UDT).getSamples());
+    }
+
+    @Test
+    public void testUdtOverLossyLoopback() throws Exception {
+        // The native UDT library reads fields of InetSocketAddress that
+        // newer JVMs don't have, and exits the JVM if it can't find them.
+        Assume.assumeTrue(hasPortField());
+        final ServerSocket server = new NetServerSocketUDT();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        final byte[] body = new byte[1024 * 1024];
+        new Random().nextBytes(body);
+        final Thread serving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket sock = server.accept();
+                    final OutputStream os = sock.getOutputStream();
+                    os.write(("HTTP/1.1 200 OK\r\nContent-Length: " +
+                        body.length + "\r\n\r\n").getBytes("UTF-8"));
+                    os.write(body);
+                    os.flush();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+
+        final LossyRelay relay = new LossyRelay(
+            new InetSocketAddress("127.0.0.1", server.getLocalPort()), 0.02);
+        final PeerTransports transports = new PeerTransports() {
+            @Override
+            protected Socket open(final URI peerUri,
+                final Map<URI, AtomicInteger> failures) throws IOException {
+                final Socket sock = new NetSocketUDT();
+                sock.connect(relay.getAddress());
+                return sock;
+            }
+            @Override
+            protected String setting() {
+                return "auto";
+            }
+        };
+        final Socket sock = transports.newSocket(peer,
+            new HashMap<URI, AtomicInteger>());
+        assertEquals(PeerTransport.UDT, transports.transportOf(sock));
+
+        // The usual peer pipeline reads straight from the UDT socket.
+        final AtomicLong read = new AtomicLong();
+        final BlockingQueue<HttpResponse> responses =
+            new LinkedBlockingQueue<HttpResponse>();
+        final ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("stats", new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(final ChannelHandlerContext ctx,
+                final MessageEvent me) throws Exception {
+                read.addAndGet(((ChannelBuffer) me.getMessage()).readableBytes());
+                super.messageReceived(ctx, me);
+            }
+        });
+        pipeline.addLast("decoder", new HttpResponseDecoder());
+        pipeline.addLast("aggregator", new HttpChunkAggregator(2 * body.length));
+        pipeline.addLast("relay", new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(final ChannelHandlerContext ctx,
+                final MessageEvent me) {
+                responses.add((HttpResponse) me.getMessage());
+            }
+        });
+        final long start = System.nanoTime();
+        new PeerSocketChannel(pipeline, new PeerSink(), sock).simulateConnect();
+        final HttpResponse response = responses.poll(60, TimeUnit.SECONDS);
+        final long nanos = System.nanoTime() - start;
+        final byte[] received = new byte[response.getContent().readableBytes()];
+        response.getContent().readBytes(received);
+        assertArrayEquals(body, received);
+        assertTrue("Relay didn't drop anything", relay.dropped.get() > 0);
+
+        transports.addSample(sock, read.get(), nanos);
+        final TransportThroughput udt = transports.throughput(PeerTransport.UDT);
+        assertEquals(1, udt.getSamples());
+        assertTrue(udt.getBytesPerSecond() > 0);
+        sock.close();
+        server.close();
+        relay.close();
+    }
+
+    private static boolean hasPortField() {
+        try {
+            InetSocketAddress.class.getDeclaredField("port");
+            return true;
+        } catch (final NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    private static final class TestTransports extends PeerTransports {
+
+        private volatile String setting;
+
+        private volatile boolean unreachable;
+
+        private volatile Socket next;
+
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        private volatile boolean iceTcp;
+
+        private volatile boolean iceUdp;
+
+        private volatile int iceUpdates;
+
+        private TestTransports(final String setting) {
+            this.setting = setting;
+        }
+
+        @Override
+        protected Socket open(final URI peerUri,
+            final Map<URI, AtomicInteger> failures) throws IOException {
+            attempts.incrementAndGet();
+            if (unreachable) {
+                // As LanternUtils.openOutgoingPeerSocket does.
+                final AtomicInteger count = failures.get(peerUri);
+                if (count == null) {
+                    failures.put(peerUri, new AtomicInteger(0));
+                } else {
+                    count.incrementAndGet();
+                }
+                throw new IOException("Could not reach peer");
+            }
+            final Socket sock = next;
+            next = null;
+            return sock == null ? new Socket() : sock;
+        }
+
+        @Override
+        protected void allow(final boolean tcp, final boolean udp) {
+            iceTcp = tcp;
+            iceUdp = udp;
+            iceUpdates++;
+        }
+
+        @Override
+        protected String setting() {
+            return setting;
+        }
+    }
+
+    /**
+     * Relays UDP between a client and a server, dropping some packets each
+     * way like a bad international link would.
+     */
+    private static final class LossyRelay {
+
+        private final DatagramSocket front;
+
+        private final DatagramSocket back;
+
+        private final double loss;
+
+        private final Random random = new Random();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private volatile SocketAddress client;
+
+        private LossyRelay(final InetSocketAddress server, final double loss)
+            throws IOException {
+            this.loss = loss;
+            this.front = new DatagramSocket(
+                new InetSocketAddress("127.0.0.1", 0));
+            this.back = new DatagramSocket(
+                new InetSocketAddress("127.0.0.1", 0));
+            this.back.connect(server);
+            relay(front, back, true);
+            relay(back, front, false);
+        }
+
+        private SocketAddress getAddress() {
+            return front.getLocalSocketAddress();
+        }
+
+        private void relay(final DatagramSocket from, final DatagramSocket to,
+            final boolean fromClient) {
+            final Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final byte[] buf = new byte[65536];
+                    while (!from.isClosed()) {
+                        final DatagramPacket packet =
+                            new DatagramPacket(buf, buf.length);
+                        try {
+                            from.receive(packet);
+                            if (fromClient) {
+                                client = packet.getSocketAddress();
+                            }
+                            if (random.nextDouble() < loss) {
+                                dropped.incrementAndGet();
+                                continue;
+                            }
+                            if (fromClient) {
+                                to.send(new DatagramPacket(packet.getData(),
+                                    packet.getLength()));
+                            } else if (client != null) {
+                                to.send(new DatagramPacket(packet.getData(),
+                                    packet.getLength(), client));
+                            }
+                        } catch (final IOException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "Lossy-Relay-Thread");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void close() {
+            front.close();
+            back.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.junit.Test;
+
+public class PresenceQueueTest {
+
+    @Test
+    public void testDedupeAndBatch() throws Exception {
+        final List<Collection<Presence>> batches =
+            Collections.synchronizedList(new ArrayList<Collection<Presence>>());
+        final CountDownLatch latch = new CountDownLatch(2);
+        final PresenceQueue queue = new PresenceQueue(
+            new PresenceQueue.BatchProcessor() {
+            private boolean retried;
+            @Override
+            public Collection<Presence> processBatch(
+                final Collection<Presence> batch) {
+                batches.add(batch);
+                latch.countDown();
+                if (!retried) {
+                    retried = true;
+                    return Collections.singleton(batch.iterator().next());
+                }
+                return Collections.emptyList();
+            }
+        }, 100);
+
+        for (int i = 0; i < 50; i++) {
+            queue.offer(presence("a@gmail.com/lantern", i % 2 == 0));
+            queue.offer(presence("b@gmail.com/lantern", true));
+        }
+        assertTrue(latch.await(4, TimeUnit.SECONDS));
+
+        final Collection<Presence> first = batches.get(0);
+        assertEquals(2, first.size());
+        final Presence a = first.iterator().next();
+        assertEquals("a@gmail.com/lantern", a.getFrom());
+        assertEquals("Should have the most recent presence",
+            Presence.Type.unavailable, a.getType());
+
+        // The deferred presence should come back in the next batch.
+        assertEquals(1, batches.get(1).size());
+
+        assertEquals(100, queue.getReceived());
+        assertEquals(98, queue.getDeduplicated());
+        assertEquals(2, queue.getBatches());
+        assertEquals(2, queue.getMaxBatchSize());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    private Presence presence(final String from, final boolean available) {
+        final Presence presence = new Presence(available ?
+            Presence.Type.available : Presence.Type.unavailable);
+        presence.setFrom(from);
+        return presence;
+    }
+}
@@ -0,0 +1,84 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+public class RequestTracerTest {
+
+    @Test
+    public void testSampling() throws Exception {
+        final RequestTracer tracer = new RequestTracer();
+        tracer.setSampleRate(10);
+        for (int i = 0; i < 100; i++) {
+            final RequestTrace trace =
+                tracer.start(get("http://example.com/" + i));
+            trace.event("lae");
+            tracer.finish(trace, "LAE");
+        }
+        final List<RequestTrace> traces = tracer.getTraces();
+        assertEquals(10, traces.size());
+        // Newest first.
+        assertEquals("http://example.com/99", traces.get(0).getUri());
+        assertEquals("LAE", traces.get(0).getOutcome());
+        assertTrue(traces.get(0).getEvents().startsWith("lae@"));
+        assertTrue(traces.get(0).getMicros() >= 0);
+
+        tracer.setSampleRate(0);
+        tracer.finish(tracer.start(get("http://example.com/")), "LAE");
+        assertEquals(10, tracer.getTraces().size());
+    }
+
+    @Test
+    public void testRingKeepsNewest() throws Exception {
+        final RequestTracer tracer = new RequestTracer();
+        tracer.setSampleRate(1);
+        final int total = RequestTracer.CAPACITY + 10;
+        for (int i = 0; i < total; i++) {
+            tracer.finish(tracer.start(get("http://example.com/" + i)),
+                "CENTRAL");
+        }
+        final List<RequestTrace> traces = tracer.getTraces();
+        assertEquals(RequestTracer.CAPACITY, traces.size());
+        assertEquals("http://example.com/" + (total - 1),
+            traces.get(0).getUri());
+        assertEquals("http://example.com/10",
+            traces.get(RequestTracer.CAPACITY - 1).getUri());
+    }
+
+    @Test
+    public void testTracedHosts() throws Exception {
+        final RequestTracer tracer = new RequestTracer();
+        tracer.setSampleRate(0);
+        tracer.traceHost("Example.com");
+
+        final RequestTrace sub = tracer.start(get("http://www.example.com/"));
+        assertTrue(sub.isSampled());
+        assertTrue(sub.isVerbose());
+        final HttpRequest connect = new DefaultHttpRequest(
+            HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "example.com:443");
+        assertTrue(tracer.start(connect).isVerbose());
+        final HttpRequest header = get("/");
+        header.setHeader(HttpHeaders.Names.HOST, "mail.example.com:8080");
+        assertTrue(tracer.start(header).isVerbose());
+        assertFalse(tracer.start(get("http://notexample.com/")).isSampled());
+
+        tracer.untraceHost("example.com");
+        assertFalse(tracer.start(get("http://example.com/")).isSampled());
+        assertTrue(tracer.getTracedHosts().isEmpty());
+    }
+
+    private HttpRequest get(final String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            uri);
+    }
+}
@@ -0,0 +1,80 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.lantern.httpseverywhere.HttpsEverywhere.HttpsRuleSet;
+import org.lantern.httpseverywhere.HttpsRule;
+import org.lantern.httpseverywhere.HttpsSecureCookieRule;
+import org.lantern.httpseverywhere.SecureCookiePolicy;
+
+public class SecureCookiePolicyTest {
+
+    @Test
+    public void testOnlyRulesForTheHost() throws Exception {
+        final HttpsRuleSet ruleSet = ruleSet(Collections.<String>emptyList(),
+            new HttpsSecureCookieRule("^(.*\\.)?example\\.com$", "session"),
+            new HttpsSecureCookieRule("^mail\\.example\\.com$", "mail.*"),
+            new HttpsSecureCookieRule("^docs\\.example\\.com$", ".*"));
+
+        final Pattern names = SecureCookiePolicy.forHost("mail.example.com",
+            Arrays.asList(ruleSet)).namesFor("http://mail.example.com/");
+        assertTrue(names.matcher("session").matches());
+        assertTrue(names.matcher("mailbox").matches());
+        assertFalse(names.matcher("sessions").matches());
+        assertFalse(names.matcher("docs").matches());
+
+        assertSame(SecureCookiePolicy.NONE, SecureCookiePolicy.forHost(
+            "example.org", Arrays.asList(ruleSet)));
+        assertNull(SecureCookiePolicy.NONE.namesFor("http://example.org/"));
+    }
+
+    @Test
+    public void testExclusions() throws Exception {
+        final HttpsRuleSet excluding = ruleSet(
+            Arrays.asList("^http://example\\.com/public/.*"),
+            new HttpsSecureCookieRule("^example\\.com$", "private"));
+        final HttpsRuleSet other = ruleSet(Collections.<String>emptyList(),
+            new HttpsSecureCookieRule("^example\\.com$", "login"));
+        final SecureCookiePolicy policy = SecureCookiePolicy.forHost(
+            "example.com", Arrays.asList(excluding, other));
+
+        final Pattern all = policy.namesFor("http://example.com/account");
+        assertTrue(all.matcher("private").matches());
+        assertTrue(all.matcher("login").matches());
+        assertSame(all, policy.namesFor("http://example.com/settings"));
+
+        final Pattern excluded =
+            policy.namesFor("http://example.com/public/index.html");
+        assertFalse(excluded.matcher("private").matches());
+        assertTrue(excluded.matcher("login").matches());
+    }
+
+    @Test
+    public void testBadPatterns() throws Exception {
+        final HttpsSecureCookieRule bad =
+            new HttpsSecureCookieRule("^example\\.com$", "(unclosed");
+        assertFalse(bad.isValid());
+        final Pattern names = SecureCookiePolicy.forRules(Arrays.asList(bad,
+            new HttpsSecureCookieRule("", "ok"))).namesFor("");
+        assertTrue(names.matcher("ok").matches());
+        assertFalse(names.matcher("(unclosed").matches());
+        assertEquals(null, SecureCookiePolicy.forRules(
+            Arrays.asList(bad)).namesFor(""));
+    }
+
+    private static HttpsRuleSet ruleSet(final Collection<String> exclusions,
+        final HttpsSecureCookieRule... rules) {
+        return new HttpsRuleSet(Collections.<HttpsRule>emptyList(),
+            Arrays.asList(rules), exclusions);
+    }
+}
@@ -0,0 +1,117 @@
+package org.lantern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Stands in for both the XMPP server and the Lantern controller. Peers
+ * sign in and out, which everyone else sees as presence, and messages
+ * between peers are routed to whoever is signed in with that JID. The
+ * controller side tells peers about give mode peers with the same JSON
+ * the real one sends.
+ */
+public class SimulatedHub {
+
+    private final SimulatedNetwork network;
+
+    private final Map<String, SimulatedPeer> online =
+        new ConcurrentHashMap<String, SimulatedPeer>();
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    SimulatedHub(final SimulatedNetwork network) {
+        this.network = network;
+    }
+
+    void signIn(final SimulatedPeer peer) {
+        online.put(peer.getJid(), peer);
+        broadcastPresence(peer, Presence.Type.available);
+    }
+
+    void signOut(final SimulatedPeer peer) {
+        if (online.remove(peer.getJid()) != null) {
+            broadcastPresence(peer, Presence.Type.unavailable);
+        }
+    }
+
+    private void broadcastPresence(final SimulatedPeer peer,
+        final Presence.Type type) {
+        for (final SimulatedPeer other : online.values()) {
+            if (other != peer) {
+                final Presence presence = new Presence(type);
+                presence.setFrom(peer.getJid());
+                presence.setTo(other.getJid());
+                send(presence);
+            }
+        }
+    }
+
+    /**
+     * Sends every online peer the current list of give mode peers, as
+     * the controller does in its replies.
+     */
+    @SuppressWarnings("unchecked")
+    public void announceProxies() {
+        final JSONArray servers = new JSONArray();
+        for (final SimulatedPeer peer : online.values()) {
+            if (peer.isGive()) {
+                servers.add(peer.getJid());
+            }
+        }
+        for (final SimulatedPeer peer : online.values()) {
+            final JSONObject json = new JSONObject();
+            json.put(LanternConstants.SERVERS, servers);
+            final Message msg = new Message();
+            msg.setFrom(LanternConstants.LANTERN_JID);
+            msg.setTo(peer.getJid());
+            msg.setBody(json.toJSONString());
+            send(msg);
+        }
+    }
+
+    /**
+     * Routes a packet to the peer it's addressed to, after the network's
+     * latency. Packets to peers that aren't signed in are dropped, like
+     * the network drops some anyway.
+     */
+    void send(final Packet packet) {
+        final boolean sent = network.deliver(new Runnable() {
+            @Override
+            public void run() {
+                final SimulatedPeer to = online.get(packet.getTo());
+                if (to == null) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                delivered.incrementAndGet();
+                to.processPacket(packet);
+            }
+        });
+        if (!sent) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public List<SimulatedPeer> getOnlinePeers() {
+        return new ArrayList<SimulatedPeer>(online.values());
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
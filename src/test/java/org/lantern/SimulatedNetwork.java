@@ -0,0 +1,368 @@
+package org.lantern;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs many simulated Lantern peers in one process, so we can see how
+ * signalling, the peer pool and failover behave with hundreds of peers
+ * and no Google Talk accounts.
+ *
+ * Signalling goes through a {@link SimulatedHub} and connections between
+ * peers are real loopback TCP connections to each give mode peer. Every
+ * hop sees the same latency, loss and bandwidth, which can be changed at
+ * any time. Latency delays each signalling message and each connection
+ * setup, loss drops signalling messages and connection attempts, and
+ * bandwidth caps how fast each connection can be read.
+ */
+public class SimulatedNetwork {
+
+    private final Map<URI, SimulatedPeer> peers =
+        new ConcurrentHashMap<URI, SimulatedPeer>();
+
+    private final Random random;
+
+    private final ScheduledExecutorService scheduler =
+        Executors.newScheduledThreadPool(4, new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("Simulated-Network-Thread-%d")
+            .build());
+
+    private final NioServerSocketChannelFactory serverFactory =
+        new NioServerSocketChannelFactory(
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("Simulated-Boss-Thread-%d")
+                .build()),
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("Simulated-Worker-Thread-%d")
+                .build()));
+
+    private final SimulatedHub hub = new SimulatedHub(this);
+
+    private final AtomicLong connects = new AtomicLong();
+
+    private final AtomicLong refusedConnects = new AtomicLong();
+
+    private final AtomicLong lostConnects = new AtomicLong();
+
+    private volatile long latencyMillis;
+
+    private volatile double loss;
+
+    private volatile long bytesPerSecond;
+
+    /**
+     * Creates a network with no latency, loss or bandwidth limit.
+     *
+     * @param seed The seed for loss and churn, so runs can be repeated.
+     */
+    public SimulatedNetwork(final long seed) {
+        this.random = new Random(seed);
+        // Every simulated peer shares the process' settings.
+        LanternHub.settings().setGetMode(true);
+        LanternHub.settings().setUseAnonymousPeers(true);
+        LanternHub.settings().setUseTrustedPeers(true);
+    }
+
+    /**
+     * @param latencyMillis The one way delay of each hop.
+     */
+    public void setLatency(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param loss The chance of dropping each signalling message or
+     * connection attempt, from 0 to 1.
+     */
+    public void setLoss(final double loss) {
+        this.loss = loss;
+    }
+
+    /**
+     * @param bytesPerSecond The most each connection can carry, or 0 for
+     * no limit.
+     */
+    public void setBandwidth(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public SimulatedHub getHub() {
+        return hub;
+    }
+
+    /**
+     * Adds a peer that shares its connection. It isn't signed in yet.
+     */
+    public SimulatedPeer addGivePeer(final String user) {
+        return addPeer(user, true);
+    }
+
+    /**
+     * Adds a peer that proxies through others. It isn't signed in yet.
+     */
+    public SimulatedPeer addGetPeer(final String user) {
+        return addPeer(user, false);
+    }
+
+    private SimulatedPeer addPeer(final String user, final boolean give) {
+        final SimulatedPeer peer = new SimulatedPeer(this, user, give);
+        peers.put(peer.getUri(), peer);
+        return peer;
+    }
+
+    public Collection<SimulatedPeer> getPeers() {
+        return new ArrayList<SimulatedPeer>(peers.values());
+    }
+
+    /**
+     * Randomly picks some of the give mode peers to go offline and brings
+     * back ones that were offline, with the given chance for each.
+     *
+     * @param chance The chance that each give mode peer changes state.
+     */
+    public void churn(final double chance) {
+        for (final SimulatedPeer peer : getPeers()) {
+            if (!peer.isGive() || !roll(chance)) {
+                continue;
+            }
+            if (peer.isOnline()) {
+                peer.goOffline();
+            } else {
+                peer.goOnline();
+            }
+        }
+        hub.announceProxies();
+    }
+
+    /**
+     * Runs part of a script after a delay.
+     */
+    public void schedule(final long delayMillis, final Runnable step) {
+        scheduler.schedule(step, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs something after the current latency, unless it's lost.
+     *
+     * @return <code>false</code> if it was lost.
+     */
+    boolean deliver(final Runnable delivery) {
+        if (roll(loss)) {
+            return false;
+        }
+        scheduler.schedule(delivery, latencyMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Connects to a give mode peer, taking a round trip.
+     */
+    Socket connect(final URI peerUri) throws IOException {
+        connects.incrementAndGet();
+        sleep(2 * latencyMillis);
+        if (roll(loss)) {
+            lostConnects.incrementAndGet();
+            throw new IOException("Simulated loss connecting to " + peerUri);
+        }
+        final SimulatedPeer peer = peers.get(peerUri);
+        final int port = peer == null ? -1 : peer.getPort();
+        if (port < 0) {
+            refusedConnects.incrementAndGet();
+            throw new IOException("Connection refused by " + peerUri);
+        }
+        return new ShapedSocket(new Socket("127.0.0.1", port));
+    }
+
+    NioServerSocketChannelFactory getServerFactory() {
+        return serverFactory;
+    }
+
+    private boolean roll(final double chance) {
+        synchronized (random) {
+            return chance > 0 && random.nextDouble() < chance;
+        }
+    }
+
+    /**
+     * @return A summary of what's happened so far.
+     */
+    public String report() {
+        long fetches = 0;
+        long failures = 0;
+        long bytes = 0;
+        long millis = 0;
+        long certs = 0;
+        int online = 0;
+        final List<SimulatedPeer> all = new ArrayList<SimulatedPeer>(peers.values());
+        for (final SimulatedPeer peer : all) {
+            fetches += peer.getFetches();
+            failures += peer.getFailedFetches();
+            bytes += peer.getBytesFetched();
+            millis += peer.getFetchMillis();
+            certs += peer.getCertCount();
+            if (peer.isOnline()) {
+                online++;
+            }
+        }
+        return "Peers: " + all.size() + " (" + online + " online)" +
+            "\nMessages: " + hub.getDelivered() + " delivered, " +
+            hub.getDropped() + " dropped" +
+            "\nCerts exchanged: " + certs +
+            "\nConnects: " + connects + " (" + refusedConnects +
+            " refused, " + lostConnects + " lost)" +
+            "\nFetches: " + fetches + " (" + failures + " failed over)" +
+            "\nThroughput: " + (millis == 0 ? 0 : bytes * 1000 / millis) +
+            " bytes per second per fetch";
+    }
+
+    public void close() {
+        for (final SimulatedPeer peer : getPeers()) {
+            peer.close();
+        }
+        scheduler.shutdownNow();
+        serverFactory.releaseExternalResources();
+    }
+
+    private static void sleep(final long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * A connection that's read no faster than the network's bandwidth.
+     */
+    private final class ShapedSocket extends Socket {
+
+        private final Socket sock;
+
+        private final InputStream in;
+
+        private ShapedSocket(final Socket sock) throws IOException {
+            this.sock = sock;
+            this.in = new FilterInputStream(sock.getInputStream()) {
+                /**
+                 * When we'll have been allowed everything read so far.
+                 * Idle time doesn't build up credit for later.
+                 */
+                private long next = System.nanoTime();
+
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b != -1) {
+                        throttle(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len)
+                    throws IOException {
+                    final int n = super.read(b, off, len);
+                    if (n > 0) {
+                        throttle(n);
+                    }
+                    return n;
+                }
+
+                private void throttle(final int n) throws IOException {
+                    final long rate = bytesPerSecond;
+                    if (rate <= 0) {
+                        return;
+                    }
+                    final long now = System.nanoTime();
+                    next = Math.max(next, now) + n * 1000000000L / rate;
+                    sleep((next - now) / 1000000);
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return sock.getOutputStream();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            sock.close();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return sock.isClosed();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return sock.isConnected();
+        }
+
+        @Override
+        public synchronized void setSoTimeout(final int timeout)
+            throws SocketException {
+            sock.setSoTimeout(timeout);
+        }
+
+        @Override
+        public synchronized int getSoTimeout() throws SocketException {
+            return sock.getSoTimeout();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return sock.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return sock.getLocalSocketAddress();
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return sock.getInetAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return sock.getPort();
+        }
+
+        @Override
+        public String toString() {
+            return "Shaped" + sock;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.lastbamboo.common.p2p.P2PConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simulated Lantern instance. It handles presence, the controller's
+ * list of proxies and the cert exchange the same way
+ * {@link DefaultXmppHandler} does. Get mode peers keep their pool of
+ * sockets to other peers in a real {@link DefaultPeerProxyManager}, and
+ * give mode peers listen on a loopback port that accepts streams the same
+ * way a real peer does and answers each request with the number of bytes
+ * it asks for.
+ */
+public class SimulatedPeer {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final AtomicInteger servers = new AtomicInteger();
+
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final SimulatedNetwork network;
+
+    private final String jid;
+
+    private final URI uri;
+
+    private final boolean give;
+
+    private final String mac;
+
+    private final String cert;
+
+    /**
+     * The certs of peers we've exchanged certs with.
+     */
+    private final Map<URI, String> certs = new ConcurrentHashMap<URI, String>();
+
+    /**
+     * Peers the controller has told us about and we've asked for certs.
+     */
+    private final Set<URI> peerProxySet =
+        Collections.synchronizedSet(new HashSet<URI>());
+
+    private final DefaultPeerProxyManager peers;
+
+    private final ChannelGroup channels = new DefaultChannelGroup();
+
+    private volatile int port = -1;
+
+    private volatile boolean online;
+
+    private final AtomicLong fetches = new AtomicLong();
+
+    private final AtomicLong failedFetches = new AtomicLong();
+
+    private final AtomicLong bytesFetched = new AtomicLong();
+
+    private final AtomicLong fetchMillis = new AtomicLong();
+
+    SimulatedPeer(final SimulatedNetwork network, final String user,
+        final boolean give) {
+        this.network = network;
+        this.jid = user + "/-lan" + Integer.toHexString(user.hashCode());
+        try {
+            this.uri = new URI(jid);
+        } catch (final URISyntaxException e) {
+            throw new IllegalArgumentException("Bad user: " + user, e);
+        }
+        this.give = give;
+        final Random random = new Random(jid.hashCode());
+        final byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        this.cert = Base64.encodeBase64String(bytes);
+        this.mac = Integer.toHexString(random.nextInt());
+        if (give) {
+            this.peers = null;
+        } else {
+            this.peers = new DefaultPeerProxyManager(true,
+                new DefaultChannelGroup()) {
+                @Override
+                protected Socket newTransportSocket(final URI peerUri,
+                    final Map<URI, AtomicInteger> peerFailureCount)
+                    throws IOException {
+                    return SimulatedPeer.this.network.connect(peerUri);
+                }
+            };
+        }
+    }
+
+    /**
+     * Starts listening if we're in give mode and signs in.
+     */
+    public synchronized void goOnline() {
+        if (online) {
+            return;
+        }
+        if (give) {
+            listen();
+        }
+        online = true;
+        network.getHub().signIn(this);
+    }
+
+    /**
+     * Signs out and drops every connection.
+     */
+    public synchronized void goOffline() {
+        if (!online) {
+            return;
+        }
+        online = false;
+        network.getHub().signOut(this);
+        peerProxySet.clear();
+        if (give) {
+            stopListening();
+        } else {
+            peers.closeAll();
+        }
+    }
+
+    /**
+     * Drops every connection to this peer without signing out, as when
+     * its network goes away without XMPP noticing.
+     */
+    public synchronized void fail() {
+        if (give && online) {
+            stopListening();
+            listen();
+        }
+    }
+
+    /**
+     * Handles a packet from the hub.
+     */
+    void processPacket(final Packet packet) {
+        if (!online) {
+            return;
+        }
+        if (packet instanceof Presence) {
+            addOrRemovePeer((Presence) packet, packet.getFrom());
+            return;
+        }
+        final Message msg = (Message) packet;
+        if (LanternConstants.LANTERN_JID.equals(msg.getFrom())) {
+            processLanternHubMessage(msg);
+            return;
+        }
+        final Integer type =
+            (Integer) msg.getProperty(P2PConstants.MESSAGE_TYPE);
+        if (type == null) {
+            log.warn("No type in message from {}", msg.getFrom());
+            return;
+        }
+        switch (type) {
+            case (XmppMessageConstants.INFO_REQUEST_TYPE):
+                processInfoData(msg);
+                sendInfoResponse(msg.getFrom());
+                break;
+            case (XmppMessageConstants.INFO_RESPONSE_TYPE):
+                processInfoData(msg);
+                break;
+            default:
+                log.warn("Did not understand type: " + type);
+                break;
+        }
+    }
+
+    private void addOrRemovePeer(final Presence p, final String from) {
+        final URI peerUri = toUri(from);
+        if (peerUri == null) {
+            return;
+        }
+        if (p.isAvailable()) {
+            sendAndRequestCert(peerUri);
+        } else {
+            peerProxySet.remove(peerUri);
+            if (peers != null) {
+                peers.removePeer(peerUri);
+            }
+        }
+    }
+
+    private void processLanternHubMessage(final Message msg) {
+        final JSONObject json = (JSONObject) JSONValue.parse(msg.getBody());
+        final JSONArray proxies = (JSONArray) json.get(LanternConstants.SERVERS);
+        if (proxies == null) {
+            return;
+        }
+        for (final Object proxy : proxies) {
+            final String cur = (String) proxy;
+            if (cur.equals(jid)) {
+                continue;
+            }
+            final URI peerUri = toUri(cur);
+            if (peerUri != null && peerProxySet.add(peerUri)) {
+                sendAndRequestCert(peerUri);
+            }
+        }
+    }
+
+    private void sendAndRequestCert(final URI peerUri) {
+        final Message msg = new Message();
+        msg.setProperty(P2PConstants.MESSAGE_TYPE,
+            XmppMessageConstants.INFO_REQUEST_TYPE);
+        msg.setTo(peerUri.toASCIIString());
+        msg.setFrom(jid);
+        msg.setProperty(P2PConstants.MAC, mac);
+        msg.setProperty(P2PConstants.CERT, cert);
+        network.getHub().send(msg);
+    }
+
+    private void sendInfoResponse(final String from) {
+        final Message msg = new Message();
+        msg.setTo(from);
+        msg.setFrom(jid);
+        msg.setProperty(P2PConstants.MESSAGE_TYPE,
+            XmppMessageConstants.INFO_RESPONSE_TYPE);
+        msg.setProperty(P2PConstants.MAC, mac);
+        msg.setProperty(P2PConstants.CERT, cert);
+        network.getHub().send(msg);
+    }
+
+    private void processInfoData(final Message msg) {
+        final URI peerUri = toUri(msg.getFrom());
+        final String base64Cert = (String) msg.getProperty(P2PConstants.CERT);
+        if (peerUri == null || StringUtils.isBlank(base64Cert)) {
+            log.error("No cert for peer?");
+            return;
+        }
+        certs.put(peerUri, base64Cert);
+        if (peers != null) {
+            peers.onPeer(peerUri);
+        }
+    }
+
+    private URI toUri(final String from) {
+        try {
+            return new URI(from);
+        } catch (final URISyntaxException e) {
+            log.error("Could not create URI from: {}", from);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the given number of bytes through a peer, moving on to
+     * another socket if one fails.
+     *
+     * @param bytes The number of bytes.
+     * @param attempts The most sockets to try.
+     * @return Whether any attempt succeeded.
+     */
+    public boolean fetch(final int bytes, final int attempts) {
+        for (int i = 0; i < attempts; i++) {
+            final long start = System.currentTimeMillis();
+            Socket sock = null;
+            try {
+                sock = peers.takeSocket();
+                sock.setSoTimeout(30 * 1000);
+                final OutputStream os = sock.getOutputStream();
+                os.write((bytes + "\n").getBytes("US-ASCII"));
+                os.flush();
+                final InputStream is = sock.getInputStream();
+                final byte[] buf = new byte[8192];
+                long read = 0;
+                while (read < bytes) {
+                    final int n = is.read(buf);
+                    if (n == -1) {
+                        throw new IOException("Only got " + read + " bytes");
+                    }
+                    read += n;
+                }
+                fetches.incrementAndGet();
+                bytesFetched.addAndGet(bytes);
+                fetchMillis.addAndGet(
+                    Math.max(System.currentTimeMillis() - start, 1));
+                return true;
+            } catch (final IOException e) {
+                log.debug("Fetch through {} failed", sock, e);
+                failedFetches.incrementAndGet();
+            } finally {
+                IOUtils.closeQuietly(sock);
+            }
+        }
+        return false;
+    }
+
+    private void listen() {
+        final LocalAddress streamAddress =
+            new LocalAddress("simulated-peer-" + servers.incrementAndGet());
+        final ServerBootstrap streams =
+            new ServerBootstrap(new DefaultLocalServerChannelFactory());
+        streams.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new Responder());
+            }
+        });
+        channels.add(streams.bind(streamAddress));
+
+        final ServerBootstrap sb =
+            new ServerBootstrap(network.getServerFactory());
+        sb.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(
+                    new PeerMuxDetector(new DefaultLocalClientChannelFactory(),
+                        streamAddress),
+                    new Responder());
+            }
+        });
+        final Channel server = sb.bind(new InetSocketAddress("127.0.0.1", 0));
+        channels.add(server);
+        port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    private void stopListening() {
+        port = -1;
+        channels.close().awaitUninterruptibly();
+    }
+
+    public void close() {
+        online = false;
+        if (give) {
+            stopListening();
+        } else {
+            peers.closeAll();
+        }
+    }
+
+    public String getJid() {
+        return jid;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    public boolean isGive() {
+        return give;
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * @return The number of sockets to other peers waiting to be used.
+     */
+    public int getPooledSockets() {
+        return peers == null ? 0 : peers.timedSockets.size();
+    }
+
+    public int getCertCount() {
+        return certs.size();
+    }
+
+    public boolean hasCert(final SimulatedPeer peer) {
+        return certs.containsKey(peer.getUri());
+    }
+
+    public long getFetches() {
+        return fetches.get();
+    }
+
+    public long getFailedFetches() {
+        return failedFetches.get();
+    }
+
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
+
+    public long getFetchMillis() {
+        return fetchMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return (give ? "Give" : "Get") + "Peer-" + jid;
+    }
+
+    /**
+     * Answers a line holding a number with that many bytes and closes.
+     */
+    private final class Responder extends SimpleChannelUpstreamHandler {
+
+        private final StringBuilder request = new StringBuilder();
+
+        @Override
+        public void channelOpen(final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) {
+            channels.add(ctx.getChannel());
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent me) {
+            final ChannelBuffer buf = (ChannelBuffer) me.getMessage();
+            while (buf.readable()) {
+                final char c = (char) buf.readByte();
+                if (c != '\n') {
+                    request.append(c);
+                    continue;
+                }
+                respond(ctx.getChannel(), Integer.parseInt(request.toString()));
+                return;
+            }
+        }
+
+        private void respond(final Channel channel, final int bytes) {
+            ChannelFuture future = null;
+            for (int sent = 0; sent < bytes; sent += ZEROS.length) {
+                future = channel.write(ChannelBuffers.wrappedBuffer(ZEROS, 0,
+                    Math.min(ZEROS.length, bytes - sent)));
+            }
+            if (future == null) {
+                channel.close();
+            } else {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent e) {
+            log.debug("Exception on simulated peer", e.getCause());
+            ctx.getChannel().close();
+        }
+    }
+}
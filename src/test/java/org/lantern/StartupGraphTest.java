@@ -0,0 +1,119 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StartupGraphTest {
+
+    private final List<String> order =
+        Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void testIndependentStagesRunTogether() throws Exception {
+        final StartupGraph graph = new StartupGraph(3);
+        // Each of these waits for the others, so they only finish if they
+        // all run at once.
+        final CountDownLatch together = new CountDownLatch(3);
+        for (final String name : new String[] {"a", "b", "c"}) {
+            graph.add(name, new Runnable() {
+                @Override
+                public void run() {
+                    together.countDown();
+                    try {
+                        assertTrue(together.await(5, TimeUnit.SECONDS));
+                    } catch (final InterruptedException e) {
+                        fail("Interrupted");
+                    }
+                    order.add(name);
+                }
+            });
+        }
+        graph.add("d", record("d"), "a", "b", "c");
+        assertTrue(graph.run());
+        assertEquals(4, order.size());
+        assertEquals("d", order.get(3));
+        assertTrue(graph.await("d", 0, TimeUnit.SECONDS));
+
+        final Map<String, StartupStage> stages = stages(graph);
+        assertEquals("DONE", stages.get("d").getState());
+        assertEquals(3, stages.get("d").getDependencies().size());
+        assertTrue(stages.get("d").getThread().startsWith("Startup-Thread-"));
+        assertTrue(graph.getTotalMillis() >= stages.get("d").getStarted());
+    }
+
+    @Test
+    public void testFailureSkipsDependents() throws Exception {
+        final StartupGraph graph = new StartupGraph(2);
+        graph.add("ok", record("ok"));
+        graph.add("broken", new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Could not start");
+            }
+        });
+        graph.add("needs-broken", record("needs-broken"), "broken");
+        graph.add("needs-both", record("needs-both"), "ok", "needs-broken");
+        graph.add("needs-ok", record("needs-ok"), "ok");
+        assertFalse(graph.run());
+        assertEquals(2, order.size());
+        assertTrue(order.contains("needs-ok"));
+
+        final Map<String, StartupStage> stages = stages(graph);
+        assertEquals("FAILED", stages.get("broken").getState());
+        assertEquals("SKIPPED", stages.get("needs-broken").getState());
+        assertEquals("SKIPPED", stages.get("needs-both").getState());
+        assertEquals("DONE", stages.get("needs-ok").getState());
+    }
+
+    @Test
+    public void testStagesMustBeAddedInOrder() throws Exception {
+        final StartupGraph graph = new StartupGraph(1);
+        graph.add("a", record("a"));
+        try {
+            graph.add("b", record("b"), "c");
+            fail("Expected unknown dependency to fail");
+        } catch (final IllegalArgumentException e) {
+        }
+        try {
+            graph.add("a", record("a"));
+            fail("Expected duplicate stage to fail");
+        } catch (final IllegalArgumentException e) {
+        }
+        assertTrue(graph.run());
+        try {
+            graph.add("late", record("late"));
+            fail("Expected adding after starting to fail");
+        } catch (final IllegalStateException e) {
+        }
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    private static Map<String, StartupStage> stages(final StartupGraph graph) {
+        final Map<String, StartupStage> stages =
+            new HashMap<String, StartupStage>();
+        for (final StartupStage stage : graph.getStages()) {
+            stages.put(stage.getName(), stage);
+        }
+        return stages;
+    }
+}
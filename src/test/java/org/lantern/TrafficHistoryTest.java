@@ -0,0 +1,183 @@
+package org.lantern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrafficHistoryTest {
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    /**
+     * A round time well after the epoch.
+     */
+    private static final long NOW = 15000 * DAY;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("traffic", ".db");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testTiersRollUp() throws Exception {
+        final TrafficHistory history = new TrafficHistory();
+        final int up = history.series(TrafficHistory.UP);
+        history.add(up, NOW - 2 * HOUR, 1000);
+        history.add(up, NOW - 90 * SECOND, 10);
+        history.add(up, NOW - 5 * SECOND, 5);
+        history.add(up, NOW - 5 * SECOND + 500, 7);
+        history.add(up, NOW - SECOND, 3);
+
+        // The last minute in seconds.
+        TrafficHistory.Range range = history.query(TrafficHistory.UP,
+            NOW - MINUTE, NOW - 1, 0, NOW);
+        assertEquals(SECOND, range.getStep());
+        assertEquals(60, range.getValues().length);
+        assertEquals(12, range.getValues()[55]);
+        assertEquals(3, range.getValues()[59]);
+
+        // Downsampled to 10 second points.
+        range = history.query(TrafficHistory.UP, NOW - MINUTE, NOW - 1,
+            10 * SECOND, NOW);
+        assertArrayEquals(new long[] {0, 0, 0, 0, 0, 15}, range.getValues());
+
+        // Three hours ago is too far back for seconds, so we get minutes.
+        range = history.query(TrafficHistory.UP, NOW - 3 * HOUR, NOW - 1, 0,
+            NOW);
+        assertEquals(MINUTE, range.getStep());
+        assertEquals(180, range.getValues().length);
+        assertEquals(1000, range.getValues()[60]);
+        assertEquals(10, range.getValues()[178]);
+        assertEquals(15, range.getValues()[179]);
+
+        // Asking for hours uses the hour tier directly.
+        range = history.query(TrafficHistory.UP, NOW - 3 * HOUR, NOW - 1,
+            HOUR, NOW);
+        assertArrayEquals(new long[] {0, 1000, 25}, range.getValues());
+
+        range = history.query(TrafficHistory.UP, NOW - 30 * DAY, NOW - 1,
+            DAY, NOW);
+        assertEquals(DAY, range.getStep());
+        assertEquals(1025, range.getValues()[29]);
+
+        assertNull(history.query("missing", NOW - MINUTE, NOW, 0, NOW));
+    }
+
+    @Test
+    public void testOldBucketsAreIgnored() throws Exception {
+        final TrafficHistory history = new TrafficHistory();
+        final int down = history.series(TrafficHistory.DOWN);
+        history.add(down, NOW - 30, 100);
+        // The same slot in the ring an hour of seconds later.
+        history.add(down, NOW + HOUR - 30, 1);
+        final TrafficHistory.Range range = history.query(TrafficHistory.DOWN,
+            NOW - SECOND, NOW + HOUR, HOUR, NOW + HOUR);
+        long total = 0;
+        for (final long value : range.getValues()) {
+            total += value;
+        }
+        assertEquals(101, total);
+        final TrafficHistory.Range seconds = history.query(
+            TrafficHistory.DOWN, NOW + HOUR - MINUTE, NOW + HOUR, 0,
+            NOW + HOUR);
+        total = 0;
+        for (final long value : seconds.getValues()) {
+            total += value;
+        }
+        assertEquals(1, total);
+    }
+
+    @Test
+    public void testRangesAreChecked() throws Exception {
+        final TrafficHistory history = new TrafficHistory();
+        history.add(history.series("country/IR"), NOW - SECOND, 5);
+        // Ranges far into the future only look at buckets up to now.
+        final TrafficHistory.Range range = history.query("country/IR",
+            NOW - MINUTE, Long.MAX_VALUE, SECOND, NOW);
+        long total = 0;
+        for (final long value : range.getValues()) {
+            total += value;
+        }
+        assertEquals(5, total);
+        try {
+            history.query("country/IR", NOW, NOW - MINUTE, SECOND, NOW);
+            fail("Should reject a range that ends before it starts");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testPersistsAndStaysBounded() throws Exception {
+        final TrafficHistory history = new TrafficHistory(file);
+        assertEquals(TrafficHistory.TOTAL_BYTES, file.length());
+        final int country = history.series("country/IR");
+        history.add(country, NOW - MINUTE, 42);
+        for (int i = 0; !history.isFull(); i++) {
+            assertTrue(history.series("country/" + i) >= 0);
+        }
+        assertEquals(-1, history.series("country/XX"));
+        // Writes to series we couldn't add are dropped.
+        history.add(-1, NOW, 1);
+        history.close();
+
+        final TrafficHistory reopened = new TrafficHistory(file);
+        assertEquals(TrafficHistory.MAX_SERIES, reopened.getSeries().size());
+        assertEquals(country, reopened.series("country/IR"));
+        final TrafficHistory.Range range = reopened.query("country/IR",
+            NOW - HOUR, NOW, MINUTE, NOW);
+        assertEquals(42, range.getValues()[59]);
+        reopened.close();
+        assertEquals(TrafficHistory.TOTAL_BYTES, file.length());
+    }
+
+    @Test
+    public void testDropsPeerSeries() throws Exception {
+        final TrafficHistory history = new TrafficHistory(file);
+        history.add(history.series("country/IR"), NOW - MINUTE, 42);
+        history.add(history.series("peer/10.0.0.1"), NOW - MINUTE, 7);
+        history.add(history.series("country/CN"), NOW - MINUTE, 9);
+        history.close();
+
+        final TrafficHistory reopened = new TrafficHistory(file);
+        assertEquals(Arrays.asList(TrafficHistory.UP, TrafficHistory.DOWN,
+            "country/IR", "country/CN"), reopened.getSeries());
+        assertNull(reopened.query("peer/10.0.0.1", NOW - HOUR, NOW, MINUTE,
+            NOW));
+        assertEquals(9, reopened.query("country/CN", NOW - HOUR, NOW, MINUTE,
+            NOW).getValues()[59]);
+        // The slot it moved out of is free, and starts out empty.
+        final int added = reopened.series("country/US");
+        assertEquals(4, added);
+        for (final long value : reopened.query("country/US", NOW - HOUR, NOW,
+            MINUTE, NOW).getValues()) {
+            assertEquals(0, value);
+        }
+        reopened.close();
+        final String contents =
+            FileUtils.readFileToString(file, "ISO-8859-1");
+        assertEquals(-1, contents.indexOf("10.0.0.1"));
+    }
+}
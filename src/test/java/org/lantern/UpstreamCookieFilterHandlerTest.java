@@ -1,5 +1,6 @@
 package org.lantern; 
 
+import java.util.HashSet;
 import java.util.Set;
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -8,11 +9,13 @@ import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.CookieDecoder;
 import org.jboss.netty.handler.codec.http.CookieEncoder;
 import org.jboss.netty.handler.codec.http.Cookie;
 import org.jboss.netty.handler.codec.http.HttpHeaders; 
 import org.jboss.netty.handler.codec.http.HttpRequest; 
 import org.lantern.cookie.CookieFilter;
+import org.lantern.cookie.CookieHeaderScanner;
 import org.lantern.cookie.UpstreamCookieFilterHandler; 
 import static org.lantern.TestingUtils.*;
 import org.slf4j.Logger;
@@ -156,5 +159,58 @@ public class UpstreamCookieFilterHandlerTest {
         assertTrue(endCookies.isEmpty());
         assertFalse(req.containsHeader(HttpHeaders.Names.COOKIE));
     }
-    
-}
\ No newline at end of file
+
+    @Test
+    public void testScannerRewritesOnlyWhenNeeded() {
+        final CookieFilter noBad = new CookieFilter() {
+            @Override
+            public boolean accepts(Cookie c) {
+                return !c.getName().startsWith("bad");
+            }
+        };
+
+        // nothing dropped, the very same header comes back.
+        final String header = "a=1;  b=\"x; y\" ;c=";
+        assertSame(header, CookieHeaderScanner.filter(header, noBad));
+
+        assertEquals("a=1; c=3", CookieHeaderScanner.filter("a=1; bad=2; c=3", noBad));
+        assertEquals("a=1; c=3", CookieHeaderScanner.filter("bad=0; a=1;bad2=2; c=3", noBad));
+        assertEquals("", CookieHeaderScanner.filter("bad=1; bad2=\"2\"", noBad));
+
+        // attributes travel with their cookie, $Version is kept.
+        assertEquals("$Version=1; a=1; $Path=/", 
+            CookieHeaderScanner.filter("$Version=1; a=1; $Path=/; bad=2; $Path=/", noBad));
+        assertEquals("", CookieHeaderScanner.filter("$Version=1; bad=2", noBad));
+
+        // quoted values are unescaped before filtering.
+        final CookieFilter quoted = new CookieFilter() {
+            @Override
+            public boolean accepts(Cookie c) {
+                return c.getValue().equals("x;\"y");
+            }
+        };
+        assertEquals("b=\"x;\\\"y\"", 
+            CookieHeaderScanner.filter("a=1; b=\"x;\\\"y\"", quoted));
+    }
+
+    @Test
+    public void testScannerSplitsCommasLikeCookieDecoder() throws Exception {
+        // A ',' ends a quoted value but is part of an unquoted one.
+        final String header = "a=1, bad=2; c=\"x, y\", bad2=3,d";
+        final Set<String> decoded = new HashSet<String>();
+        for (final Cookie c : new CookieDecoder().decode(header)) {
+            decoded.add(c.getName() + "|" + c.getValue());
+        }
+        final Set<String> scanned = new HashSet<String>();
+        final CookieFilter noBad = new CookieFilter() {
+            @Override
+            public boolean accepts(Cookie c) {
+                scanned.add(c.getName() + "|" + c.getValue());
+                return !c.getName().startsWith("bad");
+            }
+        };
+        assertEquals("a=1, bad=2; c=\"x, y\"", 
+            CookieHeaderScanner.filter(header, noBad));
+        assertEquals(decoded, scanned);
+    }
+}
@@ -1,9 +1,11 @@
 package org.lantern;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.Arrays;
 
 import org.apache.commons.lang.math.RandomUtils;
 import org.junit.Test;
@@ -82,6 +84,30 @@ public class WhitelistTest {
         assertFalse(whitelist.isWhitelisted("259.199.3.88"));
     }
 
+    @Test
+    public void testUpdateEntries() throws Exception {
+        final Whitelist whitelist = new Whitelist();
+        final int version = whitelist.getVersion();
+        assertTrue(whitelist.updateEntries(
+            Arrays.asList("nytimes.com", "economist.com", ""),
+            Arrays.asList("avaaz.org", "getlantern.org")));
+        assertEquals(version + 1, whitelist.getVersion());
+        assertTrue(whitelist.isWhitelisted("http://www.nytimes.com/"));
+        assertTrue(whitelist.isWhitelisted("www.economist.com"));
+        assertFalse(whitelist.isWhitelisted("avaaz.org"));
+        // Required sites stay.
+        assertTrue(whitelist.isWhitelisted("getlantern.org"));
+
+        // Nothing to do, so nothing changes.
+        assertFalse(whitelist.updateEntries(Arrays.asList("nytimes.com"),
+            Arrays.asList("avaaz.org", "getlantern.org")));
+        assertEquals(version + 1, whitelist.getVersion());
+        
+        whitelist.removeEntry("nytimes.com");
+        assertFalse(whitelist.isWhitelisted("http://www.nytimes.com/"));
+        assertEquals(version + 2, whitelist.getVersion());
+    }
+
     private File settingsFile() {
         return testFile("settings.json");
     }
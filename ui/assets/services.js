@@ -54,6 +54,53 @@ angular.module('dashboard.services', []).
             }
         });
 
+        // the server sends a full snapshot when we subscribe and JSON patches
+        // against the previous version after that
+        var syncStates = {};
+
+        function applyPatch(state, patch) {
+            var tokens = patch.path.split('/').slice(1);
+            if (!tokens.length) {
+                return patch.value;
+            }
+            var parent = state;
+            for (var i = 0; i < tokens.length - 1; i++) {
+                parent = parent[unescapeToken(tokens[i])];
+            }
+            var key = unescapeToken(tokens[tokens.length - 1]);
+            if (patch.op === 'remove') {
+                delete parent[key];
+            } else {
+                parent[key] = patch.value;
+            }
+            return state;
+        }
+
+        function unescapeToken(token) {
+            return token.replace(/~1/g, '/').replace(/~0/g, '~');
+        }
+
+        function applySync(channel, data) {
+            if (data.state !== undefined) {
+                syncStates[channel] = {version: data.version, state: data.state};
+                return data.state;
+            }
+            var current = syncStates[channel];
+            if (!current || current.version !== data.base) {
+                console.log('missed an update on ' + channel + '; requesting resync');
+                delete syncStates[channel];
+                cometd.publish('/service/sync', {resync: channel});
+                return null;
+            }
+            var state = current.state;
+            angular.forEach(data.patches, function(patch) {
+                state = applyPatch(state, patch);
+            });
+            current.state = state;
+            current.version = data.version;
+            return state;
+        }
+
         function subscribe(channel, callback) {
             if (!connected) {
                 console.log('not yet connected; queuing subscription request for channel ' + channel);
@@ -67,8 +114,12 @@ angular.module('dashboard.services', []).
                 console.log('unsubscribing existing subscription request for channel ' + channel);
             }
             subscriptions[channel] = [cometd.subscribe(channel, function(msg) {
+                var state = applySync(channel, msg.data);
+                if (state === null) {
+                    return;
+                }
                 $rootScope.$apply(function() {
-                    callback(msg.data);
+                    callback(state);
                 });
                 prettyPrint(); // XXX
             }), callback];